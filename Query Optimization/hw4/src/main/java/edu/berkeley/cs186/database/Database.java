@@ -1,42 +1,105 @@
 package edu.berkeley.cs186.database;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
 import java.util.LinkedList;
 
 import edu.berkeley.cs186.database.common.BacktrackingIterator;
+import edu.berkeley.cs186.database.common.LongIterator;
+import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.concurrency.LockManager;
 import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.IntDataBox;
 import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.databox.TypeId;
+import edu.berkeley.cs186.database.index.ArtIndex;
+import edu.berkeley.cs186.database.index.ArtIndexException;
+import edu.berkeley.cs186.database.index.BitmapIndex;
+import edu.berkeley.cs186.database.index.BitmapIndexException;
+import edu.berkeley.cs186.database.index.BloomFilter;
 import edu.berkeley.cs186.database.index.BPlusTree;
+import edu.berkeley.cs186.database.index.BPlusTreeCursor;
 import edu.berkeley.cs186.database.index.BPlusTreeException;
+import edu.berkeley.cs186.database.index.ColumnIndex;
+import edu.berkeley.cs186.database.index.CompositeKey;
+import edu.berkeley.cs186.database.index.HashIndex;
+import edu.berkeley.cs186.database.index.HashIndexException;
+import edu.berkeley.cs186.database.index.IndexException;
+import edu.berkeley.cs186.database.index.IndexStats;
+import edu.berkeley.cs186.database.index.RoaringBitmap;
 import edu.berkeley.cs186.database.io.Page;
 import edu.berkeley.cs186.database.query.QueryPlan;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.RecordId;
 import edu.berkeley.cs186.database.table.RecordIterator;
 import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.StringDictionary;
 import edu.berkeley.cs186.database.table.Table;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 import edu.berkeley.cs186.database.io.PageAllocator.PageIterator;
 
 
 public class Database {
+  // The fill factor of leaves of indexes built by createIndex(table, column).
+  public static final float DEFAULT_FILL_FACTOR = 0.9f;
+  // The false positive rate of Bloom filters built by
+  // createBloomFilter(table, column).
+  public static final double DEFAULT_BLOOM_FILTER_FALSE_POSITIVE_RATE = 0.01;
+  // The fewest keys a Bloom filter is sized for (see bloomFilterCapacity).
+  public static final int MIN_BLOOM_FILTER_CAPACITY = 1024;
+
   private Map<String, Table> tableLookup;
   private Map<String, BPlusTree> indexLookup;
+  // The positions in their table's schema of the columns included in each
+  // covering index (see createIndex), keyed by index name.
+  private Map<String, List<Integer>> includedColumnLookup;
+  // The positions in their table's schema of the key columns of each
+  // composite index (see createIndex), keyed by index name.
+  private Map<String, List<Integer>> keyColumnLookup;
+  // The hash indexes of this database (see createHashIndex), keyed by index
+  // name. A column may have both a hash index and a B+ tree index.
+  private Map<String, HashIndex> hashIndexLookup;
+  // The in-memory ART indexes of this database (see createArtIndex), keyed
+  // by index name.
+  private Map<String, ArtIndex> artIndexLookup;
+  // The in-memory bitmap indexes of this database (see createBitmapIndex),
+  // keyed by index name.
+  private Map<String, BitmapIndex> bitmapIndexLookup;
+  // The Bloom filters of this database (see createBloomFilter), keyed by
+  // index name.
+  private Map<String, BloomFilter> bloomFilterLookup;
+  // hashIndexLookup, artIndexLookup, and bitmapIndexLookup, whose indexes
+  // are all kept in sync with their tables the same way (see ColumnIndex).
+  private List<Map<String, ? extends ColumnIndex>> columnIndexLookups;
   private long numTransactions;
   private String fileDir;
   private LockManager lockMan;
   private int numMemoryPages;
+  private int parallelism;
+  private ForkJoinPool scanPool;
+  // The insert buffer capacity of every B+ tree index (see
+  // setIndexInsertBufferCapacity).
+  private int indexInsertBufferCapacity;
 
   /**
    * Creates a new database.
@@ -59,10 +122,20 @@ public class Database {
    */
   public Database(String fileDir, int numMemoryPages) throws DatabaseException {
     this.numMemoryPages = numMemoryPages;
+    this.parallelism = 1;
+    this.scanPool = null;
+    this.indexInsertBufferCapacity = 0;
     this.fileDir = fileDir;
     numTransactions = 0;
     tableLookup = new ConcurrentHashMap<String, Table>();
     indexLookup = new ConcurrentHashMap<String, BPlusTree>();
+    includedColumnLookup = new ConcurrentHashMap<String, List<Integer>>();
+    keyColumnLookup = new ConcurrentHashMap<String, List<Integer>>();
+    hashIndexLookup = new ConcurrentHashMap<String, HashIndex>();
+    artIndexLookup = new ConcurrentHashMap<String, ArtIndex>();
+    bitmapIndexLookup = new ConcurrentHashMap<String, BitmapIndex>();
+    bloomFilterLookup = new ConcurrentHashMap<String, BloomFilter>();
+    columnIndexLookups = Arrays.asList(hashIndexLookup, artIndexLookup, bitmapIndexLookup);
 
     File dir = new File(fileDir);
     lockMan = new LockManager();
@@ -72,6 +145,8 @@ public class Database {
     }
 
     File[] files = dir.listFiles();
+    List<String> artIndexNames = new ArrayList<String>();
+    List<String> bitmapIndexNames = new ArrayList<String>();
     for (File f : files) {
       String fName = f.getName();
       if (fName.endsWith(Table.FILENAME_EXTENSION)) {
@@ -81,8 +156,73 @@ public class Database {
       } else if (fName.endsWith(BPlusTree.FILENAME_EXTENSION)) {
         int lastIndex = fName.lastIndexOf(BPlusTree.FILENAME_EXTENSION);
         String indexName = fName.substring(0, lastIndex);
-        Path path = Paths.get(f.toPath().toString(), indexName + BPlusTree.FILENAME_EXTENSION);
-        indexLookup.put(indexName, new BPlusTree(path.toString()));
+        indexLookup.put(indexName, new BPlusTree(f.toPath().toString()));
+      } else if (fName.endsWith(HashIndex.FILENAME_EXTENSION)) {
+        int lastIndex = fName.lastIndexOf(HashIndex.FILENAME_EXTENSION);
+        String indexName = fName.substring(0, lastIndex);
+        hashIndexLookup.put(indexName, new HashIndex(f.toPath().toString()));
+      } else if (fName.endsWith(BloomFilter.FILENAME_EXTENSION)) {
+        int lastIndex = fName.lastIndexOf(BloomFilter.FILENAME_EXTENSION);
+        String indexName = fName.substring(0, lastIndex);
+        bloomFilterLookup.put(indexName, new BloomFilter(f.toPath().toString()));
+      } else if (fName.endsWith(ArtIndex.FILENAME_EXTENSION)) {
+        int lastIndex = fName.lastIndexOf(ArtIndex.FILENAME_EXTENSION);
+        artIndexNames.add(fName.substring(0, lastIndex));
+      } else if (fName.endsWith(BitmapIndex.FILENAME_EXTENSION)) {
+        int lastIndex = fName.lastIndexOf(BitmapIndex.FILENAME_EXTENSION);
+        bitmapIndexNames.add(fName.substring(0, lastIndex));
+      }
+    }
+
+    // The key and included columns of each B+ tree index are stored in its
+    // header (see BPlusTree.setColumns). The key columns of indexes written
+    // before they were are recovered from the index name.
+    for (Map.Entry<String, BPlusTree> index : indexLookup.entrySet()) {
+      String[] names = index.getKey().split(",");
+      Table table = tableLookup.get(names[0]);
+      if (table == null) {
+        continue;
+      }
+      List<Integer> keyColumns = index.getValue().getKeyColumns();
+      if (keyColumns.isEmpty()) {
+        keyColumns = new ArrayList<Integer>();
+        for (int i = 1; i < names.length; i++) {
+          keyColumns.add(table.getSchema().getFieldNames().indexOf(names[i]));
+        }
+      }
+      includedColumnLookup.put(index.getKey(), index.getValue().getIncludedColumns());
+      if (keyColumns.size() > 1) {
+        keyColumnLookup.put(index.getKey(), keyColumns);
+      }
+    }
+
+    // ART and bitmap indexes live in memory, so they are rebuilt from their tables,
+    // which must all be open first. An index whose table or column no
+    // longer exists is dropped.
+    for (String indexName : artIndexNames) {
+      String[] names = indexName.split(",", 2);
+      Table table = tableLookup.get(names[0]);
+      int column = table == null ? -1 : table.getSchema().getFieldNames().indexOf(names[1]);
+      if (column == -1) {
+        continue;
+      }
+      try {
+        artIndexLookup.put(indexName, buildArtIndex(table, column));
+      } catch (ArtIndexException e) {
+        throw new DatabaseException(e.getMessage());
+      }
+    }
+    for (String indexName : bitmapIndexNames) {
+      String[] names = indexName.split(",", 2);
+      Table table = tableLookup.get(names[0]);
+      int column = table == null ? -1 : table.getSchema().getFieldNames().indexOf(names[1]);
+      if (column == -1) {
+        continue;
+      }
+      try {
+        bitmapIndexLookup.put(indexName, buildBitmapIndex(table, column));
+      } catch (BitmapIndexException e) {
+        throw new DatabaseException(e.getMessage());
       }
     }
   }
@@ -104,6 +244,26 @@ public class Database {
     this.tableLookup.put(tableName, new Table(tableName, s, path.toString()));
   }
 
+  /**
+   * Create a new table in this database whose given STRING columns are dictionary encoded. Every
+   * distinct value of an encoded column is stored once in a dictionary persisted next to the table,
+   * and records store its integer code instead.
+   *
+   * @param s the table schema
+   * @param tableName the name of the table
+   * @param dictionaryColumns the list of STRING columnNames to dictionary encode
+   * @throws DatabaseException
+   */
+  public synchronized void createTableWithDictionaries(Schema s, String tableName,
+                                                       List<String> dictionaryColumns) throws DatabaseException {
+    if (this.tableLookup.containsKey(tableName)) {
+      throw new DatabaseException("Table name already exists");
+    }
+
+    Path path = Paths.get(fileDir, tableName + Table.FILENAME_EXTENSION);
+    this.tableLookup.put(tableName, new Table(tableName, s, path.toString(), dictionaryColumns));
+  }
+
   /**
    * Create a new table in this database with an index on each of the given column names.
    * NOTE: YOU CAN NOT DELETE/UPDATE FROM THIS TABLE IF YOU CHOOSE TO BUILD INDICES!!
@@ -142,14 +302,627 @@ public class Database {
       String indexName = tableName + "," + colName;
       Path p = Paths.get(this.fileDir, indexName + BPlusTree.FILENAME_EXTENSION);
       try {
-      this.indexLookup.put(indexName, new BPlusTree(p.toString(), colType,
-                           BPlusTree.maxOrder(Page.pageSize, colType)));
+      BPlusTree index = new BPlusTree(p.toString(), colType, Collections.<Type>emptyList(),
+                                      compressIndex(colType));
+      index.setColumns(Collections.singletonList(i), Collections.<Integer>emptyList());
+      index.setInsertBufferCapacity(this.indexInsertBufferCapacity);
+      this.indexLookup.put(indexName, index);
       } catch (BPlusTreeException e) {
         throw new DatabaseException(e.getMessage());
       }
     }
   }
 
+  /**
+   * Returns whether an index with keys of type keyType is compressed (see
+   * BPlusTree). Only string keys and composite keys, whose leading columns
+   * repeat from key to key, are wide enough and share enough prefixes for
+   * compression to pay for the slower puts of a compressed tree.
+   */
+  private static boolean compressIndex(Type keyType) {
+    return keyType.getTypeId() == TypeId.STRING || keyType.getTypeId() == TypeId.BYTES;
+  }
+
+  /**
+   * Returns the type of the keys of an index on the columns `columns` of a
+   * table whose columns have types `types`: the type of the column itself if
+   * there is one, and a composite key type otherwise.
+   */
+  private static Type indexKeyType(List<Type> types, List<Integer> columns) {
+    if (columns.size() == 1) {
+      return types.get(columns.get(0));
+    }
+    List<Type> keyTypes = new ArrayList<Type>();
+    for (int i : columns) {
+      keyTypes.add(types.get(i));
+    }
+    return CompositeKey.type(keyTypes);
+  }
+
+  /** Returns the key of the record `values` in an index on `columns`. */
+  private static DataBox indexKey(List<DataBox> values, List<Integer> columns) {
+    if (columns.size() == 1) {
+      return values.get(columns.get(0));
+    }
+    List<DataBox> key = new ArrayList<DataBox>();
+    for (int i : columns) {
+      key.add(values.get(i));
+    }
+    return CompositeKey.of(key);
+  }
+
+  /**
+   * Returns the key columns of every index on tableName, keyed by index
+   * name.
+   */
+  private Map<String, List<Integer>> getIndexColumns(String tableName) {
+    Map<String, List<Integer>> indexes = new HashMap<String, List<Integer>>();
+    Table table = this.tableLookup.get(tableName);
+    if (table == null) {
+      return indexes;
+    }
+    List<String> colNames = table.getSchema().getFieldNames();
+    for (int i = 0; i < colNames.size(); i++) {
+      String indexName = tableName + "," + colNames.get(i);
+      if (this.indexLookup.containsKey(indexName)) {
+        indexes.put(indexName, Collections.singletonList(i));
+      }
+    }
+    for (Map.Entry<String, List<Integer>> index : this.keyColumnLookup.entrySet()) {
+      if (index.getKey().startsWith(tableName + ",")) {
+        indexes.put(index.getKey(), index.getValue());
+      }
+    }
+    return indexes;
+  }
+
+  /**
+   * Returns the column of every index of `lookup` (e.g. hashIndexLookup) on
+   * tableName, keyed by index name.
+   */
+  private <T> Map<String, Integer> getSingleColumnIndexes(String tableName, Map<String, T> lookup) {
+    Map<String, Integer> indexes = new HashMap<String, Integer>();
+    Table table = this.tableLookup.get(tableName);
+    if (table == null) {
+      return indexes;
+    }
+    List<String> colNames = table.getSchema().getFieldNames();
+    for (int i = 0; i < colNames.size(); i++) {
+      String indexName = tableName + "," + colNames.get(i);
+      if (lookup.containsKey(indexName)) {
+        indexes.put(indexName, i);
+      }
+    }
+    return indexes;
+  }
+
+  /**
+   * Returns every hash, ART, and bitmap index on tableName, mapped to its
+   * key column.
+   */
+  private Map<ColumnIndex, Integer> getColumnIndexes(String tableName) {
+    Map<ColumnIndex, Integer> indexes = new LinkedHashMap<ColumnIndex, Integer>();
+    for (Map<String, ? extends ColumnIndex> lookup : this.columnIndexLookups) {
+      for (Map.Entry<String, Integer> index : getSingleColumnIndexes(tableName, lookup).entrySet()) {
+        indexes.put(lookup.get(index.getKey()), index.getValue());
+      }
+    }
+    return indexes;
+  }
+
+  /**
+   * Create a Bloom filter on a column of an existing, possibly populated,
+   * table. See createBloomFilter(tableName, columnName, falsePositiveRate).
+   */
+  public synchronized void createBloomFilter(String tableName, String columnName) throws DatabaseException {
+    createBloomFilter(tableName, columnName, DEFAULT_BLOOM_FILTER_FALSE_POSITIVE_RATE);
+  }
+
+  /**
+   * Create a Bloom filter on a column of an existing, possibly populated,
+   * table. A Bloom filter can tell that a value is definitely not in the
+   * column without reading anything but itself (see BloomFilter), so once it
+   * is created, Transaction.lookupKey, Transaction.contains, and equality
+   * selects over a sequential scan of the table skip their index lookup or
+   * scan for values that the filter rules out. Unlike an index, the column
+   * may contain duplicates.
+   *
+   * The filter is sized for bloomFilterCapacity(the number of records in the
+   * table) values, and gets a value added whenever a record is added or
+   * updated. Values of deleted records stay in the filter until vacuum
+   * rebuilds it. The table is locked while the filter is built.
+   *
+   * @param tableName the name of the table
+   * @param columnName the name of the column to filter
+   * @param falsePositiveRate how often the filter should fail to rule out a
+   * value that is not in the column, in (0, 1)
+   * @throws DatabaseException if the table or column does not exist, the
+   * filter already exists, or the false positive rate is invalid
+   */
+  public synchronized void createBloomFilter(String tableName, String columnName,
+                                             double falsePositiveRate) throws DatabaseException {
+    Table table = this.tableLookup.get(tableName);
+    if (table == null) {
+      throw new DatabaseException("Table: " + tableName + " does not exist");
+    }
+    int column = table.getSchema().getFieldNames().indexOf(columnName);
+    if (column == -1) {
+      throw new DatabaseException("Column desired for Bloom filter does not exist");
+    }
+    String indexName = tableName + "," + columnName;
+    if (this.bloomFilterLookup.containsKey(indexName)) {
+      throw new DatabaseException("Bloom filter already exists");
+    }
+    if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+      throw new DatabaseException("Invalid false positive rate " + falsePositiveRate);
+    }
+
+    Type keyType = table.getSchema().getFieldTypes().get(column);
+    Path p = Paths.get(this.fileDir, indexName + BloomFilter.FILENAME_EXTENSION);
+    synchronized (table) {
+      BloomFilter filter = new BloomFilter(p.toString(), keyType,
+                                           bloomFilterCapacity(table.getNumRecords()),
+                                           falsePositiveRate);
+      try {
+        filter.rebuild(columnValues(table, column), filter.getExpectedKeys());
+      } catch (IllegalStateException e) {
+        // The filter's file is closed before it is deleted.
+        filter.close();
+        new File(p.toString()).delete();
+        throw new DatabaseException(e.getMessage());
+      }
+      this.bloomFilterLookup.put(indexName, filter);
+    }
+  }
+
+  /**
+   * Returns the number of values that a Bloom filter over a table of
+   * numRecords records is sized for: twice as many, so that the table can
+   * double before the filter's false positive rate suffers, but at least
+   * MIN_BLOOM_FILTER_CAPACITY.
+   */
+  private static int bloomFilterCapacity(long numRecords) {
+    return (int) Math.min(Integer.MAX_VALUE,
+                          Math.max(MIN_BLOOM_FILTER_CAPACITY, 2 * numRecords));
+  }
+
+  /**
+   * Returns an iterator over the values of column column of every record of
+   * table. The caller must hold the lock of table.
+   */
+  private static Iterator<DataBox> columnValues(Table table, int column) {
+    Iterator<RecordId> rids = table.ridIterator();
+    return new Iterator<DataBox>() {
+      @Override
+      public boolean hasNext() {
+        return rids.hasNext();
+      }
+
+      @Override
+      public DataBox next() {
+        try {
+          return table.getRecord(rids.next()).getValues().get(column);
+        } catch (DatabaseException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+  }
+
+  /**
+   * Create a hash index on a column of an existing, possibly populated,
+   * table. A hash index answers only equality lookups, but answers each one
+   * by reading a single bucket page (see HashIndex), where a B+ tree reads a
+   * page per level. Once created, Transaction.lookupKey and
+   * Transaction.contains use the hash index instead of a B+ tree index on
+   * the same column, and the optimizer considers it for equality predicates
+   * on the column. The table is locked while the index is built.
+   *
+   * @param tableName the name of the table
+   * @param columnName the name of the column to index
+   * @throws DatabaseException if the table or column does not exist, the
+   * hash index already exists, or the column contains duplicates
+   */
+  public synchronized void createHashIndex(String tableName, String columnName) throws DatabaseException {
+    Table table = this.tableLookup.get(tableName);
+    if (table == null) {
+      throw new DatabaseException("Table: " + tableName + " does not exist");
+    }
+    int column = table.getSchema().getFieldNames().indexOf(columnName);
+    if (column == -1) {
+      throw new DatabaseException("Column desired for index does not exist");
+    }
+    String indexName = tableName + "," + columnName;
+    if (this.hashIndexLookup.containsKey(indexName)) {
+      throw new DatabaseException("Index already exists");
+    }
+
+    Type keyType = table.getSchema().getFieldTypes().get(column);
+    Path p = Paths.get(this.fileDir, indexName + HashIndex.FILENAME_EXTENSION);
+    synchronized (table) {
+      HashIndex index = new HashIndex(p.toString(), keyType);
+      try {
+        Iterator<RecordId> rids = table.ridIterator();
+        while (rids.hasNext()) {
+          RecordId rid = rids.next();
+          index.put(table.getRecord(rid).getValues().get(column), rid);
+        }
+      } catch (HashIndexException | DatabaseException e) {
+        // The index's file is closed before it is deleted.
+        index.close();
+        new File(p.toString()).delete();
+        throw new DatabaseException(e.getMessage());
+      }
+      this.hashIndexLookup.put(indexName, index);
+    }
+  }
+
+  /**
+   * Create an in-memory adaptive radix tree (ART) index on a column of an
+   * existing, possibly populated, table. An ART index answers only equality
+   * lookups, but it answers them without reading or deserializing a single
+   * index page (see ArtIndex), which makes it worthwhile for small,
+   * read-mostly tables that take many point lookups. Once created,
+   * Transaction.lookupKey and Transaction.contains use it instead of any
+   * other index on the column, and the optimizer considers it for equality
+   * predicates on the column.
+   *
+   * Only an empty marker file is written to disk; the index itself is
+   * rebuilt from the table whenever the database is opened. The table is
+   * locked while the index is built.
+   *
+   * @param tableName the name of the table
+   * @param columnName the name of the column to index
+   * @throws DatabaseException if the table or column does not exist, the
+   * ART index already exists, or the column contains duplicates
+   */
+  public synchronized void createArtIndex(String tableName, String columnName) throws DatabaseException {
+    Table table = this.tableLookup.get(tableName);
+    if (table == null) {
+      throw new DatabaseException("Table: " + tableName + " does not exist");
+    }
+    int column = table.getSchema().getFieldNames().indexOf(columnName);
+    if (column == -1) {
+      throw new DatabaseException("Column desired for index does not exist");
+    }
+    String indexName = tableName + "," + columnName;
+    if (this.artIndexLookup.containsKey(indexName)) {
+      throw new DatabaseException("Index already exists");
+    }
+
+    synchronized (table) {
+      ArtIndex index;
+      try {
+        index = buildArtIndex(table, column);
+      } catch (ArtIndexException e) {
+        throw new DatabaseException(e.getMessage());
+      }
+      Path p = Paths.get(this.fileDir, indexName + ArtIndex.FILENAME_EXTENSION);
+      try {
+        new File(p.toString()).createNewFile();
+      } catch (IOException e) {
+        throw new DatabaseException(e.getMessage());
+      }
+      this.artIndexLookup.put(indexName, index);
+    }
+  }
+
+  /**
+   * Returns an ART index of column column of every record of table. The
+   * caller must hold the lock of table.
+   */
+  private static ArtIndex buildArtIndex(Table table, int column)
+      throws ArtIndexException, DatabaseException {
+    ArtIndex index = new ArtIndex(table.getSchema().getFieldTypes().get(column));
+    Iterator<RecordId> rids = table.ridIterator();
+    while (rids.hasNext()) {
+      RecordId rid = rids.next();
+      index.put(table.getRecord(rid).getValues().get(column), rid);
+    }
+    return index;
+  }
+
+  /**
+   * Create an in-memory bitmap index on a column of an existing, possibly
+   * populated, table. A bitmap index maps each distinct value of the column
+   * to a compressed bitmap of the record ids that hold it (see BitmapIndex),
+   * so unlike the other indexes it allows any number of duplicates, which
+   * makes it the index for columns with few distinct values, like flags or
+   * categories. Once created, the optimizer considers a bitmap index scan
+   * (see BitmapIndexScanOperator) for the predicates on the column, which
+   * combines the bitmaps of every bitmap indexed predicate of a query before
+   * it reads any data page.
+   *
+   * Only an empty marker file is written to disk; the index itself is
+   * rebuilt from the table whenever the database is opened. The table is
+   * locked while the index is built.
+   *
+   * @param tableName the name of the table
+   * @param columnName the name of the column to index
+   * @throws DatabaseException if the table or column does not exist, or the
+   * bitmap index already exists
+   */
+  public synchronized void createBitmapIndex(String tableName, String columnName)
+      throws DatabaseException {
+    Table table = this.tableLookup.get(tableName);
+    if (table == null) {
+      throw new DatabaseException("Table: " + tableName + " does not exist");
+    }
+    int column = table.getSchema().getFieldNames().indexOf(columnName);
+    if (column == -1) {
+      throw new DatabaseException("Column desired for index does not exist");
+    }
+    String indexName = tableName + "," + columnName;
+    if (this.bitmapIndexLookup.containsKey(indexName)) {
+      throw new DatabaseException("Index already exists");
+    }
+
+    synchronized (table) {
+      BitmapIndex index;
+      try {
+        index = buildBitmapIndex(table, column);
+      } catch (BitmapIndexException e) {
+        throw new DatabaseException(e.getMessage());
+      }
+      Path p = Paths.get(this.fileDir, indexName + BitmapIndex.FILENAME_EXTENSION);
+      try {
+        new File(p.toString()).createNewFile();
+      } catch (IOException e) {
+        throw new DatabaseException(e.getMessage());
+      }
+      this.bitmapIndexLookup.put(indexName, index);
+    }
+  }
+
+  /**
+   * Returns a bitmap index of column column of every record of table. The
+   * caller must hold the lock of table.
+   */
+  private static BitmapIndex buildBitmapIndex(Table table, int column)
+      throws BitmapIndexException, DatabaseException {
+    BitmapIndex index = new BitmapIndex(table.getSchema().getFieldTypes().get(column));
+    Iterator<RecordId> rids = table.ridIterator();
+    while (rids.hasNext()) {
+      RecordId rid = rids.next();
+      index.put(table.getRecord(rid).getValues().get(column), rid);
+    }
+    return index;
+  }
+
+  /**
+   * Create an index on a column of an existing, possibly populated, table. See
+   * createIndex(tableName, columnName, fillFactor).
+   */
+  public synchronized void createIndex(String tableName, String columnName) throws DatabaseException {
+    createIndex(tableName, columnName, DEFAULT_FILL_FACTOR);
+  }
+
+  /**
+   * Create an index on a column of an existing, possibly populated, table.
+   * The (key, record id) pairs of the table are sorted with an external merge
+   * sort that holds at most numMemoryPages pages worth of pairs in memory at
+   * once, and are then bulk loaded into the index left to right. Leaves are
+   * filled to fillFactor; inner nodes are filled completely. The table is
+   * locked while the index is built, so no inserts are missed.
+   *
+   * The column must not contain duplicate values, since indexes do not
+   * support duplicate keys.
+   *
+   * @param tableName the name of the table
+   * @param columnName the name of the column to index
+   * @param fillFactor how full to fill the leaves of the index, in (0, 1]
+   * @throws DatabaseException if the table or column does not exist, the
+   * index already exists, or the column contains duplicates
+   */
+  public synchronized void createIndex(String tableName, String columnName,
+                                       float fillFactor) throws DatabaseException {
+    createIndex(tableName, columnName, Collections.<String>emptyList(), fillFactor);
+  }
+
+  /**
+   * Create a covering index on a column of an existing, possibly populated,
+   * table. See createIndex(tableName, columnName, includedColumns,
+   * fillFactor).
+   */
+  public synchronized void createIndex(String tableName, String columnName,
+                                       List<String> includedColumns) throws DatabaseException {
+    createIndex(tableName, columnName, includedColumns, DEFAULT_FILL_FACTOR);
+  }
+
+  /**
+   * Create a covering index on a column of an existing, possibly populated,
+   * table, like createIndex(tableName, columnName, fillFactor). Every entry
+   * of the index also stores the values of includedColumns of its record, so
+   * a query that only reads columnName and includedColumns can be answered
+   * from the index alone (see Transaction.coveringScanRange). The included
+   * values are kept up to date as records are added and updated.
+   *
+   * @param tableName the name of the table
+   * @param columnName the name of the column to index
+   * @param includedColumns the names of the columns to include in the index
+   * @param fillFactor how full to fill the leaves of the index, in (0, 1]
+   * @throws DatabaseException if the table or a column does not exist, a
+   * column is included twice or is the indexed column, the index already
+   * exists, or the column contains duplicates
+   */
+  public synchronized void createIndex(String tableName, String columnName,
+                                       List<String> includedColumns,
+                                       float fillFactor) throws DatabaseException {
+    createIndex(tableName, Collections.singletonList(columnName), includedColumns, fillFactor);
+  }
+
+  /**
+   * Create a composite index on several columns of an existing, possibly
+   * populated, table. See createIndex(tableName, columnNames,
+   * includedColumns, fillFactor).
+   */
+  public synchronized void createIndex(String tableName, List<String> columnNames,
+                                       List<String> includedColumns) throws DatabaseException {
+    createIndex(tableName, columnNames, includedColumns, DEFAULT_FILL_FACTOR);
+  }
+
+  /**
+   * Create an index on the columns columnNames, in order, of an existing,
+   * possibly populated, table, like createIndex(tableName, columnName,
+   * includedColumns, fillFactor). An index on more than one column is a
+   * composite index: it is keyed by the values of all of its columns
+   * together (see CompositeKey), so a query with an equality predicate on
+   * each of its first few columns and a range predicate on the next can be
+   * answered with a single scan of the index (see
+   * Transaction.sortedScanPrefix). No two records may agree on every column
+   * of the index.
+   *
+   * @param tableName the name of the table
+   * @param columnNames the names of the columns to index
+   * @param includedColumns the names of the columns to include in the index
+   * @param fillFactor how full to fill the leaves of the index, in (0, 1]
+   * @throws DatabaseException if the table or a column does not exist, no
+   * column is given, a column is given twice, the index already exists, or
+   * two records agree on the indexed columns
+   */
+  public synchronized void createIndex(String tableName, List<String> columnNames,
+                                       List<String> includedColumns,
+                                       float fillFactor) throws DatabaseException {
+    Table table = this.tableLookup.get(tableName);
+    if (table == null) {
+      throw new DatabaseException("Table: " + tableName + " does not exist");
+    }
+    if (columnNames.isEmpty()) {
+      throw new DatabaseException("An index needs at least one column");
+    }
+    List<Integer> columns = new ArrayList<Integer>();
+    for (String col : columnNames) {
+      int i = table.getSchema().getFieldNames().indexOf(col);
+      if (i == -1) {
+        throw new DatabaseException("Column desired for index does not exist");
+      }
+      if (columns.contains(i)) {
+        throw new DatabaseException("Column desired for index has been duplicated");
+      }
+      columns.add(i);
+    }
+    String indexName = tableName + "," + String.join(",", columnNames);
+    if (this.indexLookup.containsKey(indexName)) {
+      throw new DatabaseException("Index already exists");
+    }
+
+    List<Integer> included = new ArrayList<Integer>();
+    List<Type> includedSchema = new ArrayList<Type>();
+    for (String col : includedColumns) {
+      int i = table.getSchema().getFieldNames().indexOf(col);
+      if (i == -1) {
+        throw new DatabaseException("Column desired for index does not exist");
+      }
+      if (columns.contains(i) || included.contains(i)) {
+        throw new DatabaseException("Column desired for index has been duplicated");
+      }
+      included.add(i);
+      includedSchema.add(table.getSchema().getFieldTypes().get(i));
+    }
+
+    Type keyType = indexKeyType(table.getSchema().getFieldTypes(), columns);
+    Path p = Paths.get(this.fileDir, indexName + BPlusTree.FILENAME_EXTENSION);
+    synchronized (table) {
+      Transaction transaction = beginTransaction();
+      BPlusTree index = null;
+      try {
+        index = new BPlusTree(p.toString(), keyType, includedSchema, compressIndex(keyType));
+        index.bulkLoadCovering(sortIndexEntries(transaction, table, columns, included),
+                               fillFactor);
+        index.setColumns(columns, included);
+        index.setInsertBufferCapacity(this.indexInsertBufferCapacity);
+        this.includedColumnLookup.put(indexName, included);
+        if (columns.size() > 1) {
+          this.keyColumnLookup.put(indexName, columns);
+        }
+        this.indexLookup.put(indexName, index);
+      } catch (BPlusTreeException | DatabaseException e) {
+        // The index's file is closed before it is deleted.
+        if (index != null) {
+          index.close();
+        }
+        new File(p.toString()).delete();
+        throw new DatabaseException(e.getMessage());
+      } finally {
+        transaction.end();
+      }
+    }
+  }
+
+  /**
+   * Returns the entries of an index on the columns `columns` of table that
+   * includes the columns `included`, in ascending key order. Each entry is
+   * the key followed by the included values, paired with its record id.
+   * Entries are read into memory numMemoryPages pages at a time, and each
+   * full buffer is sorted and spilled into a temp table of transaction as a
+   * sorted run. The runs are then merged in a single pass. If the table fits
+   * in memory, no runs are written at all.
+   */
+  private Iterator<Pair<List<DataBox>, RecordId>> sortIndexEntries(
+      Transaction transaction, Table table, List<Integer> columns, List<Integer> included)
+      throws DatabaseException {
+    List<Type> types = table.getSchema().getFieldTypes();
+    List<String> runColumns = new ArrayList<String>(Arrays.asList("key", "pageNum", "entryNum"));
+    List<Type> runTypes = new ArrayList<Type>(Arrays.asList(indexKeyType(types, columns),
+                                                            Type.intType(), Type.intType()));
+    for (int i = 0; i < included.size(); i++) {
+      runColumns.add("included" + i);
+      runTypes.add(types.get(included.get(i)));
+    }
+    Schema runSchema = new Schema(runColumns, runTypes);
+    int runSize = this.numMemoryPages * Table.computeNumRecordsPerPage(Page.pageSize, runSchema);
+
+    List<String> runs = new ArrayList<String>();
+    List<Pair<List<DataBox>, RecordId>> buffer = new ArrayList<Pair<List<DataBox>, RecordId>>();
+    Iterator<RecordId> rids = table.ridIterator();
+    while (rids.hasNext()) {
+      RecordId rid = rids.next();
+      List<DataBox> values = table.getRecord(rid).getValues();
+      buffer.add(new Pair<List<DataBox>, RecordId>(indexEntry(values, columns, included), rid));
+      if (buffer.size() == runSize && rids.hasNext()) {
+        runs.add(writeSortedRun(transaction, runSchema, buffer));
+        buffer.clear();
+      }
+    }
+
+    if (runs.isEmpty()) {
+      buffer.sort((a, b) -> a.getFirst().get(0).compareTo(b.getFirst().get(0)));
+      return buffer.iterator();
+    }
+    runs.add(writeSortedRun(transaction, runSchema, buffer));
+    return new RunMergeIterator(transaction, runs);
+  }
+
+  /**
+   * Returns the key of a record in an index on `columns` followed by the
+   * values of its columns `included`.
+   */
+  private static List<DataBox> indexEntry(List<DataBox> values, List<Integer> columns,
+                                          List<Integer> included) {
+    List<DataBox> entry = new ArrayList<DataBox>(1 + included.size());
+    entry.add(indexKey(values, columns));
+    for (int i : included) {
+      entry.add(values.get(i));
+    }
+    return entry;
+  }
+
+  private String writeSortedRun(Transaction transaction, Schema runSchema,
+                                List<Pair<List<DataBox>, RecordId>> entries) throws DatabaseException {
+    entries.sort((a, b) -> a.getFirst().get(0).compareTo(b.getFirst().get(0)));
+    String run = transaction.createTempTable(runSchema);
+    for (Pair<List<DataBox>, RecordId> entry : entries) {
+      RecordId rid = entry.getSecond();
+      List<DataBox> values = new ArrayList<DataBox>();
+      values.add(entry.getFirst().get(0));
+      values.add(new IntDataBox(rid.getPageNum()));
+      values.add(new IntDataBox(rid.getEntryNum()));
+      values.addAll(entry.getFirst().subList(1, entry.getFirst().size()));
+      transaction.addRecord(run, values);
+    }
+    return run;
+  }
+
   /**
    * Delete a table in this database.
    *
@@ -166,6 +939,7 @@ public class Database {
 
     File f = new File(fileDir + tableName + Table.FILENAME_EXTENSION);
     f.delete();
+    new File(f.getPath() + StringDictionary.FILENAME_EXTENSION).delete();
 
     return true;
   }
@@ -185,17 +959,221 @@ public class Database {
    * Close this database.
    */
   public synchronized void close() {
+    for (BPlusTree index : this.indexLookup.values()) {
+      index.close();
+    }
+    for (HashIndex index : this.hashIndexLookup.values()) {
+      index.close();
+    }
+    for (BloomFilter filter : this.bloomFilterLookup.values()) {
+      filter.close();
+    }
+
     for (Table t : this.tableLookup.values()) {
       t.close();
     }
 
     this.tableLookup.clear();
+
+    if (this.scanPool != null) {
+      this.scanPool.shutdown();
+      this.scanPool = null;
+    }
   }
 
   public Table getTable(String tableName) {
     return tableLookup.get(tableName);
   }
 
+  /**
+   * Set the default degree of parallelism used by sequential scans. A value
+   * of 1 (the default) scans every table on the calling thread.
+   *
+   * @param parallelism the maximum number of page morsels scanned at once
+   * @throws DatabaseException if parallelism is not positive
+   */
+  public synchronized void setParallelism(int parallelism) throws DatabaseException {
+    if (parallelism < 1) {
+      throw new DatabaseException("Parallelism must be at least 1");
+    }
+    this.parallelism = parallelism;
+  }
+
+  public synchronized int getParallelism() {
+    return this.parallelism;
+  }
+
+  /**
+   * Set the insert buffer capacity of every B+ tree index of this database,
+   * including those created later (see BPlusTree.setInsertBufferCapacity).
+   * Under a write heavy load, buffering lets each index apply its puts and
+   * removes to its leaves in sorted batches instead of one at a time. A
+   * capacity of 0 (the default) turns buffering off. Buffered writes are
+   * flushed when the database is closed.
+   *
+   * @param capacity the number of buffered writes at which an index flushes
+   * @throws DatabaseException if capacity is negative
+   */
+  public synchronized void setIndexInsertBufferCapacity(int capacity) throws DatabaseException {
+    try {
+      for (BPlusTree index : this.indexLookup.values()) {
+        index.setInsertBufferCapacity(capacity);
+      }
+    } catch (BPlusTreeException e) {
+      throw new DatabaseException(e.getMessage());
+    }
+    this.indexInsertBufferCapacity = capacity;
+  }
+
+  /**
+   * Refreshes the statistics that the optimizer uses to plan queries on a
+   * table: the histograms of its columns (see Table.buildStatistics) and the
+   * statistics of every B+ tree index on it, including their clustering
+   * factors (see BPlusTree.analyze). Until an index is analyzed, scans of it
+   * are costed as if its records were in no particular order.
+   *
+   * @param tableName the name of the table
+   * @param buckets the number of buckets of each histogram
+   * @return the statistics of the table
+   * @throws DatabaseException if the table does not exist
+   */
+  public TableStats analyze(String tableName, int buckets) throws DatabaseException {
+    Table table = this.tableLookup.get(tableName);
+    if (table == null) {
+      throw new DatabaseException("Table: " + tableName + " does not exist");
+    }
+
+    synchronized (table) {
+      TableStats stats = table.buildStatistics(buckets);
+      try {
+        for (String indexName : getIndexColumns(tableName).keySet()) {
+          this.indexLookup.get(indexName).analyze();
+        }
+      } catch (BPlusTreeException e) {
+        throw new DatabaseException(e.getMessage());
+      }
+      return stats;
+    }
+  }
+
+  /**
+   * Returns the pool shared by all parallel scans of this database, creating
+   * it on first use. The pool is shut down when the database is closed.
+   */
+  private synchronized ForkJoinPool getScanPool() {
+    if (this.scanPool == null) {
+      this.scanPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+    return this.scanPool;
+  }
+
+  /**
+   * Runs one step of online compaction on a table: records are moved off the
+   * table's last data pages into free slots of earlier pages, at most
+   * maxPages emptied pages are freed, and every index on the table is updated
+   * with the new record ids in a single batch per index. The table is locked
+   * for the duration of the step only, so a large table can be compacted a
+   * few pages at a time while it is in use. See VacuumWorker for running
+   * steps in the background.
+   *
+   * Record changes hold the table lock until their indexes are updated too,
+   * so a step never sees a record whose index entries are missing. A step
+   * is all or nothing: the emptied pages are freed only once every index is
+   * updated, and if an index can't be, the records are moved back.
+   *
+   * Record ids held by callers for moved records become invalid.
+   *
+   * @param tableName the name of the table
+   * @param maxPages the maximum number of data pages to free
+   * @return the number of data pages freed; 0 once the table is compact
+   * @throws DatabaseException if the table does not exist
+   */
+  public int vacuum(String tableName, int maxPages) throws DatabaseException {
+    Table table = this.tableLookup.get(tableName);
+    if (table == null) {
+      throw new DatabaseException("Table: " + tableName + " does not exist");
+    }
+
+    synchronized (table) {
+      int numPagesBefore = table.getNumDataPages();
+      table.compact(maxPages, moves -> updateIndexRids(tableName, table, moves));
+
+      // A Bloom filter can't forget the values of deleted records, so we
+      // rebuild the filters that still hold some (or that the table has
+      // outgrown) from the values left in the table.
+      for (Map.Entry<String, Integer> filterColumn
+           : getSingleColumnIndexes(tableName, this.bloomFilterLookup).entrySet()) {
+        BloomFilter filter = this.bloomFilterLookup.get(filterColumn.getKey());
+        if (filter.needsRebuild()) {
+          filter.rebuild(columnValues(table, filterColumn.getValue()),
+                         bloomFilterCapacity(table.getNumRecords()));
+        }
+      }
+
+      return numPagesBefore - table.getNumDataPages();
+    }
+  }
+
+  /**
+   * Replaces the record id of every moved record in every index on a table,
+   * for vacuum. Every B+ tree entry is checked before any index is changed,
+   * so that if this throws, no index has been changed. The caller must hold
+   * the table lock.
+   */
+  private void updateIndexRids(String tableName, Table table, List<Pair<RecordId, RecordId>> moves)
+      throws DatabaseException {
+    List<Record> moved = new ArrayList<Record>();
+    for (Pair<RecordId, RecordId> move : moves) {
+      moved.add(table.getRecord(move.getSecond()));
+    }
+
+    Map<String, List<Pair<DataBox, RecordId>>> treeEntries =
+        new HashMap<String, List<Pair<DataBox, RecordId>>>();
+    for (Map.Entry<String, List<Integer>> indexColumns : getIndexColumns(tableName).entrySet()) {
+      BPlusTree index = this.indexLookup.get(indexColumns.getKey());
+      List<Pair<DataBox, RecordId>> entries = new ArrayList<Pair<DataBox, RecordId>>();
+      for (int j = 0; j < moves.size(); j++) {
+        DataBox key = indexKey(moved.get(j).getValues(), indexColumns.getValue());
+        if (!index.get(key).equals(Optional.of(moves.get(j).getFirst()))) {
+          throw new DatabaseException("Index " + indexColumns.getKey() + " has no entry for record "
+                                      + moves.get(j).getFirst() + ".");
+        }
+        entries.add(new Pair<DataBox, RecordId>(key, moves.get(j).getSecond()));
+      }
+      treeEntries.put(indexColumns.getKey(), entries);
+    }
+    for (Map.Entry<String, List<Pair<DataBox, RecordId>>> entries : treeEntries.entrySet()) {
+      try {
+        this.indexLookup.get(entries.getKey()).updateRids(entries.getValue());
+      } catch (BPlusTreeException e) {
+        throw new DatabaseException(e.getMessage());
+      }
+    }
+
+    for (Map.Entry<ColumnIndex, Integer> index : getColumnIndexes(tableName).entrySet()) {
+      List<DataBox> keys = new ArrayList<DataBox>();
+      for (Record record : moved) {
+        keys.add(record.getValues().get(index.getValue()));
+      }
+      index.getKey().updateRids(keys, moves);
+    }
+  }
+
+  /**
+   * Create a worker that compacts a table in the background. Run it on its
+   * own thread; it calls vacuum(tableName, maxPagesPerStep) repeatedly,
+   * pausing for pauseMillis between steps, until the table is compact or the
+   * worker is stopped.
+   *
+   * @param tableName the name of the table
+   * @param maxPagesPerStep the maximum number of data pages freed per step
+   * @param pauseMillis the pause between steps in milliseconds
+   * @return the new VacuumWorker
+   */
+  public VacuumWorker createVacuumWorker(String tableName, int maxPagesPerStep, long pauseMillis) {
+    return new VacuumWorker(tableName, maxPagesPerStep, pauseMillis);
+  }
+
   /**
    * Start a new transaction.
    *
@@ -275,103 +1253,457 @@ public class Database {
         throw new DatabaseException("Table name already exists");
       }
 
-      if (Database.this.tableLookup.containsKey(tableName)) {
-        this.aliasMaps.put(alias, tableName);
-      } else if (tempTables.containsKey(tableName)) {
-        this.aliasMaps.put(alias, tableName);
-      } else {
-        throw new DatabaseException("Table name not found");
+      if (Database.this.tableLookup.containsKey(tableName)) {
+        this.aliasMaps.put(alias, tableName);
+      } else if (tempTables.containsKey(tableName)) {
+        this.aliasMaps.put(alias, tableName);
+      } else {
+        throw new DatabaseException("Table name not found");
+      }
+    }
+
+    /**
+     * Create a temporary table within this transaction.
+     *
+     * @param schema the table schema
+     * @throws DatabaseException
+     * @return name of the tempTable
+     */
+    public String createTempTable(Schema schema) throws DatabaseException {
+      assert(this.active);
+
+      String tempTableName = "tempTable" + tempTableCounter;
+      tempTableCounter++;
+
+      Path dir = Paths.get(Database.this.fileDir, "temp");
+      File f = new File(dir.toAbsolutePath().toString());
+      if (!f.exists()) {
+        f.mkdirs();
+      }
+
+      Path path = Paths.get(Database.this.fileDir, "temp", tempTableName + Table.FILENAME_EXTENSION);
+      this.tempTables.put(tempTableName, new Table(tempTableName, schema, path.toString()));
+      return tempTableName;
+    }
+
+
+    /**
+     * Create a temporary table within this transaction.
+     *
+     * @param schema the table schema
+     * @param tempTableName the name of the table
+     * @throws DatabaseException
+     */
+    public void createTempTable(Schema schema, String tempTableName) throws DatabaseException {
+      assert(this.active);
+
+      if (Database.this.tableLookup.containsKey(tempTableName)
+              || this.tempTables.containsKey(tempTableName))  {
+        throw new DatabaseException("Table name already exists");
+      }
+
+      Path dir = Paths.get(Database.this.fileDir, "temp");
+      File f = new File(dir.toAbsolutePath().toString());
+      if (!f.exists()) {
+        f.mkdirs();
+      }
+
+      Path path = Paths.get(Database.this.fileDir, "temp", tempTableName + Table.FILENAME_EXTENSION);
+      this.tempTables.put(tempTableName, new Table(tempTableName, schema, path.toString()));
+    }
+
+
+    /**
+     * Perform a check to see if the database has an index on this (table,column).
+     *
+     * @param tableName the name of the table
+     * @param columnName the name of the column
+     * @return boolean if the index exists
+     */
+    public boolean indexExists(String tableName, String columnName) {
+      try {
+        resolveIndexFromName(tableName, columnName);
+      } catch (DatabaseException e) {
+        return false;
+      }
+      return true;
+    }
+
+    public Iterator<Record> sortedScan(String tableName, String columnName) throws DatabaseException {
+      Table tab = getTable(tableName);
+      BPlusTree index = resolveIndexFromName(tableName, columnName);
+      return new RecordIterator(tab, index.scanAllRids());
+    }
+
+    public Iterator<Record> sortedScanFrom(String tableName, String columnName, DataBox startValue) throws DatabaseException {
+      Table tab = getTable(tableName);
+      BPlusTree index = resolveIndexFromName(tableName, columnName);
+      return new RecordIterator(tab, index.scanRangeRids(Optional.of(startValue), true,
+                                                         Optional.empty(), true));
+    }
+
+    /**
+     * Returns the records whose value of the indexed column columnName lies
+     * between lo and hi, in ascending (or, if descending is true, descending)
+     * order of that value. See BPlusTree.scanRange for the meaning of the
+     * bounds.
+     */
+    public Iterator<Record> sortedScanRange(String tableName, String columnName,
+                                            Optional<DataBox> lo, boolean loInclusive,
+                                            Optional<DataBox> hi, boolean hiInclusive,
+                                            boolean descending) throws DatabaseException {
+      Table tab = getTable(tableName);
+      BPlusTree index = resolveIndexFromName(tableName, columnName);
+      LongIterator rids = descending
+        ? index.scanRangeRidsDescending(lo, loInclusive, hi, hiInclusive)
+        : index.scanRangeRids(lo, loInclusive, hi, hiInclusive);
+      return new RecordIterator(tab, rids);
+    }
+
+    /**
+     * Returns (at most) the next `limit` records of a sortedScan of the
+     * indexed column columnName from cursor, along with the cursor of the
+     * records after them, or an empty cursor if there are none. A client can
+     * page through a table by passing each page's cursor (serialized with
+     * BPlusTreeCursor.toBytes, if need be) to the next call, starting from
+     * BPlusTreeCursor.first(). See BPlusTree.scanPage.
+     */
+    public Pair<List<Record>, Optional<BPlusTreeCursor>> sortedScanPage(
+        String tableName, String columnName, BPlusTreeCursor cursor, int limit)
+        throws DatabaseException {
+      Table tab = getTable(tableName);
+      BPlusTree index = resolveIndexFromName(tableName, columnName);
+      Pair<List<RecordId>, Optional<BPlusTreeCursor>> page = index.scanPage(cursor, limit);
+      List<Record> records = new ArrayList<Record>();
+      RecordIterator iter = new RecordIterator(tab, page.getFirst().iterator());
+      while (iter.hasNext()) {
+        records.add(iter.next());
+      }
+      return new Pair<>(records, page.getSecond());
+    }
+
+    /**
+     * Returns the names of the columns included in the index on (tableName,
+     * columnName), which is empty unless the index is a covering index.
+     */
+    public List<String> getIncludedColumns(String tableName, String columnName)
+        throws DatabaseException {
+      return getIncludedColumns(tableName, Collections.singletonList(columnName));
+    }
+
+    /**
+     * Returns the names of the columns included in the index on (tableName,
+     * columnNames), which is empty unless the index is a covering index.
+     */
+    public List<String> getIncludedColumns(String tableName, List<String> columnNames)
+        throws DatabaseException {
+      List<String> fieldNames = getTable(tableName).getSchema().getFieldNames();
+      List<String> columns = new ArrayList<String>();
+      for (int i : resolveIncludedColumns(tableName, columnNames)) {
+        columns.add(fieldNames.get(i));
+      }
+      return columns;
+    }
+
+    /**
+     * Same as sortedScanRange, but reads only the covering index on
+     * (tableName, columnName) and never the table. Each returned record holds
+     * the value of columnName followed by the values of the columns included
+     * in the index (see getIncludedColumns).
+     */
+    public Iterator<Record> coveringScanRange(String tableName, String columnName,
+                                              Optional<DataBox> lo, boolean loInclusive,
+                                              Optional<DataBox> hi, boolean hiInclusive,
+                                              boolean descending) throws DatabaseException {
+      BPlusTree index = resolveIndexFromName(tableName, columnName);
+      Iterator<List<DataBox>> entries = descending
+        ? index.scanRangeCoveringDescending(lo, loInclusive, hi, hiInclusive)
+        : index.scanRangeCovering(lo, loInclusive, hi, hiInclusive);
+      return new Iterator<Record>() {
+        @Override
+        public boolean hasNext() {
+          return entries.hasNext();
+        }
+
+        @Override
+        public Record next() {
+          return new Record(entries.next());
+        }
+      };
+    }
+
+    /**
+     * Returns the record ids, rather than the records, of sortedScanRange in
+     * ascending order of the indexed column, encoded as longs (see
+     * RecordId.toLong).
+     */
+    public LongIterator indexScanRange(String tableName, String columnName,
+                                       Optional<DataBox> lo, boolean loInclusive,
+                                       Optional<DataBox> hi, boolean hiInclusive)
+        throws DatabaseException {
+      BPlusTree index = resolveIndexFromName(tableName, columnName);
+      return index.scanRangeRids(lo, loInclusive, hi, hiInclusive);
+    }
+
+    /**
+     * Returns whether the database has a composite index on the columns
+     * columnNames, in order, of tableName.
+     */
+    public boolean indexExists(String tableName, List<String> columnNames) {
+      try {
+        resolveCompositeIndex(tableName, columnNames);
+      } catch (DatabaseException e) {
+        return false;
+      }
+      return true;
+    }
+
+    /**
+     * Returns the key columns, in order, of every composite index on
+     * tableName.
+     */
+    public List<List<String>> getCompositeIndexes(String tableName) throws DatabaseException {
+      List<String> fieldNames = getTable(tableName).getSchema().getFieldNames();
+      List<List<String>> indexes = new ArrayList<List<String>>();
+      for (List<Integer> columns : resolveIndexColumns(tableName).values()) {
+        if (columns.size() < 2) {
+          continue;
+        }
+        List<String> names = new ArrayList<String>();
+        for (int i : columns) {
+          names.add(fieldNames.get(i));
+        }
+        indexes.add(names);
+      }
+      return indexes;
+    }
+
+    /**
+     * Returns the records of tableName whose first prefix.size() columns of
+     * the composite index on columnNames are equal to prefix, and whose next
+     * column lies between lo and hi, in ascending order of the indexed
+     * columns. See BPlusTree.scanPrefix.
+     */
+    public Iterator<Record> sortedScanPrefix(String tableName, List<String> columnNames,
+                                             List<DataBox> prefix,
+                                             Optional<DataBox> lo, boolean loInclusive,
+                                             Optional<DataBox> hi, boolean hiInclusive)
+        throws DatabaseException {
+      Table tab = getTable(tableName);
+      BPlusTree index = resolveCompositeIndex(tableName, columnNames);
+      return new RecordIterator(tab, index.scanPrefix(prefix, lo, loInclusive, hi, hiInclusive));
+    }
+
+    /**
+     * Same as sortedScanPrefix, but reads only the covering composite index
+     * on (tableName, columnNames) and never the table. Each returned record
+     * holds the values of columnNames followed by the values of the columns
+     * included in the index.
+     */
+    public Iterator<Record> coveringScanPrefix(String tableName, List<String> columnNames,
+                                               List<DataBox> prefix,
+                                               Optional<DataBox> lo, boolean loInclusive,
+                                               Optional<DataBox> hi, boolean hiInclusive)
+        throws DatabaseException {
+      BPlusTree index = resolveCompositeIndex(tableName, columnNames);
+      List<Type> fieldTypes = getTable(tableName).getSchema().getFieldTypes();
+      List<Type> keyTypes = new ArrayList<Type>();
+      for (int i : Database.this.keyColumnLookup.get(resolveIndexName(tableName, columnNames))) {
+        keyTypes.add(fieldTypes.get(i));
+      }
+      Iterator<List<DataBox>> entries =
+        index.scanPrefixCovering(prefix, lo, loInclusive, hi, hiInclusive);
+      return new Iterator<Record>() {
+        @Override
+        public boolean hasNext() {
+          return entries.hasNext();
+        }
+
+        @Override
+        public Record next() {
+          List<DataBox> entry = entries.next();
+          List<DataBox> values = CompositeKey.decode(entry.get(0), keyTypes);
+          values.addAll(entry.subList(1, entry.size()));
+          return new Record(values);
+        }
+      };
+    }
+
+    /**
+     * Returns the record whose column columnName is key, if any, by a lookup
+     * in the ART index on the column if it has one, in its hash index if it
+     * has one, and otherwise in its B+ tree index. The lookup is skipped if
+     * a Bloom filter on the column rules key out.
+     */
+    public Iterator<Record> lookupKey(String tableName, String columnName, DataBox key) throws DatabaseException {
+      if (!mightContain(tableName, columnName, key)) {
+        return Collections.<Record>emptyIterator();
+      }
+      if (artIndexExists(tableName, columnName)) {
+        return artLookup(tableName, columnName, key);
+      }
+      if (hashIndexExists(tableName, columnName)) {
+        return hashLookup(tableName, columnName, key);
+      }
+      Table tab = getTable(tableName);
+      BPlusTree index = resolveIndexFromName(tableName, columnName);
+      return new RecordIterator(tab, index.scanEqual(key));
+    }
+
+    /**
+     * Returns the records whose column columnName is one of keys, in
+     * ascending order of the column, by a single batched probe of the B+ tree
+     * index on the column (see BPlusTree.getAll). Duplicate keys are looked
+     * up once, and keys that a Bloom filter on the column rules out are not
+     * looked up at all.
+     */
+    public Iterator<Record> lookupKeys(String tableName, String columnName, List<DataBox> keys)
+        throws DatabaseException {
+      Table tab = getTable(tableName);
+      BPlusTree index = resolveIndexFromName(tableName, columnName);
+      List<DataBox> sortedKeys = new ArrayList<DataBox>();
+      for (DataBox key : new TreeSet<DataBox>(keys)) {
+        if (mightContain(tableName, columnName, key)) {
+          sortedKeys.add(key);
+        }
+      }
+      List<RecordId> rids = new ArrayList<RecordId>();
+      for (Optional<RecordId> rid : index.getAll(sortedKeys)) {
+        rid.ifPresent(rids::add);
+      }
+      return new RecordIterator(tab, rids.iterator());
+    }
+
+    public boolean contains(String tableName, String columnName, DataBox key) throws DatabaseException {
+      if (!mightContain(tableName, columnName, key)) {
+        return false;
+      }
+      if (artIndexExists(tableName, columnName)) {
+        return resolveArtIndexFromName(tableName, columnName).get(key).isPresent();
       }
+      if (hashIndexExists(tableName, columnName)) {
+        return resolveHashIndexFromName(tableName, columnName).get(key).isPresent();
+      }
+      BPlusTree index = resolveIndexFromName(tableName, columnName);
+      return index.get(key).isPresent();
     }
 
     /**
-     * Create a temporary table within this transaction.
-     *
-     * @param schema the table schema
-     * @throws DatabaseException
-     * @return name of the tempTable
+     * @param tableName the name of the table
+     * @param columnName the name of the column
+     * @return boolean if a hash index exists on the column
      */
-    public String createTempTable(Schema schema) throws DatabaseException {
-      assert(this.active);
-
-      String tempTableName = "tempTable" + tempTableCounter;
-      tempTableCounter++;
-
-      Path dir = Paths.get(Database.this.fileDir, "temp");
-      File f = new File(dir.toAbsolutePath().toString());
-      if (!f.exists()) {
-        f.mkdirs();
+    public boolean hashIndexExists(String tableName, String columnName) {
+      try {
+        resolveHashIndexFromName(tableName, columnName);
+      } catch (DatabaseException e) {
+        return false;
       }
-
-      Path path = Paths.get(Database.this.fileDir, "temp", tempTableName + Table.FILENAME_EXTENSION);
-      this.tempTables.put(tempTableName, new Table(tempTableName, schema, path.toString()));
-      return tempTableName;
+      return true;
     }
 
-
     /**
-     * Create a temporary table within this transaction.
-     *
-     * @param schema the table schema
-     * @param tempTableName the name of the table
-     * @throws DatabaseException
+     * @param tableName the name of the table
+     * @param columnName the name of the column
+     * @return boolean if an ART index exists on the column
      */
-    public void createTempTable(Schema schema, String tempTableName) throws DatabaseException {
-      assert(this.active);
-
-      if (Database.this.tableLookup.containsKey(tempTableName)
-              || this.tempTables.containsKey(tempTableName))  {
-        throw new DatabaseException("Table name already exists");
+    public boolean artIndexExists(String tableName, String columnName) {
+      try {
+        resolveArtIndexFromName(tableName, columnName);
+      } catch (DatabaseException e) {
+        return false;
       }
+      return true;
+    }
 
-      Path dir = Paths.get(Database.this.fileDir, "temp");
-      File f = new File(dir.toAbsolutePath().toString());
-      if (!f.exists()) {
-        f.mkdirs();
+    /**
+     * @param tableName the name of the table
+     * @param columnName the name of the column
+     * @return boolean if a bitmap index exists on the column
+     */
+    public boolean bitmapIndexExists(String tableName, String columnName) {
+      try {
+        resolveBitmapIndexFromName(tableName, columnName);
+      } catch (DatabaseException e) {
+        return false;
       }
-
-      Path path = Paths.get(Database.this.fileDir, "temp", tempTableName + Table.FILENAME_EXTENSION);
-      this.tempTables.put(tempTableName, new Table(tempTableName, schema, path.toString()));
+      return true;
     }
 
-
     /**
-     * Perform a check to see if the database has an index on this (table,column).
-     *
      * @param tableName the name of the table
      * @param columnName the name of the column
-     * @return boolean if the index exists
+     * @return boolean if a Bloom filter exists on the column
      */
-    public boolean indexExists(String tableName, String columnName) {
+    public boolean bloomFilterExists(String tableName, String columnName) {
       try {
-        resolveIndexFromName(tableName, columnName);
+        resolveBloomFilterFromName(tableName, columnName);
       } catch (DatabaseException e) {
         return false;
       }
       return true;
     }
 
-    public Iterator<Record> sortedScan(String tableName, String columnName) throws DatabaseException {
-      Table tab = getTable(tableName);
-      BPlusTree index = resolveIndexFromName(tableName, columnName);
-      return new RecordIterator(tab, index.scanAll());
+    /**
+     * Returns false if the Bloom filter on the column columnName rules out
+     * that any record of tableName has the value key in it, and true if it
+     * doesn't or if the column has no Bloom filter.
+     *
+     * @throws DatabaseException if the column has a Bloom filter and key is
+     * not of the column's type
+     */
+    public boolean mightContain(String tableName, String columnName, DataBox key)
+        throws DatabaseException {
+      BloomFilter filter;
+      try {
+        filter = resolveBloomFilterFromName(tableName, columnName);
+      } catch (DatabaseException e) {
+        return true;
+      }
+      if (!key.type().equals(filter.getKeySchema())) {
+        throw new DatabaseException(String.format("DataBox %s is not of type %s", key,
+                                                  filter.getKeySchema()));
+      }
+      return filter.mightContain(key);
     }
 
-    public Iterator<Record> sortedScanFrom(String tableName, String columnName, DataBox startValue) throws DatabaseException {
+    /**
+     * Returns the record whose column columnName is key, if any, by a lookup
+     * in the hash index on the column.
+     */
+    public Iterator<Record> hashLookup(String tableName, String columnName, DataBox key) throws DatabaseException {
       Table tab = getTable(tableName);
-      BPlusTree index = resolveIndexFromName(tableName, columnName);
-      return new RecordIterator(tab, index.scanGreaterEqual(startValue));
+      HashIndex index = resolveHashIndexFromName(tableName, columnName);
+      return new RecordIterator(tab, index.scanEqual(key));
     }
 
-    public Iterator<Record> lookupKey(String tableName, String columnName, DataBox key) throws DatabaseException {
+    /**
+     * Returns the record whose column columnName is key, if any, by a lookup
+     * in the ART index on the column.
+     */
+    public Iterator<Record> artLookup(String tableName, String columnName, DataBox key) throws DatabaseException {
       Table tab = getTable(tableName);
-      BPlusTree index = resolveIndexFromName(tableName, columnName);
+      ArtIndex index = resolveArtIndexFromName(tableName, columnName);
       return new RecordIterator(tab, index.scanEqual(key));
     }
 
-    public boolean contains(String tableName, String columnName, DataBox key) throws DatabaseException {
-      BPlusTree index = resolveIndexFromName(tableName, columnName);
-      return index.get(key).isPresent();
+    /**
+     * Returns the record ids of the records of tableName whose column
+     * columnName is key, from the bitmap index on the column.
+     */
+    public RoaringBitmap bitmapLookup(String tableName, String columnName, DataBox key)
+        throws DatabaseException {
+      return resolveBitmapIndexFromName(tableName, columnName).get(key);
+    }
+
+    /**
+     * Returns the record ids of the records of tableName whose column
+     * columnName satisfies predicate, from the bitmap index on the column.
+     * The predicate is tested once per distinct value of the column.
+     */
+    public RoaringBitmap bitmapScan(String tableName, String columnName,
+                                    Predicate<DataBox> predicate) throws DatabaseException {
+      return resolveBitmapIndexFromName(tableName, columnName).getMatching(predicate);
     }
 
     public RecordId addRecord(String tableName, List<DataBox> values) throws DatabaseException {
@@ -382,24 +1714,33 @@ public class Database {
     private RecordId runAddRecord(String tableName, List<DataBox> values) throws DatabaseException {
       assert(this.active);
       Table tab = getTable(tableName);
-      RecordId rid = tab.addRecord(values);
-      Schema s = tab.getSchema();
-      List<String> colNames = s.getFieldNames();
+      synchronized (tab) {
+        RecordId rid = tab.addRecord(values);
 
-      for (int i = 0; i < colNames.size(); i++) {
-        String col = colNames.get(i);
-        if (indexExists(tableName, col)) {
+        for (Map.Entry<String, List<Integer>> index : resolveIndexColumns(tableName).entrySet()) {
           try {
-            resolveIndexFromName(tableName, col).put(values.get(i), rid);
+            Database.this.indexLookup.get(index.getKey()).put(
+                indexKey(values, index.getValue()), rid, includedValues(index.getKey(), values));
           } catch (BPlusTreeException e) {
             throw new DatabaseException(e.getMessage());
           }
         }
-      }
+        for (Map.Entry<ColumnIndex, Integer> index : resolveColumnIndexes(tableName).entrySet()) {
+          try {
+            index.getKey().put(values.get(index.getValue()), rid);
+          } catch (IndexException e) {
+            throw new DatabaseException(e.getMessage());
+          }
+        }
+        for (Map.Entry<String, Integer> filter
+             : resolveSingleColumnIndexes(tableName, Database.this.bloomFilterLookup).entrySet()) {
+          Database.this.bloomFilterLookup.get(filter.getKey()).add(values.get(filter.getValue()));
+        }
 
-      //find(tableName, "string");
+        //find(tableName, "string");
 
-      return rid;
+        return rid;
+      }
     }
 
 
@@ -410,6 +1751,40 @@ public class Database {
 
     }
 
+    public int getParallelism() {
+      return Database.this.getParallelism();
+    }
+
+    public ForkJoinPool getScanPool() {
+      assert(this.active);
+      return Database.this.getScanPool();
+    }
+
+    public List<Integer> getDataPageNums(String tableName) throws DatabaseException {
+      assert(this.active);
+      return getTable(tableName).getDataPageNums();
+    }
+
+    public List<Record> readPage(String tableName, int pageNum) throws DatabaseException {
+      assert(this.active);
+      return getTable(tableName).readPage(pageNum);
+    }
+
+    public List<Record> readPage(String tableName, int pageNum, BitSet entryNums) throws DatabaseException {
+      assert(this.active);
+      return getTable(tableName).readPage(pageNum, entryNums);
+    }
+
+    public boolean hasDictionary(String tableName) throws DatabaseException {
+      assert(this.active);
+      return getTable(tableName).getDictionary() != null;
+    }
+
+    public List<Record> readPage(String tableName, int pageNum, int column, DataBox value) throws DatabaseException {
+      assert(this.active);
+      return getTable(tableName).readPage(pageNum, column, value);
+    }
+
 
     public RecordId deleteRecord(String tableName, RecordId rid)  throws DatabaseException {
         return runDeleteRecord(tableName, rid);
@@ -419,19 +1794,22 @@ public class Database {
       assert(active);
 
       Table tab = getTable(tableName);
-      Schema s = tab.getSchema();
-
-      Record rec = tab.deleteRecord(rid);
-      List<DataBox> values = rec.getValues();
-      List<String> colNames = s.getFieldNames();
-      for (int i = 0; i < colNames.size(); i++) {
-        String col = colNames.get(i);
-        if (indexExists(tableName, col)) {
-          resolveIndexFromName(tableName, col).remove(values.get(i));
+
+      synchronized (tab) {
+        Record rec = tab.deleteRecord(rid);
+        List<DataBox> values = rec.getValues();
+        for (Map.Entry<String, List<Integer>> index : resolveIndexColumns(tableName).entrySet()) {
+          Database.this.indexLookup.get(index.getKey()).remove(indexKey(values, index.getValue()));
+        }
+        for (Map.Entry<ColumnIndex, Integer> index : resolveColumnIndexes(tableName).entrySet()) {
+          index.getKey().remove(values.get(index.getValue()), rid);
+        }
+        for (String filter : resolveSingleColumnIndexes(tableName, Database.this.bloomFilterLookup).keySet()) {
+          Database.this.bloomFilterLookup.get(filter).markStale();
         }
-      }
 
-      return rid;
+        return rid;
+      }
     }
 
     public Record getRecord(String tableName, RecordId rid) throws DatabaseException {
@@ -456,51 +1834,68 @@ public class Database {
     public RecordId runUpdateRecordWhere(String tableName, String targetColumnName, DataBox targetVaue, String predColumnName, DataBox predValue)  throws DatabaseException {
 
         Table tab = getTable(tableName);
-        Iterator<RecordId> recordIds = tab.ridIterator();
-
-        Schema s = tab.getSchema();
-        int uindex = s.getFieldNames().indexOf(targetColumnName);
-        int pindex = s.getFieldNames().indexOf(predColumnName);
-
-        while(recordIds.hasNext()) {
-          RecordId curRID = recordIds.next();
-          Record cur = getRecord(tableName, curRID);
-          List<DataBox> record_copy = new ArrayList<DataBox>(cur.getValues());
-
-          if (record_copy.get(pindex).equals(predValue)){
-              record_copy.set(uindex, targetVaue);
-              runUpdateRecord(tableName, record_copy, curRID);
+        synchronized (tab) {
+          Iterator<RecordId> recordIds = tab.ridIterator();
+
+          Schema s = tab.getSchema();
+          int uindex = s.getFieldNames().indexOf(targetColumnName);
+          int pindex = s.getFieldNames().indexOf(predColumnName);
+
+          while(recordIds.hasNext()) {
+            RecordId curRID = recordIds.next();
+            Record cur = getRecord(tableName, curRID);
+            List<DataBox> record_copy = new ArrayList<DataBox>(cur.getValues());
+
+            if (record_copy.get(pindex).equals(predValue)){
+                record_copy.set(uindex, targetVaue);
+                runUpdateRecord(tableName, record_copy, curRID);
+            }
           }
-        }
 
-        return null;
+          return null;
+        }
     }
 
 
     private RecordId runUpdateRecord(String tableName, List<DataBox> values, RecordId rid) throws DatabaseException {
       assert(this.active);
       Table tab = getTable(tableName);
-      Schema s = tab.getSchema();
 
-      Record rec = tab.updateRecord(values, rid);
+      synchronized (tab) {
+        Record rec = tab.updateRecord(values, rid);
 
-      List<DataBox> oldValues = rec.getValues();
-      List<String> colNames = s.getFieldNames();
-
-      for (int i = 0; i < colNames.size(); i++) {
-        String col = colNames.get(i);
-        if (indexExists(tableName, col)) {
-          BPlusTree tree = resolveIndexFromName(tableName, col);
-          tree.remove(oldValues.get(i));
+        List<DataBox> oldValues = rec.getValues();
+        for (Map.Entry<String, List<Integer>> index : resolveIndexColumns(tableName).entrySet()) {
+          BPlusTree tree = Database.this.indexLookup.get(index.getKey());
+          tree.remove(indexKey(oldValues, index.getValue()));
           try {
-            tree.put(values.get(i), rid);
+            tree.put(indexKey(values, index.getValue()), rid,
+                     includedValues(index.getKey(), values));
           } catch (BPlusTreeException e) {
             throw new DatabaseException(e.getMessage());
           }
         }
-      }
+        for (Map.Entry<ColumnIndex, Integer> index : resolveColumnIndexes(tableName).entrySet()) {
+          index.getKey().remove(oldValues.get(index.getValue()), rid);
+          try {
+            index.getKey().put(values.get(index.getValue()), rid);
+          } catch (IndexException e) {
+            throw new DatabaseException(e.getMessage());
+          }
+        }
+        for (Map.Entry<String, Integer> filter
+             : resolveSingleColumnIndexes(tableName, Database.this.bloomFilterLookup).entrySet()) {
+          DataBox oldValue = oldValues.get(filter.getValue());
+          DataBox newValue = values.get(filter.getValue());
+          if (!oldValue.equals(newValue)) {
+            BloomFilter bloomFilter = Database.this.bloomFilterLookup.get(filter.getKey());
+            bloomFilter.add(newValue);
+            bloomFilter.markStale();
+          }
+        }
 
-      return rid;
+        return rid;
+      }
     }
 
 
@@ -531,7 +1926,7 @@ public class Database {
 
     public int getEntrySize(String tableName) throws DatabaseException {
       assert(this.active);
-      return getTable(tableName).getSchema().getSizeInBytes();
+      return getTable(tableName).getStorageSchema().getSizeInBytes();
     }
 
     public long getNumRecords(String tableName) throws DatabaseException {
@@ -544,6 +1939,21 @@ public class Database {
       return this.resolveIndexFromName(tableName, columnName).getNumPages();
     }
 
+    public int getNumIndexPages(String tableName, List<String> columnNames) throws DatabaseException {
+      assert(this.active);
+      return this.resolveIndexFromName(tableName, columnNames).getNumPages();
+    }
+
+    public IndexStats getIndexStats(String tableName, String columnName) throws DatabaseException {
+      assert(this.active);
+      return this.resolveIndexFromName(tableName, columnName).getStats();
+    }
+
+    public IndexStats getIndexStats(String tableName, List<String> columnNames) throws DatabaseException {
+      assert(this.active);
+      return this.resolveIndexFromName(tableName, columnNames).getStats();
+    }
+
     public Schema getSchema(String tableName) throws DatabaseException {
       assert(this.active);
       return getTable(tableName).getSchema();
@@ -563,10 +1973,145 @@ public class Database {
       return new Schema(newColumnNames, schema.getFieldTypes());
     }
 
+    /**
+     * Returns the values of the record `values` that the index indexName
+     * includes in the record's entry.
+     */
+    private List<DataBox> includedValues(String indexName, List<DataBox> values) {
+      List<DataBox> included = new ArrayList<DataBox>();
+      for (int i : Database.this.includedColumnLookup.getOrDefault(
+               indexName, Collections.<Integer>emptyList())) {
+        included.add(values.get(i));
+      }
+      return included;
+    }
+
+    /** Returns the key columns of every index on tableName, keyed by index name. */
+    private Map<String, List<Integer>> resolveIndexColumns(String tableName) {
+      if (this.tempTables.containsKey(tableName)) {
+        return Collections.emptyMap();
+      }
+      while (aliasMaps.containsKey(tableName)) {
+        tableName = aliasMaps.get(tableName);
+      }
+      return Database.this.getIndexColumns(tableName);
+    }
+
+    /**
+     * Returns the column of every index of `lookup` (e.g. bloomFilterLookup)
+     * on tableName, keyed by index name.
+     */
+    private <T> Map<String, Integer> resolveSingleColumnIndexes(String tableName, Map<String, T> lookup) {
+      if (this.tempTables.containsKey(tableName)) {
+        return Collections.emptyMap();
+      }
+      while (aliasMaps.containsKey(tableName)) {
+        tableName = aliasMaps.get(tableName);
+      }
+      return Database.this.getSingleColumnIndexes(tableName, lookup);
+    }
+
+    /**
+     * Returns every hash, ART, and bitmap index on tableName, mapped to its
+     * key column.
+     */
+    private Map<ColumnIndex, Integer> resolveColumnIndexes(String tableName) {
+      if (this.tempTables.containsKey(tableName)) {
+        return Collections.emptyMap();
+      }
+      while (aliasMaps.containsKey(tableName)) {
+        tableName = aliasMaps.get(tableName);
+      }
+      return Database.this.getColumnIndexes(tableName);
+    }
+
+    private List<Integer> resolveIncludedColumns(String tableName, List<String> columnNames)
+        throws DatabaseException {
+      String indexName = resolveIndexName(tableName, columnNames);
+      if (!Database.this.indexLookup.containsKey(indexName)) {
+        throw new DatabaseException("Index does not exist");
+      }
+      return Database.this.includedColumnLookup.getOrDefault(indexName,
+                                                             Collections.<Integer>emptyList());
+    }
+
     private BPlusTree resolveIndexFromName(String tableName, String columnName) throws DatabaseException {
+      return resolveIndexFromName(tableName, Collections.singletonList(columnName));
+    }
+
+    private BPlusTree resolveIndexFromName(String tableName, List<String> columnNames)
+        throws DatabaseException {
+      return resolveFromName(tableName, columnNames, Database.this.indexLookup, "Index does not exist");
+    }
+
+    private HashIndex resolveHashIndexFromName(String tableName, String columnName)
+        throws DatabaseException {
+      return resolveFromName(tableName, Collections.singletonList(columnName),
+                             Database.this.hashIndexLookup, "Index does not exist");
+    }
+
+    private ArtIndex resolveArtIndexFromName(String tableName, String columnName)
+        throws DatabaseException {
+      return resolveFromName(tableName, Collections.singletonList(columnName),
+                             Database.this.artIndexLookup, "Index does not exist");
+    }
+
+    private BitmapIndex resolveBitmapIndexFromName(String tableName, String columnName)
+        throws DatabaseException {
+      return resolveFromName(tableName, Collections.singletonList(columnName),
+                             Database.this.bitmapIndexLookup, "Index does not exist");
+    }
+
+    private BloomFilter resolveBloomFilterFromName(String tableName, String columnName)
+        throws DatabaseException {
+      return resolveFromName(tableName, Collections.singletonList(columnName),
+                             Database.this.bloomFilterLookup, "Bloom filter does not exist");
+    }
+
+    /**
+     * Returns the index of `lookup` (e.g. hashIndexLookup) on (tableName,
+     * columnNames), or throws a DatabaseException with message err if there
+     * is none.
+     */
+    private <T> T resolveFromName(String tableName, List<String> columnNames, Map<String, T> lookup,
+                                  String err) throws DatabaseException {
+      T index = lookup.get(resolveIndexName(tableName, columnNames));
+      if (index == null) {
+        throw new DatabaseException(err);
+      }
+      return index;
+    }
+
+    /**
+     * Returns the composite index on (tableName, columnNames) and checks that
+     * it is one.
+     */
+    private BPlusTree resolveCompositeIndex(String tableName, List<String> columnNames)
+        throws DatabaseException {
+      if (columnNames.size() < 2) {
+        throw new DatabaseException("Index is not a composite index");
+      }
+      return resolveIndexFromName(tableName, columnNames);
+    }
+
+    /** Returns the name of the index on (tableName, columnNames), if there were one. */
+    private String resolveIndexName(String tableName, List<String> columnNames)
+        throws DatabaseException {
       while (aliasMaps.containsKey(tableName)) {
         tableName = aliasMaps.get(tableName);
       }
+      StringBuilder indexName = new StringBuilder(tableName);
+      for (String columnName : columnNames) {
+        indexName.append(",").append(resolveColumnName(tableName, columnName));
+      }
+      return indexName.toString();
+    }
+
+    /**
+     * Returns the unqualified name of the column columnName of tableName,
+     * which must not be an alias.
+     */
+    private String resolveColumnName(String tableName, String columnName) throws DatabaseException {
       if (columnName.contains(".")) {
         String columnPrefix = columnName.split("\\.")[0];
         while (aliasMaps.containsKey(columnPrefix)) {
@@ -577,11 +2122,7 @@ public class Database {
         }
         columnName = columnName.split("\\.")[1];
       }
-      String indexName = tableName + "," + columnName;
-      if (Database.this.indexLookup.containsKey(indexName)) {
-        return Database.this.indexLookup.get(indexName);
-      }
-      throw new DatabaseException("Index does not exist");
+      return columnName;
     }
 
     private Table getTable(String tableName) throws DatabaseException {
@@ -625,6 +2166,98 @@ public class Database {
   }
 
 
+  /**
+   * Merges sorted runs written by writeSortedRun into a single sorted stream
+   * of (key, record id) pairs. Only the head of each run is held in memory.
+   */
+  private class RunMergeIterator implements Iterator<Pair<List<DataBox>, RecordId>> {
+    // Each element of heads is the head record of a run paired with an
+    // iterator over the rest of the run.
+    private PriorityQueue<Pair<Record, Iterator<Record>>> heads;
+
+    private RunMergeIterator(Transaction transaction, List<String> runs) throws DatabaseException {
+      this.heads = new PriorityQueue<Pair<Record, Iterator<Record>>>(runs.size(),
+          (a, b) -> a.getFirst().getValues().get(0).compareTo(b.getFirst().getValues().get(0)));
+      for (String run : runs) {
+        Iterator<Record> records = transaction.getRecordIterator(run);
+        if (records.hasNext()) {
+          this.heads.add(new Pair<Record, Iterator<Record>>(records.next(), records));
+        }
+      }
+    }
+
+    public boolean hasNext() {
+      return !this.heads.isEmpty();
+    }
+
+    public Pair<List<DataBox>, RecordId> next() {
+      if (!this.hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Pair<Record, Iterator<Record>> head = this.heads.poll();
+      if (head.getSecond().hasNext()) {
+        this.heads.add(new Pair<Record, Iterator<Record>>(head.getSecond().next(), head.getSecond()));
+      }
+
+      List<DataBox> values = head.getFirst().getValues();
+      RecordId rid = new RecordId(values.get(1).getInt(), (short) values.get(2).getInt());
+      List<DataBox> entry = new ArrayList<DataBox>(values.size() - 2);
+      entry.add(values.get(0));
+      entry.addAll(values.subList(3, values.size()));
+      return new Pair<List<DataBox>, RecordId>(entry, rid);
+    }
+  }
+
+  public class VacuumWorker implements Runnable {
+    private final String tableName;
+    private final int maxPagesPerStep;
+    private final long pauseMillis;
+    private volatile boolean stopped;
+    private volatile int numPagesFreed;
+    private volatile DatabaseException error;
+
+    private VacuumWorker(String tableName, int maxPagesPerStep, long pauseMillis) {
+      this.tableName = tableName;
+      this.maxPagesPerStep = maxPagesPerStep;
+      this.pauseMillis = pauseMillis;
+      this.stopped = false;
+      this.numPagesFreed = 0;
+      this.error = null;
+    }
+
+    public void run() {
+      try {
+        while (!this.stopped) {
+          int freed = Database.this.vacuum(this.tableName, this.maxPagesPerStep);
+          if (freed == 0) {
+            return;
+          }
+          this.numPagesFreed += freed;
+          Thread.sleep(this.pauseMillis);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (DatabaseException e) {
+        this.error = e;
+      }
+    }
+
+    /** Ask the worker to stop after its current step. */
+    public void stop() {
+      this.stopped = true;
+    }
+
+    public int getNumPagesFreed() {
+      return this.numPagesFreed;
+    }
+
+    /** Returns the exception that stopped the worker, or null. */
+    public DatabaseException getError() {
+      return this.error;
+    }
+  }
+
+
   public class AtomicTransaction extends Transaction implements Runnable {
 
     LinkedList<Operation> operationList;
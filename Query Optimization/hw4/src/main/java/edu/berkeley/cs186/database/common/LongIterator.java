@@ -0,0 +1,45 @@
+package edu.berkeley.cs186.database.common;
+
+import java.util.NoSuchElementException;
+
+/**
+ * An iterator over primitive longs, such as record ids encoded with
+ * RecordId.toLong. Unlike an Iterator<Long>, a LongIterator doesn't box the
+ * values it returns, so a scan that returns one per row allocates nothing per
+ * row.
+ */
+public interface LongIterator {
+  boolean hasNext();
+
+  /**
+   * Returns the next value.
+   *
+   * @throws NoSuchElementException if there is no next value
+   */
+  long nextLong();
+
+  /** Returns an iterator over values[from, to). */
+  static LongIterator of(long[] values, int from, int to) {
+    return new LongIterator() {
+      private int i = from;
+
+      @Override
+      public boolean hasNext() {
+        return i < to;
+      }
+
+      @Override
+      public long nextLong() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return values[i++];
+      }
+    };
+  }
+
+  /** Returns an iterator over all of values. */
+  static LongIterator of(long... values) {
+    return of(values, 0, values.length);
+  }
+}
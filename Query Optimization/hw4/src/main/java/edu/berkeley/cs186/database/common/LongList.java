@@ -0,0 +1,155 @@
+package edu.berkeley.cs186.database.common;
+
+import java.util.Arrays;
+
+/**
+ * A list of primitive longs backed by an array that grows as needed, like an
+ * ArrayList<Long> without a Long object per element. The leaves of a B+ tree
+ * store their record ids in one (see RecordId.toLong).
+ */
+public class LongList {
+  private static final int DEFAULT_CAPACITY = 8;
+
+  private long[] values;
+  private int size;
+
+  public LongList() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public LongList(int capacity) {
+    this.values = new long[Math.max(1, capacity)];
+    this.size = 0;
+  }
+
+  /** Returns a list holding values[from, to). */
+  public static LongList of(long[] values, int from, int to) {
+    LongList list = new LongList(to - from);
+    System.arraycopy(values, from, list.values, 0, to - from);
+    list.size = to - from;
+    return list;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public long get(int i) {
+    checkIndex(i, size);
+    return values[i];
+  }
+
+  public void set(int i, long value) {
+    checkIndex(i, size);
+    values[i] = value;
+  }
+
+  public void add(long value) {
+    grow(size + 1);
+    values[size++] = value;
+  }
+
+  /** Inserts value at index i, shifting the values from i on to the right. */
+  public void add(int i, long value) {
+    checkIndex(i, size + 1);
+    grow(size + 1);
+    System.arraycopy(values, i, values, i + 1, size - i);
+    values[i] = value;
+    size++;
+  }
+
+  public void addAll(LongList other) {
+    grow(size + other.size);
+    System.arraycopy(other.values, 0, values, size, other.size);
+    size += other.size;
+  }
+
+  /**
+   * Removes and returns the value at index i, shifting the values after i to
+   * the left.
+   */
+  public long remove(int i) {
+    checkIndex(i, size);
+    long value = values[i];
+    System.arraycopy(values, i + 1, values, i, size - i - 1);
+    size--;
+    return value;
+  }
+
+  /** Returns a new list holding values [from, to) of this one. */
+  public LongList copyOfRange(int from, int to) {
+    checkRange(from, to);
+    return of(values, from, to);
+  }
+
+  /** Returns a new array holding values [from, to) of this list. */
+  public long[] toArray(int from, int to) {
+    checkRange(from, to);
+    return Arrays.copyOfRange(values, from, to);
+  }
+
+  public long[] toArray() {
+    return toArray(0, size);
+  }
+
+  public LongIterator iterator() {
+    return LongIterator.of(values, 0, size);
+  }
+
+  private void grow(int capacity) {
+    if (capacity > values.length) {
+      values = Arrays.copyOf(values, Math.max(capacity, 2 * values.length));
+    }
+  }
+
+  private static void checkIndex(int i, int bound) {
+    if (i < 0 || i >= bound) {
+      throw new IndexOutOfBoundsException(String.format("Index %d out of bounds [0, %d).", i, bound));
+    }
+  }
+
+  private void checkRange(int from, int to) {
+    if (from < 0 || to > size || from > to) {
+      throw new IndexOutOfBoundsException(
+          String.format("Range [%d, %d) out of bounds [0, %d).", from, to, size));
+    }
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(toArray());
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof LongList)) {
+      return false;
+    }
+    LongList l = (LongList) o;
+    if (size != l.size) {
+      return false;
+    }
+    for (int i = 0; i < size; ++i) {
+      if (values[i] != l.values[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    int hash = 1;
+    for (int i = 0; i < size; ++i) {
+      hash = 31 * hash + Long.hashCode(values[i]);
+    }
+    return hash;
+  }
+}
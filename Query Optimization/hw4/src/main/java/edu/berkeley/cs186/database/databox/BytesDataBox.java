@@ -0,0 +1,70 @@
+package edu.berkeley.cs186.database.databox;
+
+import java.util.Arrays;
+
+public class BytesDataBox extends DataBox {
+  private byte[] bytes;
+
+  // Construct an n-byte binary string, where n = bytes.length. Binary strings
+  // are compared as unsigned bytes, so the keys produced by NormalizedKey can
+  // be stored and compared as BytesDataBoxes.
+  public BytesDataBox(byte[] bytes) {
+    if (bytes.length == 0) {
+      String msg = String.format("Empty binary strings are not supported.");
+      throw new DataBoxException(msg);
+    }
+    this.bytes = bytes.clone();
+  }
+
+  @Override
+  public Type type() {
+    return Type.bytesType(bytes.length);
+  }
+
+  @Override
+  public byte[] getBytes() {
+    return bytes.clone();
+  }
+
+  @Override
+  public byte[] toBytes() {
+    return bytes.clone();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("0x");
+    for (byte b : bytes) {
+      sb.append(String.format("%02x", b & 0xFF));
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof BytesDataBox)) {
+      return false;
+    }
+    BytesDataBox b = (BytesDataBox) o;
+    return Arrays.equals(this.bytes, b.bytes);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(bytes);
+  }
+
+  @Override
+  public int compareTo(DataBox d) {
+    if (!(d instanceof BytesDataBox)) {
+      String err = String.format("Invalid comparison between %s and %s.",
+                                 toString(), d.toString());
+      throw new DataBoxException(err);
+    }
+    BytesDataBox b = (BytesDataBox) d;
+    return NormalizedKey.compare(this.bytes, b.bytes);
+  }
+}
@@ -1,7 +1,6 @@
 package edu.berkeley.cs186.database.databox;
 
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
 
 /**
  * A DataBox is an element of one of the primitive types specified in
@@ -9,11 +8,12 @@ import java.nio.charset.Charset;
  *
  *   - booleans with new BoolDataBox(b),
  *   - integers with new IntDataBox(i),
- *   - floats with new FloatDataBox(f), and
- *   - strings with new StringDataBox(s, n).
+ *   - floats with new FloatDataBox(f),
+ *   - strings with new StringDataBox(s, n), and
+ *   - binary strings with new BytesDataBox(bytes).
  *
  * You can unwrap a databox by first pattern matching on its type and then
- * using one of getBool, getInt, getFloat, and getString:
+ * using one of getBool, getInt, getFloat, getString, and getBytes:
  *
  *   Databox d = DataBox.fromBytes(bytes);
  *   switch (d.type().getTypeId()) {
@@ -21,6 +21,7 @@ import java.nio.charset.Charset;
  *     case INT:    { System.out.println(d.getInt()); }
  *     case FLOAT:  { System.out.println(d.getFloat()); }
  *     case STRING: { System.out.println(d.getString()); }
+ *     case BYTES:  { System.out.println(d.getBytes()); }
  *   }
  */
 public abstract class DataBox implements Comparable<DataBox> {
@@ -42,6 +43,10 @@ public abstract class DataBox implements Comparable<DataBox> {
     throw new DataBoxException("not String type");
   }
 
+  public byte[] getBytes() throws DataBoxException {
+    throw new DataBoxException("not bytes type");
+  }
+
   // Databoxes are serialized as follows:
   //
   //   - BoolDataBoxes are serialized to a single byte that is 0 if the
@@ -50,6 +55,7 @@ public abstract class DataBox implements Comparable<DataBox> {
   //     values (e.g. using ByteBuffer::putInt or ByteBuffer::putFloat).
   //   - The first byte of a serialized m-byte StringDataBox is the 4-byte
   //     number m. Then come the m bytes of the string.
+  //   - An n-byte BytesDataBox is serialized to its n bytes.
   //
   // Note that when DataBoxes are serialized, they do not serialize their type.
   // That is, serialized DataBoxes are not self-descriptive; you need the type
@@ -70,10 +76,16 @@ public abstract class DataBox implements Comparable<DataBox> {
         return new FloatDataBox(buf.getFloat());
       }
       case STRING: {
+        // The bytes were written by StringDataBox.toBytes, so there is no
+        // need to decode and re-validate them.
+        byte[] bytes = new byte[type.getSizeInBytes()];
+        buf.get(bytes);
+        return StringDataBox.fromTrustedBytes(bytes);
+      }
+      case BYTES: {
         byte[] bytes = new byte[type.getSizeInBytes()];
         buf.get(bytes);
-        String s = new String(bytes, Charset.forName("UTF-8"));
-        return new StringDataBox(s, type.getSizeInBytes());
+        return new BytesDataBox(bytes);
       }
       default: {
         String err = String.format("Unhandled TypeId %s.",
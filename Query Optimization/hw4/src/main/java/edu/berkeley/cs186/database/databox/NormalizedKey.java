@@ -0,0 +1,187 @@
+package edu.berkeley.cs186.database.databox;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * NormalizedKey encodes DataBoxes into byte strings whose unsigned
+ * lexicographic order is the order of DataBox.compareTo. Two encoded keys can
+ * then be compared with compare, a tight loop over raw bytes, instead of by
+ * decoding both keys and calling compareTo:
+ *
+ *   byte[] a = NormalizedKey.encode(new IntDataBox(-1));
+ *   byte[] b = NormalizedKey.encode(new IntDataBox(1));
+ *   NormalizedKey.compare(a, b); // < 0
+ *
+ * Every type is encoded to exactly type.getSizeInBytes() bytes:
+ *
+ *   - A BOOL is encoded to 0 (false) or 1 (true).
+ *   - An INT is encoded big-endian with its sign bit flipped, so negative
+ *     integers sort before positive ones.
+ *   - A FLOAT is encoded big-endian from its IEEE 754 bits. The sign bit of a
+ *     positive float is flipped, and every bit of a negative float is flipped,
+ *     which reproduces the order of Float.compare (including -0.0f < 0.0f and
+ *     NaN sorting last).
+ *   - An n-byte STRING is encoded to its n (padded) bytes. StringDataBoxes
+ *     only hold ASCII characters, so byte order is character order.
+ *   - An n-byte BYTES is encoded to its n bytes, which are already compared
+ *     as unsigned bytes.
+ *
+ * Because every encoding has a fixed width, the concatenation of the
+ * encodings of several columns (see encode(List)) is a binary-comparable
+ * composite key that sorts by the first column, then the second, and so on.
+ * Keys are self-contained fixed-width byte strings, so they can be stored as
+ * is wherever a serialized DataBox could be, e.g. as the keys of an index
+ * page.
+ */
+public class NormalizedKey {
+  /** Returns the normalized encoding of d. */
+  public static byte[] encode(DataBox d) {
+    ByteBuffer buf = ByteBuffer.allocate(d.type().getSizeInBytes());
+    encode(d, buf);
+    return buf.array();
+  }
+
+  /** Returns the normalized composite key of values, in order. */
+  public static byte[] encode(List<DataBox> values) {
+    int size = 0;
+    for (DataBox d : values) {
+      size += d.type().getSizeInBytes();
+    }
+    ByteBuffer buf = ByteBuffer.allocate(size);
+    for (DataBox d : values) {
+      encode(d, buf);
+    }
+    return buf.array();
+  }
+
+  /** Writes the normalized encoding of d to buf at its current position. */
+  public static void encode(DataBox d, ByteBuffer buf) {
+    switch (d.type().getTypeId()) {
+      case BOOL: {
+        buf.put((byte) (d.getBool() ? 1 : 0));
+        break;
+      }
+      case INT: {
+        buf.putInt(d.getInt() ^ Integer.MIN_VALUE);
+        break;
+      }
+      case FLOAT: {
+        int bits = Float.floatToIntBits(d.getFloat());
+        buf.putInt(bits < 0 ? ~bits : bits ^ Integer.MIN_VALUE);
+        break;
+      }
+      case STRING:
+      case BYTES: {
+        buf.put(d.toBytes());
+        break;
+      }
+      default: {
+        String err = String.format("Unhandled TypeId %s.",
+                                   d.type().getTypeId().toString());
+        throw new IllegalArgumentException(err);
+      }
+    }
+  }
+
+  /**
+   * Reads a DataBox of type `type` from its normalized encoding at the current
+   * position of buf. decode is the inverse of encode.
+   */
+  public static DataBox decode(ByteBuffer buf, Type type) {
+    switch (type.getTypeId()) {
+      case BOOL: {
+        return new BoolDataBox(buf.get() == 1);
+      }
+      case INT: {
+        return new IntDataBox(buf.getInt() ^ Integer.MIN_VALUE);
+      }
+      case FLOAT: {
+        int bits = buf.getInt();
+        bits = bits < 0 ? bits ^ Integer.MIN_VALUE : ~bits;
+        return new FloatDataBox(Float.intBitsToFloat(bits));
+      }
+      case STRING: {
+        byte[] bytes = new byte[type.getSizeInBytes()];
+        buf.get(bytes);
+        return StringDataBox.fromTrustedBytes(bytes);
+      }
+      case BYTES: {
+        byte[] bytes = new byte[type.getSizeInBytes()];
+        buf.get(bytes);
+        return new BytesDataBox(bytes);
+      }
+      default: {
+        String err = String.format("Unhandled TypeId %s.",
+                                   type.getTypeId().toString());
+        throw new IllegalArgumentException(err);
+      }
+    }
+  }
+
+  /**
+   * Compares the len-byte keys starting at a[aOffset] and b[bOffset] as
+   * unsigned byte strings. Eight bytes are compared at a time while possible.
+   */
+  public static int compare(byte[] a, int aOffset, byte[] b, int bOffset, int len) {
+    ByteBuffer aBuf = ByteBuffer.wrap(a);
+    ByteBuffer bBuf = ByteBuffer.wrap(b);
+    int i = 0;
+    for (; i + Long.BYTES <= len; i += Long.BYTES) {
+      long x = aBuf.getLong(aOffset + i);
+      long y = bBuf.getLong(bOffset + i);
+      if (x != y) {
+        return Long.compareUnsigned(x, y);
+      }
+    }
+    for (; i < len; ++i) {
+      int x = a[aOffset + i] & 0xFF;
+      int y = b[bOffset + i] & 0xFF;
+      if (x != y) {
+        return x - y;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Compares the key.length bytes of buf starting at buf[offset] with key as
+   * unsigned byte strings, without copying them out of buf. This lets a key
+   * stored in place (e.g. on a page) be compared against an encoded probe.
+   */
+  public static int compare(ByteBuffer buf, int offset, byte[] key) {
+    ByteBuffer keyBuf = ByteBuffer.wrap(key);
+    int len = key.length;
+    int i = 0;
+    for (; i + Long.BYTES <= len; i += Long.BYTES) {
+      long x = buf.getLong(offset + i);
+      long y = keyBuf.getLong(i);
+      if (x != y) {
+        return Long.compareUnsigned(x, y);
+      }
+    }
+    for (; i < len; ++i) {
+      int x = buf.get(offset + i) & 0xFF;
+      int y = key[i] & 0xFF;
+      if (x != y) {
+        return x - y;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Compares two keys as unsigned byte strings. A key that is a proper prefix
+   * of the other sorts first.
+   */
+  public static int compare(byte[] a, byte[] b) {
+    int c = compare(a, 0, b, 0, Math.min(a.length, b.length));
+    return c != 0 ? c : Integer.compare(a.length, b.length);
+  }
+
+  /** A comparator over keys produced by encode. */
+  public static Comparator<byte[]> comparator() {
+    return NormalizedKey::compare;
+  }
+}
@@ -1,6 +1,7 @@
 package edu.berkeley.cs186.database.databox;
 
 import java.nio.charset.Charset;
+import java.util.Arrays;
 
 public class StringDataBox extends DataBox {
   // Strings are only allowed to contain the following characters. Note that
@@ -12,7 +13,17 @@ public class StringDataBox extends DataBox {
   private static String LOWERCASE = "abcdefghijklmnopqrstuvwxyz";
   public static String ALLOWABLE_CHARACTERS = SPACE + NUMBERS + UPPERCASE + LOWERCASE;
 
+  private static Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+  // A StringDataBox is backed by a String, by bytes, or by both. Boxes built
+  // by the public constructor start out with s. Boxes decoded from pages by
+  // fromTrustedBytes start out with only bytes, and create s the first time
+  // it's needed. Either way, the two represent the same padded string.
   private String s;
+  private byte[] bytes;
+
+  // The cached hash code, or 0 if it has not been computed yet.
+  private int hash;
 
   // Construct an m-byte string. If s has more than m-bytes, it is truncated to
   // its first m bytes. If s has fewer than m bytes, it is padded with spaces
@@ -47,24 +58,44 @@ public class StringDataBox extends DataBox {
     assert(this.s.length() == m);
   }
 
+  private StringDataBox(byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+  // Wraps the serialized bytes of a string (as produced by toBytes) without
+  // copying or validating them. Only use this for bytes that were written by
+  // toBytes, e.g. when deserializing pages. User-supplied strings must go
+  // through the validating constructor.
+  static StringDataBox fromTrustedBytes(byte[] bytes) {
+    return new StringDataBox(bytes);
+  }
+
   @Override
   public Type type() {
-    return Type.stringType(s.length());
+    return Type.stringType(bytes != null ? bytes.length : s.length());
   }
 
   @Override
   public String getString() {
+    // Every allowable character is ASCII, so Latin-1 decodes our bytes
+    // exactly like UTF-8 would, just faster.
+    if (s == null) {
+      s = new String(bytes, LATIN_1);
+    }
     return s;
   }
 
   @Override
   public byte[] toBytes() {
+    if (bytes != null) {
+      return bytes.clone();
+    }
     return s.getBytes(Charset.forName("UTF-8"));
   }
 
   @Override
   public String toString() {
-    return s;
+    return getString();
   }
 
   @Override
@@ -76,12 +107,28 @@ public class StringDataBox extends DataBox {
       return false;
     }
     StringDataBox s = (StringDataBox) o;
-    return this.s.equals(s.s);
+    if (this.bytes != null && s.bytes != null) {
+      return Arrays.equals(this.bytes, s.bytes);
+    }
+    return this.getString().equals(s.getString());
   }
 
   @Override
   public int hashCode() {
-    return s.hashCode();
+    // Byte-backed and String-backed boxes must agree, so we compute
+    // String.hashCode directly from the bytes rather than building s.
+    int h = hash;
+    if (h == 0) {
+      if (bytes != null) {
+        for (byte b : bytes) {
+          h = 31 * h + (b & 0xFF);
+        }
+      } else {
+        h = s.hashCode();
+      }
+      hash = h;
+    }
+    return h;
   }
 
   @Override
@@ -92,6 +139,9 @@ public class StringDataBox extends DataBox {
       throw new DataBoxException(err);
     }
     StringDataBox s = (StringDataBox) d;
-    return this.s.compareTo(s.s);
+    if (this.bytes != null && s.bytes != null) {
+      return NormalizedKey.compare(this.bytes, s.bytes);
+    }
+    return this.getString().compareTo(s.getString());
   }
 }
@@ -4,15 +4,17 @@ import java.nio.ByteBuffer;
 import java.util.Objects;
 
 /**
- * There are four primitive types:
+ * There are five primitive types:
  *
  *   1. 1-byte booleans (Type.boolType()),
  *   2. 4-byte integers (Type.intType()),
- *   3. 4-byte floats (Type.floatType()), and
- *   4. n-byte strings (Type.stringType(n)) where n > 0.
+ *   3. 4-byte floats (Type.floatType()),
+ *   4. n-byte strings (Type.stringType(n)) where n > 0, and
+ *   5. n-byte binary strings (Type.bytesType(n)) where n > 0.
  *
  * Note that n-byte strings and m-byte strings are considered different types
- * when n != m.
+ * when n != m, and likewise for binary strings. Binary strings hold the
+ * composite keys of multi-column indexes (see index.CompositeKey).
  */
 public class Type {
   // The type of this type.
@@ -53,6 +55,14 @@ public class Type {
     return new Type(TypeId.STRING, n);
   }
 
+  public static Type bytesType(int n) {
+    if (n <= 0) {
+      String msg = String.format("The provided binary string length %d is not positive.", n);
+      throw new DataBoxException(msg);
+    }
+    return new Type(TypeId.BYTES, n);
+  }
+
   public TypeId getTypeId() {
       return typeId;
   }
@@ -89,6 +99,8 @@ public class Type {
       return Type.floatType();
     } else if (ordinal == TypeId.STRING.ordinal()) {
       return Type.stringType(sizeInBytes);
+    } else if (ordinal == TypeId.BYTES.ordinal()) {
+      return Type.bytesType(sizeInBytes);
     } else {
       String err = String.format("Unknown TypeId ordinal %d.", ordinal);
       throw new IllegalArgumentException(err);
@@ -0,0 +1,671 @@
+package edu.berkeley.cs186.database.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.locks.StampedLock;
+
+import edu.berkeley.cs186.database.common.Pair;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.NormalizedKey;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.table.RecordId;
+
+/**
+ * An in-memory adaptive radix tree (ART) that maps unique keys to record
+ * ids. Unlike a BPlusTree or a HashIndex, an ArtIndex lives entirely in
+ * memory, so a lookup reads no pages and deserializes nothing; it only walks
+ * a few small nodes, one per distinguishing byte of the key:
+ *
+ *   ArtIndex index = new ArtIndex(Type.intType());
+ *   index.put(new IntDataBox(42), new RecordId(0, (short) 0));
+ *   index.get(new IntDataBox(42)); // Optional.of(RecordId(0, 0))
+ *   index.get(new IntDataBox(7));  // Optional.empty()
+ *
+ * Nothing is persisted: the owner of an index rebuilds it from its table
+ * when the table is opened (see Database.createArtIndex).
+ *
+ * # Layout
+ * Keys are stored by their normalized encoding (see NormalizedKey), which
+ * has the same fixed width for every key of a type. The tree branches on one
+ * byte of the key per level. An inner node has one of four sizes, and grows
+ * or shrinks to the next size as children are added and removed:
+ *
+ *   - Node4 and Node16 hold up to 4 and 16 children, in arrays of key bytes
+ *     and children sorted by key byte.
+ *   - Node48 holds up to 48 children, and a 256-entry array that maps each
+ *     key byte to the index of its child, if any.
+ *   - Node256 holds an array of 256 children, indexed by key byte.
+ *
+ * An inner node also holds the bytes that every key below it shares past
+ * its parent's branching byte (its prefix), so a run of bytes that doesn't
+ * branch, like the high bytes of small integers or the padding of short
+ * strings, takes up no levels of the tree (path compression). A leaf holds
+ * its full key and its record id, and a subtree that holds a single key is a
+ * lone leaf (lazy expansion).
+ *
+ * An ArtIndex can be shared by any number of threads. Lookups run in
+ * parallel with each other, and puts and removes lock the whole index.
+ */
+public class ArtIndex implements ColumnIndex {
+  public static final String FILENAME_EXTENSION = ".art";
+
+  private final Type keySchema;
+  private final StampedLock latch = new StampedLock();
+
+  private Node root;
+  private int numKeys;
+
+  /** Construct a new, empty index that stores keys of type `keySchema`. */
+  public ArtIndex(Type keySchema) {
+    this.keySchema = keySchema;
+    this.root = null;
+    this.numKeys = 0;
+  }
+
+  // Core API ////////////////////////////////////////////////////////////////
+  /** Returns the record id associated with `key`, if any. */
+  public Optional<RecordId> get(DataBox key) {
+    typecheck(key);
+    byte[] k = NormalizedKey.encode(key);
+    long stamp = latch.readLock();
+    try {
+      Leaf leaf = findLeaf(k);
+      return leaf == null ? Optional.empty() : Optional.of(leaf.rid);
+    } finally {
+      latch.unlockRead(stamp);
+    }
+  }
+
+  /** Returns an iterator over the record id associated with `key`, if any. */
+  public Iterator<RecordId> scanEqual(DataBox key) {
+    Optional<RecordId> rid = get(key);
+    if (rid.isPresent()) {
+      return Collections.singletonList(rid.get()).iterator();
+    }
+    return Collections.emptyIterator();
+  }
+
+  /**
+   * Inserts a (key, rid) pair into the index.
+   *
+   * @throws ArtIndexException if key is already in the index
+   */
+  @Override
+  public void put(DataBox key, RecordId rid) throws ArtIndexException {
+    typecheck(key);
+    byte[] k = NormalizedKey.encode(key);
+    long stamp = latch.writeLock();
+    try {
+      if (findLeaf(k) != null) {
+        throw new ArtIndexException(String.format("Duplicate key %s.", key));
+      }
+      root = insert(root, new Leaf(k, rid), 0);
+      ++numKeys;
+    } finally {
+      latch.unlockWrite(stamp);
+    }
+  }
+
+  /** Removes `key` and its record id from the index, if it is there. */
+  public void remove(DataBox key) {
+    typecheck(key);
+    byte[] k = NormalizedKey.encode(key);
+    long stamp = latch.writeLock();
+    try {
+      if (findLeaf(k) != null) {
+        root = delete(root, k, 0);
+        --numKeys;
+      }
+    } finally {
+      latch.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Removes `key` and its record id from the index, if it is there. A key
+   * has at most one record id, so rid is ignored.
+   */
+  @Override
+  public void remove(DataBox key, RecordId rid) {
+    remove(key);
+  }
+
+  /**
+   * Changes the record id of each key of entries that is in the index to its
+   * paired record id, e.g. after Table.compact moved their records. Keys
+   * that are not in the index are ignored.
+   */
+  public void updateRids(List<Pair<DataBox, RecordId>> entries) {
+    long stamp = latch.writeLock();
+    try {
+      for (Pair<DataBox, RecordId> entry : entries) {
+        typecheck(entry.getFirst());
+        Leaf leaf = findLeaf(NormalizedKey.encode(entry.getFirst()));
+        if (leaf != null) {
+          leaf.rid = entry.getSecond();
+        }
+      }
+    } finally {
+      latch.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Same as updateRids(entries), for the keys of the records moved by moves.
+   * Unlike BitmapIndex.updateRids, the first record id of each move is
+   * ignored, since a key has at most one record id.
+   */
+  @Override
+  public void updateRids(List<DataBox> keys, List<Pair<RecordId, RecordId>> moves) {
+    List<Pair<DataBox, RecordId>> entries = new ArrayList<>(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      entries.add(new Pair<>(keys.get(i), moves.get(i).getSecond()));
+    }
+    updateRids(entries);
+  }
+
+  public Type getKeySchema() {
+    return keySchema;
+  }
+
+  /** Returns the number of keys in the index. */
+  public int size() {
+    long stamp = latch.readLock();
+    try {
+      return numKeys;
+    } finally {
+      latch.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Returns the number of inner nodes of each size in the index, in the
+   * order Node4, Node16, Node48, Node256.
+   */
+  int[] countInnerNodes() {
+    int[] counts = new int[4];
+    long stamp = latch.readLock();
+    try {
+      countInnerNodes(root, counts);
+    } finally {
+      latch.unlockRead(stamp);
+    }
+    return counts;
+  }
+
+  private static void countInnerNodes(Node node, int[] counts) {
+    if (!(node instanceof InnerNode)) {
+      return;
+    }
+    InnerNode inner = (InnerNode) node;
+    if (inner instanceof Node4) {
+      ++counts[0];
+    } else if (inner instanceof Node16) {
+      ++counts[1];
+    } else if (inner instanceof Node48) {
+      ++counts[2];
+    } else {
+      ++counts[3];
+    }
+    for (int b = 0; b < 256; ++b) {
+      countInnerNodes(inner.findChild(b), counts);
+    }
+  }
+
+  private void typecheck(DataBox key) {
+    if (!key.type().equals(keySchema)) {
+      String msg = String.format("DataBox %s is not of type %s", key, keySchema);
+      throw new IllegalArgumentException(msg);
+    }
+  }
+
+  // Tree operations /////////////////////////////////////////////////////////
+  /** Returns the leaf of key k, or null if k is not in the index. */
+  private Leaf findLeaf(byte[] k) {
+    Node node = root;
+    int depth = 0;
+    while (node instanceof InnerNode) {
+      InnerNode inner = (InnerNode) node;
+      if (inner.prefixMismatch(k, depth) < inner.prefix.length) {
+        return null;
+      }
+      depth += inner.prefix.length;
+      node = inner.findChild(k[depth] & 0xFF);
+      ++depth;
+    }
+    if (node == null || !Arrays.equals(((Leaf) node).key, k)) {
+      return null;
+    }
+    return (Leaf) node;
+  }
+
+  /**
+   * Inserts leaf into the subtree rooted at node, whose keys all share their
+   * first depth bytes with leaf's (and none of which is leaf's), and returns
+   * the new root of the subtree.
+   */
+  private static Node insert(Node node, Leaf leaf, int depth) {
+    byte[] k = leaf.key;
+    if (node == null) {
+      return leaf;
+    }
+
+    if (node instanceof Leaf) {
+      byte[] other = ((Leaf) node).key;
+      // Both keys go below a new node that holds the bytes they share.
+      int p = depth;
+      while (other[p] == k[p]) {
+        ++p;
+      }
+      Node4 split = new Node4(Arrays.copyOfRange(k, depth, p));
+      split.addChild(other[p] & 0xFF, node);
+      split.addChild(k[p] & 0xFF, leaf);
+      return split;
+    }
+
+    InnerNode inner = (InnerNode) node;
+    int p = inner.prefixMismatch(k, depth);
+    if (p < inner.prefix.length) {
+      // The key leaves node's prefix early, so node moves below a new node
+      // that holds the part of the prefix the key shares.
+      Node4 split = new Node4(Arrays.copyOf(inner.prefix, p));
+      split.addChild(inner.prefix[p] & 0xFF, inner);
+      split.addChild(k[depth + p] & 0xFF, leaf);
+      inner.prefix = Arrays.copyOfRange(inner.prefix, p + 1, inner.prefix.length);
+      return split;
+    }
+
+    depth += inner.prefix.length;
+    int b = k[depth] & 0xFF;
+    Node child = inner.findChild(b);
+    if (child != null) {
+      inner.setChild(b, insert(child, leaf, depth + 1));
+      return inner;
+    }
+    if (inner.isFull()) {
+      inner = inner.grow();
+    }
+    inner.addChild(b, leaf);
+    return inner;
+  }
+
+  /**
+   * Removes the leaf of key k, which must be in the subtree rooted at node,
+   * and returns the new root of the subtree, or null if it is now empty.
+   */
+  private static Node delete(Node node, byte[] k, int depth) {
+    if (node instanceof Leaf) {
+      return null;
+    }
+
+    InnerNode inner = (InnerNode) node;
+    depth += inner.prefix.length;
+    int b = k[depth] & 0xFF;
+    Node child = delete(inner.findChild(b), k, depth + 1);
+    if (child != null) {
+      inner.setChild(b, child);
+      return inner;
+    }
+    inner.removeChild(b);
+
+    if (inner.numChildren == 1) {
+      // A node with one child is merged into it: a leaf holds its full key,
+      // and an inner node takes on our prefix and branching byte.
+      int only = inner.firstChildByte();
+      Node onlyChild = inner.findChild(only);
+      if (onlyChild instanceof InnerNode) {
+        InnerNode c = (InnerNode) onlyChild;
+        byte[] prefix = new byte[inner.prefix.length + 1 + c.prefix.length];
+        System.arraycopy(inner.prefix, 0, prefix, 0, inner.prefix.length);
+        prefix[inner.prefix.length] = (byte) only;
+        System.arraycopy(c.prefix, 0, prefix, inner.prefix.length + 1, c.prefix.length);
+        c.prefix = prefix;
+      }
+      return onlyChild;
+    }
+    return inner.isUnderfull() ? inner.shrink() : inner;
+  }
+
+  // Nodes ///////////////////////////////////////////////////////////////////
+  private abstract static class Node {}
+
+  private static class Leaf extends Node {
+    final byte[] key;
+    RecordId rid;
+
+    Leaf(byte[] key, RecordId rid) {
+      this.key = key;
+      this.rid = rid;
+    }
+  }
+
+  private abstract static class InnerNode extends Node {
+    byte[] prefix;
+    int numChildren = 0;
+
+    InnerNode(byte[] prefix) {
+      this.prefix = prefix;
+    }
+
+    /**
+     * Returns the number of bytes of our prefix that k matches from position
+     * depth on.
+     */
+    int prefixMismatch(byte[] k, int depth) {
+      int p = 0;
+      while (p < prefix.length && prefix[p] == k[depth + p]) {
+        ++p;
+      }
+      return p;
+    }
+
+    /** Returns the child of key byte b (in [0, 256)), or null. */
+    abstract Node findChild(int b);
+
+    /** Replaces the child of key byte b, which must exist, with child. */
+    abstract void setChild(int b, Node child);
+
+    /** Adds child as the child of key byte b. We must not be full. */
+    abstract void addChild(int b, Node child);
+
+    /** Removes the child of key byte b, which must exist. */
+    abstract void removeChild(int b);
+
+    /** Returns the smallest key byte that has a child. */
+    abstract int firstChildByte();
+
+    abstract boolean isFull();
+
+    /** Returns whether we have few enough children to shrink. */
+    abstract boolean isUnderfull();
+
+    /** Returns a node of the next size up with our prefix and children. */
+    abstract InnerNode grow();
+
+    /** Returns a node of the next size down with our prefix and children. */
+    abstract InnerNode shrink();
+
+    /** Adds each of our children to node. */
+    abstract void copyChildrenTo(InnerNode node);
+  }
+
+  /**
+   * A node of up to keyBytes.length children, whose key bytes are sorted in
+   * keyBytes[0, numChildren) alongside their children. Node4 and Node16 both
+   * use this layout, at different capacities.
+   */
+  private abstract static class SortedNode extends InnerNode {
+    final byte[] keyBytes;
+    final Node[] children;
+
+    SortedNode(byte[] prefix, int capacity) {
+      super(prefix);
+      this.keyBytes = new byte[capacity];
+      this.children = new Node[capacity];
+    }
+
+    private int indexOf(int b) {
+      for (int i = 0; i < numChildren; ++i) {
+        if ((keyBytes[i] & 0xFF) == b) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    @Override
+    Node findChild(int b) {
+      int i = indexOf(b);
+      return i == -1 ? null : children[i];
+    }
+
+    @Override
+    void setChild(int b, Node child) {
+      children[indexOf(b)] = child;
+    }
+
+    @Override
+    void addChild(int b, Node child) {
+      int i = numChildren;
+      while (i > 0 && (keyBytes[i - 1] & 0xFF) > b) {
+        keyBytes[i] = keyBytes[i - 1];
+        children[i] = children[i - 1];
+        --i;
+      }
+      keyBytes[i] = (byte) b;
+      children[i] = child;
+      ++numChildren;
+    }
+
+    @Override
+    void removeChild(int b) {
+      int i = indexOf(b);
+      System.arraycopy(keyBytes, i + 1, keyBytes, i, numChildren - i - 1);
+      System.arraycopy(children, i + 1, children, i, numChildren - i - 1);
+      --numChildren;
+      children[numChildren] = null;
+    }
+
+    @Override
+    int firstChildByte() {
+      return keyBytes[0] & 0xFF;
+    }
+
+    @Override
+    boolean isFull() {
+      return numChildren == keyBytes.length;
+    }
+
+    @Override
+    void copyChildrenTo(InnerNode node) {
+      for (int i = 0; i < numChildren; ++i) {
+        node.addChild(keyBytes[i] & 0xFF, children[i]);
+      }
+    }
+  }
+
+  private static class Node4 extends SortedNode {
+    Node4(byte[] prefix) {
+      super(prefix, 4);
+    }
+
+    // A Node4 with a single child is merged into it instead (see delete).
+    @Override
+    boolean isUnderfull() {
+      return false;
+    }
+
+    @Override
+    InnerNode grow() {
+      Node16 node = new Node16(prefix);
+      copyChildrenTo(node);
+      return node;
+    }
+
+    @Override
+    InnerNode shrink() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static class Node16 extends SortedNode {
+    Node16(byte[] prefix) {
+      super(prefix, 16);
+    }
+
+    @Override
+    boolean isUnderfull() {
+      return numChildren <= 3;
+    }
+
+    @Override
+    InnerNode grow() {
+      Node48 node = new Node48(prefix);
+      copyChildrenTo(node);
+      return node;
+    }
+
+    @Override
+    InnerNode shrink() {
+      Node4 node = new Node4(prefix);
+      copyChildrenTo(node);
+      return node;
+    }
+  }
+
+  private static class Node48 extends InnerNode {
+    // childIndex[b] is one more than the index in children of the child of
+    // key byte b, or 0 if b has no child.
+    final byte[] childIndex = new byte[256];
+    final Node[] children = new Node[48];
+
+    Node48(byte[] prefix) {
+      super(prefix);
+    }
+
+    @Override
+    Node findChild(int b) {
+      int i = childIndex[b];
+      return i == 0 ? null : children[i - 1];
+    }
+
+    @Override
+    void setChild(int b, Node child) {
+      children[childIndex[b] - 1] = child;
+    }
+
+    @Override
+    void addChild(int b, Node child) {
+      int i = 0;
+      while (children[i] != null) {
+        ++i;
+      }
+      children[i] = child;
+      childIndex[b] = (byte) (i + 1);
+      ++numChildren;
+    }
+
+    @Override
+    void removeChild(int b) {
+      children[childIndex[b] - 1] = null;
+      childIndex[b] = 0;
+      --numChildren;
+    }
+
+    @Override
+    int firstChildByte() {
+      int b = 0;
+      while (childIndex[b] == 0) {
+        ++b;
+      }
+      return b;
+    }
+
+    @Override
+    boolean isFull() {
+      return numChildren == children.length;
+    }
+
+    @Override
+    boolean isUnderfull() {
+      return numChildren <= 12;
+    }
+
+    @Override
+    InnerNode grow() {
+      Node256 node = new Node256(prefix);
+      copyChildrenTo(node);
+      return node;
+    }
+
+    @Override
+    InnerNode shrink() {
+      Node16 node = new Node16(prefix);
+      copyChildrenTo(node);
+      return node;
+    }
+
+    @Override
+    void copyChildrenTo(InnerNode node) {
+      for (int b = 0; b < 256; ++b) {
+        if (childIndex[b] != 0) {
+          node.addChild(b, children[childIndex[b] - 1]);
+        }
+      }
+    }
+  }
+
+  private static class Node256 extends InnerNode {
+    final Node[] children = new Node[256];
+
+    Node256(byte[] prefix) {
+      super(prefix);
+    }
+
+    @Override
+    Node findChild(int b) {
+      return children[b];
+    }
+
+    @Override
+    void setChild(int b, Node child) {
+      children[b] = child;
+    }
+
+    @Override
+    void addChild(int b, Node child) {
+      children[b] = child;
+      ++numChildren;
+    }
+
+    @Override
+    void removeChild(int b) {
+      children[b] = null;
+      --numChildren;
+    }
+
+    @Override
+    int firstChildByte() {
+      int b = 0;
+      while (children[b] == null) {
+        ++b;
+      }
+      return b;
+    }
+
+    @Override
+    boolean isFull() {
+      return false;
+    }
+
+    @Override
+    boolean isUnderfull() {
+      return numChildren <= 37;
+    }
+
+    @Override
+    InnerNode grow() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    InnerNode shrink() {
+      Node48 node = new Node48(prefix);
+      copyChildrenTo(node);
+      return node;
+    }
+
+    @Override
+    void copyChildrenTo(InnerNode node) {
+      for (int b = 0; b < 256; ++b) {
+        if (children[b] != null) {
+          node.addChild(b, children[b]);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,11 @@
+package edu.berkeley.cs186.database.index;
+
+public class ArtIndexException extends IndexException {
+  public ArtIndexException() {
+    super();
+  }
+
+  public ArtIndexException(String message) {
+    super(message);
+  }
+}
@@ -1,9 +1,12 @@
 package edu.berkeley.cs186.database.index;
 
 import java.nio.ByteBuffer;
+import java.util.Iterator;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.locks.StampedLock;
 
 import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.databox.DataBox;
@@ -133,14 +136,55 @@ abstract class BPlusNode {
    * duplicate key is inserted, the tree is left unchanged and an exception is
    * raised.
    */
-  public abstract Optional<Pair<DataBox, Integer>> put(DataBox key, RecordId rid)
+  public Optional<Pair<DataBox, Integer>> put(DataBox key, RecordId rid)
+      throws BPlusTreeException {
+    return put(key, rid, Collections.emptyList());
+  }
+
+  /**
+   * Same as put(k, r), but for a covering index: the entry also stores the
+   * values `included`, which must match the included schema of the tree.
+   */
+  public abstract Optional<Pair<DataBox, Integer>> put(DataBox key, RecordId rid,
+                                                       List<DataBox> included)
+    throws BPlusTreeException;
+
+  /**
+   * n.bulkLoad(data, fillFactor) bulk loads pairs of (k, r) from data into
+   * the subtree rooted by n. data must be sorted in ascending order of key,
+   * must not contain duplicate keys, and must only contain keys greater than
+   * every key already in the subtree. Like put, bulkLoad returns
+   * Optional.empty() if n did not overflow and Optional.of(split_key,
+   * right_node_page_num) if it did. Unlike put, bulkLoad consumes as many
+   * pairs as it can before returning.
+   *
+   * bulkLoad differs from put in two ways:
+   *
+   *   1. A leaf node fills up until it is fillFactor full (rounding up), i.e.
+   *      ceil(2d * fillFactor) entries. It then "splits" by moving the next
+   *      pair of data into a new right sibling and returning the sibling. The
+   *      left node is never touched again, so leaves are written once, from
+   *      left to right.
+   *   2. An inner node repeatedly bulk loads its rightmost child, adding the
+   *      child's splits to itself, until either there is no more data or it
+   *      overflows, in which case it splits exactly like it does in put.
+   *
+   * fillFactor only determines how full leaf nodes are. For example, with
+   * d = 5 and fillFactor = 0.75, leaves are filled with 8 entries.
+   *
+   * The first element of each pair is the key k followed by the values
+   * included in the entry (see put), if any.
+   */
+  public abstract Optional<Pair<DataBox, Integer>> bulkLoad(
+      Iterator<Pair<List<DataBox>, RecordId>> data, float fillFactor)
     throws BPlusTreeException;
 
   /**
    * n.remove(k) removes the key k and its corresponding record id from the
    * subtree rooted by n, or does nothing if the key k is not in the subtree.
-   * REMOVE SHOULD NOT REBALANCE THE TREE. Simply delete the key and
-   * corresponding record id. For example, running inner.remove(2) on the
+   * remove does not rebalance the tree; it simply deletes the key and
+   * corresponding record id, and BPlusTree.remove rebalances the tree
+   * afterwards if need be (see InnerNode.rebalance). For example, running inner.remove(2) on the
    * example tree above would produce the following tree.
    *
    *                               inner
@@ -183,14 +227,54 @@ abstract class BPlusNode {
    *   +----+----+----+----+  +----+----+----+----+  +----+----+----+----+
    *   leaf0                  leaf1                  leaf2
    *
-   * Again, do NOT rebalance the tree.
+   * leaf0 is now empty, but is only merged with leaf1 by InnerNode.rebalance.
    */
   public abstract void remove(DataBox key);
 
+  /**
+   * n.underflows() returns true if n holds too few entries to be left alone
+   * by InnerNode.rebalance: fewer than d if the tree is uncompressed. Only
+   * the root of a tree is allowed to underflow.
+   */
+  abstract boolean underflows();
+
   // Helpers ///////////////////////////////////////////////////////////////////
   /** Get the page on which this node is persisted. */
   abstract Page getPage();
 
+  /**
+   * Frees page pageNum of metadata.getAllocator(), which holds a node that is
+   * no longer part of the tree, drops the node from the tree's cache, and
+   * gives the page a new leaf version. The entries of a freed leaf must have
+   * been moved to another leaf or accounted for by the caller.
+   */
+  static void free(BPlusTreeMetadata metadata, int pageNum) {
+    if (isLeaf(metadata, pageNum)) {
+      metadata.addLeaves(-1);
+    }
+    metadata.getNodeCache().invalidate(pageNum);
+    metadata.leafWritten(pageNum);
+    metadata.getAllocator().freePage(pageNum);
+  }
+
+  /**
+   * Copies the `length` bytes of page buffer buf starting at offset `from` to
+   * offset `to`. The two ranges may overlap. Nodes use moveBytes to shift
+   * their entries within their page rather than reserializing themselves.
+   */
+  static void moveBytes(ByteBuffer buf, int from, int to, int length) {
+    if (length <= 0 || from == to) {
+      return;
+    }
+    byte[] bytes = new byte[length];
+    ByteBuffer src = buf.duplicate();
+    src.position(from);
+    src.get(bytes);
+    ByteBuffer dst = buf.duplicate();
+    dst.position(to);
+    dst.put(bytes);
+  }
+
   // Pretty Printing ///////////////////////////////////////////////////////////
   /**
    * S-expressions (or sexps) are a compact way of encoding nested tree-like
@@ -226,12 +310,17 @@ abstract class BPlusNode {
 
   /**
    * BPlusNode.fromBytes(m, p) loads a BPlusNode from page p of
-   * meta.getAllocator().
+   * meta.getAllocator(). The node is served from m.getNodeCache() if it is
+   * cached there, and is only deserialized otherwise.
    */
   public static BPlusNode fromBytes(BPlusTreeMetadata metadata, int pageNum) {
+    BPlusNode cached = metadata.getNodeCache().get(pageNum);
+    if (cached != null) {
+      return cached;
+    }
+
     Page p = metadata.getAllocator().fetchPage(pageNum);
-    ByteBuffer buf = p.getByteBuffer();
-    byte b = buf.get();
+    byte b = p.getByteBuffer().get(0);
     if (b == 1) {
       return LeafNode.fromBytes(metadata, pageNum);
     } else if (b == 0) {
@@ -241,4 +330,77 @@ abstract class BPlusNode {
       throw new IllegalArgumentException(msg);
     }
   }
+
+  /** Returns true if the node on page pageNum is a leaf. */
+  static boolean isLeaf(BPlusTreeMetadata metadata, int pageNum) {
+    BPlusNode cached = metadata.getNodeCache().get(pageNum);
+    if (cached != null) {
+      return cached instanceof LeafNode;
+    }
+    return metadata.getAllocator().fetchPage(pageNum).getByteBuffer().get(0) == 1;
+  }
+
+  /**
+   * BPlusNode.lookup(m, p, k) returns the record id that key k maps to in the
+   * subtree rooted by the node on page p, or Optional.empty() if there is
+   * none. Cached nodes are searched in memory. Nodes that are not cached are
+   * binary searched directly in their pages (see
+   * InnerNode.getChildPageNum(m, p, k) and LeafNode.getKey(m, p, k)) instead
+   * of being deserialized.
+   *
+   * lookup never takes a lock. The leaf is read optimistically under its
+   * latch (see BPlusTree) and reread if a writer modified it concurrently.
+   * The inner nodes are read without any validation, so the caller must
+   * validate that no inner node was modified during the lookup; if one was,
+   * lookup may return a wrong answer or throw a RuntimeException.
+   */
+  static Optional<RecordId> lookup(BPlusTreeMetadata metadata, int pageNum, DataBox key) {
+    while (true) {
+      BPlusNode cached = metadata.getNodeCache().get(pageNum);
+      if (cached instanceof InnerNode) {
+        pageNum = ((InnerNode) cached).getChildPageNum(key);
+        continue;
+      } else if (cached instanceof LeafNode) {
+        return lookupLeaf(metadata, pageNum, key);
+      }
+
+      Page p = metadata.getAllocator().fetchPage(pageNum);
+      byte b = p.getByteBuffer().get(0);
+      if (b == 1) {
+        return lookupLeaf(metadata, pageNum, key);
+      } else if (b == 0) {
+        pageNum = InnerNode.getChildPageNum(metadata, p, key);
+      } else {
+        String msg = String.format("Unexpected byte %b.", b);
+        throw new IllegalArgumentException(msg);
+      }
+    }
+  }
+
+  /** Optimistically searches the leaf on page pageNum for key. */
+  static Optional<RecordId> lookupLeaf(BPlusTreeMetadata metadata, int pageNum,
+                                       DataBox key) {
+    StampedLock latch = metadata.getLatch(pageNum);
+    while (true) {
+      long stamp = latch.tryOptimisticRead();
+      if (stamp != 0) {
+        try {
+          // The leaf may have been cached or evicted since we last looked.
+          BPlusNode cached = metadata.getNodeCache().get(pageNum);
+          Optional<RecordId> rid = cached instanceof LeafNode
+            ? ((LeafNode) cached).getKey(key)
+            : LeafNode.getKey(metadata, metadata.getAllocator().fetchPage(pageNum), key);
+          if (latch.validate(stamp)) {
+            return rid;
+          }
+        } catch (RuntimeException e) {
+          // A concurrent writer left the leaf in an inconsistent state.
+          if (latch.validate(stamp)) {
+            throw e;
+          }
+        }
+      }
+      Thread.yield();
+    }
+  }
 }
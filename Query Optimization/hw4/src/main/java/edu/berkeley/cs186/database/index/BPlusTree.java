@@ -1,12 +1,20 @@
 package edu.berkeley.cs186.database.index;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
 
+import edu.berkeley.cs186.database.common.LongIterator;
 import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.databox.Type;
@@ -35,6 +43,8 @@ import edu.berkeley.cs186.database.table.RecordId;
  *   tree.scanEqual(new IntDataBox(2));        // [(2, 2)]
  *   tree.scanAll();                           // [(0, 0), (1, 1), (2, 2)]
  *   tree.scanGreaterEqual(new IntDataBox(1)); // [(1, 1), (2, 2)]
+ *   tree.scanRangeDescending(Optional.empty(), true,
+ *                            Optional.of(new IntDataBox(1)), true); // [(1, 1), (0, 0)]
  *
  *   // Remove some elements from the tree.
  *   tree.get(new IntDataBox(0)); // Optional.of(RecordId(0, 0))
@@ -48,6 +58,111 @@ import edu.berkeley.cs186.database.table.RecordId;
  *   fromDisk.get(new IntDataBox(0)); // Optional.empty()
  *   fromDisk.get(new IntDataBox(1)); // Optional.of(RecordId(1, 1))
  *   fromDisk.get(new IntDataBox(2)); // Optional.of(RecordId(2, 2))
+ *
+ * # Covering indexes
+ * A B+ tree can also store the values of some other columns of each record
+ * (its included values) alongside the key and record id. A scan of such a
+ * covering index can then return those values directly, without reading the
+ * records themselves:
+ *
+ *   // Map integer keys to record ids and a single included string.
+ *   BPlusTree tree = new BPlusTree("tree.txt", Type.intType(), 2,
+ *                                  Arrays.asList(Type.stringType(4)));
+ *   tree.put(new IntDataBox(0), new RecordId(0, (short) 0),
+ *            Arrays.asList(new StringDataBox("zero", 4)));
+ *   tree.scanRangeCovering(Optional.empty(), true,
+ *                          Optional.empty(), true); // [[0, "zero"]]
+ *
+ * # Composite keys
+ * A tree keyed by the composite keys of several columns (see CompositeKey)
+ * indexes the columns together. scanPrefix then scans the entries that match
+ * an equality predicate on each of the first few columns and a range
+ * predicate on the next:
+ *
+ *   // Map (int, int) pairs to record ids.
+ *   List<Type> columns = Arrays.asList(Type.intType(), Type.intType());
+ *   BPlusTree tree = new BPlusTree("tree.txt", CompositeKey.type(columns), 2);
+ *   tree.put(CompositeKey.of(Arrays.asList(new IntDataBox(1), new IntDataBox(2))),
+ *            new RecordId(0, (short) 0));
+ *   tree.scanPrefix(Arrays.asList(new IntDataBox(1)),
+ *                   Optional.of(new IntDataBox(2)), true,
+ *                   Optional.empty(), true); // [(0, 0)]
+ *
+ * # Key compression
+ * The nodes of an uncompressed tree of order d hold at most 2d keys, each of
+ * which takes up its full width, so a tree of wide (e.g. 100-byte string)
+ * keys has a small fanout. A compressed tree instead stores the keys of each
+ * node prefix factored and without padding, hands suffix truncated separator
+ * keys to inner nodes, and delta encodes the record ids of each leaf (see
+ * KeyCompression). Its nodes hold as many entries as fit on their pages:
+ *
+ *   // Map 100-byte strings to record ids.
+ *   BPlusTree tree = new BPlusTree("tree.txt", Type.stringType(100),
+ *                                  Collections.emptyList(), true);
+ *
+ * Compressed nodes are reserialized in full whenever they change, so puts
+ * and removes are slower than those of an uncompressed tree.
+ *
+ * # Insert buffering
+ * Each put or remove of a random key modifies a random leaf, so a large tree
+ * under a write heavy load dirties a page per write. A tree with an insert
+ * buffer (see setInsertBufferCapacity) instead records puts and removes in
+ * an in-memory buffer sorted by key, and applies them to the leaves in key
+ * order, in a single batch, once the buffer is full. Writes to the same leaf
+ * are then applied together, so each leaf is written once per batch rather
+ * than once per write. get and every scan merge the buffer with the leaves,
+ * so buffered writes are visible as soon as they are made:
+ *
+ *   BPlusTree tree = new BPlusTree("tree.txt", Type.intType(), 2);
+ *   tree.setInsertBufferCapacity(1000);
+ *   tree.put(new IntDataBox(0), new RecordId(0, (short) 0)); // buffered
+ *   tree.get(new IntDataBox(0)); // Optional.of(RecordId(0, 0))
+ *   tree.flush();                // applies the buffer to the leaves
+ *
+ * A put still checks that its key is not already in the tree, which reads
+ * (but does not write) the key's leaf. Buffered writes live only in memory
+ * until they are flushed, so a tree read back from disk does not see writes
+ * that were buffered when it was last used; call flush before then.
+ *
+ * # Concurrency
+ * A BPlusTree can be shared by any number of threads. Every leaf has a
+ * StampedLock latch (see BPlusTreeMetadata.getLatch), and the tree as a
+ * whole has a StampedLock, structureLatch, that guards its inner nodes:
+ *
+ *   - get never blocks. It descends the tree and reads the leaf
+ *     optimistically, and retries if structureLatch or the leaf's latch was
+ *     write locked in the meantime.
+ *   - put, remove, and updateRids read lock structureLatch, which keeps the
+ *     inner nodes fixed, and write lock only the leaf they modify. Writers
+ *     of different leaves therefore proceed in parallel. A put that would
+ *     split its leaf instead retries while holding structureLatch's write
+ *     lock, as do bulkLoad and every other operation that modifies inner
+ *     nodes. Splits happen once every d or so puts.
+ *   - Likewise, a remove that leaves its leaf less than half full (see
+ *     BPlusNode.underflows) then takes structureLatch's write lock to
+ *     rebalance the leaf with a sibling, merging the two if they fit in one
+ *     leaf and evening out their entries otherwise (see
+ *     InnerNode.rebalance). Merges can empty inner nodes in turn, and the
+ *     tree loses a level when its root is left with a single child.
+ *   - Scans read lock structureLatch and the leaf they are on only while
+ *     they copy the record ids of a single leaf. A scan is therefore not a
+ *     consistent snapshot of the tree: it sees each leaf as of the moment it
+ *     reached it. A scan that finds that the tree has rebalanced since it
+ *     read its last leaf finds its next leaf afresh from the root.
+ *
+ * # Cursors
+ * Scans can also be read a page at a time, from a BPlusTreeCursor, with
+ * scanPage. A cursor records where its page ended (the leaf, the slot, and
+ * the leaf's version; see BPlusTreeMetadata.getLeafVersion) as well as the
+ * last key returned, so the next page starts at that slot if the leaf hasn't
+ * changed since, and otherwise descends the tree to the key, like a scan
+ * after a rebalance.
+ *
+ * # Statistics
+ * A tree keeps its height and the number of its leaves and keys up to date
+ * in its header page, and analyze measures how well the order of its keys
+ * matches the order of the records they point to (see IndexStats). The
+ * optimizer costs scans of the tree with getStats.
  */
 public class BPlusTree {
     public static final String FILENAME_PREFIX = "db";
@@ -55,7 +170,36 @@ public class BPlusTree {
 
     private BPlusTreeMetadata metadata;
     private Page headerPage;
-    private BPlusNode root;
+    private volatile BPlusNode root;
+
+    // See the comment above this class.
+    private final StampedLock structureLatch = new StampedLock();
+
+    // The puts and removes that have not yet been applied to the leaves,
+    // keyed by key, and the number of them that fills the buffer (see
+    // setInsertBufferCapacity). insertBuffer is guarded by itself, and is
+    // only drained while holding the write lock of structureLatch. A
+    // capacity of 0 means writes are not buffered.
+    private final TreeMap<DataBox, BufferedOp> insertBuffer = new TreeMap<>();
+    private volatile int insertBufferCapacity = 0;
+
+    // The number of times that entries have moved between existing leaves or
+    // a leaf has been freed (see rebalance and rebuild). It only changes
+    // while the write lock of structureLatch is held. Iterators use it to
+    // tell whether the sibling they are about to read can still be trusted.
+    private volatile long numRebalances = 0;
+
+    // The height of the tree, which only changes while the write lock of
+    // structureLatch is held, and its clustering factor as of the last
+    // analyze, or -1 (see IndexStats).
+    private volatile int height;
+    private volatile long clusteringFactor = -1;
+
+    // The positions, in the schema of the table that the tree indexes, of
+    // the columns that make up its keys and of the columns that its entries
+    // include (see setColumns). The tree itself never reads them.
+    private volatile List<Integer> keyColumns = Collections.emptyList();
+    private volatile List<Integer> includedColumns = Collections.emptyList();
 
     // Constructors ////////////////////////////////////////////////////////////
     /**
@@ -74,14 +218,50 @@ public class BPlusTree {
      * page which contains:
      *
      *   - the key schema of the tree,
-     *   - the order of the tree, and
-     *   - the page number of the root of the tree.
+     *   - the order of the tree,
+     *   - the page number of the root of the tree,
+     *   - the schema of the included values of the tree,
+     *   - whether the tree is compressed,
+     *   - the statistics of the tree (see getStats), and
+     *   - the positions of the key and included columns (see setColumns).
      *
      * All other pages are serializations of inner and leaf nodes. See
      * writeHeader for details.
      */
     public BPlusTree(String filename, Type keySchema, int order)
         throws BPlusTreeException {
+      this(filename, keySchema, order, Collections.emptyList());
+    }
+
+    /**
+     * Construct a new B+ tree, like BPlusTree(filename, keySchema, order),
+     * that is a covering index: every entry also stores values of the types
+     * in includedSchema (see put(key, rid, included)). Included values take
+     * up room on the leaves, so the max order of the tree is smaller the more
+     * values it includes.
+     */
+    public BPlusTree(String filename, Type keySchema, int order, List<Type> includedSchema)
+        throws BPlusTreeException {
+      this(filename, keySchema, order, includedSchema, false);
+    }
+
+    /**
+     * Construct a new B+ tree whose nodes are as full as their pages allow.
+     * If compressed is true, the tree is compressed (see the comment above
+     * this class) and its nodes hold as many entries as fit on a page.
+     * Otherwise, the tree has order maxOrder(Page.pageSize, keySchema,
+     * includedSchema).
+     */
+    public BPlusTree(String filename, Type keySchema, List<Type> includedSchema,
+                     boolean compressed)
+        throws BPlusTreeException {
+      this(filename, keySchema, BPlusTree.maxOrder(Page.pageSize, keySchema, includedSchema),
+           includedSchema, compressed);
+    }
+
+    private BPlusTree(String filename, Type keySchema, int order, List<Type> includedSchema,
+                      boolean compressed)
+        throws BPlusTreeException {
 
       // Sanity checks.
       if (order < 0) {
@@ -91,7 +271,7 @@ public class BPlusTree {
         throw new BPlusTreeException(msg);
       }
 
-      int maxOrder = BPlusTree.maxOrder(Page.pageSize, keySchema);
+      int maxOrder = BPlusTree.maxOrder(Page.pageSize, keySchema, includedSchema);
       if (order > maxOrder) {
         String msg = String.format(
             "You cannot construct a B+ tree with order %d greater than the " +
@@ -102,7 +282,8 @@ public class BPlusTree {
 
       // Initialize the page allocator.
       PageAllocator allocator = new PageAllocator(filename, true /* wipe */);
-      this.metadata = new BPlusTreeMetadata(allocator, keySchema, order);
+      this.metadata = new BPlusTreeMetadata(allocator, keySchema, order, includedSchema,
+                                            compressed);
 
       // Allocate the header page.
       int headerPageNum = allocator.allocPage();
@@ -114,9 +295,10 @@ public class BPlusTree {
       List<RecordId> rids = new ArrayList<>();
       Optional<Integer> rightSibling = Optional.empty();
       this.root = new LeafNode(this.metadata, keys, rids, rightSibling);
+      this.height = 1;
 
       // Initialize the header page.
-      writeHeader(headerPage.getByteBuffer());
+      writeHeader();
     }
 
     /** Read a B+ tree that was previously serialized to filename. */
@@ -131,11 +313,39 @@ public class BPlusTree {
       Type keySchema = Type.fromBytes(buf);
       int order = buf.getInt();
       int rootPageNum = buf.getInt();
+      List<Type> includedSchema = new ArrayList<>();
+      int numIncluded = buf.getInt();
+      for (int i = 0; i < numIncluded; ++i) {
+        includedSchema.add(Type.fromBytes(buf));
+      }
+      boolean compressed = buf.get() == 1;
+      int height = buf.getInt();
+      long numLeaves = buf.getLong();
+      long numKeys = buf.getLong();
+      long clusteringFactor = buf.getLong();
+      List<Integer> keyColumns = readColumns(buf);
+      List<Integer> includedColumns = readColumns(buf);
 
       // Initialize members.
-      this.metadata = new BPlusTreeMetadata(allocator, keySchema, order);
+      this.metadata = new BPlusTreeMetadata(allocator, keySchema, order, includedSchema,
+                                            compressed);
       this.headerPage = allocator.fetchPage(0);
       this.root = BPlusNode.fromBytes( this.metadata, rootPageNum);
+
+      // Trees written before their headers held statistics have a height of
+      // 0 there, so we count their leaves and keys instead.
+      if (height == 0) {
+        IndexStats stats = measure();
+        height = stats.getHeight();
+        numLeaves = stats.getNumLeaves();
+        numKeys = stats.getNumKeys();
+        clusteringFactor = -1;
+      }
+      this.height = height;
+      this.clusteringFactor = clusteringFactor;
+      this.metadata.setCounts(numLeaves, numKeys);
+      this.keyColumns = keyColumns;
+      this.includedColumns = includedColumns;
     }
 
     // Core API ////////////////////////////////////////////////////////////////
@@ -154,8 +364,26 @@ public class BPlusTree {
      */
     public Optional<RecordId> get(DataBox key) {
       typecheck(key);
-      LeafNode leaf = root.get(key);
-      return leaf.getKey(key);
+      while (true) {
+        long stamp = structureLatch.tryOptimisticRead();
+        if (stamp != 0) {
+          try {
+            BufferedOp op = getBuffered(key);
+            Optional<RecordId> rid = op != null
+              ? op.getRid()
+              : BPlusNode.lookup(metadata, root.getPage().getPageNum(), key);
+            if (structureLatch.validate(stamp)) {
+              return rid;
+            }
+          } catch (RuntimeException e) {
+            // A concurrent split left an inner node in an inconsistent state.
+            if (structureLatch.validate(stamp)) {
+              throw e;
+            }
+          }
+        }
+        Thread.yield();
+      }
     }
 
     /**
@@ -177,6 +405,67 @@ public class BPlusTree {
       }
     }
 
+    /**
+     * Returns the values associated with `keys`, which must be in ascending
+     * order: the ith element of the result is get(keys.get(i)).
+     *
+     *   tree.getAll(Arrays.asList(new IntDataBox(1), new IntDataBox(3)));
+     *   // [Optional.of(rid1), Optional.empty()]
+     *
+     * Rather than descending the tree once per key, getAll descends once and
+     * keeps the path from the root to the current leaf. Each key climbs the
+     * path only as far as the lowest node whose range holds it, and descends
+     * from there, so keys that share a leaf share a descent, and keys on
+     * nearby leaves share most of theirs.
+     *
+     * @throws IllegalArgumentException if keys is not sorted
+     */
+    public List<Optional<RecordId>> getAll(List<DataBox> keys) {
+      for (int i = 0; i < keys.size(); ++i) {
+        typecheck(keys.get(i));
+        if (i > 0 && keys.get(i - 1).compareTo(keys.get(i)) > 0) {
+          String msg = String.format("Keys %s are not sorted.", keys);
+          throw new IllegalArgumentException(msg);
+        }
+      }
+
+      List<Optional<RecordId>> rids = new ArrayList<>();
+      long stamp = structureLatch.readLock();
+      try {
+        // The nodes from the root to the current leaf, each with the
+        // (exclusive) upper bound of the keys that belong to it.
+        Deque<Pair<Integer, Optional<DataBox>>> path = new ArrayDeque<>();
+        path.push(new Pair<>(root.getPage().getPageNum(), Optional.empty()));
+        for (DataBox key : keys) {
+          BufferedOp op = getBuffered(key);
+          if (op != null) {
+            rids.add(op.getRid());
+            continue;
+          }
+
+          Optional<DataBox> hi = path.peek().getSecond();
+          while (hi.isPresent() && key.compareTo(hi.get()) >= 0) {
+            path.pop();
+            hi = path.peek().getSecond();
+          }
+          int pageNum = path.peek().getFirst();
+          while (!BPlusNode.isLeaf(metadata, pageNum)) {
+            InnerNode inner = (InnerNode) BPlusNode.fromBytes(metadata, pageNum);
+            Optional<DataBox> childHi = inner.getChildUpperBound(key);
+            if (childHi.isPresent()) {
+              hi = childHi;
+            }
+            pageNum = inner.getChildPageNum(key);
+            path.push(new Pair<>(pageNum, hi));
+          }
+          rids.add(BPlusNode.lookupLeaf(metadata, pageNum, key));
+        }
+      } finally {
+        structureLatch.unlockRead(stamp);
+      }
+      return rids;
+    }
+
     /**
      * Returns an iterator over all the RecordIds stored in the B+ tree in
      * ascending order of their corresponding keys.
@@ -203,8 +492,7 @@ public class BPlusTree {
      * memory will receive 0 points.
      */
     public Iterator<RecordId> scanAll() {
-      LeafNode leaf = root.getLeftmostLeaf();
-      return new BPlusTreeIterator(leaf, leaf.scanAll());
+      return scanRange(Optional.empty(), true, Optional.empty(), true);
     }
 
     /**
@@ -233,8 +521,270 @@ public class BPlusTree {
      */
     public Iterator<RecordId> scanGreaterEqual(DataBox key) {
       typecheck(key);
-      LeafNode leaf = root.get(key);
-      return new BPlusTreeIterator(leaf, leaf.scanGreaterEqual(key));
+      return scanRange(Optional.of(key), true, Optional.empty(), true);
+    }
+
+    /**
+     * Returns an iterator over all the RecordIds stored in the B+ tree whose
+     * keys lie between lo and hi, in ascending order of their corresponding
+     * keys. A bound is included in the range if it is inclusive, and an empty
+     * bound does not bound the range at all. The scan starts at the leaf that
+     * contains lo and stops at the first leaf that contains a key past hi, so
+     * it reads only the leaves that overlap the range (plus at most one).
+     *
+     *   // Create a B+ tree and insert some values into it.
+     *   BPlusTree tree = new BPlusTree("t.txt", Type.intType(), 4);
+     *   for (int i = 1; i <= 5; ++i) {
+     *     tree.put(new IntDataBox(i), new RecordId(i, (short) i));
+     *   }
+     *
+     *   // [(2, 2), (3, 3)]
+     *   tree.scanRange(Optional.of(new IntDataBox(1)), false,
+     *                  Optional.of(new IntDataBox(4)), false);
+     *
+     *   // [(1, 1), (2, 2)]
+     *   tree.scanRange(Optional.empty(), true,
+     *                  Optional.of(new IntDataBox(2)), true);
+     */
+    public Iterator<RecordId> scanRange(Optional<DataBox> lo, boolean loInclusive,
+                                        Optional<DataBox> hi, boolean hiInclusive) {
+      lo.ifPresent(this::typecheck);
+      hi.ifPresent(this::typecheck);
+      return scan(lo, loInclusive, hi, hiInclusive, false, LeafNode::copyRids,
+                  (key, op) -> op.rid);
+    }
+
+    /**
+     * Same as scanRange, but returns the RecordIds in descending order of
+     * their corresponding keys. The scan starts at the leaf that contains hi
+     * and follows left sibling pointers.
+     */
+    public Iterator<RecordId> scanRangeDescending(Optional<DataBox> lo, boolean loInclusive,
+                                                  Optional<DataBox> hi, boolean hiInclusive) {
+      lo.ifPresent(this::typecheck);
+      hi.ifPresent(this::typecheck);
+      return scan(lo, loInclusive, hi, hiInclusive, true, LeafNode::copyRids,
+                  (key, op) -> op.rid);
+    }
+
+    /**
+     * Same as scanRange, but returns the record ids encoded as longs (see
+     * RecordId.toLong). The iterator copies the record ids of a leaf into a
+     * single array at a time, so unlike scanRange it creates no object per
+     * entry. Buffered puts and removes in the range (see
+     * setInsertBufferCapacity) have no place on the leaves yet, so if there
+     * are any, the entries are read with scanRange and then encoded.
+     */
+    public LongIterator scanRangeRids(Optional<DataBox> lo, boolean loInclusive,
+                                      Optional<DataBox> hi, boolean hiInclusive) {
+      return scanRids(lo, loInclusive, hi, hiInclusive, false);
+    }
+
+    /**
+     * Same as scanRangeRids, but in descending order of the keys (see
+     * scanRangeDescending).
+     */
+    public LongIterator scanRangeRidsDescending(Optional<DataBox> lo, boolean loInclusive,
+                                                Optional<DataBox> hi, boolean hiInclusive) {
+      return scanRids(lo, loInclusive, hi, hiInclusive, true);
+    }
+
+    /** Same as scanAll, but with record ids encoded as longs (see scanRangeRids). */
+    public LongIterator scanAllRids() {
+      return scanRangeRids(Optional.empty(), true, Optional.empty(), true);
+    }
+
+    /**
+     * Same as scanRange, but instead of the RecordIds of the entries in the
+     * range, returns each entry's key followed by its included values (see
+     * getIncludedSchema). The scan only reads the leaves of the tree, so a
+     * query that only needs the key and included columns of a table can be
+     * answered without reading the table at all.
+     */
+    public Iterator<List<DataBox>> scanRangeCovering(Optional<DataBox> lo, boolean loInclusive,
+                                                     Optional<DataBox> hi, boolean hiInclusive) {
+      lo.ifPresent(this::typecheck);
+      hi.ifPresent(this::typecheck);
+      return scan(lo, loInclusive, hi, hiInclusive, false, LeafNode::copyEntries,
+                  (key, op) -> op.toEntry(key));
+    }
+
+    /**
+     * Same as scanRangeCovering, but returns the entries in descending order
+     * of their keys.
+     */
+    public Iterator<List<DataBox>> scanRangeCoveringDescending(
+        Optional<DataBox> lo, boolean loInclusive,
+        Optional<DataBox> hi, boolean hiInclusive) {
+      lo.ifPresent(this::typecheck);
+      hi.ifPresent(this::typecheck);
+      return scan(lo, loInclusive, hi, hiInclusive, true, LeafNode::copyEntries,
+                  (key, op) -> op.toEntry(key));
+    }
+
+    /**
+     * Returns an iterator over the RecordIds of the entries of a tree of
+     * composite keys (see CompositeKey) whose first prefix.size() columns are
+     * equal to prefix and whose next column lies between lo and hi, in
+     * ascending order of their keys. The bounds mean what they mean for
+     * scanRange, and empty bounds (and an empty prefix) match every value.
+     * For example, if the tree is keyed by (year, team, player), then
+     *
+     *   tree.scanPrefix(Arrays.asList(new IntDataBox(2004)),
+     *                   Optional.of(new StringDataBox("BOS", 3)), true,
+     *                   Optional.empty(), true);
+     *
+     * returns the entries of 2004 whose team is at least "BOS". The entries
+     * lie in a single range of the tree, so this is a single scanRange.
+     */
+    public Iterator<RecordId> scanPrefix(List<DataBox> prefix,
+                                         Optional<DataBox> lo, boolean loInclusive,
+                                         Optional<DataBox> hi, boolean hiInclusive) {
+      Type t = metadata.getKeySchema();
+      Optional<DataBox> from = CompositeKey.lowerBound(t, prefix, lo, loInclusive);
+      if (!from.isPresent()) {
+        return Collections.emptyIterator();
+      }
+      DataBox to = CompositeKey.upperBound(t, prefix, hi, hiInclusive);
+      return scanRange(from, true, Optional.of(to), !hi.isPresent() || hiInclusive);
+    }
+
+    /**
+     * Same as scanPrefix, but returns each entry's composite key followed by
+     * its included values, like scanRangeCovering.
+     */
+    public Iterator<List<DataBox>> scanPrefixCovering(List<DataBox> prefix,
+                                                      Optional<DataBox> lo, boolean loInclusive,
+                                                      Optional<DataBox> hi, boolean hiInclusive) {
+      Type t = metadata.getKeySchema();
+      Optional<DataBox> from = CompositeKey.lowerBound(t, prefix, lo, loInclusive);
+      if (!from.isPresent()) {
+        return Collections.emptyIterator();
+      }
+      DataBox to = CompositeKey.upperBound(t, prefix, hi, hiInclusive);
+      return scanRangeCovering(from, true, Optional.of(to), !hi.isPresent() || hiInclusive);
+    }
+
+    /**
+     * Returns an iterator over all the RecordIds stored in the B+ tree in
+     * descending order of their corresponding keys.
+     */
+    public Iterator<RecordId> scanAllDescending() {
+      return scanRangeDescending(Optional.empty(), true, Optional.empty(), true);
+    }
+
+    /**
+     * Returns the RecordIds of (at most) the next `limit` entries of an
+     * ascending scan from cursor, along with the cursor of the entries after
+     * them, or an empty cursor if the scan reached the end of the tree:
+     *
+     *   BPlusTreeCursor cursor = BPlusTreeCursor.first();
+     *   Pair<List<RecordId>, Optional<BPlusTreeCursor>> page = tree.scanPage(cursor, 2);
+     *   page.getFirst();  // [RecordId(1, 1), RecordId(2, 2)]
+     *   page = tree.scanPage(page.getSecond().get(), 2);
+     *   page.getFirst();  // [RecordId(3, 3), RecordId(4, 4)]
+     *
+     * See BPlusTreeCursor. Unlike a scan iterator, a cursor holds no latches
+     * or memory between pages, so it can be kept for as long as the caller
+     * likes, even across transactions, and entries put past it in the
+     * meantime are seen when it is resumed. Buffered puts and removes past
+     * the cursor are flushed first, so that the page reads them off of the
+     * leaves.
+     *
+     * @throws IllegalArgumentException if limit is less than 1
+     */
+    public Pair<List<RecordId>, Optional<BPlusTreeCursor>> scanPage(BPlusTreeCursor cursor,
+                                                                    int limit) {
+      if (limit < 1) {
+        String msg = String.format("Page limit %d is less than 1.", limit);
+        throw new IllegalArgumentException(msg);
+      }
+      cursor.getKey().ifPresent(this::typecheck);
+      if (!getBuffered(cursor.getKey(), cursor.isInclusive(), Optional.empty(), true, false)
+          .isEmpty()) {
+        try {
+          flush();
+        } catch (BPlusTreeException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+
+      // The inner nodes, and therefore the leaves' sibling pointers, stay
+      // fixed while we hold structureLatch, so the page is read leaf by leaf
+      // along them.
+      List<RecordId> rids = new ArrayList<>();
+      Optional<DataBox> key = cursor.getKey();
+      boolean inclusive = cursor.isInclusive();
+      long epoch = metadata.getEpoch();
+      boolean resume = cursor.hasPosition(epoch);
+      long stamp = structureLatch.readLock();
+      try {
+        int pageNum = resume ? cursor.getLeafPageNum() : findLeaf(key);
+        while (true) {
+          StampedLock latch = metadata.getLatch(pageNum);
+          long leafStamp = latch.readLock();
+          try {
+            long version = metadata.getLeafVersion(pageNum);
+            if (resume && !canResume(cursor, version)) {
+              // The leaf has changed since the cursor was returned, so its
+              // slot may hold another entry, or the page another node (or
+              // the cursor was not returned by this tree at all).
+              resume = false;
+              pageNum = findLeaf(key);
+              continue;
+            }
+
+            LeafNode leaf = (LeafNode) BPlusNode.fromBytes(metadata, pageNum);
+            int from = resume ? cursor.getSlot() : leaf.lowerIndex(key, inclusive);
+            int to = Math.min(leaf.numEntries(), from + limit - rids.size());
+            resume = false;
+            rids.addAll(leaf.copyRids(from, to));
+            if (to > from) {
+              key = Optional.of(leaf.copyKeys(to - 1, to).get(0));
+              inclusive = false;
+            }
+
+            Optional<Integer> right = leaf.getRightSiblingPageNum();
+            if (to == leaf.numEntries() && !right.isPresent()) {
+              return new Pair<>(rids, Optional.empty());
+            }
+            if (rids.size() == limit) {
+              BPlusTreeCursor next =
+                new BPlusTreeCursor(key, inclusive, pageNum, to, epoch, version);
+              return new Pair<>(rids, Optional.of(next));
+            }
+            pageNum = right.get();
+          } finally {
+            latch.unlockRead(leafStamp);
+          }
+        }
+      } finally {
+        structureLatch.unlockRead(stamp);
+      }
+    }
+
+    /**
+     * Returns whether scanPage can resume at the leaf page and slot of cursor,
+     * whose page has leaf version `version`: the page must hold a leaf of the
+     * version the cursor was returned with, the slot must be within it, and
+     * the entry before the slot must be the key the cursor returned last. A
+     * cursor may have been deserialized from anywhere (see
+     * BPlusTreeCursor.fromBytes), so its position is not taken on trust. The
+     * caller must hold a read lock of structureLatch and of the page's latch.
+     */
+    private boolean canResume(BPlusTreeCursor cursor, long version) {
+      int pageNum = cursor.getLeafPageNum();
+      // Pages that never held a leaf have version 0, and may not even be
+      // allocated.
+      if (version == 0 || version != cursor.getLeafVersion()
+          || !BPlusNode.isLeaf(metadata, pageNum)) {
+        return false;
+      }
+      LeafNode leaf = (LeafNode) BPlusNode.fromBytes(metadata, pageNum);
+      int slot = cursor.getSlot();
+      return cursor.getKey().isPresent() && !cursor.isInclusive()
+          && 0 < slot && slot <= leaf.numEntries()
+          && leaf.keyAt(slot - 1).equals(cursor.getKey().get());
     }
 
     /**
@@ -248,15 +798,154 @@ public class BPlusTree {
      *   tree.put(key, rid); // BPlusTreeException :(
      */
     public void put(DataBox key, RecordId rid) throws BPlusTreeException {
+      put(key, rid, Collections.emptyList());
+    }
+
+    /**
+     * Same as put(key, rid), but also stores the values `included` in the
+     * entry. The types of the values must match getIncludedSchema(), so a
+     * tree that includes no values only accepts an empty list.
+     */
+    public void put(DataBox key, RecordId rid, List<DataBox> included)
+        throws BPlusTreeException {
       typecheck(key);
-      Optional<Pair<DataBox, Integer>> o = root.put(key, rid);
+      typecheckIncluded(included);
+      List<DataBox> values = new ArrayList<>(included);
 
-      // If our root did not split, then we're done.
-      if (!o.isPresent()) {
+      if (insertBufferCapacity > 0 && buffer(key, new BufferedOp(rid, values))) {
         return;
       }
-      Pair<DataBox, Integer> p = o.get();
 
+      // Most puts don't split their leaf, so we first try to put the pair
+      // while only latching the leaf.
+      long stamp = structureLatch.readLock();
+      try {
+        int pageNum = findLeaf(Optional.of(key));
+        StampedLock latch = metadata.getLatch(pageNum);
+        long leafStamp = latch.writeLock();
+        try {
+          LeafNode leaf = (LeafNode) BPlusNode.fromBytes(metadata, pageNum);
+          if (leaf.hasRoomFor(key, rid)) {
+            leaf.put(key, rid, values);
+            writeHeader();
+            return;
+          }
+        } finally {
+          latch.unlockWrite(leafStamp);
+        }
+      } finally {
+        structureLatch.unlockRead(stamp);
+      }
+
+      // The leaf is full, so the put may split it and its ancestors.
+      stamp = structureLatch.writeLock();
+      try {
+        Optional<Pair<DataBox, Integer>> o = root.put(key, rid, values);
+
+        // If our root did not split, then we're done.
+        if (!o.isPresent()) {
+          writeHeader();
+          return;
+        }
+        splitRoot(o.get());
+      } finally {
+        structureLatch.unlockWrite(stamp);
+      }
+    }
+
+    /**
+     * Bulk loads (key, rid) pairs into an empty B+ tree. data must be sorted
+     * in ascending order of key and must not contain duplicate keys; a
+     * BPlusTreeException is raised if it is not, or if the tree is not empty.
+     * Leaves are filled left to right until they are fillFactor full (see
+     * BPlusNode.bulkLoad), so every page is written once and no leaf is ever
+     * split in half. fillFactor must be in (0, 1].
+     *
+     *   BPlusTree tree = new BPlusTree("t.txt", Type.intType(), 2);
+     *   List<Pair<DataBox, RecordId>> data = new ArrayList<>();
+     *   for (int i = 0; i < 10; ++i) {
+     *     data.add(new Pair<>(new IntDataBox(i), new RecordId(i, (short) i)));
+     *   }
+     *   tree.bulkLoad(data.iterator(), 0.75f); // leaves hold 3 keys each
+     */
+    public void bulkLoad(Iterator<Pair<DataBox, RecordId>> data, float fillFactor)
+        throws BPlusTreeException {
+      bulkLoadCovering(new Iterator<Pair<List<DataBox>, RecordId>>() {
+        @Override
+        public boolean hasNext() {
+          return data.hasNext();
+        }
+
+        @Override
+        public Pair<List<DataBox>, RecordId> next() {
+          Pair<DataBox, RecordId> p = data.next();
+          return new Pair<>(Collections.singletonList(p.getFirst()), p.getSecond());
+        }
+      }, fillFactor);
+    }
+
+    /**
+     * Same as bulkLoad, but for a covering index: the first element of each
+     * pair is the key followed by the values included in its entry (see
+     * put(key, rid, included)).
+     */
+    public void bulkLoadCovering(Iterator<Pair<List<DataBox>, RecordId>> data, float fillFactor)
+        throws BPlusTreeException {
+      if (fillFactor <= 0 || fillFactor > 1) {
+        String msg = String.format("Invalid fill factor %f.", fillFactor);
+        throw new BPlusTreeException(msg);
+      }
+
+      long stamp = structureLatch.writeLock();
+      try {
+        flushLocked();
+        bulkLoadLocked(data, fillFactor);
+        writeHeader();
+      } finally {
+        structureLatch.unlockWrite(stamp);
+      }
+    }
+
+    /** bulkLoad, while holding the write lock of structureLatch. */
+    private void bulkLoadLocked(Iterator<Pair<List<DataBox>, RecordId>> data, float fillFactor)
+        throws BPlusTreeException {
+      if (!(root instanceof LeafNode) || !((LeafNode) root).getKeys().isEmpty()) {
+        throw new BPlusTreeException("Only an empty B+ tree can be bulk loaded.");
+      }
+
+      Iterator<Pair<List<DataBox>, RecordId>> typechecked =
+          new Iterator<Pair<List<DataBox>, RecordId>>() {
+        @Override
+        public boolean hasNext() {
+          return data.hasNext();
+        }
+
+        @Override
+        public Pair<List<DataBox>, RecordId> next() {
+          Pair<List<DataBox>, RecordId> p = data.next();
+          List<DataBox> values = p.getFirst();
+          if (values.isEmpty()) {
+            throw new IllegalArgumentException("Bulk loaded entry has no key.");
+          }
+          typecheck(values.get(0));
+          typecheckIncluded(values.subList(1, values.size()));
+          return p;
+        }
+      };
+
+      while (typechecked.hasNext()) {
+        Optional<Pair<DataBox, Integer>> o = root.bulkLoad(typechecked, fillFactor);
+        if (o.isPresent()) {
+          splitRoot(o.get());
+        }
+      }
+    }
+
+    /**
+     * Replaces a root that just split, leaving behind the split pair p, with a
+     * new inner node whose children are the old root and its new sibling.
+     */
+    private void splitRoot(Pair<DataBox, Integer> p) {
       // If our root did split, then we have to create a new root node. For
       // example, we might go from a B+ tree which looks like this:
       //
@@ -288,7 +977,8 @@ public class BPlusTree {
 
       InnerNode inner = new InnerNode(metadata, keys, children);
       this.root = inner;
-      writeHeader(headerPage.getByteBuffer());
+      this.height++;
+      writeHeader();
     }
 
     /**
@@ -305,16 +995,563 @@ public class BPlusTree {
      */
     public void remove(DataBox key) {
       typecheck(key);
-      root.remove(key);
+      try {
+        if (insertBufferCapacity > 0 && buffer(key, BufferedOp.REMOVE)) {
+          return;
+        }
+      } catch (BPlusTreeException e) {
+        // Buffering a remove never throws, and neither does flushing the
+        // buffer, since every buffered put was checked when it was made.
+        throw new IllegalStateException(e);
+      }
+
+      boolean underflowed;
+      long stamp = structureLatch.readLock();
+      try {
+        int pageNum = findLeaf(Optional.of(key));
+        StampedLock latch = metadata.getLatch(pageNum);
+        long leafStamp = latch.writeLock();
+        try {
+          LeafNode leaf = (LeafNode) BPlusNode.fromBytes(metadata, pageNum);
+          leaf.remove(key);
+          writeHeader();
+          underflowed = root != leaf && leaf.underflows();
+        } finally {
+          latch.unlockWrite(leafStamp);
+        }
+      } finally {
+        structureLatch.unlockRead(stamp);
+      }
+
+      // Rebalancing modifies inner nodes, so it needs the write lock. The
+      // tree may have changed since we let go of the read lock, so rebalance
+      // checks that the leaf still underflows.
+      if (underflowed) {
+        stamp = structureLatch.writeLock();
+        try {
+          rebalance(key);
+        } finally {
+          structureLatch.unlockWrite(stamp);
+        }
+      }
+    }
+
+    /**
+     * Rebalances the tree after key was removed from it, if key's leaf
+     * underflows (see InnerNode.rebalance). If that leaves the root an inner
+     * node with a single child, the child becomes the new root, which
+     * shortens the tree by a level. The caller must hold the write lock of
+     * structureLatch.
+     */
+    private void rebalance(DataBox key) {
+      if (!(root instanceof InnerNode)) {
+        return;
+      }
+      ((InnerNode) root).rebalance(key);
+      numRebalances++;
+
+      while (root instanceof InnerNode && ((InnerNode) root).getKeys().isEmpty()) {
+        int pageNum = root.getPage().getPageNum();
+        root = BPlusNode.fromBytes(metadata, ((InnerNode) root).getLeftmostChildPageNum());
+        height--;
+        writeHeader();
+        BPlusNode.free(metadata, pageNum);
+      }
+      writeHeader();
+    }
+
+    /**
+     * Rebuilds the tree from scratch: bulk loads its entries, in key order,
+     * into new nodes filled to fillFactor (see bulkLoad), and then frees the
+     * pages of the old nodes. remove keeps every node at least half full,
+     * but a tree filled by random puts, or one written before remove
+     * rebalanced, can take up far more pages than its entries need. The tree
+     * stays usable while it is rebuilt; other operations on it wait for
+     * rebuild to finish.
+     *
+     *   BPlusTree tree = new BPlusTree("t.txt", Type.intType(), 2);
+     *   for (int i = 0; i < 100; ++i) {
+     *     tree.put(new IntDataBox(i), new RecordId(i, (short) i));
+     *   }
+     *   tree.rebuild(1.0f); // leaves hold 4 keys each
+     */
+    public void rebuild(float fillFactor) throws BPlusTreeException {
+      if (fillFactor <= 0 || fillFactor > 1) {
+        String msg = String.format("Invalid fill factor %f.", fillFactor);
+        throw new BPlusTreeException(msg);
+      }
+
+      long stamp = structureLatch.writeLock();
+      try {
+        flushLocked();
+        List<Integer> oldPageNums = new ArrayList<>();
+        addPageNums(root.getPage().getPageNum(), oldPageNums);
+
+        // The old leaves are read one at a time as the new ones are loaded.
+        // None of the old pages is freed until we're done, so none of them
+        // is reused for a new node.
+        LeafNode first = root.getLeftmostLeaf();
+        Iterator<Pair<List<DataBox>, RecordId>> entries =
+            new Iterator<Pair<List<DataBox>, RecordId>>() {
+          private Optional<LeafNode> leaf = Optional.of(first);
+          private Iterator<List<DataBox>> values = Collections.emptyIterator();
+          private Iterator<RecordId> rids = Collections.emptyIterator();
+
+          @Override
+          public boolean hasNext() {
+            while (!values.hasNext() && leaf.isPresent()) {
+              LeafNode node = leaf.get();
+              values = node.copyEntries(0, node.numEntries()).iterator();
+              rids = node.copyRids(0, node.numEntries()).iterator();
+              leaf = node.getRightSibling();
+            }
+            return values.hasNext();
+          }
+
+          @Override
+          public Pair<List<DataBox>, RecordId> next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            return new Pair<>(values.next(), rids.next());
+          }
+        };
+
+        // The entries are counted again as they are loaded.
+        this.root = new LeafNode(metadata, Collections.emptyList(),
+                                 Collections.emptyList(), Optional.empty());
+        this.height = 1;
+        metadata.addKeys(-metadata.getNumKeys());
+        writeHeader();
+        bulkLoadLocked(entries, fillFactor);
+        for (int pageNum : oldPageNums) {
+          BPlusNode.free(metadata, pageNum);
+        }
+        numRebalances++;
+        writeHeader();
+      } finally {
+        structureLatch.unlockWrite(stamp);
+      }
+    }
+
+    /**
+     * Replaces the record id of every key in `entries`, e.g. after the records
+     * they point to have been moved by Table.compact. The entries are applied
+     * in ascending key order and consecutive keys on the same leaf share one
+     * descent from the root. If a key is not in the tree, a BPlusTreeException
+     * is raised; entries with smaller keys will already have been updated.
+     *
+     *   BPlusTree tree = new BPlusTree("t.txt", Type.intType(), 4);
+     *   DataBox key = new IntDataBox(42);
+     *   tree.put(key, new RecordId(42, (short) 42));
+     *   tree.updateRids(Arrays.asList(new Pair<>(key, new RecordId(1, (short) 0))));
+     *   tree.get(key); // Optional.of(RecordId(1, 0))
+     */
+    public void updateRids(List<Pair<DataBox, RecordId>> entries)
+        throws BPlusTreeException {
+      // The record ids of buffered puts are applied to the leaves first.
+      if (insertBufferCapacity > 0) {
+        flush();
+      }
+
+      List<Pair<DataBox, RecordId>> sorted = new ArrayList<>(entries);
+      sorted.sort((a, b) -> a.getFirst().compareTo(b.getFirst()));
+
+      // The entries whose new record ids don't fit on their leaves.
+      List<Pair<DataBox, RecordId>> overflowed = new ArrayList<>();
+      long stamp = structureLatch.readLock();
+      try {
+        Optional<Integer> pageNum = Optional.empty();
+        for (Pair<DataBox, RecordId> entry : sorted) {
+          DataBox key = entry.getFirst();
+          typecheck(key);
+          if (pageNum.isPresent() && updateRid(pageNum.get(), entry, overflowed)) {
+            continue;
+          }
+          pageNum = Optional.of(findLeaf(Optional.of(key)));
+          if (!updateRid(pageNum.get(), entry, overflowed)) {
+            String msg = String.format("Key %s is not in the tree.", key);
+            throw new BPlusTreeException(msg);
+          }
+        }
+      } finally {
+        structureLatch.unlockRead(stamp);
+      }
+
+      // The record ids of a compressed leaf are delta encoded, so a new
+      // record id can take up more room than the old one. If it doesn't fit,
+      // we remove the entry and put it back, which may split its leaf.
+      if (overflowed.isEmpty()) {
+        return;
+      }
+      stamp = structureLatch.writeLock();
+      try {
+        for (Pair<DataBox, RecordId> entry : overflowed) {
+          DataBox key = entry.getFirst();
+          LeafNode leaf = root.get(key);
+          List<DataBox> included = leaf.getIncludedValues(key).get();
+          leaf.remove(key);
+          Optional<Pair<DataBox, Integer>> o = root.put(key, entry.getSecond(), included);
+          if (o.isPresent()) {
+            splitRoot(o.get());
+          }
+        }
+      } finally {
+        structureLatch.unlockWrite(stamp);
+      }
+    }
+
+    /**
+     * Replaces the record id of the entry's key with the entry's record id in
+     * the leaf on page pageNum, returning false if the key is not in the leaf.
+     * If the new record id does not fit on the leaf, the entry is instead
+     * added to overflowed. The caller must hold a read lock of
+     * structureLatch.
+     */
+    private boolean updateRid(int pageNum, Pair<DataBox, RecordId> entry,
+                              List<Pair<DataBox, RecordId>> overflowed) {
+      StampedLock latch = metadata.getLatch(pageNum);
+      long stamp = latch.writeLock();
+      try {
+        LeafNode leaf = (LeafNode) BPlusNode.fromBytes(metadata, pageNum);
+        DataBox key = entry.getFirst();
+        if (!leaf.getKey(key).isPresent()) {
+          return false;
+        }
+        if (!leaf.hasRoomForRid(key, entry.getSecond())) {
+          overflowed.add(entry);
+          return true;
+        }
+        return leaf.updateRid(key, entry.getSecond());
+      } finally {
+        latch.unlockWrite(stamp);
+      }
+    }
+
+    // Insert buffer ///////////////////////////////////////////////////////////
+    /**
+     * Sets the number of buffered puts and removes at which the insert
+     * buffer of the tree is flushed (see the comment above this class). A
+     * capacity of 0 turns off buffering and flushes the buffer.
+     */
+    public void setInsertBufferCapacity(int capacity) throws BPlusTreeException {
+      if (capacity < 0) {
+        String msg = String.format("Invalid insert buffer capacity %d.", capacity);
+        throw new BPlusTreeException(msg);
+      }
+      long stamp = structureLatch.writeLock();
+      try {
+        this.insertBufferCapacity = capacity;
+        if (capacity == 0) {
+          flushLocked();
+        }
+      } finally {
+        structureLatch.unlockWrite(stamp);
+      }
+    }
+
+    public int getInsertBufferCapacity() {
+      return insertBufferCapacity;
+    }
+
+    /** Returns the number of puts and removes in the insert buffer. */
+    public int getNumBuffered() {
+      synchronized (insertBuffer) {
+        return insertBuffer.size();
+      }
+    }
+
+    /**
+     * Applies every buffered put and remove to the leaves of the tree, in
+     * ascending key order.
+     */
+    public void flush() throws BPlusTreeException {
+      long stamp = structureLatch.writeLock();
+      try {
+        flushLocked();
+        writeHeader();
+      } finally {
+        structureLatch.unlockWrite(stamp);
+      }
+    }
+
+    /**
+     * Flushes the tree and closes its file. The tree can't be used
+     * afterwards.
+     */
+    public void close() {
+      long stamp = structureLatch.writeLock();
+      try {
+        flushLocked();
+        writeHeader();
+        metadata.getAllocator().close();
+      } catch (BPlusTreeException e) {
+        // Flushing the buffer never throws, since every buffered put was
+        // checked when it was made.
+        throw new IllegalStateException(e);
+      } finally {
+        structureLatch.unlockWrite(stamp);
+      }
+    }
+
+    /** flush, while holding the write lock of structureLatch. */
+    private void flushLocked() throws BPlusTreeException {
+      List<Map.Entry<DataBox, BufferedOp>> ops;
+      synchronized (insertBuffer) {
+        ops = new ArrayList<>(new TreeMap<>(insertBuffer).entrySet());
+        insertBuffer.clear();
+      }
+      for (Map.Entry<DataBox, BufferedOp> entry : ops) {
+        DataBox key = entry.getKey();
+        BufferedOp op = entry.getValue();
+        // A buffered put may follow a buffered remove of a key that is still
+        // on its leaf.
+        LeafNode leaf = root.get(key);
+        if (leaf.getKey(key).isPresent()) {
+          leaf.remove(key);
+        }
+        if (op != BufferedOp.REMOVE) {
+          Optional<Pair<DataBox, Integer>> o = root.put(key, op.rid, op.included);
+          if (o.isPresent()) {
+            splitRoot(o.get());
+          }
+        } else if (root != leaf && leaf.underflows()) {
+          rebalance(key);
+        }
+      }
+    }
+
+    /**
+     * Adds op on key to the insert buffer, and flushes the buffer if that
+     * fills it. Returns false, and does nothing, if the tree turned out not
+     * to buffer writes.
+     *
+     * @throws BPlusTreeException if op is a put of a key that is already in
+     * the tree
+     */
+    private boolean buffer(DataBox key, BufferedOp op) throws BPlusTreeException {
+      boolean full;
+      long stamp = structureLatch.readLock();
+      try {
+        if (insertBufferCapacity == 0) {
+          return false;
+        }
+        synchronized (insertBuffer) {
+          if (op != BufferedOp.REMOVE) {
+            BufferedOp pending = insertBuffer.get(key);
+            boolean exists = pending != null
+              ? pending != BufferedOp.REMOVE
+              : BPlusNode.lookup(metadata, root.getPage().getPageNum(), key).isPresent();
+            if (exists) {
+              String message = String.format("Duplicate key %s inserted.", key);
+              throw new BPlusTreeException(message);
+            }
+          }
+          insertBuffer.put(key, op);
+          full = insertBuffer.size() >= insertBufferCapacity;
+        }
+      } finally {
+        structureLatch.unlockRead(stamp);
+      }
+      if (full) {
+        flush();
+      }
+      return true;
+    }
+
+    /** Returns the buffered put or remove of key, or null if there is none. */
+    private BufferedOp getBuffered(DataBox key) {
+      if (insertBufferCapacity == 0) {
+        return null;
+      }
+      synchronized (insertBuffer) {
+        return insertBuffer.get(key);
+      }
+    }
+
+    /**
+     * Returns the buffered puts and removes of the keys between lo and hi
+     * (see scanRange), in ascending order of their keys or, if descending is
+     * true, in descending order.
+     */
+    private List<Pair<DataBox, BufferedOp>> getBuffered(Optional<DataBox> lo, boolean loInclusive,
+                                                        Optional<DataBox> hi, boolean hiInclusive,
+                                                        boolean descending) {
+      List<Pair<DataBox, BufferedOp>> ops = new ArrayList<>();
+      if (insertBufferCapacity == 0) {
+        return ops;
+      }
+      synchronized (insertBuffer) {
+        if (insertBuffer.isEmpty()) {
+          return ops;
+        }
+        Map<DataBox, BufferedOp> range = insertBuffer;
+        if (lo.isPresent() && hi.isPresent()) {
+          if (lo.get().compareTo(hi.get()) > 0) {
+            return ops;
+          }
+          range = insertBuffer.subMap(lo.get(), loInclusive, hi.get(), hiInclusive);
+        } else if (lo.isPresent()) {
+          range = insertBuffer.tailMap(lo.get(), loInclusive);
+        } else if (hi.isPresent()) {
+          range = insertBuffer.headMap(hi.get(), hiInclusive);
+        }
+        for (Map.Entry<DataBox, BufferedOp> entry : range.entrySet()) {
+          ops.add(new Pair<>(entry.getKey(), entry.getValue()));
+        }
+      }
+      if (descending) {
+        Collections.reverse(ops);
+      }
+      return ops;
+    }
+
+    /** A buffered put, of a record id and included values, or remove. */
+    private static class BufferedOp {
+      static final BufferedOp REMOVE = new BufferedOp(null, null);
+
+      final RecordId rid;
+      final List<DataBox> included;
+
+      BufferedOp(RecordId rid, List<DataBox> included) {
+        this.rid = rid;
+        this.included = included;
+      }
+
+      Optional<RecordId> getRid() {
+        return Optional.ofNullable(rid);
+      }
+
+      /** Returns key followed by the included values, like LeafNode.copyEntries. */
+      List<DataBox> toEntry(DataBox key) {
+        List<DataBox> entry = new ArrayList<>(1 + included.size());
+        entry.add(key);
+        entry.addAll(included);
+        return entry;
+      }
+    }
+
+    // Statistics //////////////////////////////////////////////////////////////
+    /**
+     * Returns the statistics of the tree (see IndexStats). The height and the
+     * numbers of leaves and keys are current. The number of keys counts
+     * buffered puts and removes (see setInsertBufferCapacity) as if they were
+     * flushed, but the height and the number of leaves only change when they
+     * are, so both are approximate while the buffer holds writes. The
+     * clustering factor is as of the last analyze, or -1 if the tree has never
+     * been analyzed.
+     */
+    public IndexStats getStats() {
+      long stamp = structureLatch.readLock();
+      try {
+        return new IndexStats(height, metadata.getNumLeaves(),
+                              metadata.getNumKeys() + bufferedKeys(), clusteringFactor);
+      } finally {
+        structureLatch.unlockRead(stamp);
+      }
+    }
+
+    /**
+     * Returns the number of keys that flushing the insert buffer would add to
+     * the leaves, less the number it would remove: a buffered put adds its key
+     * unless the key is still on its leaf (after a buffered remove of it), and
+     * a buffered remove removes its key if it is on its leaf. The caller must
+     * hold a read lock of structureLatch.
+     */
+    private long bufferedKeys() {
+      if (insertBufferCapacity == 0) {
+        return 0;
+      }
+      long delta = 0;
+      int rootPageNum = root.getPage().getPageNum();
+      synchronized (insertBuffer) {
+        for (Map.Entry<DataBox, BufferedOp> entry : insertBuffer.entrySet()) {
+          boolean onLeaf = BPlusNode.lookup(metadata, rootPageNum, entry.getKey()).isPresent();
+          if (entry.getValue() == BufferedOp.REMOVE) {
+            delta -= onLeaf ? 1 : 0;
+          } else {
+            delta += onLeaf ? 0 : 1;
+          }
+        }
+      }
+      return delta;
+    }
+
+    /**
+     * Flushes the tree, reads every leaf to recount its leaves and keys and to
+     * measure its clustering factor, and persists the result to the header
+     * page. analyze reads the whole tree while holding the write lock of
+     * structureLatch, so it is meant to be run along with the statistics of
+     * the table (see Database.analyze), not on every query.
+     *
+     *   BPlusTree tree = new BPlusTree("t.txt", Type.intType(), 2);
+     *   for (int i = 0; i < 100; ++i) {
+     *     tree.put(new IntDataBox(i), new RecordId(i / 10, (short) i));
+     *   }
+     *   tree.analyze().getClusteringFactor(); // 10
+     */
+    public IndexStats analyze() throws BPlusTreeException {
+      long stamp = structureLatch.writeLock();
+      try {
+        flushLocked();
+        IndexStats stats = measure();
+        this.clusteringFactor = stats.getClusteringFactor();
+        metadata.setCounts(stats.getNumLeaves(), stats.getNumKeys());
+        writeHeader();
+        return stats;
+      } finally {
+        structureLatch.unlockWrite(stamp);
+      }
+    }
+
+    /**
+     * Measures the statistics of the tree by descending to its leftmost leaf
+     * and reading every leaf from there. The clustering factor is the number
+     * of data pages that fetching the records of every entry in key order
+     * reads, where a page is read again whenever the record of an entry is on
+     * a different page than that of the previous entry. The caller must hold
+     * the write lock of structureLatch, or be the only user of the tree.
+     */
+    private IndexStats measure() {
+      int height = 1;
+      int pageNum = root.getPage().getPageNum();
+      while (!BPlusNode.isLeaf(metadata, pageNum)) {
+        pageNum = ((InnerNode) BPlusNode.fromBytes(metadata, pageNum)).getLeftmostChildPageNum();
+        height++;
+      }
+
+      long numLeaves = 0;
+      long numKeys = 0;
+      long clusteringFactor = 0;
+      int lastDataPageNum = -1;
+      Optional<LeafNode> leaf = Optional.of((LeafNode) BPlusNode.fromBytes(metadata, pageNum));
+      while (leaf.isPresent()) {
+        LeafNode node = leaf.get();
+        numLeaves++;
+        for (long rid : node.copyRidLongs(0, node.numEntries())) {
+          numKeys++;
+          if (RecordId.getPageNum(rid) != lastDataPageNum) {
+            clusteringFactor++;
+            lastDataPageNum = RecordId.getPageNum(rid);
+          }
+        }
+        leaf = node.getRightSibling();
+      }
+      return new IndexStats(height, numLeaves, numKeys, clusteringFactor);
     }
 
     // Helpers /////////////////////////////////////////////////////////////////
     /**
      * Returns a sexp representation of this tree. See BPlusNode.toSexp for
-     * more information.
+     * more information. Buffered writes are not shown.
      */
     public String toSexp() {
-      return root.toSexp();
+      long stamp = structureLatch.writeLock();
+      try {
+        return root.toSexp();
+      } finally {
+        structureLatch.unlockWrite(stamp);
+      }
     }
 
     /**
@@ -333,7 +1570,12 @@ public class BPlusTree {
       List<String> strings = new ArrayList<>();
       strings.add("digraph g {" );
       strings.add("  node [shape=record, height=0.1];");
-      strings.add(root.toDot());
+      long stamp = structureLatch.writeLock();
+      try {
+        strings.add(root.toDot());
+      } finally {
+        structureLatch.unlockWrite(stamp);
+      }
       strings.add("}");
       return String.join("\n", strings);
     }
@@ -344,21 +1586,155 @@ public class BPlusTree {
      * of size `pageSizeInBytes`.
      */
     public static int maxOrder(int pageSizeInBytes, Type keySchema) {
-      int leafOrder = LeafNode.maxOrder(pageSizeInBytes, keySchema);
+      return maxOrder(pageSizeInBytes, keySchema, Collections.emptyList());
+    }
+
+    /**
+     * Same as maxOrder(pageSizeInBytes, keySchema), but for a covering index
+     * whose entries include values of types includedSchema.
+     */
+    public static int maxOrder(int pageSizeInBytes, Type keySchema, List<Type> includedSchema) {
+      int leafOrder = LeafNode.maxOrder(pageSizeInBytes, keySchema, includedSchema);
       int innerOrder = InnerNode.maxOrder(pageSizeInBytes, keySchema);
       return Math.min(leafOrder, innerOrder);
     }
 
+    /** Returns true if the nodes of the tree are compressed. */
+    public boolean isCompressed() {
+      return metadata.isCompressed();
+    }
+
+    /**
+     * Returns the types of the values included in every entry of the tree,
+     * which is empty unless the tree is a covering index.
+     */
+    public List<Type> getIncludedSchema() {
+      return metadata.getIncludedSchema();
+    }
+
+    /**
+     * Records the positions, in the schema of the table that the tree
+     * indexes, of the columns that make up its keys and of the columns that
+     * its entries include, in order, so that whoever opens the tree again
+     * can tell which columns it indexes. The positions are stored in the
+     * header page, but are not otherwise used by the tree.
+     */
+    public void setColumns(List<Integer> keyColumns, List<Integer> includedColumns) {
+      this.keyColumns = Collections.unmodifiableList(new ArrayList<>(keyColumns));
+      this.includedColumns = Collections.unmodifiableList(new ArrayList<>(includedColumns));
+      writeHeader();
+    }
+
+    /**
+     * Returns the positions of the key columns set by setColumns, which are
+     * empty if they were never set.
+     */
+    public List<Integer> getKeyColumns() {
+      return keyColumns;
+    }
+
+    /**
+     * Returns the positions of the included columns set by setColumns, which
+     * are empty if they were never set.
+     */
+    public List<Integer> getIncludedColumns() {
+      return includedColumns;
+    }
+
     /** Returns the number of pages used to serialize the tree. */
     public int getNumPages() {
       return metadata.getAllocator().getNumPages();
     }
 
-    /** Serializes the header page to buf. */
-    private void writeHeader(ByteBuffer buf) {
-      buf.put(metadata.getKeySchema().toBytes());
-      buf.putInt(metadata.getOrder());
-      buf.putInt(root.getPage().getPageNum());
+    /**
+     * Serializes the header page. Puts and removes that don't split or
+     * rebalance write the header while holding only the read lock of
+     * structureLatch, to keep its statistics up to date, so writes of the
+     * header are synchronized on the header page.
+     */
+    private void writeHeader() {
+      synchronized (headerPage) {
+        ByteBuffer buf = headerPage.getByteBuffer();
+        buf.put(metadata.getKeySchema().toBytes());
+        buf.putInt(metadata.getOrder());
+        buf.putInt(root.getPage().getPageNum());
+        buf.putInt(metadata.getIncludedSchema().size());
+        for (Type t : metadata.getIncludedSchema()) {
+          buf.put(t.toBytes());
+        }
+        buf.put((byte) (metadata.isCompressed() ? 1 : 0));
+        buf.putInt(height);
+        buf.putLong(metadata.getNumLeaves());
+        buf.putLong(metadata.getNumKeys());
+        buf.putLong(clusteringFactor);
+        writeColumns(buf, keyColumns);
+        writeColumns(buf, includedColumns);
+      }
+    }
+
+    private static void writeColumns(ByteBuffer buf, List<Integer> columns) {
+      buf.putInt(columns.size());
+      for (int column : columns) {
+        buf.putInt(column);
+      }
+    }
+
+    /**
+     * Reads a list of column positions written by writeColumns. Headers
+     * written before they held column positions are zeroed there, which
+     * reads as an empty list.
+     */
+    private static List<Integer> readColumns(ByteBuffer buf) {
+      int numColumns = buf.getInt();
+      List<Integer> columns = new ArrayList<>();
+      for (int i = 0; i < numColumns; ++i) {
+        columns.add(buf.getInt());
+      }
+      return Collections.unmodifiableList(columns);
+    }
+
+    /**
+     * Adds the page numbers of every node in the subtree rooted by the node on
+     * page pageNum to pageNums. Leaves are never deserialized.
+     */
+    private void addPageNums(int pageNum, List<Integer> pageNums) {
+      pageNums.add(pageNum);
+      if (BPlusNode.isLeaf(metadata, pageNum)) {
+        return;
+      }
+      InnerNode inner = (InnerNode) BPlusNode.fromBytes(metadata, pageNum);
+      for (int child : inner.getChildren()) {
+        addPageNums(child, pageNums);
+      }
+    }
+
+    /**
+     * Returns the page number of the leaf that key belongs in, or of the
+     * leftmost leaf if key is empty. Leaves are never deserialized, since the
+     * caller may not hold their latches. The caller must hold a lock of
+     * structureLatch.
+     */
+    private int findLeaf(Optional<DataBox> key) {
+      return findLeaf(key, false);
+    }
+
+    /**
+     * Same as findLeaf(key), except that if key is empty and rightmost is
+     * true, the rightmost leaf is returned.
+     */
+    private int findLeaf(Optional<DataBox> key, boolean rightmost) {
+      int pageNum = root.getPage().getPageNum();
+      while (!BPlusNode.isLeaf(metadata, pageNum)) {
+        InnerNode inner = (InnerNode) BPlusNode.fromBytes(metadata, pageNum);
+        if (key.isPresent()) {
+          pageNum = inner.getChildPageNum(key.get());
+        } else if (rightmost) {
+          pageNum = inner.getRightmostChildPageNum();
+        } else {
+          pageNum = inner.getLeftmostChildPageNum();
+        }
+      }
+      return pageNum;
     }
 
     private void typecheck(DataBox key) {
@@ -369,59 +1745,408 @@ public class BPlusTree {
       }
     }
 
+    private void typecheckIncluded(List<DataBox> included) {
+      List<Type> schema = metadata.getIncludedSchema();
+      boolean ok = included.size() == schema.size();
+      for (int i = 0; ok && i < included.size(); ++i) {
+        ok = included.get(i).type().equals(schema.get(i));
+      }
+      if (!ok) {
+        String msg = String.format("Included values %s are not of types %s", included, schema);
+        throw new IllegalArgumentException(msg);
+      }
+    }
+
     // Iterator ////////////////////////////////////////////////////////////////
-    private class BPlusTreeIterator implements Iterator<RecordId> {
-      // A BPlusTreeIterator iterates over the entries of a B+ tree leaf by
-      // leaf. We maintain the following invariants:
-      //
-      //   - leaf is null if and only if iter is null
-      //   - iter is not null if and only if iter.hasNext()
-      private LeafNode leaf;
-      private Iterator<RecordId> iter;
-
-      public BPlusTreeIterator(LeafNode leaf, Iterator<RecordId> iter) {
-        assert(leaf != null);
-        assert(iter != null);
-        this.leaf = leaf;
-        this.iter = iter;
-
-        if (!this.iter.hasNext()) {
-          advance();
+    /** Copies entries [from, to) of a leaf, e.g. LeafNode::copyRids. */
+    private interface EntryCopier<T> {
+      List<T> copy(LeafNode leaf, int from, int to);
+    }
+
+    /**
+     * Returns an iterator over the entries whose keys lie between lo and hi
+     * (see scanRange), which copier copies off of the leaves and bufferedCopier
+     * makes of buffered puts.
+     */
+    private <T> Iterator<T> scan(Optional<DataBox> lo, boolean loInclusive,
+                                 Optional<DataBox> hi, boolean hiInclusive,
+                                 boolean descending, EntryCopier<T> copier,
+                                 BiFunction<DataBox, BufferedOp, T> bufferedCopier) {
+      // The buffer is copied before the leaves are read, so an entry that is
+      // flushed in between is seen twice rather than not at all.
+      List<Pair<DataBox, BufferedOp>> buffered =
+        getBuffered(lo, loInclusive, hi, hiInclusive, descending);
+      BPlusTreeIterator<T> leaves =
+        new BPlusTreeIterator<>(lo, loInclusive, hi, hiInclusive, descending, copier);
+      if (buffered.isEmpty()) {
+        return leaves;
+      }
+      return new BufferedIterator<>(leaves, buffered, descending, bufferedCopier);
+    }
+
+    /** See scanRangeRids and scanRangeRidsDescending. */
+    private LongIterator scanRids(Optional<DataBox> lo, boolean loInclusive,
+                                  Optional<DataBox> hi, boolean hiInclusive,
+                                  boolean descending) {
+      lo.ifPresent(this::typecheck);
+      hi.ifPresent(this::typecheck);
+      if (getBuffered(lo, loInclusive, hi, hiInclusive, descending).isEmpty()) {
+        return new RidIterator(lo, loInclusive, hi, hiInclusive, descending);
+      }
+      Iterator<RecordId> rids = scan(lo, loInclusive, hi, hiInclusive, descending,
+                                     LeafNode::copyRids, (key, op) -> op.rid);
+      return new LongIterator() {
+        @Override
+        public boolean hasNext() {
+          return rids.hasNext();
+        }
+
+        @Override
+        public long nextLong() {
+          return rids.next().toLong();
         }
+      };
+    }
+
+    /**
+     * Merges the entries of the leaves with the buffered puts and removes of
+     * the same range. A buffered put or remove of a key overrides the entry
+     * of the key on its leaf, if any.
+     */
+    private static class BufferedIterator<T> implements Iterator<T> {
+      private final BPlusTreeIterator<T> leaves;
+      private final Iterator<Pair<DataBox, BufferedOp>> buffered;
+      private final boolean descending;
+      private final BiFunction<DataBox, BufferedOp, T> bufferedCopier;
+
+      private Pair<DataBox, T> nextLeafEntry;
+      private Pair<DataBox, BufferedOp> nextBuffered;
+      private T next;
+
+      BufferedIterator(BPlusTreeIterator<T> leaves, List<Pair<DataBox, BufferedOp>> buffered,
+                       boolean descending, BiFunction<DataBox, BufferedOp, T> bufferedCopier) {
+        this.leaves = leaves;
+        this.buffered = buffered.iterator();
+        this.descending = descending;
+        this.bufferedCopier = bufferedCopier;
+        this.nextLeafEntry = leaves.hasNext() ? leaves.nextEntry() : null;
+        this.nextBuffered = this.buffered.next();
+        advance();
       }
 
+      /** Sets next to the next entry, or to null if there is none. */
       private void advance() {
-        Optional<LeafNode> sibling = leaf.getRightSibling();
-        if (sibling.isPresent()) {
-          this.leaf = sibling.get();
-          this.iter = this.leaf.scanAll();
-          if (!this.iter.hasNext()) {
-            advance();
+        next = null;
+        while (next == null && (nextLeafEntry != null || nextBuffered != null)) {
+          int c;
+          if (nextLeafEntry == null) {
+            c = 1;
+          } else if (nextBuffered == null) {
+            c = -1;
+          } else {
+            c = nextLeafEntry.getFirst().compareTo(nextBuffered.getFirst());
+            c = descending ? -c : c;
           }
-        } else {
-          this.leaf = null;
-          this.iter = null;
+
+          if (c < 0) {
+            next = nextLeafEntry.getSecond();
+            nextLeafEntry = leaves.hasNext() ? leaves.nextEntry() : null;
+            continue;
+          }
+          if (c == 0) {
+            nextLeafEntry = leaves.hasNext() ? leaves.nextEntry() : null;
+          }
+          BufferedOp op = nextBuffered.getSecond();
+          if (op != BufferedOp.REMOVE) {
+            next = bufferedCopier.apply(nextBuffered.getFirst(), op);
+          }
+          nextBuffered = buffered.hasNext() ? buffered.next() : null;
+        }
+      }
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public T next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        T entry = next;
+        advance();
+        return entry;
+      }
+    }
+
+    /**
+     * Walks the leaves of the entries whose keys lie between lo and hi (see
+     * scanRange) leaf by leaf, in ascending order or, if descending is true,
+     * in descending order. So that no latches are held between calls to
+     * next, it copies the entries of one leaf at a time (see the comment
+     * above BPlusTree) with copy, which subclasses implement to determine
+     * what they return. We maintain the following invariants:
+     *
+     *   - done is false if and only if the copied entries aren't used up
+     *   - leaf is the page number of the leaf whose entries were copied
+     *   - nextLeaf is the page number of the next leaf to read, if the range
+     *     may continue past leaf
+     *   - lastKey is the key of the last entry copied, from this or some
+     *     earlier leaf
+     *   - numRebalances was the tree's numRebalances when we read leaf
+     *
+     * If the tree has rebalanced since we read leaf, nextLeaf may have been
+     * merged into another leaf or freed, so we instead find the next leaf
+     * afresh, from the root, by lastKey.
+     */
+    private abstract class LeafIterator {
+      private final Optional<DataBox> lo;
+      private final boolean loInclusive;
+      private final Optional<DataBox> hi;
+      private final boolean hiInclusive;
+      protected final boolean descending;
+
+      protected boolean done = false;
+      private int leaf;
+      private Optional<Integer> nextLeaf;
+      private Optional<DataBox> lastKey = Optional.empty();
+      private long numRebalances;
+
+      LeafIterator(Optional<DataBox> lo, boolean loInclusive,
+                   Optional<DataBox> hi, boolean hiInclusive, boolean descending) {
+        this.lo = lo;
+        this.loInclusive = loInclusive;
+        this.hi = hi;
+        this.hiInclusive = hiInclusive;
+        this.descending = descending;
+      }
+
+      /**
+       * Copies entries [from, to) of leaf, in the order of the scan, for the
+       * subclass to return. The caller holds the latch of leaf.
+       */
+      protected abstract void copy(LeafNode leaf, int from, int to);
+
+      /** Returns whether any of the entries copied last are left. */
+      protected abstract boolean hasCopied();
+
+      /**
+       * Reads the first leaf of the range. Subclasses call start once they
+       * are ready for copy to be called.
+       */
+      protected void start() {
+        long stamp = structureLatch.readLock();
+        try {
+          readLeaf(findLeaf(descending ? hi : lo, descending));
+        } finally {
+          structureLatch.unlockRead(stamp);
+        }
+
+        if (!hasCopied()) {
+          advance();
         }
       }
 
+      /**
+       * Copies the entries of the leaf on page pageNum whose keys lie in the
+       * range. The caller must hold a read lock of structureLatch.
+       */
+      private void readLeaf(int pageNum) {
+        StampedLock latch = metadata.getLatch(pageNum);
+        long stamp = latch.readLock();
+        try {
+          LeafNode node = (LeafNode) BPlusNode.fromBytes(metadata, pageNum);
+          int from = node.lowerIndex(lo, loInclusive);
+          int to = node.upperIndex(hi, hiInclusive);
+
+          // Skip the entries we already returned, which a rebalance may
+          // have moved onto this leaf.
+          if (lastKey.isPresent() && !descending) {
+            from = Math.min(to, Math.max(from, node.lowerIndex(lastKey, false)));
+          } else if (lastKey.isPresent()) {
+            to = Math.max(from, Math.min(to, node.upperIndex(lastKey, false)));
+          }
+          copy(node, from, to);
+
+          // If this leaf has a key past the end of the range, then so does
+          // every leaf after it.
+          if (descending) {
+            this.nextLeaf = from > 0 ? Optional.empty() : node.getLeftSiblingPageNum();
+          } else {
+            this.nextLeaf = to < node.numEntries() ? Optional.empty() : node.getRightSiblingPageNum();
+          }
+          this.leaf = pageNum;
+          if (from < to) {
+            this.lastKey = Optional.of(node.keyAt(descending ? from : to - 1));
+          }
+          this.numRebalances = BPlusTree.this.numRebalances;
+        } finally {
+          latch.unlockRead(stamp);
+        }
+      }
+
+      /**
+       * Returns the right sibling of the leaf on page pageNum. The caller must
+       * hold a read lock of structureLatch.
+       */
+      private Optional<Integer> getRightSibling(int pageNum) {
+        StampedLock latch = metadata.getLatch(pageNum);
+        long stamp = latch.readLock();
+        try {
+          return ((LeafNode) BPlusNode.fromBytes(metadata, pageNum)).getRightSiblingPageNum();
+        } finally {
+          latch.unlockRead(stamp);
+        }
+      }
+
+      /**
+       * Reads leaves until one of them has entries in the range, or sets done
+       * if none does. Subclasses call advance when they use up the entries
+       * they copied.
+       */
+      protected void advance() {
+        while (nextLeaf.isPresent()) {
+          long stamp = structureLatch.readLock();
+          try {
+            int pageNum = nextLeaf.get();
+            if (numRebalances != BPlusTree.this.numRebalances) {
+              pageNum = findLeaf(lastKey.isPresent() ? lastKey : descending ? hi : lo,
+                                 descending);
+            } else if (descending) {
+              // Our left sibling may have split since we read its page
+              // number, in which case the leaf we want is the rightmost of
+              // the leaves it split into.
+              Optional<Integer> right = getRightSibling(pageNum);
+              while (right.isPresent() && right.get() != leaf) {
+                pageNum = right.get();
+                right = getRightSibling(pageNum);
+              }
+            }
+            readLeaf(pageNum);
+          } finally {
+            structureLatch.unlockRead(stamp);
+          }
+          if (hasCopied()) {
+            return;
+          }
+        }
+        this.done = true;
+      }
+    }
+
+    /**
+     * A LeafIterator that returns what copier copies off of each leaf, and
+     * can also pair each of them with its key (see nextEntry).
+     */
+    private class BPlusTreeIterator<T> extends LeafIterator implements Iterator<T> {
+      private final EntryCopier<T> copier;
+      private Iterator<T> iter;
+      private Iterator<DataBox> keys;
+
+      public BPlusTreeIterator(Optional<DataBox> lo, boolean loInclusive,
+                               Optional<DataBox> hi, boolean hiInclusive,
+                               boolean descending, EntryCopier<T> copier) {
+        super(lo, loInclusive, hi, hiInclusive, descending);
+        this.copier = copier;
+        start();
+      }
+
+      @Override
+      protected void copy(LeafNode leaf, int from, int to) {
+        List<T> entries = copier.copy(leaf, from, to);
+        List<DataBox> keys = leaf.copyKeys(from, to);
+        if (descending) {
+          Collections.reverse(entries);
+          Collections.reverse(keys);
+        }
+        this.iter = entries.iterator();
+        this.keys = keys.iterator();
+      }
+
+      @Override
+      protected boolean hasCopied() {
+        return iter.hasNext();
+      }
+
       @Override
       public boolean hasNext() {
-        return iter != null;
+        return !done;
       }
 
       @Override
-      public RecordId next() {
+      public T next() {
         if (!hasNext()) {
           throw new NoSuchElementException();
         }
-        assert(leaf != null);
-        assert(iter != null);
-        assert(iter.hasNext());
+        keys.next();
+        T entry = iter.next();
+        if (!iter.hasNext()) {
+          advance();
+        }
+        return entry;
+      }
 
-        RecordId rid = iter.next();
+      /** Returns the next entry, paired with its key. */
+      public Pair<DataBox, T> nextEntry() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        Pair<DataBox, T> entry = new Pair<>(keys.next(), iter.next());
         if (!iter.hasNext()) {
           advance();
         }
+        return entry;
+      }
+    }
+
+    /**
+     * A LeafIterator over record ids encoded as longs (see RecordId.toLong),
+     * which copies the record ids of each leaf into a single array and
+     * creates no object per entry.
+     */
+    private class RidIterator extends LeafIterator implements LongIterator {
+      private long[] rids;
+      private int index;
+
+      RidIterator(Optional<DataBox> lo, boolean loInclusive,
+                  Optional<DataBox> hi, boolean hiInclusive, boolean descending) {
+        super(lo, loInclusive, hi, hiInclusive, descending);
+        start();
+      }
+
+      @Override
+      protected void copy(LeafNode leaf, int from, int to) {
+        this.rids = leaf.copyRidLongs(from, to);
+        this.index = 0;
+        if (descending) {
+          for (int i = 0, j = rids.length - 1; i < j; ++i, --j) {
+            long rid = rids[i];
+            rids[i] = rids[j];
+            rids[j] = rid;
+          }
+        }
+      }
+
+      @Override
+      protected boolean hasCopied() {
+        return index < rids.length;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return !done;
+      }
+
+      @Override
+      public long nextLong() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        long rid = rids[index++];
+        if (index == rids.length) {
+          advance();
+        }
         return rid;
       }
     }
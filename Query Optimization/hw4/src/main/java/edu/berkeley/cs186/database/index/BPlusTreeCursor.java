@@ -0,0 +1,163 @@
+package edu.berkeley.cs186.database.index;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.Optional;
+
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.Type;
+
+/**
+ * A position in an ascending scan of a B+ tree, from which the scan can be
+ * resumed a page at a time (see BPlusTree.scanPage):
+ *
+ *   BPlusTreeCursor cursor = BPlusTreeCursor.first();
+ *   Pair<List<RecordId>, Optional<BPlusTreeCursor>> page = tree.scanPage(cursor, 100);
+ *   // page.getFirst() holds the first 100 record ids, and page.getSecond()
+ *   // the cursor of the next 100, if there are any.
+ *
+ * A cursor holds the last key it returned, and also the leaf page and slot
+ * of the next entry along with the version of the leaf (see
+ * BPlusTreeMetadata.getLeafVersion) when it was read. If the leaf hasn't
+ * changed since, the scan resumes at that slot without descending the tree
+ * or searching the leaf; if it has, or the slot doesn't follow the key on the
+ * leaf, the scan descends the tree to the first key after the last one
+ * returned, so a cursor is never wrong, only slower.
+ *
+ * Cursors are immutable and serialize to a few bytes (see toBytes), so a
+ * server can hand one to a client and resume the scan from it in a later
+ * request, without keeping any state of its own.
+ */
+public final class BPlusTreeCursor {
+  // The scan returns the entries whose keys are greater than key (or, if
+  // inclusive is true, at least key), or every entry if key is empty.
+  private final Optional<DataBox> key;
+  private final boolean inclusive;
+
+  // Where the scan left off: slot `slot` of the leaf on page leafPageNum,
+  // which had version leafVersion in the tree with epoch `epoch` (see
+  // BPlusTreeMetadata.getEpoch). leafPageNum is -1 if the cursor was not
+  // returned by a scan.
+  private final int leafPageNum;
+  private final int slot;
+  private final long epoch;
+  private final long leafVersion;
+
+  BPlusTreeCursor(Optional<DataBox> key, boolean inclusive, int leafPageNum, int slot,
+                  long epoch, long leafVersion) {
+    this.key = key;
+    this.inclusive = inclusive;
+    this.leafPageNum = leafPageNum;
+    this.slot = slot;
+    this.epoch = epoch;
+    this.leafVersion = leafVersion;
+  }
+
+  /** Returns a cursor at the first entry of a tree. */
+  public static BPlusTreeCursor first() {
+    return new BPlusTreeCursor(Optional.empty(), true, -1, 0, 0, 0);
+  }
+
+  /** Returns a cursor at the first entry of a tree whose key is at least key. */
+  public static BPlusTreeCursor from(DataBox key) {
+    return new BPlusTreeCursor(Optional.of(key), true, -1, 0, 0, 0);
+  }
+
+  /** Returns a cursor at the first entry of a tree whose key is greater than key. */
+  public static BPlusTreeCursor after(DataBox key) {
+    return new BPlusTreeCursor(Optional.of(key), false, -1, 0, 0, 0);
+  }
+
+  public Optional<DataBox> getKey() {
+    return key;
+  }
+
+  public boolean isInclusive() {
+    return inclusive;
+  }
+
+  int getLeafPageNum() {
+    return leafPageNum;
+  }
+
+  int getSlot() {
+    return slot;
+  }
+
+  long getEpoch() {
+    return epoch;
+  }
+
+  long getLeafVersion() {
+    return leafVersion;
+  }
+
+  /**
+   * Returns whether this cursor holds a leaf position of the tree with epoch
+   * `epoch`, which the tree can resume from if the leaf hasn't changed.
+   */
+  boolean hasPosition(long epoch) {
+    return leafPageNum != -1 && this.epoch == epoch;
+  }
+
+  // Serialization ///////////////////////////////////////////////////////////
+  /**
+   * A cursor is serialized as a byte that is 1 if it has a key, the key's
+   * type and the key (if it has one), a byte that is 1 if it is inclusive,
+   * and its leaf page number, slot, epoch, and leaf version.
+   */
+  public byte[] toBytes() {
+    byte[] keyBytes = new byte[0];
+    if (key.isPresent()) {
+      byte[] type = key.get().type().toBytes();
+      byte[] value = key.get().toBytes();
+      keyBytes = ByteBuffer.allocate(type.length + value.length).put(type).put(value).array();
+    }
+    return ByteBuffer.allocate(2 + keyBytes.length + 2 * Integer.BYTES + 2 * Long.BYTES)
+                     .put((byte) (key.isPresent() ? 1 : 0))
+                     .put(keyBytes)
+                     .put((byte) (inclusive ? 1 : 0))
+                     .putInt(leafPageNum)
+                     .putInt(slot)
+                     .putLong(epoch)
+                     .putLong(leafVersion)
+                     .array();
+  }
+
+  public static BPlusTreeCursor fromBytes(ByteBuffer buf) {
+    Optional<DataBox> key = Optional.empty();
+    if (buf.get() == 1) {
+      Type type = Type.fromBytes(buf);
+      key = Optional.of(DataBox.fromBytes(buf, type));
+    }
+    boolean inclusive = buf.get() == 1;
+    int leafPageNum = buf.getInt();
+    int slot = buf.getInt();
+    long epoch = buf.getLong();
+    long leafVersion = buf.getLong();
+    return new BPlusTreeCursor(key, inclusive, leafPageNum, slot, epoch, leafVersion);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("BPlusTreeCursor(%s, %b, %d, %d)", key, inclusive, leafPageNum, slot);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof BPlusTreeCursor)) {
+      return false;
+    }
+    BPlusTreeCursor c = (BPlusTreeCursor) o;
+    return key.equals(c.key) && inclusive == c.inclusive && leafPageNum == c.leafPageNum &&
+           slot == c.slot && epoch == c.epoch && leafVersion == c.leafVersion;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(key, inclusive, leafPageNum, slot, epoch, leafVersion);
+  }
+}
@@ -1,5 +1,14 @@
 package edu.berkeley.cs186.database.index;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
 import edu.berkeley.cs186.database.databox.Type;
 import edu.berkeley.cs186.database.io.PageAllocator;
 
@@ -13,6 +22,11 @@ class BPlusTreeMetadata {
   // keys.
   private final Type keySchema;
 
+  // A covering index also stores the values of some other columns of each
+  // record alongside its key and record id. These are the types of those
+  // included values, in order. Most trees don't include any values.
+  private final List<Type> includedSchema;
+
   // The order of the tree. Given a tree of order d, its inner nodes store
   // between d and 2d keys and between d+1 and 2d+1 children pointers. Leaf
   // nodes store between d and 2d (key, record id) pairs. Notable exceptions
@@ -20,10 +34,56 @@ class BPlusTreeMetadata {
   // may contain fewer than d entries.
   private final int order;
 
+  // Whether the nodes of the tree are compressed (see KeyCompression). A
+  // compressed node holds as many entries as fit on its page, so the order of
+  // a compressed tree does not bound the size of its nodes.
+  private final boolean compressed;
+
+  // The decoded nodes of the tree. See NodeCache.
+  private final NodeCache nodeCache;
+
+  // The latch of every leaf page, keyed by page number. See BPlusTree for the
+  // latching protocol.
+  private final ConcurrentMap<Integer, StampedLock> latches;
+
+  // The version of every leaf page written since the tree was opened, keyed
+  // by page number (see getLeafVersion), and the last version handed out.
+  private final ConcurrentMap<Integer, Long> leafVersions;
+  private final AtomicLong lastLeafVersion;
+
+  // A random number that tells this instance of the tree apart from every
+  // other tree, and from itself once reopened, whose leaf versions start
+  // over. See BPlusTreeCursor.
+  private final long epoch;
+
+  // The number of leaves of the tree and of entries on them (see
+  // IndexStats), which leaves update as they are created, freed, and written.
+  private final AtomicLong numLeaves;
+  private final AtomicLong numKeys;
+
   public BPlusTreeMetadata(PageAllocator allocator, Type keySchema, int order) {
+    this(allocator, keySchema, order, Collections.emptyList(), false);
+  }
+
+  public BPlusTreeMetadata(PageAllocator allocator, Type keySchema, int order,
+                           List<Type> includedSchema) {
+    this(allocator, keySchema, order, includedSchema, false);
+  }
+
+  public BPlusTreeMetadata(PageAllocator allocator, Type keySchema, int order,
+                           List<Type> includedSchema, boolean compressed) {
     this.allocator = allocator;
     this.keySchema = keySchema;
+    this.includedSchema = Collections.unmodifiableList(new ArrayList<>(includedSchema));
     this.order = order;
+    this.compressed = compressed;
+    this.nodeCache = new NodeCache(NodeCache.DEFAULT_LEAF_CAPACITY);
+    this.latches = new ConcurrentHashMap<>();
+    this.leafVersions = new ConcurrentHashMap<>();
+    this.lastLeafVersion = new AtomicLong();
+    this.epoch = ThreadLocalRandom.current().nextLong();
+    this.numLeaves = new AtomicLong();
+    this.numKeys = new AtomicLong();
   }
 
   public PageAllocator getAllocator() {
@@ -34,7 +94,79 @@ class BPlusTreeMetadata {
     return keySchema;
   }
 
+  public List<Type> getIncludedSchema() {
+    return includedSchema;
+  }
+
+  /** Returns the number of bytes of the included values of an entry. */
+  public int getIncludedSizeInBytes() {
+    return getIncludedSizeInBytes(includedSchema);
+  }
+
+  static int getIncludedSizeInBytes(List<Type> includedSchema) {
+    int size = 0;
+    for (Type t : includedSchema) {
+      size += t.getSizeInBytes();
+    }
+    return size;
+  }
+
   public int getOrder() {
     return order;
   }
+
+  public boolean isCompressed() {
+    return compressed;
+  }
+
+  public NodeCache getNodeCache() {
+    return nodeCache;
+  }
+
+  /** Returns the latch of the leaf on page pageNum. */
+  public StampedLock getLatch(int pageNum) {
+    return latches.computeIfAbsent(pageNum, p -> new StampedLock());
+  }
+
+  /**
+   * Returns the version of the leaf on page pageNum, which changes whenever
+   * the leaf is written or its page is freed. Two reads of a leaf that see
+   * the same version see the same leaf.
+   */
+  public long getLeafVersion(int pageNum) {
+    return leafVersions.getOrDefault(pageNum, 0L);
+  }
+
+  /** Gives page pageNum a new leaf version. */
+  void leafWritten(int pageNum) {
+    leafVersions.put(pageNum, lastLeafVersion.incrementAndGet());
+  }
+
+  public long getEpoch() {
+    return epoch;
+  }
+
+  public long getNumLeaves() {
+    return numLeaves.get();
+  }
+
+  public long getNumKeys() {
+    return numKeys.get();
+  }
+
+  /** Adds delta (which may be negative) to the number of leaves. */
+  void addLeaves(long delta) {
+    numLeaves.addAndGet(delta);
+  }
+
+  /** Adds delta (which may be negative) to the number of keys. */
+  void addKeys(long delta) {
+    numKeys.addAndGet(delta);
+  }
+
+  /** Sets the number of leaves and keys, e.g. as read from a tree's header. */
+  void setCounts(long numLeaves, long numKeys) {
+    this.numLeaves.set(numLeaves);
+    this.numKeys.set(numKeys);
+  }
 }
@@ -0,0 +1,192 @@
+package edu.berkeley.cs186.database.index;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Predicate;
+
+import edu.berkeley.cs186.database.common.Pair;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.table.RecordId;
+
+/**
+ * An in-memory bitmap index that maps each distinct value of a column to
+ * the set of record ids of the records that hold it, as a RoaringBitmap:
+ *
+ *   BitmapIndex index = new BitmapIndex(Type.boolType());
+ *   index.put(new BoolDataBox(true), new RecordId(0, (short) 0));
+ *   index.put(new BoolDataBox(true), new RecordId(0, (short) 1));
+ *   index.put(new BoolDataBox(false), new RecordId(1, (short) 0));
+ *   index.get(new BoolDataBox(true)); // {(0, 0), (0, 1)}
+ *
+ * Unlike a BPlusTree, a HashIndex, or an ArtIndex, a bitmap index holds any
+ * number of records per value, which makes it the index of choice for
+ * columns with few distinct values, like flags or categories. Predicates on
+ * several bitmap indexed columns are combined by AND, OR, and AND NOT of
+ * their bitmaps, before a single record is read.
+ *
+ * Nothing is persisted: the owner of an index rebuilds it from its table
+ * when the table is opened (see Database.createBitmapIndex).
+ *
+ * A BitmapIndex can be shared by any number of threads. Lookups run in
+ * parallel with each other, and puts and removes lock the whole index. The
+ * bitmaps that lookups return are copies, which the index doesn't change.
+ */
+public class BitmapIndex implements ColumnIndex {
+  public static final String FILENAME_EXTENSION = ".bitmap";
+
+  private final Type keySchema;
+  private final StampedLock latch = new StampedLock();
+
+  private final Map<DataBox, RoaringBitmap> bitmaps;
+  private long numEntries;
+
+  /** Construct a new, empty index that stores keys of type `keySchema`. */
+  public BitmapIndex(Type keySchema) {
+    this.keySchema = keySchema;
+    this.bitmaps = new HashMap<DataBox, RoaringBitmap>();
+    this.numEntries = 0;
+  }
+
+  // Core API ////////////////////////////////////////////////////////////////
+  /** Returns the record ids of the records whose value is `key`. */
+  public RoaringBitmap get(DataBox key) {
+    typecheck(key);
+    long stamp = latch.readLock();
+    try {
+      RoaringBitmap bitmap = bitmaps.get(key);
+      return bitmap == null ? new RoaringBitmap() : bitmap.copy();
+    } finally {
+      latch.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Returns the record ids of the records whose value satisfies `predicate`,
+   * the OR of the bitmaps of every such value. The predicate is tested once
+   * per distinct value in the index.
+   */
+  public RoaringBitmap getMatching(Predicate<DataBox> predicate) {
+    long stamp = latch.readLock();
+    try {
+      RoaringBitmap result = new RoaringBitmap();
+      for (Map.Entry<DataBox, RoaringBitmap> entry : bitmaps.entrySet()) {
+        if (predicate.test(entry.getKey())) {
+          result = result.or(entry.getValue());
+        }
+      }
+      return result;
+    } finally {
+      latch.unlockRead(stamp);
+    }
+  }
+
+  /** Returns the record ids of every record in the index. */
+  public RoaringBitmap getAll() {
+    return getMatching(key -> true);
+  }
+
+  /**
+   * Inserts a (key, rid) pair into the index.
+   *
+   * @throws BitmapIndexException if rid is already in the index under key
+   */
+  @Override
+  public void put(DataBox key, RecordId rid) throws BitmapIndexException {
+    typecheck(key);
+    long stamp = latch.writeLock();
+    try {
+      RoaringBitmap bitmap = bitmaps.computeIfAbsent(key, k -> new RoaringBitmap());
+      if (bitmap.contains(rid)) {
+        throw new BitmapIndexException(String.format("Duplicate entry (%s, %s).", key, rid));
+      }
+      bitmap.add(rid);
+      ++numEntries;
+    } finally {
+      latch.unlockWrite(stamp);
+    }
+  }
+
+  /** Removes the (key, rid) pair from the index, if it is there. */
+  @Override
+  public void remove(DataBox key, RecordId rid) {
+    typecheck(key);
+    long stamp = latch.writeLock();
+    try {
+      RoaringBitmap bitmap = bitmaps.get(key);
+      if (bitmap != null && bitmap.contains(rid)) {
+        bitmap.remove(rid);
+        --numEntries;
+        if (bitmap.isEmpty()) {
+          bitmaps.remove(key);
+        }
+      }
+    } finally {
+      latch.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Moves the record id of each key of keys from the first to the second
+   * record id of the matching pair of moves, e.g. after Table.compact moved
+   * their records. Pairs that are not in the index are ignored.
+   */
+  @Override
+  public void updateRids(List<DataBox> keys, List<Pair<RecordId, RecordId>> moves) {
+    long stamp = latch.writeLock();
+    try {
+      // Every old record id is removed before any new one is added, so a
+      // record may move into a slot that another one moved out of.
+      boolean[] moved = new boolean[keys.size()];
+      for (int i = 0; i < keys.size(); i++) {
+        typecheck(keys.get(i));
+        RoaringBitmap bitmap = bitmaps.get(keys.get(i));
+        if (bitmap != null && bitmap.contains(moves.get(i).getFirst())) {
+          bitmap.remove(moves.get(i).getFirst());
+          moved[i] = true;
+        }
+      }
+      for (int i = 0; i < keys.size(); i++) {
+        if (moved[i]) {
+          bitmaps.computeIfAbsent(keys.get(i), k -> new RoaringBitmap())
+                 .add(moves.get(i).getSecond());
+        }
+      }
+    } finally {
+      latch.unlockWrite(stamp);
+    }
+  }
+
+  public Type getKeySchema() {
+    return keySchema;
+  }
+
+  /** Returns the number of distinct keys in the index. */
+  public int getNumKeys() {
+    long stamp = latch.readLock();
+    try {
+      return bitmaps.size();
+    } finally {
+      latch.unlockRead(stamp);
+    }
+  }
+
+  /** Returns the number of (key, rid) pairs in the index. */
+  public long size() {
+    long stamp = latch.readLock();
+    try {
+      return numEntries;
+    } finally {
+      latch.unlockRead(stamp);
+    }
+  }
+
+  private void typecheck(DataBox key) {
+    if (!key.type().equals(keySchema)) {
+      String msg = String.format("DataBox %s is not of type %s", key, keySchema);
+      throw new IllegalArgumentException(msg);
+    }
+  }
+}
@@ -0,0 +1,11 @@
+package edu.berkeley.cs186.database.index;
+
+public class BitmapIndexException extends IndexException {
+  public BitmapIndexException() {
+    super();
+  }
+
+  public BitmapIndexException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,344 @@
+package edu.berkeley.cs186.database.index;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.NormalizedKey;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.io.PageAllocator;
+
+/**
+ * A persistent Bloom filter over the values of a single column. A Bloom
+ * filter answers "might this key have been added?" with no false negatives
+ * and a tunable rate of false positives, in far less room than an index:
+ *
+ *   // A filter for about 1000 integers with a 1% false positive rate,
+ *   // persisted in column.bloom.
+ *   BloomFilter filter = new BloomFilter("column.bloom", Type.intType(), 1000, 0.01);
+ *   filter.add(new IntDataBox(42));
+ *   filter.mightContain(new IntDataBox(42)); // true
+ *   filter.mightContain(new IntDataBox(7));  // false, or true 1% of the time
+ *
+ * So a lookup of a key that the filter has never seen can be answered
+ * without reading an index or a table at all.
+ *
+ * # Layout
+ * The filter is an array of m bits, where m is chosen to make a filter
+ * holding the expected number of keys n have false positive rate p:
+ * m = -n ln p / (ln 2)^2. Adding a key sets k = (m / n) ln 2 of the bits,
+ * picked by hashing the normalized encoding of the key (see NormalizedKey),
+ * and a key might have been added only if all k of its bits are set.
+ *
+ * Page 0 is a header page that holds the key schema, p, n, k, m, the
+ * number of keys added and of keys marked stale, and the page numbers of
+ * the pages that the bits are stored on. The bits are also kept in memory,
+ * so mightContain reads no pages.
+ *
+ * Keys can't be taken out of a Bloom filter, since their bits may be shared
+ * with other keys. When a key is removed from the column, the filter is
+ * instead marked stale (see markStale), and keeps answering true for the
+ * key until it is rebuilt from the column's current values (see rebuild).
+ * A filter that was added more keys than it expected should be rebuilt as
+ * well, since its false positive rate grows with every key past n.
+ *
+ * Every method is synchronized, so a BloomFilter can be shared by any number
+ * of threads.
+ */
+public class BloomFilter {
+  public static final String FILENAME_EXTENSION = ".bloom";
+
+  // The header page holds the key schema (two ints), the false positive
+  // rate, the expected number of keys, the number of hash functions, the
+  // number of bits, the numbers of keys added and marked stale, the number
+  // of bit pages, and their page numbers.
+  private static final int HEADER_PAGE_NUM = 0;
+  private static final int NUM_KEYS_OFFSET = 2 * Integer.BYTES + Double.BYTES + 3 * Integer.BYTES;
+  private static final int HEADER_SIZE = NUM_KEYS_OFFSET + 3 * Integer.BYTES;
+  private static final int MAX_BIT_PAGES = (Page.pageSize - HEADER_SIZE) / Integer.BYTES;
+  private static final long BITS_PER_PAGE = 8L * Page.pageSize;
+
+  private final PageAllocator allocator;
+  private final Type keySchema;
+  private final double falsePositiveRate;
+
+  private int expectedKeys;
+  private int numHashes;
+  private int numBits;
+  private int numKeys;
+  private int numStale;
+  private byte[] bits;
+  private List<Integer> bitPages;
+
+  // Constructors ////////////////////////////////////////////////////////////
+  /**
+   * Construct a new, empty Bloom filter which is serialized into the file
+   * `filename`, holds keys of type `keySchema`, and is sized to have a false
+   * positive rate of falsePositiveRate once it holds expectedKeys keys.
+   */
+  public BloomFilter(String filename, Type keySchema, int expectedKeys,
+                     double falsePositiveRate) {
+    if (expectedKeys < 1) {
+      String msg = String.format("Invalid expected number of keys %d.", expectedKeys);
+      throw new IllegalArgumentException(msg);
+    }
+    if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+      String msg = String.format("Invalid false positive rate %f.", falsePositiveRate);
+      throw new IllegalArgumentException(msg);
+    }
+    this.allocator = new PageAllocator(filename, true /* wipe */);
+    this.keySchema = keySchema;
+    this.falsePositiveRate = falsePositiveRate;
+    this.bitPages = new ArrayList<>();
+
+    int headerPageNum = allocator.allocPage();
+    assert(headerPageNum == HEADER_PAGE_NUM);
+    resize(expectedKeys);
+  }
+
+  /** Read a Bloom filter that was previously serialized to filename. */
+  public BloomFilter(String filename) {
+    this.allocator = new PageAllocator(filename, false /* wipe */);
+    ByteBuffer buf = allocator.fetchPage(HEADER_PAGE_NUM).getByteBuffer().duplicate();
+    this.keySchema = Type.fromBytes(buf);
+    this.falsePositiveRate = buf.getDouble();
+    this.expectedKeys = buf.getInt();
+    this.numHashes = buf.getInt();
+    this.numBits = buf.getInt();
+    this.numKeys = buf.getInt();
+    this.numStale = buf.getInt();
+    int numBitPages = buf.getInt();
+    this.bitPages = new ArrayList<>();
+    for (int i = 0; i < numBitPages; ++i) {
+      bitPages.add(buf.getInt());
+    }
+
+    this.bits = new byte[numBytes(numBits)];
+    for (int p = 0; p < numBitPages; ++p) {
+      ByteBuffer page = allocator.fetchPage(bitPages.get(p)).getByteBuffer().duplicate();
+      int from = p * Page.pageSize;
+      page.get(bits, from, Math.min(Page.pageSize, bits.length - from));
+    }
+  }
+
+  // Core API ////////////////////////////////////////////////////////////////
+  /** Adds `key` to the filter. */
+  public synchronized void add(DataBox key) {
+    typecheck(key);
+    long h = hash(NormalizedKey.encode(key));
+    for (int i = 0; i < numHashes; ++i) {
+      setBit(bitIndex(h, i));
+    }
+    ++numKeys;
+    writeCounts();
+  }
+
+  /**
+   * Returns false if `key` was definitely never added to the filter, and
+   * true if it might have been.
+   */
+  public synchronized boolean mightContain(DataBox key) {
+    typecheck(key);
+    long h = hash(NormalizedKey.encode(key));
+    for (int i = 0; i < numHashes; ++i) {
+      int bit = bitIndex(h, i);
+      if ((bits[bit >>> 3] & (1 << (bit & 7))) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Records that a key that was added to the filter has since been removed
+   * from the column that the filter is over (e.g. its record was deleted or
+   * updated), so that the filter keeps answering true for it until it is
+   * rebuilt.
+   */
+  public synchronized void markStale() {
+    ++numStale;
+    writeCounts();
+  }
+
+  /**
+   * Returns true if the filter answers true for keys that were removed from
+   * its column, or holds more keys than it was sized for.
+   */
+  public synchronized boolean needsRebuild() {
+    return numStale > 0 || numKeys > expectedKeys;
+  }
+
+  /**
+   * Clears the filter, resizes it to have its false positive rate once it
+   * holds expectedKeys keys, and adds `keys` to it.
+   */
+  public synchronized void rebuild(Iterator<DataBox> keys, int expectedKeys) {
+    if (expectedKeys < 1) {
+      String msg = String.format("Invalid expected number of keys %d.", expectedKeys);
+      throw new IllegalArgumentException(msg);
+    }
+    resize(expectedKeys);
+    while (keys.hasNext()) {
+      add(keys.next());
+    }
+  }
+
+  /** Closes the file of the filter. The filter can't be used afterwards. */
+  public synchronized void close() {
+    allocator.close();
+  }
+
+  // Helpers /////////////////////////////////////////////////////////////////
+  /**
+   * Returns the number of bits of a filter that holds n keys with a false
+   * positive rate of p: -n ln p / (ln 2)^2, but at least 64.
+   */
+  public static long optimalNumBits(int n, double p) {
+    double m = -n * Math.log(p) / (Math.log(2) * Math.log(2));
+    return Math.max(64, (long) Math.ceil(m));
+  }
+
+  /**
+   * Returns the number of hash functions that minimizes the false positive
+   * rate of a filter of m bits that holds n keys: (m / n) ln 2, but at least
+   * 1.
+   */
+  public static int optimalNumHashes(long m, int n) {
+    return Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+  }
+
+  public Type getKeySchema() {
+    return keySchema;
+  }
+
+  public double getFalsePositiveRate() {
+    return falsePositiveRate;
+  }
+
+  public synchronized int getExpectedKeys() {
+    return expectedKeys;
+  }
+
+  public synchronized int getNumHashes() {
+    return numHashes;
+  }
+
+  public synchronized int getNumBits() {
+    return numBits;
+  }
+
+  /** Returns the number of keys added since the filter was last rebuilt. */
+  public synchronized int getNumKeys() {
+    return numKeys;
+  }
+
+  /** Returns the number of keys marked stale since the filter was last rebuilt. */
+  public synchronized int getNumStale() {
+    return numStale;
+  }
+
+  private void typecheck(DataBox key) {
+    if (!key.type().equals(keySchema)) {
+      String msg = String.format("DataBox %s is not of type %s", key, keySchema);
+      throw new IllegalArgumentException(msg);
+    }
+  }
+
+  /**
+   * Clears the filter and sizes it for expectedKeys keys. A filter never
+   * grows past the bit pages the header has room for; a filter that would
+   * has a higher false positive rate than asked for instead.
+   */
+  private void resize(int expectedKeys) {
+    long m = Math.min(optimalNumBits(expectedKeys, falsePositiveRate),
+                      MAX_BIT_PAGES * BITS_PER_PAGE);
+    this.expectedKeys = expectedKeys;
+    this.numBits = (int) Math.min(Integer.MAX_VALUE - 7, m);
+    this.numHashes = optimalNumHashes(numBits, expectedKeys);
+    this.numKeys = 0;
+    this.numStale = 0;
+    this.bits = new byte[numBytes(numBits)];
+
+    int numBitPages = (bits.length + Page.pageSize - 1) / Page.pageSize;
+    while (bitPages.size() < numBitPages) {
+      bitPages.add(allocator.allocPage());
+    }
+    while (bitPages.size() > numBitPages) {
+      allocator.freePage(bitPages.remove(bitPages.size() - 1));
+    }
+    for (int pageNum : bitPages) {
+      ByteBuffer buf = allocator.fetchPage(pageNum).getByteBuffer();
+      buf.put(new byte[Page.pageSize]);
+    }
+    writeHeader();
+  }
+
+  private static int numBytes(int numBits) {
+    return (numBits + 7) / 8;
+  }
+
+  /**
+   * Returns the 64-bit hash of an encoded key: FNV-1a, followed by the
+   * finalizer of MurmurHash3 to mix every input bit into both halves.
+   */
+  private static long hash(byte[] key) {
+    long h = 0xcbf29ce484222325L;
+    for (byte b : key) {
+      h ^= b & 0xff;
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * Returns the ith bit of the key with hash h. The k bits of a key are
+   * derived from the two halves h1 and h2 of its hash as h1 + i * h2 (see
+   * Kirsch and Mitzenmacher, "Less Hashing, Same Performance"), which is as
+   * good as k independent hashes.
+   */
+  private int bitIndex(long h, int i) {
+    int combined = (int) h + i * (int) (h >>> 32);
+    if (combined < 0) {
+      combined = ~combined;
+    }
+    return combined % numBits;
+  }
+
+  /** Sets bit i, in memory and on its page. */
+  private void setBit(int i) {
+    int b = i >>> 3;
+    bits[b] |= (byte) (1 << (i & 7));
+    ByteBuffer buf = allocator.fetchPage(bitPages.get(b / Page.pageSize)).getByteBuffer();
+    buf.put(b % Page.pageSize, bits[b]);
+  }
+
+  /** Writes the numbers of keys added and marked stale to the header page. */
+  private void writeCounts() {
+    ByteBuffer buf = allocator.fetchPage(HEADER_PAGE_NUM).getByteBuffer();
+    buf.putInt(NUM_KEYS_OFFSET, numKeys);
+    buf.putInt(NUM_KEYS_OFFSET + Integer.BYTES, numStale);
+  }
+
+  private void writeHeader() {
+    ByteBuffer buf = allocator.fetchPage(HEADER_PAGE_NUM).getByteBuffer();
+    buf.put(keySchema.toBytes());
+    buf.putDouble(falsePositiveRate);
+    buf.putInt(expectedKeys);
+    buf.putInt(numHashes);
+    buf.putInt(numBits);
+    buf.putInt(numKeys);
+    buf.putInt(numStale);
+    buf.putInt(bitPages.size());
+    for (int pageNum : bitPages) {
+      buf.putInt(pageNum);
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package edu.berkeley.cs186.database.index;
+
+import java.util.List;
+
+import edu.berkeley.cs186.database.common.Pair;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.table.RecordId;
+
+/**
+ * An index on a single column of a table that maps each key to the record
+ * ids of the records that hold it. HashIndex, ArtIndex, and BitmapIndex are
+ * column indexes, so their owner (see Database) can keep all of them in sync
+ * with a table's records the same way:
+ *
+ *   for (ColumnIndex index : indexes) {
+ *     index.put(values.get(column), rid);
+ *   }
+ *
+ * BPlusTrees (which may be composite or covering) and BloomFilters (which
+ * can't remove keys) are not column indexes.
+ */
+public interface ColumnIndex {
+  /**
+   * Inserts a (key, rid) pair into the index.
+   *
+   * @throws IndexException if the index can't hold the pair, e.g. because a
+   * unique index already holds key
+   */
+  void put(DataBox key, RecordId rid) throws IndexException;
+
+  /** Removes the (key, rid) pair from the index, if it is there. */
+  void remove(DataBox key, RecordId rid);
+
+  /**
+   * Moves the record id of each key of keys from the first to the second
+   * record id of the matching pair of moves, e.g. after Table.compact moved
+   * their records. Pairs that are not in the index are ignored.
+   */
+  void updateRids(List<DataBox> keys, List<Pair<RecordId, RecordId>> moves);
+}
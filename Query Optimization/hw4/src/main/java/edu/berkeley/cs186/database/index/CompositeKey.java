@@ -0,0 +1,110 @@
+package edu.berkeley.cs186.database.index;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import edu.berkeley.cs186.database.databox.BytesDataBox;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.NormalizedKey;
+import edu.berkeley.cs186.database.databox.Type;
+
+/**
+ * The keys of a multi-column (composite) index. A composite key is the
+ * concatenation of the normalized encodings (see NormalizedKey) of the values
+ * of its columns, stored as a BytesDataBox. Composite keys therefore sort by
+ * their first column, then their second, and so on, and a B+ tree over them
+ * is an ordinary B+ tree of binary keys:
+ *
+ *   List<Type> columns = Arrays.asList(Type.intType(), Type.stringType(3));
+ *   BPlusTree tree = new BPlusTree("tree.txt", CompositeKey.type(columns), 2);
+ *   tree.put(CompositeKey.of(Arrays.asList(new IntDataBox(2004),
+ *                                          new StringDataBox("BOS", 3))),
+ *            new RecordId(0, (short) 0));
+ *
+ * Every key that starts with the same values of its first k columns lies in
+ * a single contiguous range of the tree, which is what lets BPlusTree.scanPrefix
+ * answer an equality predicate on each of the first k columns, plus a range
+ * predicate on column k + 1, with a single range scan.
+ */
+public class CompositeKey {
+  /** Returns the type of the composite keys of the columns `columns`. */
+  public static Type type(List<Type> columns) {
+    int size = 0;
+    for (Type t : columns) {
+      size += t.getSizeInBytes();
+    }
+    return Type.bytesType(size);
+  }
+
+  /** Returns the composite key of values, in column order. */
+  public static DataBox of(List<DataBox> values) {
+    return new BytesDataBox(NormalizedKey.encode(values));
+  }
+
+  /** Returns the values of the columns `columns` of the composite key `key`. */
+  public static List<DataBox> decode(DataBox key, List<Type> columns) {
+    ByteBuffer buf = ByteBuffer.wrap(key.getBytes());
+    List<DataBox> values = new ArrayList<>(columns.size());
+    for (Type t : columns) {
+      values.add(NormalizedKey.decode(buf, t));
+    }
+    return values;
+  }
+
+  /**
+   * Returns the smallest composite key of type `type` that starts with the
+   * values `prefix` followed by a value of the next column that is at least
+   * (or, if inclusive is false, greater than) lo. An empty lo does not bound
+   * the next column. Returns empty if there is no such key.
+   */
+  static Optional<DataBox> lowerBound(Type type, List<DataBox> prefix,
+                                      Optional<DataBox> lo, boolean inclusive) {
+    byte[] bytes = encode(prefix, lo);
+    if (lo.isPresent() && !inclusive) {
+      // Every key that starts with bytes is at most bytes padded with 0xFF,
+      // so the least key past them is the successor of bytes padded with 0.
+      int i = bytes.length - 1;
+      while (i >= 0 && bytes[i] == (byte) 0xFF) {
+        --i;
+      }
+      if (i < 0) {
+        return Optional.empty();
+      }
+      bytes = Arrays.copyOf(bytes, i + 1);
+      ++bytes[i];
+    }
+    return Optional.of(pad(bytes, type, (byte) 0));
+  }
+
+  /**
+   * Returns the largest composite key of type `type` that starts with the
+   * values `prefix` followed by a value of the next column that is at most
+   * hi, if inclusive is true, and otherwise the least key that starts with
+   * prefix and a value of the next column that is at least hi. An empty hi
+   * does not bound the next column.
+   */
+  static DataBox upperBound(Type type, List<DataBox> prefix,
+                            Optional<DataBox> hi, boolean inclusive) {
+    byte pad = !hi.isPresent() || inclusive ? (byte) 0xFF : (byte) 0;
+    return pad(encode(prefix, hi), type, pad);
+  }
+
+  private static byte[] encode(List<DataBox> prefix, Optional<DataBox> next) {
+    List<DataBox> values = new ArrayList<>(prefix);
+    next.ifPresent(values::add);
+    return NormalizedKey.encode(values);
+  }
+
+  private static DataBox pad(byte[] bytes, Type type, byte pad) {
+    if (bytes.length > type.getSizeInBytes()) {
+      String msg = String.format("The values are wider than the composite key type %s.", type);
+      throw new IllegalArgumentException(msg);
+    }
+    byte[] key = Arrays.copyOf(bytes, type.getSizeInBytes());
+    Arrays.fill(key, bytes.length, key.length, pad);
+    return new BytesDataBox(key);
+  }
+}
@@ -0,0 +1,406 @@
+package edu.berkeley.cs186.database.index;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+
+import edu.berkeley.cs186.database.common.Pair;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.NormalizedKey;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.io.PageAllocator;
+import edu.berkeley.cs186.database.table.RecordId;
+
+/**
+ * A persistent extendible hash index that maps unique keys to record ids.
+ * Unlike a BPlusTree, a hash index only answers equality lookups, but it
+ * answers each one by reading a single page:
+ *
+ *   // Create an integer-valued hash index that is persisted in index.hash.
+ *   HashIndex index = new HashIndex("index.hash", Type.intType());
+ *   index.put(new IntDataBox(42), new RecordId(0, (short) 0));
+ *   index.get(new IntDataBox(42)); // Optional.of(RecordId(0, 0))
+ *   index.get(new IntDataBox(7));  // Optional.empty()
+ *
+ * # Layout
+ * Entries are stored in bucket pages. A bucket page holds its local depth,
+ * its number of entries, and then its entries, each of which is the
+ * normalized encoding of a key (see NormalizedKey) followed by the page
+ * number and entry number of its record id.
+ *
+ * The directory is an array of 2^d bucket page numbers, where d is the
+ * global depth of the index. A key lives in the bucket that the low d bits
+ * of its hash index in the directory. A bucket of local depth l <= d holds
+ * every key whose hash ends in the same l bits, so 2^(d - l) slots of the
+ * directory point to it.
+ *
+ * When a put overflows a bucket of local depth l, the bucket is split into
+ * two buckets of local depth l + 1 by bit l of the hashes of its keys, and
+ * the slots of the directory that pointed to it are divided between the
+ * two. If l = d, the directory is first doubled (and d incremented) by
+ * appending a copy of itself. Splits only ever touch one bucket, so the
+ * index grows a page at a time rather than by rehashing every entry.
+ * Buckets are never merged; a remove only makes room for later puts.
+ *
+ * Page 0 is a header page that holds the key schema, the global depth, and
+ * the page numbers of the pages that the directory is stored on. The
+ * directory is also kept in memory, so a lookup reads nothing but the page
+ * of its bucket.
+ *
+ * Every method is synchronized, so a HashIndex can be shared by any number
+ * of threads.
+ */
+public class HashIndex implements ColumnIndex {
+  public static final String FILENAME_EXTENSION = ".hash";
+
+  // The header page holds the key schema (two ints), the global depth, the
+  // number of directory pages, and their page numbers.
+  private static final int HEADER_PAGE_NUM = 0;
+  private static final int HEADER_SIZE = 4 * Integer.BYTES;
+  private static final int MAX_DIRECTORY_PAGES = (Page.pageSize - HEADER_SIZE) / Integer.BYTES;
+  private static final int DIRECTORY_SLOTS_PER_PAGE = Page.pageSize / Integer.BYTES;
+  // The largest global depth whose directory fits on MAX_DIRECTORY_PAGES.
+  private static final int MAX_GLOBAL_DEPTH =
+    31 - Integer.numberOfLeadingZeros(MAX_DIRECTORY_PAGES * DIRECTORY_SLOTS_PER_PAGE);
+
+  // A bucket page holds its local depth and number of entries.
+  private static final int BUCKET_HEADER_SIZE = 2 * Integer.BYTES;
+
+  private final PageAllocator allocator;
+  private final Type keySchema;
+  private final int entrySize;
+  private final int bucketCapacity;
+
+  private int globalDepth;
+  private int[] directory;
+  private List<Integer> directoryPages;
+
+  // Constructors ////////////////////////////////////////////////////////////
+  /**
+   * Construct a new, empty hash index which is serialized into the file
+   * `filename` and stores keys of type `keySchema`.
+   */
+  public HashIndex(String filename, Type keySchema) {
+    this.allocator = new PageAllocator(filename, true /* wipe */);
+    this.keySchema = keySchema;
+    this.entrySize = keySchema.getSizeInBytes() + RecordId.getSizeInBytes();
+    this.bucketCapacity = bucketCapacity(Page.pageSize, keySchema);
+
+    int headerPageNum = allocator.allocPage();
+    assert(headerPageNum == HEADER_PAGE_NUM);
+    int bucketPageNum = allocator.allocPage();
+    writeBucket(bucketPageNum, new Bucket(0));
+
+    this.globalDepth = 0;
+    this.directory = new int[] {bucketPageNum};
+    this.directoryPages = new ArrayList<>();
+    writeDirectory();
+  }
+
+  /** Read a hash index that was previously serialized to filename. */
+  public HashIndex(String filename) {
+    this.allocator = new PageAllocator(filename, false /* wipe */);
+    ByteBuffer buf = allocator.fetchPage(HEADER_PAGE_NUM).getByteBuffer().duplicate();
+    this.keySchema = Type.fromBytes(buf);
+    this.entrySize = keySchema.getSizeInBytes() + RecordId.getSizeInBytes();
+    this.bucketCapacity = bucketCapacity(Page.pageSize, keySchema);
+
+    this.globalDepth = buf.getInt();
+    int numDirectoryPages = buf.getInt();
+    this.directoryPages = new ArrayList<>();
+    for (int i = 0; i < numDirectoryPages; ++i) {
+      directoryPages.add(buf.getInt());
+    }
+    this.directory = new int[1 << globalDepth];
+    for (int i = 0; i < directory.length; ++i) {
+      Page page = allocator.fetchPage(directoryPages.get(i / DIRECTORY_SLOTS_PER_PAGE));
+      directory[i] = page.getByteBuffer().getInt((i % DIRECTORY_SLOTS_PER_PAGE) * Integer.BYTES);
+    }
+  }
+
+  // Core API ////////////////////////////////////////////////////////////////
+  /** Returns the record id associated with `key`, if any. */
+  public synchronized Optional<RecordId> get(DataBox key) {
+    typecheck(key);
+    byte[] k = NormalizedKey.encode(key);
+    Bucket bucket = readBucket(directory[slot(hash(k))]);
+    int i = bucket.indexOf(k);
+    return i == -1 ? Optional.empty() : Optional.of(bucket.rids.get(i));
+  }
+
+  /**
+   * scanEqual(k) is equivalent to get(k) except that it returns an iterator
+   * instead of an Optional, like BPlusTree.scanEqual.
+   */
+  public Iterator<RecordId> scanEqual(DataBox key) {
+    Optional<RecordId> rid = get(key);
+    return rid.isPresent()
+      ? Collections.singletonList(rid.get()).iterator()
+      : Collections.<RecordId>emptyIterator();
+  }
+
+  /**
+   * Inserts a (key, rid) pair into the index, splitting the key's bucket
+   * (and doubling the directory) as many times as it takes to make room.
+   *
+   * @throws HashIndexException if the key is already in the index, or if so
+   * many keys share the low bits of their hashes that the directory would
+   * outgrow its pages
+   */
+  @Override
+  public synchronized void put(DataBox key, RecordId rid) throws HashIndexException {
+    typecheck(key);
+    byte[] k = NormalizedKey.encode(key);
+    int h = hash(k);
+    while (true) {
+      int pageNum = directory[slot(h)];
+      Bucket bucket = readBucket(pageNum);
+      if (bucket.indexOf(k) != -1) {
+        String msg = String.format("Duplicate key %s in hash index.", key);
+        throw new HashIndexException(msg);
+      }
+      if (bucket.keys.size() < bucketCapacity) {
+        writeEntry(pageNum, bucket.keys.size(), k, rid);
+        return;
+      }
+      split(pageNum, bucket);
+    }
+  }
+
+  /** Removes `key` and its record id from the index, if it is there. */
+  public synchronized void remove(DataBox key) {
+    typecheck(key);
+    byte[] k = NormalizedKey.encode(key);
+    int pageNum = directory[slot(hash(k))];
+    Bucket bucket = readBucket(pageNum);
+    int i = bucket.indexOf(k);
+    if (i == -1) {
+      return;
+    }
+    // Move the last entry into the hole.
+    int last = bucket.keys.size() - 1;
+    writeEntry(pageNum, i, bucket.keys.get(last), bucket.rids.get(last));
+    allocator.fetchPage(pageNum).getByteBuffer().putInt(Integer.BYTES, last);
+  }
+
+  /**
+   * Removes `key` and its record id from the index, if it is there. A key
+   * has at most one record id, so rid is ignored.
+   */
+  @Override
+  public synchronized void remove(DataBox key, RecordId rid) {
+    remove(key);
+  }
+
+  /**
+   * Replaces the record id of each key in entries with the record id it is
+   * paired with, e.g. after the records of a table are moved. Keys that are
+   * not in the index are ignored.
+   */
+  public synchronized void updateRids(List<Pair<DataBox, RecordId>> entries) {
+    for (Pair<DataBox, RecordId> entry : entries) {
+      typecheck(entry.getFirst());
+      byte[] k = NormalizedKey.encode(entry.getFirst());
+      int pageNum = directory[slot(hash(k))];
+      int i = readBucket(pageNum).indexOf(k);
+      if (i != -1) {
+        writeEntry(pageNum, i, k, entry.getSecond());
+      }
+    }
+  }
+
+  /**
+   * Same as updateRids(entries), for the keys of the records moved by moves.
+   * Unlike BitmapIndex.updateRids, the first record id of each move is
+   * ignored, since a key has at most one record id.
+   */
+  @Override
+  public synchronized void updateRids(List<DataBox> keys, List<Pair<RecordId, RecordId>> moves) {
+    List<Pair<DataBox, RecordId>> entries = new ArrayList<>(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      entries.add(new Pair<>(keys.get(i), moves.get(i).getSecond()));
+    }
+    updateRids(entries);
+  }
+
+  /** Closes the file of the index. The index can't be used afterwards. */
+  public synchronized void close() {
+    allocator.close();
+  }
+
+  // Helpers /////////////////////////////////////////////////////////////////
+  /**
+   * Returns the number of entries that fit on a bucket page of
+   * pageSizeInBytes bytes in an index with keys of type keySchema.
+   */
+  public static int bucketCapacity(int pageSizeInBytes, Type keySchema) {
+    int entrySize = keySchema.getSizeInBytes() + RecordId.getSizeInBytes();
+    return (pageSizeInBytes - BUCKET_HEADER_SIZE) / entrySize;
+  }
+
+  public Type getKeySchema() {
+    return keySchema;
+  }
+
+  public synchronized int getGlobalDepth() {
+    return globalDepth;
+  }
+
+  public synchronized int getNumPages() {
+    return allocator.getNumPages();
+  }
+
+  private void typecheck(DataBox key) {
+    if (!key.type().equals(keySchema)) {
+      String msg = String.format("DataBox %s is not of type %s", key, keySchema);
+      throw new IllegalArgumentException(msg);
+    }
+  }
+
+  /**
+   * Returns the hash of an encoded key. The finalizer of MurmurHash3 mixes
+   * every bit of Arrays.hashCode into the low bits that index the directory,
+   * which keeps keys that differ only in their high bytes (e.g. consecutive
+   * integers, whose encodings end alike) from piling into one bucket.
+   */
+  private static int hash(byte[] key) {
+    int h = Arrays.hashCode(key);
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  /** Returns the slot of the directory of the key with hash h. */
+  private int slot(int h) {
+    return h & ((1 << globalDepth) - 1);
+  }
+
+  /**
+   * Splits the full bucket on page pageNum, whose contents are bucket, in
+   * two by the next bit of the hashes of its keys.
+   */
+  private void split(int pageNum, Bucket bucket) throws HashIndexException {
+    if (bucket.localDepth == globalDepth) {
+      if (globalDepth == MAX_GLOBAL_DEPTH) {
+        throw new HashIndexException("The directory of the hash index is full.");
+      }
+      int n = directory.length;
+      directory = Arrays.copyOf(directory, 2 * n);
+      System.arraycopy(directory, 0, directory, n, n);
+      ++globalDepth;
+    }
+
+    int bit = 1 << bucket.localDepth;
+    Bucket zeros = new Bucket(bucket.localDepth + 1);
+    Bucket ones = new Bucket(bucket.localDepth + 1);
+    for (int i = 0; i < bucket.keys.size(); ++i) {
+      Bucket b = (hash(bucket.keys.get(i)) & bit) == 0 ? zeros : ones;
+      b.keys.add(bucket.keys.get(i));
+      b.rids.add(bucket.rids.get(i));
+    }
+
+    int onesPageNum = allocator.allocPage();
+    writeBucket(pageNum, zeros);
+    writeBucket(onesPageNum, ones);
+    for (int i = 0; i < directory.length; ++i) {
+      if (directory[i] == pageNum && (i & bit) != 0) {
+        directory[i] = onesPageNum;
+      }
+    }
+    writeDirectory();
+  }
+
+  /** Writes the directory to its pages, and the header page. */
+  private void writeDirectory() {
+    int numPages = (directory.length + DIRECTORY_SLOTS_PER_PAGE - 1) / DIRECTORY_SLOTS_PER_PAGE;
+    while (directoryPages.size() < numPages) {
+      directoryPages.add(allocator.allocPage());
+    }
+    for (int p = 0; p < numPages; ++p) {
+      ByteBuffer buf = allocator.fetchPage(directoryPages.get(p)).getByteBuffer();
+      int from = p * DIRECTORY_SLOTS_PER_PAGE;
+      int to = Math.min(directory.length, from + DIRECTORY_SLOTS_PER_PAGE);
+      for (int i = from; i < to; ++i) {
+        buf.putInt(directory[i]);
+      }
+    }
+
+    ByteBuffer buf = allocator.fetchPage(HEADER_PAGE_NUM).getByteBuffer();
+    buf.put(keySchema.toBytes());
+    buf.putInt(globalDepth);
+    buf.putInt(directoryPages.size());
+    for (int pageNum : directoryPages) {
+      buf.putInt(pageNum);
+    }
+  }
+
+  /** The decoded contents of a bucket page. */
+  private class Bucket {
+    private final int localDepth;
+    private final List<byte[]> keys = new ArrayList<>();
+    private final List<RecordId> rids = new ArrayList<>();
+
+    private Bucket(int localDepth) {
+      this.localDepth = localDepth;
+    }
+
+    /** Returns the index of the encoded key k, or -1 if it is not here. */
+    private int indexOf(byte[] k) {
+      for (int i = 0; i < keys.size(); ++i) {
+        if (Arrays.equals(keys.get(i), k)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+
+  private Bucket readBucket(int pageNum) {
+    ByteBuffer buf = allocator.fetchPage(pageNum).getByteBuffer().duplicate();
+    Bucket bucket = new Bucket(buf.getInt());
+    int n = buf.getInt();
+    for (int i = 0; i < n; ++i) {
+      byte[] k = new byte[keySchema.getSizeInBytes()];
+      buf.get(k);
+      bucket.keys.add(k);
+      bucket.rids.add(new RecordId(buf.getInt(), buf.getShort()));
+    }
+    return bucket;
+  }
+
+  private void writeBucket(int pageNum, Bucket bucket) {
+    ByteBuffer buf = allocator.fetchPage(pageNum).getByteBuffer();
+    buf.putInt(bucket.localDepth);
+    buf.putInt(bucket.keys.size());
+    for (int i = 0; i < bucket.keys.size(); ++i) {
+      putEntry(buf, bucket.keys.get(i), bucket.rids.get(i));
+    }
+  }
+
+  /**
+   * Writes the entry (k, rid) as entry i of the bucket on page pageNum, and
+   * makes the bucket at least i + 1 entries long.
+   */
+  private void writeEntry(int pageNum, int i, byte[] k, RecordId rid) {
+    ByteBuffer buf = allocator.fetchPage(pageNum).getByteBuffer();
+    buf.position(BUCKET_HEADER_SIZE + i * entrySize);
+    putEntry(buf, k, rid);
+    if (buf.getInt(Integer.BYTES) <= i) {
+      buf.putInt(Integer.BYTES, i + 1);
+    }
+  }
+
+  private static void putEntry(ByteBuffer buf, byte[] k, RecordId rid) {
+    buf.put(k);
+    buf.putInt(rid.getPageNum());
+    buf.putShort(rid.getEntryNum());
+  }
+}
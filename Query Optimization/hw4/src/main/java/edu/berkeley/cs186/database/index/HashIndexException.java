@@ -0,0 +1,11 @@
+package edu.berkeley.cs186.database.index;
+
+public class HashIndexException extends IndexException {
+  public HashIndexException() {
+    super();
+  }
+
+  public HashIndexException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,15 @@
+package edu.berkeley.cs186.database.index;
+
+/**
+ * The common superclass of the exceptions thrown by the indexes that
+ * implement ColumnIndex.
+ */
+public class IndexException extends Exception {
+  public IndexException() {
+    super();
+  }
+
+  public IndexException(String message) {
+    super(message);
+  }
+}
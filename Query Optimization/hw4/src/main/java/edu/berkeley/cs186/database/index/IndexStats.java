@@ -0,0 +1,81 @@
+package edu.berkeley.cs186.database.index;
+
+import java.util.Objects;
+
+/**
+ * The statistics of a BPlusTree that the optimizer costs index scans with
+ * (see BPlusTree.getStats):
+ *
+ *   - the height of the tree, which is the number of nodes a lookup reads,
+ *     counting the leaf;
+ *   - the number of leaves and the number of keys, which are also the number
+ *     of distinct keys, since a tree holds no duplicates; and
+ *   - the clustering factor: the number of data pages that a scan of the
+ *     whole index reads to fetch the record of every entry, reading a page
+ *     again whenever an entry's record is on a different page than the
+ *     previous entry's. It is close to the number of data pages of the table
+ *     if the records are stored in key order, and close to the number of
+ *     keys if they are stored in no particular order. It is measured by
+ *     BPlusTree.analyze and is unknown (-1) until then.
+ *
+ * Height, leaf count, and key count are kept up to date as the tree changes,
+ * but the clustering factor is as of the last analyze.
+ */
+public final class IndexStats {
+  private final int height;
+  private final long numLeaves;
+  private final long numKeys;
+  private final long clusteringFactor;
+
+  public IndexStats(int height, long numLeaves, long numKeys, long clusteringFactor) {
+    this.height = height;
+    this.numLeaves = numLeaves;
+    this.numKeys = numKeys;
+    this.clusteringFactor = clusteringFactor;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public long getNumLeaves() {
+    return numLeaves;
+  }
+
+  public long getNumKeys() {
+    return numKeys;
+  }
+
+  public long getClusteringFactor() {
+    return clusteringFactor;
+  }
+
+  /** Returns whether the clustering factor has been measured. */
+  public boolean hasClusteringFactor() {
+    return clusteringFactor >= 0;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("IndexStats(height=%d, leaves=%d, keys=%d, clusteringFactor=%d)",
+                         height, numLeaves, numKeys, clusteringFactor);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof IndexStats)) {
+      return false;
+    }
+    IndexStats s = (IndexStats) o;
+    return height == s.height && numLeaves == s.numLeaves && numKeys == s.numKeys &&
+           clusteringFactor == s.clusteringFactor;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(height, numLeaves, numKeys, clusteringFactor);
+  }
+}
@@ -2,12 +2,14 @@ package edu.berkeley.cs186.database.index;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 
 import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.NormalizedKey;
 import edu.berkeley.cs186.database.databox.Type;
 import edu.berkeley.cs186.database.io.Page;
 import edu.berkeley.cs186.database.table.RecordId;
@@ -24,6 +26,9 @@ import edu.berkeley.cs186.database.table.RecordId;
  *     | 10 | 20 | 30 |    |
  *     +----+----+----+----+
  *    /     |    |     \
+ *
+ * Like compressed leaves, the inner nodes of a compressed tree (see
+ * BPlusTreeMetadata.isCompressed) hold as many keys as fit on their page.
  */
 class InnerNode extends BPlusNode {
   // Metadata about the B+ tree that this node belongs to.
@@ -47,22 +52,23 @@ class InnerNode extends BPlusNode {
   public InnerNode(BPlusTreeMetadata metadata, List<DataBox> keys,
                    List<Integer> children) {
     this(metadata, metadata.getAllocator().allocPage(), keys, children);
+    sync();
   }
 
   /**
-   * Construct an inner node that is persisted to page `pageNum` allocated by
-   * metadata.getAllocator().
+   * Construct an inner node that is already persisted to page `pageNum`
+   * allocated by metadata.getAllocator(). The page is not written.
    */
   private InnerNode(BPlusTreeMetadata metadata, int pageNum, List<DataBox> keys,
                     List<Integer> children) {
-    assert(keys.size() <= 2 * metadata.getOrder());
+    assert(metadata.isCompressed() || keys.size() <= 2 * metadata.getOrder());
     assert(keys.size() + 1 == children.size());
 
     this.metadata = metadata;
     this.page = metadata.getAllocator().fetchPage(pageNum);
-    this.keys = keys;
-    this.children = children;
-    sync();
+    // See the LeafNode constructor for why we copy keys and children.
+    this.keys = new ArrayList<>(keys);
+    this.children = new ArrayList<>(children);
   }
 
   // Core API //////////////////////////////////////////////////////////////////
@@ -84,11 +90,12 @@ class InnerNode extends BPlusNode {
 
   // See BPlusNode.put.
   @Override
-  public Optional<Pair<DataBox, Integer>> put(DataBox key, RecordId rid)
+  public Optional<Pair<DataBox, Integer>> put(DataBox key, RecordId rid,
+                                              List<DataBox> included)
       throws BPlusTreeException {
     int index = numLessThanEqual(key, keys);
     BPlusNode child = getChild(index);
-    Optional<Pair<DataBox, Integer>> o = child.put(key, rid);
+    Optional<Pair<DataBox, Integer>> o = child.put(key, rid, included);
 
     // If our child didn't split, then we don't have to do anything.
     if (!o.isPresent()) {
@@ -119,10 +126,12 @@ class InnerNode extends BPlusNode {
     children.add(index + 1, p.getSecond());
 
     // If we can accommodate the new key and child pointer (i.e. we don't have
-    // more than 2d keys), then we're done (just don't forget to sync)!
-    int d = metadata.getOrder();
-    if (keys.size() <= 2*d) {
-      sync();
+    // more than 2d keys), then we're done (just don't forget to sync)! Only
+    // the keys from index onward and the children (which follow the keys on
+    // our page) move, so we only rewrite those. A compressed node can
+    // accommodate them as long as it still fits on its page.
+    if (!overflows()) {
+      syncFrom(index);
       return Optional.empty();
     }
 
@@ -139,22 +148,51 @@ class InnerNode extends BPlusNode {
     //   0     1     2  3     4     5
     //
     // We would then return the pair (c, left).
-    assert(keys.size() == 2*d + 1);
-    List<DataBox> leftKeys = keys.subList(0, d);
-    DataBox middleKey = keys.get(d);
-    List<DataBox> rightKeys = keys.subList(d + 1, 2*d + 1);
-    List<Integer> leftChildren = children.subList(0, d + 1);
-    List<Integer> rightChildren = children.subList(d + 1, 2*d + 2);
+    //
+    // A compressed node instead splits around the key that leaves about as
+    // many bytes on either side of it (see splitIndex).
+    int d = metadata.getOrder();
+    assert(metadata.isCompressed() || keys.size() == 2*d + 1);
+    int m = splitIndex();
+    Pair<DataBox, Integer> split = split(m);
 
-    // Create right node.
-    InnerNode n = new InnerNode(metadata, rightKeys, rightChildren);
+    // Update left node. The first min(index, m) keys on our page are already
+    // in place.
+    syncFrom(Math.min(index, m));
 
-    // Update left node.
-    this.keys = leftKeys;
-    this.children = leftChildren;
-    sync();
+    return Optional.of(split);
+  }
+
+  // See BPlusNode.bulkLoad.
+  @Override
+  public Optional<Pair<DataBox, Integer>> bulkLoad(
+      Iterator<Pair<List<DataBox>, RecordId>> data, float fillFactor)
+      throws BPlusTreeException {
+    while (data.hasNext()) {
+      BPlusNode child = getChild(children.size() - 1);
+      Optional<Pair<DataBox, Integer>> o = child.bulkLoad(data, fillFactor);
+      if (!o.isPresent()) {
+        continue;
+      }
 
-    return Optional.of(new Pair<>(middleKey, n.getPage().getPageNum()));
+      // Our rightmost child split, so its new right sibling becomes our new
+      // rightmost child.
+      Pair<DataBox, Integer> p = o.get();
+      keys.add(p.getFirst());
+      children.add(p.getSecond());
+      if (!overflows()) {
+        continue;
+      }
+
+      // We overflowed, so we split exactly like put does and let our parent
+      // continue bulk loading into our new right sibling.
+      Pair<DataBox, Integer> split = split(splitIndex());
+      sync();
+      return Optional.of(split);
+    }
+
+    sync();
+    return Optional.empty();
   }
 
   // See BPlusNode.remove.
@@ -165,19 +203,219 @@ class InnerNode extends BPlusNode {
     child.remove(key);
   }
 
+  /**
+   * Rebalances the subtree rooted by this node after key was removed from
+   * it. Every node on the path from us to key's leaf that underflows (see
+   * BPlusNode.underflows) is rebalanced with an adjacent sibling, from the
+   * leaf up: the two are merged into one node if they fit in one, and have
+   * their entries split evenly between them otherwise. Each merge removes a
+   * key and a child from the parent of the two, which may make the parent
+   * underflow in turn. We ourselves may be left underflowing; it's up to our
+   * parent (or, if we're the root, the BPlusTree) to rebalance us.
+   */
+  void rebalance(DataBox key) {
+    int index = numLessThanEqual(key, keys);
+    BPlusNode child = getChild(index);
+    if (child instanceof InnerNode) {
+      ((InnerNode) child).rebalance(key);
+    }
+    if (!child.underflows()) {
+      return;
+    }
+
+    // We rebalance our child with its left sibling if it has one, and with
+    // its right sibling otherwise. For example, if our child 1 underflows,
+    // we rebalance children 0 and 1, which are separated by key a:
+    //
+    //     +---+---+---+---+
+    //     | a | b | c | d |
+    //     +---+---+---+---+
+    //    /    |   |   |    \
+    //   0     1   2   3     4
+    //
+    // If 0 and 1 merge into 0, we're left with the following node, and page 1
+    // is freed:
+    //
+    //     +---+---+---+
+    //     | b | c | d |
+    //     +---+---+---+
+    //    /    |   |    \
+    //   0     2   3     4
+    //
+    // Otherwise, a is replaced by the key that now separates 0 and 1.
+    int sep = index > 0 ? index - 1 : index;
+    BPlusNode left = getChild(sep);
+    BPlusNode right = getChild(sep + 1);
+    Optional<DataBox> o = left instanceof LeafNode
+      ? ((LeafNode) left).rebalanceWith((LeafNode) right)
+      : ((InnerNode) left).rebalanceWith(keys.get(sep), (InnerNode) right);
+    if (o.isPresent()) {
+      keys.set(sep, o.get());
+    } else {
+      keys.remove(sep);
+      children.remove(sep + 1);
+      BPlusNode.free(metadata, right.getPage().getPageNum());
+    }
+    syncFrom(sep);
+  }
+
+  /**
+   * Rebalances this node with `right`, its right sibling under the same
+   * parent, where separator is the key between the two in that parent. Like
+   * LeafNode.rebalanceWith, the two are merged into this node, pulling
+   * separator down between them, if they fit in one node, in which case
+   * Optional.empty() is returned and the caller must free right's page.
+   * Otherwise, the keys are split evenly around a middle key, which is
+   * returned to replace separator.
+   */
+  Optional<DataBox> rebalanceWith(DataBox separator, InnerNode right) {
+    keys.add(separator);
+    keys.addAll(right.keys);
+    children.addAll(right.children);
+    if (!overflows()) {
+      sync();
+      return Optional.empty();
+    }
+
+    int n = keys.size();
+    int m = metadata.isCompressed() ? splitIndex() : n / 2;
+    DataBox middleKey = keys.get(m);
+    right.keys = new ArrayList<>(keys.subList(m + 1, n));
+    right.children = new ArrayList<>(children.subList(m + 1, n + 1));
+    right.sync();
+    this.keys = new ArrayList<>(keys.subList(0, m));
+    this.children = new ArrayList<>(children.subList(0, m + 1));
+    sync();
+    return Optional.of(middleKey);
+  }
+
   // Helpers ///////////////////////////////////////////////////////////////////
   @Override
   public Page getPage() {
     return page;
   }
 
+  /**
+   * Returns true if we hold too many keys: more than 2d, or more than fit on
+   * our page if we're compressed.
+   */
+  private boolean overflows() {
+    if (metadata.isCompressed()) {
+      return compressedSize(KeyCompression.encode(keys), 0, keys.size()) > Page.pageSize;
+    }
+    return keys.size() > 2 * metadata.getOrder();
+  }
+
+  // See BPlusNode.underflows. Like compressed leaves (see
+  // LeafNode.underflows), a compressed node underflows below a quarter of a
+  // page.
+  @Override
+  boolean underflows() {
+    if (metadata.isCompressed()) {
+      return compressedSize(KeyCompression.encode(keys), 0, keys.size()) < Page.pageSize / 4;
+    }
+    return keys.size() < metadata.getOrder();
+  }
+
+  /**
+   * Returns the index of the key that an overflowing node splits around. An
+   * uncompressed node splits around its middle key. A compressed node splits
+   * around the key m that minimizes the size of the bigger of the nodes
+   * holding keys [0, m) and (m, n). The size of the first grows with m and
+   * the size of the second shrinks with m, so we binary search for where they
+   * cross.
+   */
+  private int splitIndex() {
+    if (!metadata.isCompressed()) {
+      return metadata.getOrder();
+    }
+    List<byte[]> encoded = KeyCompression.encode(keys);
+    int n = keys.size();
+    int lo = 0;
+    int hi = n - 1;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (compressedSize(encoded, 0, mid) >= compressedSize(encoded, mid + 1, n)) {
+        hi = mid;
+      } else {
+        lo = mid + 1;
+      }
+    }
+    if (lo > 0) {
+      int size = Math.max(compressedSize(encoded, 0, lo),
+                          compressedSize(encoded, lo + 1, n));
+      int prevSize = Math.max(compressedSize(encoded, 0, lo - 1),
+                              compressedSize(encoded, lo, n));
+      if (prevSize < size) {
+        return lo - 1;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * Splits this node around key m: keys [0, m) stay in this node, keys (m, n)
+   * move to a new right sibling, and key m moves up. Returns the pair (key m,
+   * page number of the right sibling). This node is not synced.
+   */
+  private Pair<DataBox, Integer> split(int m) {
+    int n = keys.size();
+    List<DataBox> leftKeys = keys.subList(0, m);
+    DataBox middleKey = keys.get(m);
+    List<DataBox> rightKeys = keys.subList(m + 1, n);
+    List<Integer> leftChildren = children.subList(0, m + 1);
+    List<Integer> rightChildren = children.subList(m + 1, n + 1);
+
+    // Create right node.
+    InnerNode right = new InnerNode(metadata, rightKeys, rightChildren);
+
+    this.keys = leftKeys;
+    this.children = leftChildren;
+    return new Pair<>(middleKey, right.getPage().getPageNum());
+  }
+
+  /**
+   * Returns the number of bytes of the compressed serialization (see toBytes)
+   * of a node holding the keys [from, to) with encodings `encoded`.
+   */
+  private int compressedSize(List<byte[]> encoded, int from, int to) {
+    return 1 + Integer.BYTES +
+           KeyCompression.keysSize(encoded, from, to, metadata.getKeySchema()) +
+           Integer.BYTES * (to - from + 1);
+  }
+
   private BPlusNode getChild(int i) {
     int pageNum = children.get(i);
     return BPlusNode.fromBytes(metadata, pageNum);
   }
 
   private void sync() {
-    page.getByteBuffer().put(toBytes());
+    page.getByteBuffer().duplicate().put(toBytes());
+    metadata.getNodeCache().put(this);
+  }
+
+  /**
+   * Like sync, but assumes that the first `index` keys on our page are
+   * already up to date and only writes the number of keys, the keys from
+   * index onward, and the children. The keys of a compressed node don't have
+   * fixed slots, so a compressed node is synced in full.
+   */
+  private void syncFrom(int index) {
+    if (metadata.isCompressed()) {
+      sync();
+      return;
+    }
+    int keySize = metadata.getKeySchema().getSizeInBytes();
+    ByteBuffer buf = page.getByteBuffer().duplicate();
+    buf.putInt(1, keys.size());
+    buf.position(1 + Integer.BYTES + index * keySize);
+    for (int i = index; i < keys.size(); ++i) {
+      NormalizedKey.encode(keys.get(i), buf);
+    }
+    for (Integer child : children) {
+      buf.putInt(child);
+    }
+    metadata.getNodeCache().put(this);
   }
 
   // Just for testing.
@@ -249,28 +487,91 @@ class InnerNode extends BPlusNode {
    * a, b, c).
    */
   public static <T extends Comparable<T>> int numLessThanEqual(T x, List<T> ys) {
-    int n = 0;
-    for (T y : ys) {
-      if (y.compareTo(x) <= 0) {
-        ++n;
+    // Binary search for the first element greater than x.
+    int lo = 0;
+    int hi = ys.size();
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (ys.get(mid).compareTo(x) <= 0) {
+        lo = mid + 1;
       } else {
-        break;
+        hi = mid;
       }
     }
-    return n;
+    return lo;
   }
 
   /** Same as numLessThanEqual but for < instead of <= */
   public static <T extends Comparable<T>> int numLessThan(T x, List<T> ys) {
-    int n = 0;
-    for (T y : ys) {
-      if (y.compareTo(x) < 0) {
-        ++n;
+    int lo = 0;
+    int hi = ys.size();
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (ys.get(mid).compareTo(x) < 0) {
+        lo = mid + 1;
       } else {
-        break;
+        hi = mid;
       }
     }
-    return n;
+    return lo;
+  }
+
+  /**
+   * Returns the page number of the child that a search for key visits from
+   * this node, i.e. children.get(numLessThanEqual(key, keys)).
+   */
+  int getChildPageNum(DataBox key) {
+    return children.get(numLessThanEqual(key, keys));
+  }
+
+  /**
+   * Returns the smallest key that belongs to a child right of the child that
+   * key belongs to (see getChildPageNum), or Optional.empty() if key belongs
+   * to the rightmost child.
+   */
+  Optional<DataBox> getChildUpperBound(DataBox key) {
+    int index = numLessThanEqual(key, keys);
+    return index < keys.size() ? Optional.of(keys.get(index)) : Optional.empty();
+  }
+
+  /** Returns the page number of the leftmost child of this node. */
+  int getLeftmostChildPageNum() {
+    return children.get(0);
+  }
+
+  /** Returns the page number of the rightmost child of this node. */
+  int getRightmostChildPageNum() {
+    return children.get(children.size() - 1);
+  }
+
+  /**
+   * Same as getChildPageNum, but for the inner node serialized on page
+   * `page` (see toBytes). Rather than deserializing the node, we encode `key`
+   * once and binary search the node's fixed-width key slots in place as raw
+   * normalized key bytes, so no key is ever deserialized. A compressed node is deserialized (but not cached)
+   * instead.
+   */
+  static int getChildPageNum(BPlusTreeMetadata metadata, Page page, DataBox key) {
+    if (metadata.isCompressed()) {
+      return read(metadata, page.getPageNum()).getChildPageNum(key);
+    }
+    ByteBuffer buf = page.getByteBuffer().duplicate();
+    byte[] probe = NormalizedKey.encode(key);
+    int keySize = probe.length;
+    int keysOffset = 1 + Integer.BYTES;
+    int n = buf.getInt(1);
+
+    int lo = 0;
+    int hi = n;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (NormalizedKey.compare(buf, keysOffset + mid * keySize, probe) <= 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return buf.getInt(keysOffset + n * keySize + lo * Integer.BYTES);
   }
 
   // Pretty Printing ///////////////////////////////////////////////////////////
@@ -333,13 +634,17 @@ class InnerNode extends BPlusNode {
   // Serialization /////////////////////////////////////////////////////////////
   @Override
   public byte[] toBytes() {
+    if (metadata.isCompressed()) {
+      return toCompressedBytes();
+    }
+
     // When we serialize an inner node, we write:
     //
     //   a. the literal value 0 (1 byte) which indicates that this node is not
     //      a leaf node,
     //   b. the number n (4 bytes) of keys this inner node contains (which is
     //      one fewer than the number of children pointers),
-    //   c. the n keys, and
+    //   c. the n keys, in their normalized encoding (see NormalizedKey), and
     //   d. the n+1 children pointers.
     //
     // For example, the following bytes:
@@ -364,7 +669,7 @@ class InnerNode extends BPlusNode {
     buf.put((byte) 0);
     buf.putInt(keys.size());
     for (DataBox key : keys) {
-      buf.put(key.toBytes());
+      NormalizedKey.encode(key, buf);
     }
     for (Integer child : children) {
       buf.putInt(child);
@@ -372,21 +677,56 @@ class InnerNode extends BPlusNode {
     return buf.array();
   }
 
+  /**
+   * Serializes an inner node of a compressed tree. Like an uncompressed node,
+   * we write a, b, and d above, but instead of the n keys we write the length
+   * (a varint, see KeyCompression) and bytes of the prefix shared by the
+   * normalized encodings of the keys, followed by the length (a varint) and
+   * bytes of the rest of every key, without its trailing padding.
+   */
+  private byte[] toCompressedBytes() {
+    List<byte[]> encoded = KeyCompression.encode(keys);
+    Type keySchema = metadata.getKeySchema();
+    ByteBuffer buf = ByteBuffer.allocate(compressedSize(encoded, 0, keys.size()));
+    buf.put((byte) 0);
+    buf.putInt(keys.size());
+    int prefixLength = KeyCompression.putPrefix(buf, encoded, 0, keys.size());
+    for (byte[] key : encoded) {
+      KeyCompression.putSuffix(buf, key, prefixLength, keySchema);
+    }
+    for (Integer child : children) {
+      buf.putInt(child);
+    }
+    assert(!buf.hasRemaining());
+    return buf.array();
+  }
+
   /**
    * InnerNode.fromBytes(m, p) loads a InnerNode from page p of
    * meta.getAllocator().
    */
   public static InnerNode fromBytes(BPlusTreeMetadata metadata, int pageNum) {
+    InnerNode inner = read(metadata, pageNum);
+    metadata.getNodeCache().put(inner);
+    return inner;
+  }
+
+  /** Same as fromBytes, but does not cache the node. */
+  private static InnerNode read(BPlusTreeMetadata metadata, int pageNum) {
     Page page = metadata.getAllocator().fetchPage(pageNum);
-    ByteBuffer buf = page.getByteBuffer();
+    // See LeafNode.fromBytes for why we duplicate the buffer.
+    ByteBuffer buf = page.getByteBuffer().duplicate();
 
     assert(buf.get() == (byte) 0);
 
     List<DataBox> keys = new ArrayList<>();
     List<Integer> children = new ArrayList<>();
     int n = buf.getInt();
+    byte[] prefix = metadata.isCompressed() ? KeyCompression.getPrefix(buf) : null;
     for (int i = 0; i < n; ++i) {
-      keys.add(DataBox.fromBytes(buf, metadata.getKeySchema()));
+      keys.add(metadata.isCompressed()
+               ? KeyCompression.getKey(buf, prefix, metadata.getKeySchema())
+               : NormalizedKey.decode(buf, metadata.getKeySchema()));
     }
     for (int i = 0; i < n + 1; ++i) {
       children.add(buf.getInt());
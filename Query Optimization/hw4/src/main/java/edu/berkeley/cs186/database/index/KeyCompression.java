@@ -0,0 +1,272 @@
+package edu.berkeley.cs186.database.index;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.NormalizedKey;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.databox.TypeId;
+
+/**
+ * Helpers for the nodes of a compressed B+ tree (see
+ * BPlusTreeMetadata.isCompressed). The keys of a compressed node are stored
+ * as their normalized encodings (see NormalizedKey), whose byte order is the
+ * order of the keys, and are compressed in two ways:
+ *
+ *   - Prefix factoring. The keys of a node are sorted, so the bytes that
+ *     every key of the node starts with are the bytes that its first and last
+ *     keys start with. They are stored once, and each key only stores the
+ *     rest of its bytes (its suffix).
+ *   - Padding elision. A suffix is stored without its trailing padding bytes
+ *     (spaces for strings, zeros for everything else), which are restored
+ *     when the key is decoded. A 100-byte string column that mostly holds
+ *     short strings thus takes up a few bytes per key.
+ *
+ * For example, the 10-byte strings "apple", "applet", and "apply" are stored
+ * as the prefix "appl" and the suffixes "e", "et", and "y".
+ *
+ * In addition, the separator keys that leaves hand to their parents when
+ * they split are suffix truncated (see separator), so inner nodes mostly
+ * store short keys.
+ *
+ * Lengths are stored as variable-length integers (see putVarInt) rather than
+ * as fixed 4-byte ints.
+ */
+class KeyCompression {
+  /** Returns the normalized encodings of keys. */
+  static List<byte[]> encode(List<DataBox> keys) {
+    List<byte[]> encoded = new ArrayList<>(keys.size());
+    for (DataBox key : keys) {
+      encoded.add(NormalizedKey.encode(key));
+    }
+    return encoded;
+  }
+
+  /**
+   * Returns the length of the prefix shared by the sorted encoded keys
+   * [from, to), which is the prefix shared by the first and last of them.
+   */
+  static int prefixLength(List<byte[]> encoded, int from, int to) {
+    if (from >= to) {
+      return 0;
+    }
+    return commonPrefixLength(encoded.get(from), encoded.get(to - 1));
+  }
+
+  /**
+   * Returns the number of bytes that the sorted encoded keys [from, to) take
+   * up in a node: their shared prefix and its length, and each suffix and its
+   * length.
+   */
+  static int keysSize(List<byte[]> encoded, int from, int to, Type type) {
+    int prefixLength = prefixLength(encoded, from, to);
+    int size = varIntSize(prefixLength) + prefixLength;
+    for (int i = from; i < to; ++i) {
+      int suffixLength = suffixEnd(encoded.get(i), prefixLength, type) - prefixLength;
+      size += varIntSize(suffixLength) + suffixLength;
+    }
+    return size;
+  }
+
+  /**
+   * Writes the shared prefix of the sorted encoded keys [from, to) to buf and
+   * returns its length.
+   */
+  static int putPrefix(ByteBuffer buf, List<byte[]> encoded, int from, int to) {
+    int prefixLength = prefixLength(encoded, from, to);
+    putVarInt(buf, prefixLength);
+    if (prefixLength > 0) {
+      buf.put(encoded.get(from), 0, prefixLength);
+    }
+    return prefixLength;
+  }
+
+  /** Writes the suffix of the encoded key past its first prefixLength bytes. */
+  static void putSuffix(ByteBuffer buf, byte[] encoded, int prefixLength, Type type) {
+    int end = suffixEnd(encoded, prefixLength, type);
+    putVarInt(buf, end - prefixLength);
+    buf.put(encoded, prefixLength, end - prefixLength);
+  }
+
+  /** Reads a prefix written by putPrefix. */
+  static byte[] getPrefix(ByteBuffer buf) {
+    byte[] prefix = new byte[getVarInt(buf)];
+    buf.get(prefix);
+    return prefix;
+  }
+
+  /** Reads a suffix written by putSuffix and decodes the key of type `type`. */
+  static DataBox getKey(ByteBuffer buf, byte[] prefix, Type type) {
+    byte[] key = new byte[type.getSizeInBytes()];
+    System.arraycopy(prefix, 0, key, 0, prefix.length);
+    int suffixLength = getVarInt(buf);
+    buf.get(key, prefix.length, suffixLength);
+    Arrays.fill(key, prefix.length + suffixLength, key.length, padding(type));
+    return NormalizedKey.decode(ByteBuffer.wrap(key), type);
+  }
+
+  /**
+   * Returns the separator that a leaf whose last key is `left` hands to its
+   * parent when it splits off a right sibling whose first key is `right`.
+   * Any key s with left < s <= right separates the two leaves, so rather than
+   * right itself, we return the shortest prefix of right that is greater than
+   * left, padded back to a full key. For example, the separator of "apple"
+   * and "banana" is "b", and the separator of 5 and 300 is 256.
+   */
+  static DataBox separator(DataBox left, DataBox right) {
+    assert(left.compareTo(right) < 0);
+    Type type = right.type();
+    byte[] l = NormalizedKey.encode(left);
+    byte[] r = NormalizedKey.encode(right);
+    int n = commonPrefixLength(l, r);
+    if (n + 1 >= r.length) {
+      return right;
+    }
+
+    // The first n + 1 bytes of s are greater than those of left, so s is
+    // greater than left. s is at most right as long as the padding that
+    // replaces the rest of right is at most those bytes, which holds for
+    // every type but is cheap to double check.
+    byte[] s = Arrays.copyOf(r, r.length);
+    Arrays.fill(s, n + 1, s.length, padding(type));
+    if (NormalizedKey.compare(s, r) > 0) {
+      return right;
+    }
+    return NormalizedKey.decode(ByteBuffer.wrap(s), type);
+  }
+
+  /**
+   * The keysSize of a growing run of sorted encoded keys. Appending a key
+   * only shortens the shared prefix of the run once in a while (at most once
+   * per byte of a key), so sizeWith and add take amortized constant time
+   * rather than the linear time of keysSize.
+   */
+  static class RunningSize {
+    private final Type type;
+    private final List<byte[]> encoded = new ArrayList<>();
+    private int prefixLength;
+    // The size of the suffixes (and their lengths) of every key in the run.
+    private int suffixesSize;
+
+    RunningSize(Type type) {
+      this.type = type;
+    }
+
+    /** Returns the keysSize of the run with key appended to it. */
+    int sizeWith(byte[] key) {
+      if (encoded.isEmpty()) {
+        return keysSize(Collections.singletonList(key), 0, 1, type);
+      }
+      int newPrefixLength = Math.min(prefixLength, commonPrefixLength(encoded.get(0), key));
+      int size = newPrefixLength == prefixLength
+        ? suffixesSize
+        : suffixesSize(newPrefixLength);
+      return varIntSize(newPrefixLength) + newPrefixLength + size +
+             suffixSize(key, newPrefixLength);
+    }
+
+    /** Appends key, which is greater than every key in the run. */
+    void add(byte[] key) {
+      int newPrefixLength = encoded.isEmpty()
+        ? key.length
+        : Math.min(prefixLength, commonPrefixLength(encoded.get(0), key));
+      if (newPrefixLength != prefixLength) {
+        suffixesSize = suffixesSize(newPrefixLength);
+        prefixLength = newPrefixLength;
+      }
+      encoded.add(key);
+      suffixesSize += suffixSize(key, prefixLength);
+    }
+
+    private int suffixesSize(int prefixLength) {
+      int size = 0;
+      for (byte[] key : encoded) {
+        size += suffixSize(key, prefixLength);
+      }
+      return size;
+    }
+
+    private int suffixSize(byte[] key, int prefixLength) {
+      int suffixLength = suffixEnd(key, prefixLength, type) - prefixLength;
+      return varIntSize(suffixLength) + suffixLength;
+    }
+  }
+
+  private static int commonPrefixLength(byte[] a, byte[] b) {
+    int n = 0;
+    while (n < a.length && n < b.length && a[n] == b[n]) {
+      ++n;
+    }
+    return n;
+  }
+
+  /**
+   * Returns one past the index of the last byte of the encoded key at or after
+   * prefixLength that is not padding.
+   */
+  private static int suffixEnd(byte[] encoded, int prefixLength, Type type) {
+    byte pad = padding(type);
+    int end = encoded.length;
+    while (end > prefixLength && encoded[end - 1] == pad) {
+      --end;
+    }
+    return end;
+  }
+
+  /** Returns the byte that encoded keys of type `type` are padded with. */
+  private static byte padding(Type type) {
+    return type.getTypeId() == TypeId.STRING ? (byte) ' ' : (byte) 0;
+  }
+
+  // Variable-length integers //////////////////////////////////////////////////
+  // An integer is written as an unsigned integer 7 bits at a time, least
+  // significant bits first, with the high bit of each byte set if more bytes
+  // follow. Integers below 128 take up a single byte. Signed integers are
+  // first zigzag encoded (0, -1, 1, -2, ... => 0, 1, 2, 3, ...) so that
+  // integers of small magnitude take up few bytes either way.
+
+  /** Writes x to buf. */
+  static void putVarInt(ByteBuffer buf, int x) {
+    while ((x & ~0x7F) != 0) {
+      buf.put((byte) ((x & 0x7F) | 0x80));
+      x >>>= 7;
+    }
+    buf.put((byte) x);
+  }
+
+  /** Reads an integer written by putVarInt. */
+  static int getVarInt(ByteBuffer buf) {
+    int x = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = buf.get();
+      x |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return x;
+      }
+    }
+  }
+
+  /** Returns the number of bytes putVarInt writes for x. */
+  static int varIntSize(int x) {
+    int size = 1;
+    while ((x & ~0x7F) != 0) {
+      ++size;
+      x >>>= 7;
+    }
+    return size;
+  }
+
+  /** Returns the zigzag encoding of the signed integer x. */
+  static int zigZag(int x) {
+    return (x << 1) ^ (x >> 31);
+  }
+
+  /** Inverts zigZag. */
+  static int unZigZag(int x) {
+    return (x >>> 1) ^ -(x & 1);
+  }
+}
@@ -2,13 +2,16 @@ package edu.berkeley.cs186.database.index;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 
+import edu.berkeley.cs186.database.common.LongList;
 import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.NormalizedKey;
 import edu.berkeley.cs186.database.databox.Type;
 import edu.berkeley.cs186.database.io.Page;
 import edu.berkeley.cs186.database.table.RecordId;
@@ -25,8 +28,24 @@ import edu.berkeley.cs186.database.table.RecordId;
  *   +-------+-------+-------+-------+     +-------+-------+-------+-------+
  *   | k0:r0 | k1:r1 | k2:r2 |       | --> | k3:r3 | k4:r4 |       |       |
  *   +-------+-------+-------+-------+     +-------+-------+-------+-------+
+ *
+ * Every leaf also stores a pointer to its left sibling, so that the leaves
+ * can be scanned in descending order too.
+ *
+ * The leaves of a covering index (see BPlusTreeMetadata.getIncludedSchema)
+ * also store a list of included values with every (key, record id) pair.
+ *
+ * The leaves of a compressed tree (see BPlusTreeMetadata.isCompressed) are
+ * serialized differently (see toCompressedBytes) and hold as many entries as
+ * fit on their page rather than at most 2d.
  */
 class LeafNode extends BPlusNode {
+  // The byte offsets of the header fields and the first entry (see toBytes).
+  private static final int SIBLING_OFFSET = 1;
+  private static final int LEFT_SIBLING_OFFSET = SIBLING_OFFSET + Integer.BYTES;
+  private static final int NUM_ENTRIES_OFFSET = LEFT_SIBLING_OFFSET + Integer.BYTES;
+  private static final int ENTRIES_OFFSET = NUM_ENTRIES_OFFSET + Integer.BYTES;
+
   // Metadata about the B+ tree that this node belongs to.
   private BPlusTreeMetadata metadata;
 
@@ -93,40 +112,81 @@ class LeafNode extends BPlusNode {
   //
   // Make sure your code (or your tests) doesn't use stale in-memory cached
   // values of keys and rids.
+  // BPlusNode.fromBytes sidesteps the problem by serving nodes from the
+  // tree's NodeCache, which holds the most recently synced node of each page.
+  //
+  // The record ids are encoded as longs (see RecordId.toLong), so a cached
+  // leaf holds a single array of them rather than a RecordId object each.
   private List<DataBox> keys;
-  private List<RecordId> rids;
+  private LongList rids;
+
+  // The included values of every entry, parallel to keys and rids. Every
+  // list is empty unless the tree is a covering index.
+  private List<List<DataBox>> included;
 
   // If this leaf is the rightmost leaf, then rightSibling is Optional.empty().
   // Otherwise, rightSibling is Optional.of(n) where n is the page number of
   // this leaf's right sibling.
   private Optional<Integer> rightSibling;
 
+  // Same as rightSibling, but for this leaf's left sibling.
+  private Optional<Integer> leftSibling;
+
+  // The number of bytes of our serialization as of the last time we synced,
+  // if we're compressed.
+  private int compressedSize;
+
   // Constructors //////////////////////////////////////////////////////////////
   /**
-   * Construct a brand new leaf node. The leaf will be persisted on a brand new
-   * page allocated by metadata.getAllocator().
+   * Construct a brand new leaf node without a left sibling. The leaf will be
+   * persisted on a brand new page allocated by metadata.getAllocator().
    */
   public LeafNode(BPlusTreeMetadata metadata, List<DataBox> keys,
                   List<RecordId> rids, Optional<Integer> rightSibling) {
-    this(metadata, metadata.getAllocator().allocPage(), keys, rids,
-         rightSibling);
+    this(metadata, keys, rids, noIncluded(keys.size()), Optional.empty(), rightSibling);
   }
 
   /**
-   * Construct a leaf node that is persisted to page `pageNum` allocated by
-   * metadata.getAllocator().
+   * Construct a brand new leaf node with the given included values and left
+   * and right siblings. The leaf will be persisted on a brand new page
+   * allocated by metadata.getAllocator().
+   */
+  LeafNode(BPlusTreeMetadata metadata, List<DataBox> keys, List<RecordId> rids,
+           List<List<DataBox>> included, Optional<Integer> leftSibling,
+           Optional<Integer> rightSibling) {
+    this(metadata, keys, toLongs(rids), included, leftSibling, rightSibling);
+  }
+
+  /** Same as the constructor above, but with record ids encoded as longs. */
+  private LeafNode(BPlusTreeMetadata metadata, List<DataBox> keys, LongList rids,
+                   List<List<DataBox>> included, Optional<Integer> leftSibling,
+                   Optional<Integer> rightSibling) {
+    this(metadata, metadata.getAllocator().allocPage(), keys, rids, included,
+         leftSibling, rightSibling);
+    metadata.addLeaves(1);
+    sync();
+  }
+
+  /**
+   * Construct a leaf node that is already persisted to page `pageNum`
+   * allocated by metadata.getAllocator(). The page is not written.
    */
   private LeafNode(BPlusTreeMetadata metadata, int pageNum, List<DataBox> keys,
-                   List<RecordId> rids, Optional<Integer> rightSibling) {
-    assert(keys.size() <= 2 * metadata.getOrder());
+                   LongList rids, List<List<DataBox>> included,
+                   Optional<Integer> leftSibling, Optional<Integer> rightSibling) {
+    assert(metadata.isCompressed() || keys.size() <= 2 * metadata.getOrder());
     assert(keys.size() == rids.size());
+    assert(keys.size() == included.size());
 
     this.metadata = metadata;
     this.page = metadata.getAllocator().fetchPage(pageNum);
-    this.keys = keys;
-    this.rids = rids;
+    // We copy keys and rids because callers often pass views of another
+    // node's lists, and this node may outlive that node in the node cache.
+    this.keys = new ArrayList<>(keys);
+    this.rids = rids.copyOfRange(0, rids.size());
+    this.included = new ArrayList<>(included);
     this.rightSibling = rightSibling;
-    sync();
+    this.leftSibling = leftSibling;
   }
 
   // Core API //////////////////////////////////////////////////////////////////
@@ -144,10 +204,11 @@ class LeafNode extends BPlusNode {
 
   // See BPlusNode.put.
   @Override
-  public Optional<Pair<DataBox, Integer>> put(DataBox key, RecordId rid)
+  public Optional<Pair<DataBox, Integer>> put(DataBox key, RecordId rid,
+                                              List<DataBox> included)
       throws BPlusTreeException {
     // Our implementation of B+ trees does not support duplicates!
-    if (keys.contains(key)) {
+    if (indexOf(key) != -1) {
       String message = String.format("Duplicate key %s inserted.", key);
       throw new BPlusTreeException(message);
     }
@@ -168,14 +229,31 @@ class LeafNode extends BPlusNode {
     // In this example, put was called with key k4 and record id r4.
     int index = InnerNode.numLessThanEqual(key, keys);
     keys.add(index, key);
-    rids.add(index, rid);
+    rids.add(index, rid.toLong());
+    this.included.add(index, included);
+    metadata.addKeys(1);
 
     // If we can accommodate the new key and record id (i.e. the number of
     // entries does not exceed 2d), then we're done (just don't forget to
-    // sync)!
+    // sync)! Rather than reserializing the whole leaf, we shift the entries
+    // after index one slot to the right within the page and write the new
+    // entry into the gap. The entries of a compressed leaf don't have fixed
+    // slots, so a compressed leaf is reserialized as long as it still fits on
+    // its page.
     int d = metadata.getOrder();
-    if (keys.size() <= 2 * d) {
-      sync();
+    if (metadata.isCompressed()) {
+      byte[] bytes = toBytes();
+      if (bytes.length <= Page.pageSize) {
+        write(bytes);
+        return Optional.empty();
+      }
+    } else if (keys.size() <= 2 * d) {
+      ByteBuffer buf = page.getByteBuffer();
+      int tailSize = (keys.size() - 1 - index) * entrySize();
+      moveBytes(buf, entryOffset(index), entryOffset(index + 1), tailSize);
+      writeEntries(buf, index, index + 1);
+      writeHeader(buf);
+      cacheWritten();
       return Optional.empty();
     }
 
@@ -190,41 +268,302 @@ class LeafNode extends BPlusNode {
     //   +-------+-------+  +-------+-------+-------+
     //
     // and we would return the pair (k3, right).
-    assert(keys.size() == 2*d + 1);
-    List<DataBox> leftKeys = keys.subList(0, d);
-    List<DataBox> rightKeys = keys.subList(d, 2*d + 1);
-    List<RecordId> leftRids  = rids.subList(0, d);
-    List<RecordId> rightRids  = rids.subList(d, 2*d + 1);
-
-    // Create right node.
-    LeafNode n = new LeafNode(metadata, rightKeys, rightRids, rightSibling);
-    int pageNum = n.getPage().getPageNum();
+    //
+    // A compressed leaf instead splits where its two halves take up about as
+    // many bytes as each other (see splitIndex), and returns the shortest key
+    // that separates them (see KeyCompression.separator).
+    assert(metadata.isCompressed() || keys.size() == 2*d + 1);
+    int split = metadata.isCompressed() ? splitIndex() : d;
+    DataBox splitKey = metadata.isCompressed()
+      ? KeyCompression.separator(keys.get(split - 1), keys.get(split))
+      : keys.get(split);
+    int n = keys.size();
+    List<DataBox> leftKeys = keys.subList(0, split);
+    List<DataBox> rightKeys = keys.subList(split, n);
+    LongList leftRids  = rids.copyOfRange(0, split);
+    LongList rightRids  = rids.copyOfRange(split, n);
+    List<List<DataBox>> leftIncluded = this.included.subList(0, split);
+    List<List<DataBox>> rightIncluded = this.included.subList(split, n);
+
+    // Create right node, and make it the left sibling of our old right
+    // sibling.
+    Optional<Integer> self = Optional.of(page.getPageNum());
+    LeafNode right = new LeafNode(metadata, rightKeys, rightRids, rightIncluded,
+                                  self, rightSibling);
+    int pageNum = right.getPage().getPageNum();
+    setLeftSiblingOf(rightSibling, pageNum);
 
-    // Update left node.
+    // Update left node. The first min(index, d) entries on our page are
+    // already in place, so we only write the entries after them (if any) and
+    // the header.
     this.keys = leftKeys;
     this.rids = leftRids;
+    this.included = leftIncluded;
+    this.rightSibling = Optional.of(pageNum);
+    if (metadata.isCompressed()) {
+      sync();
+    } else {
+      ByteBuffer buf = page.getByteBuffer();
+      writeEntries(buf, Math.min(index, d), d);
+      writeHeader(buf);
+      cacheWritten();
+    }
+
+    return Optional.of(new Pair<>(splitKey, pageNum));
+  }
+
+  // See BPlusNode.bulkLoad.
+  @Override
+  public Optional<Pair<DataBox, Integer>> bulkLoad(
+      Iterator<Pair<List<DataBox>, RecordId>> data, float fillFactor)
+      throws BPlusTreeException {
+    // A compressed leaf fills up until it takes up fillFactor of its page,
+    // which we track with a KeyCompression.RunningSize rather than by
+    // reencoding every key for every pair.
+    int d = metadata.getOrder();
+    int numToFill = Math.max(1, (int) Math.ceil(2 * d * fillFactor));
+    int bytesToFill = (int) (Page.pageSize * fillFactor);
+    KeyCompression.RunningSize keysSize = null;
+    if (metadata.isCompressed()) {
+      keysSize = new KeyCompression.RunningSize(metadata.getKeySchema());
+      for (byte[] encoded : KeyCompression.encode(keys)) {
+        keysSize.add(encoded);
+      }
+    }
+    int ridsSize = ridsSize(rids, 0, rids.size());
+
+    while (data.hasNext()) {
+      Pair<List<DataBox>, RecordId> p = data.next();
+      DataBox key = p.getFirst().get(0);
+      checkBulkLoadOrder(key);
+      RecordId rid = p.getSecond();
+
+      boolean filled;
+      byte[] encoded = null;
+      int ridSize = 0;
+      if (metadata.isCompressed()) {
+        encoded = NormalizedKey.encode(key);
+        int prevPageNum = rids.isEmpty() ? 0 : RecordId.getPageNum(rids.get(rids.size() - 1));
+        ridSize = ridSize(rid.toLong(), prevPageNum);
+        int size = ENTRIES_OFFSET + keysSize.sizeWith(encoded) + ridsSize + ridSize;
+        filled = !keys.isEmpty() && size > bytesToFill;
+      } else {
+        filled = keys.size() >= numToFill;
+      }
+
+      // Once we're full, we start a new right sibling with the pair and hand
+      // it to our parent.
+      if (filled) {
+        return Optional.of(bulkLoadSibling(key, p));
+      }
+      keys.add(key);
+      rids.add(rid.toLong());
+      included.add(new ArrayList<>(p.getFirst().subList(1, p.getFirst().size())));
+      metadata.addKeys(1);
+      if (metadata.isCompressed()) {
+        keysSize.add(encoded);
+        ridsSize += ridSize;
+      }
+    }
+
+    // We ran out of data, so we're done.
+    sync();
+    return Optional.empty();
+  }
+
+  /**
+   * Starts a new right sibling of this leaf with the bulk loaded pair p, whose
+   * key is key, and returns the split pair to hand to our parent.
+   */
+  private Pair<DataBox, Integer> bulkLoadSibling(DataBox key,
+                                                 Pair<List<DataBox>, RecordId> p) {
+    List<DataBox> rightKeys = new ArrayList<>();
+    LongList rightRids = new LongList();
+    List<List<DataBox>> rightIncluded = new ArrayList<>();
+    rightKeys.add(key);
+    rightRids.add(p.getSecond().toLong());
+    rightIncluded.add(new ArrayList<>(p.getFirst().subList(1, p.getFirst().size())));
+    metadata.addKeys(1);
+    Optional<Integer> self = Optional.of(page.getPageNum());
+    LeafNode n = new LeafNode(metadata, rightKeys, rightRids, rightIncluded,
+                              self, rightSibling);
+    int pageNum = n.getPage().getPageNum();
+    setLeftSiblingOf(rightSibling, pageNum);
+
     this.rightSibling = Optional.of(pageNum);
     sync();
 
-    return Optional.of(new Pair<>(rightKeys.get(0), pageNum));
+    DataBox splitKey = metadata.isCompressed()
+      ? KeyCompression.separator(keys.get(keys.size() - 1), key)
+      : key;
+    return new Pair<>(splitKey, pageNum);
   }
 
   // See BPlusNode.remove.
   @Override
   public void remove(DataBox key) {
-    int index = keys.indexOf(key);
-    if (index != -1) {
-      keys.remove(index);
-      rids.remove(index);
+    int index = indexOf(key);
+    if (index == -1) {
+      return;
+    }
+    keys.remove(index);
+    rids.remove(index);
+    included.remove(index);
+    metadata.addKeys(-1);
+
+    // Removing an entry never makes a compressed leaf bigger: the keys left
+    // share at least as long a prefix, and the delta encoded record id after
+    // the removed one takes up no more bytes than the two deltas it
+    // replaces.
+    if (metadata.isCompressed()) {
+      sync();
+      return;
+    }
+
+    // Shift the entries after index one slot to the left within the page.
+    ByteBuffer buf = page.getByteBuffer();
+    int tailSize = (keys.size() - index) * entrySize();
+    moveBytes(buf, entryOffset(index + 1), entryOffset(index), tailSize);
+    writeHeader(buf);
+    cacheWritten();
+  }
+
+  // See BPlusNode.underflows. A compressed leaf splits where its halves take
+  // up about as many bytes as each other, so either half may fall just short
+  // of half a page; it underflows below a quarter of a page instead.
+  @Override
+  boolean underflows() {
+    if (metadata.isCompressed()) {
+      return compressedSize < Page.pageSize / 4;
+    }
+    return keys.size() < metadata.getOrder();
+  }
+
+  /**
+   * Rebalances this leaf with `right`, its right sibling under the same
+   * parent, after one of the two underflowed (see InnerNode.rebalance). If
+   * their entries fit on a single page, they are merged into this leaf and
+   * Optional.empty() is returned; the caller must then free right's page.
+   * Otherwise, the entries are split evenly between the two leaves, and the
+   * key that now separates them is returned.
+   */
+  Optional<DataBox> rebalanceWith(LeafNode right) {
+    keys.addAll(right.keys);
+    rids.addAll(right.rids);
+    included.addAll(right.included);
+
+    boolean fits = metadata.isCompressed()
+      ? compressedSize(KeyCompression.encode(keys), rids) <= Page.pageSize
+      : keys.size() <= 2 * metadata.getOrder();
+    if (fits) {
+      this.rightSibling = right.rightSibling;
+      setLeftSiblingOf(rightSibling, page.getPageNum());
+      sync();
+      return Optional.empty();
     }
+
+    // We split exactly like an overflowing put does, except that the right
+    // half goes back to `right` rather than to a new leaf.
+    int n = keys.size();
+    int split = metadata.isCompressed() ? splitIndex() : n / 2;
+    DataBox splitKey = metadata.isCompressed()
+      ? KeyCompression.separator(keys.get(split - 1), keys.get(split))
+      : keys.get(split);
+    right.keys = new ArrayList<>(keys.subList(split, n));
+    right.rids = rids.copyOfRange(split, n);
+    right.included = new ArrayList<>(included.subList(split, n));
+    right.sync();
+    this.keys = new ArrayList<>(keys.subList(0, split));
+    this.rids = rids.copyOfRange(0, split);
+    this.included = new ArrayList<>(included.subList(0, split));
     sync();
+    return Optional.of(splitKey);
+  }
+
+  /**
+   * Throws a BPlusTreeException unless key is greater than every key in this
+   * leaf. Bulk loaded data must be sorted and free of duplicates.
+   */
+  private void checkBulkLoadOrder(DataBox key) throws BPlusTreeException {
+    if (!keys.isEmpty() && keys.get(keys.size() - 1).compareTo(key) >= 0) {
+      String msg = String.format(
+          "Bulk loaded key %s is not greater than the previous key %s.",
+          key, keys.get(keys.size() - 1));
+      throw new BPlusTreeException(msg);
+    }
+  }
+
+  /**
+   * Replaces the record id associated with `key`, returning false if `key` is
+   * not in this leaf. The record ids of a compressed leaf are delta encoded,
+   * so a new record id may not fit; see hasRoomForRid.
+   */
+  public boolean updateRid(DataBox key, RecordId rid) {
+    int index = indexOf(key);
+    if (index == -1) {
+      return false;
+    }
+    rids.set(index, rid.toLong());
+    if (metadata.isCompressed()) {
+      sync();
+      return true;
+    }
+    ByteBuffer buf = page.getByteBuffer();
+    writeEntries(buf, index, index + 1);
+    cacheWritten();
+    return true;
   }
 
   // Iterators /////////////////////////////////////////////////////////////////
   /** Return the record id associated with `key`. */
   public Optional<RecordId> getKey(DataBox key) {
-    int index = keys.indexOf(key);
-    return index == -1 ? Optional.empty() : Optional.of(rids.get(index));
+    int index = indexOf(key);
+    return index == -1 ? Optional.empty() : Optional.of(RecordId.fromLong(rids.get(index)));
+  }
+
+  /**
+   * Returns the included values of the entry with key `key`, if `key` is in
+   * this leaf.
+   */
+  Optional<List<DataBox>> getIncludedValues(DataBox key) {
+    int index = indexOf(key);
+    return index == -1 ? Optional.empty() : Optional.of(new ArrayList<>(included.get(index)));
+  }
+
+  /**
+   * Same as getKey, but for the leaf serialized on page `page` (see
+   * toBytes). Rather than deserializing the leaf, we encode `key` once and
+   * binary search the leaf's fixed-width entries in place, comparing the
+   * normalized key bytes of each probed entry against it, so no key and at
+   * most one record id is ever deserialized. The entries of a compressed leaf don't
+   * have a fixed width, so a compressed leaf is deserialized (but not cached,
+   * since the caller may not hold its latch).
+   */
+  static Optional<RecordId> getKey(BPlusTreeMetadata metadata, Page page, DataBox key) {
+    if (metadata.isCompressed()) {
+      return read(metadata, page.getPageNum()).getKey(key);
+    }
+    ByteBuffer buf = page.getByteBuffer().duplicate();
+    byte[] probe = NormalizedKey.encode(key);
+    int entrySize = entrySize(metadata);
+    int n = buf.getInt(NUM_ENTRIES_OFFSET);
+
+    int lo = 0;
+    int hi = n - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int offset = ENTRIES_OFFSET + mid * entrySize;
+      int c = NormalizedKey.compare(buf, offset, probe);
+      if (c == 0) {
+        buf.position(offset + probe.length);
+        return Optional.of(RecordId.fromBytes(buf));
+      } else if (c < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return Optional.empty();
   }
 
   /**
@@ -232,7 +571,7 @@ class LeafNode extends BPlusNode {
    * their corresponding keys.
    */
   public Iterator<RecordId> scanAll() {
-    return rids.iterator();
+    return copyRids(0, rids.size()).iterator();
   }
 
   /**
@@ -242,7 +581,83 @@ class LeafNode extends BPlusNode {
    */
   public Iterator<RecordId> scanGreaterEqual(DataBox key) {
     int index = InnerNode.numLessThan(key, keys);
-    return rids.subList(index, rids.size()).iterator();
+    return copyRids(index, rids.size()).iterator();
+  }
+
+  /**
+   * Returns the index of the first entry of this leaf whose key is greater
+   * than or equal to lo (greater than lo if loInclusive is false), or 0 if lo
+   * is empty. Together with upperIndex, lowerIndex bounds the entries of a
+   * range scan.
+   */
+  int lowerIndex(Optional<DataBox> lo, boolean loInclusive) {
+    if (!lo.isPresent()) {
+      return 0;
+    }
+    return loInclusive
+      ? InnerNode.numLessThan(lo.get(), keys)
+      : InnerNode.numLessThanEqual(lo.get(), keys);
+  }
+
+  /**
+   * Returns one more than the index of the last entry of this leaf whose key
+   * is less than or equal to hi (less than hi if hiInclusive is false), or
+   * the number of entries if hi is empty.
+   */
+  int upperIndex(Optional<DataBox> hi, boolean hiInclusive) {
+    if (!hi.isPresent()) {
+      return keys.size();
+    }
+    return hiInclusive
+      ? InnerNode.numLessThanEqual(hi.get(), keys)
+      : InnerNode.numLessThan(hi.get(), keys);
+  }
+
+  /** Returns the number of entries in this leaf. */
+  int numEntries() {
+    return keys.size();
+  }
+
+  /** Returns the key of entry i. */
+  DataBox keyAt(int i) {
+    return keys.get(i);
+  }
+
+  /** Returns a copy of the keys of entries [from, to). */
+  List<DataBox> copyKeys(int from, int to) {
+    return new ArrayList<>(keys.subList(from, Math.max(from, to)));
+  }
+
+  /** Returns a copy of the record ids of entries [from, to). */
+  List<RecordId> copyRids(int from, int to) {
+    List<RecordId> copy = new ArrayList<>(Math.max(0, to - from));
+    for (int i = from; i < to; ++i) {
+      copy.add(RecordId.fromLong(rids.get(i)));
+    }
+    return copy;
+  }
+
+  /**
+   * Same as copyRids, but returns the record ids encoded as longs (see
+   * RecordId.toLong) without creating a RecordId for each.
+   */
+  long[] copyRidLongs(int from, int to) {
+    return rids.toArray(from, Math.max(from, to));
+  }
+
+  /**
+   * Returns the entries [from, to) as lists of their key followed by their
+   * included values.
+   */
+  List<List<DataBox>> copyEntries(int from, int to) {
+    List<List<DataBox>> entries = new ArrayList<>();
+    for (int i = from; i < to; ++i) {
+      List<DataBox> entry = new ArrayList<>(1 + included.get(i).size());
+      entry.add(keys.get(i));
+      entry.addAll(included.get(i));
+      entries.add(entry);
+    }
+    return entries;
   }
 
   // Helpers ///////////////////////////////////////////////////////////////////
@@ -251,6 +666,151 @@ class LeafNode extends BPlusNode {
     return page;
   }
 
+  /**
+   * Returns true if key and rid can be put into this leaf without splitting
+   * it.
+   */
+  boolean hasRoomFor(DataBox key, RecordId rid) {
+    if (!metadata.isCompressed()) {
+      return keys.size() < 2 * metadata.getOrder();
+    }
+    int index = InnerNode.numLessThanEqual(key, keys);
+    List<DataBox> newKeys = new ArrayList<>(keys);
+    LongList newRids = rids.copyOfRange(0, rids.size());
+    newKeys.add(index, key);
+    newRids.add(index, rid.toLong());
+    return compressedSize(KeyCompression.encode(newKeys), newRids) <= Page.pageSize;
+  }
+
+  /**
+   * Returns true if the record id of key, which must be in this leaf, can be
+   * replaced with rid (see updateRid) without overflowing our page.
+   */
+  boolean hasRoomForRid(DataBox key, RecordId rid) {
+    if (!metadata.isCompressed()) {
+      return true;
+    }
+    // Only the deltas of the record id and the one after it change.
+    int index = indexOf(key);
+    assert(index != -1);
+    int prevPageNum = index == 0 ? 0 : RecordId.getPageNum(rids.get(index - 1));
+    int oldSize = ridSize(rids.get(index), prevPageNum);
+    int newSize = ridSize(rid.toLong(), prevPageNum);
+    if (index + 1 < rids.size()) {
+      oldSize += ridSize(rids.get(index + 1), RecordId.getPageNum(rids.get(index)));
+      newSize += ridSize(rids.get(index + 1), rid.getPageNum());
+    }
+    return compressedSize - oldSize + newSize <= Page.pageSize;
+  }
+
+  /**
+   * Returns the index at which an overflowing compressed leaf splits: the
+   * index i that minimizes the size of the bigger of the leaves holding
+   * entries [0, i) and [i, n). The size of [0, i) grows with i and the size
+   * of [i, n) shrinks with i, so we binary search for where they cross.
+   */
+  private int splitIndex() {
+    List<byte[]> encoded = KeyCompression.encode(keys);
+    int n = keys.size();
+    int lo = 1;
+    int hi = n - 1;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (compressedSize(encoded, rids, 0, mid) >= compressedSize(encoded, rids, mid, n)) {
+        hi = mid;
+      } else {
+        lo = mid + 1;
+      }
+    }
+    if (lo > 1) {
+      int size = Math.max(compressedSize(encoded, rids, 0, lo),
+                          compressedSize(encoded, rids, lo, n));
+      int prevSize = Math.max(compressedSize(encoded, rids, 0, lo - 1),
+                              compressedSize(encoded, rids, lo - 1, n));
+      if (prevSize < size) {
+        return lo - 1;
+      }
+    }
+    return lo;
+  }
+
+  private int compressedSize(List<byte[]> encoded, LongList rids) {
+    return compressedSize(encoded, rids, 0, rids.size());
+  }
+
+  /**
+   * Returns the number of bytes of the compressed serialization (see toBytes)
+   * of a leaf holding entries [from, to) with the encoded keys `encoded` and
+   * record ids `rids`.
+   */
+  private int compressedSize(List<byte[]> encoded, LongList rids, int from, int to) {
+    return ENTRIES_OFFSET +
+           KeyCompression.keysSize(encoded, from, to, metadata.getKeySchema()) +
+           ridsSize(rids, from, to);
+  }
+
+  /**
+   * Returns the number of bytes that the record ids and included values of
+   * entries [from, to) take up in a compressed leaf holding just them, or 0
+   * if the leaf is not compressed.
+   */
+  private int ridsSize(LongList rids, int from, int to) {
+    if (!metadata.isCompressed()) {
+      return 0;
+    }
+    int size = 0;
+    int prevPageNum = 0;
+    for (int i = from; i < to; ++i) {
+      size += ridSize(rids.get(i), prevPageNum);
+      prevPageNum = RecordId.getPageNum(rids.get(i));
+    }
+    return size;
+  }
+
+  /**
+   * Returns the number of bytes that rid (encoded as a long) and its included
+   * values take up in a compressed leaf when the page number of the record id
+   * before it is prevPageNum (or 0 if it is the first).
+   */
+  private int ridSize(long rid, int prevPageNum) {
+    int delta = RecordId.getPageNum(rid) - prevPageNum;
+    return KeyCompression.varIntSize(KeyCompression.zigZag(delta)) + Short.BYTES +
+           metadata.getIncludedSizeInBytes();
+  }
+
+  /** Returns the index of key in keys, or -1 if key is not in this leaf. */
+  private int indexOf(DataBox key) {
+    int index = InnerNode.numLessThan(key, keys);
+    if (index < keys.size() && keys.get(index).equals(key)) {
+      return index;
+    }
+    return -1;
+  }
+
+  /** Returns the page number of the right sibling of this leaf, if any. */
+  Optional<Integer> getRightSiblingPageNum() {
+    return rightSibling;
+  }
+
+  /** Returns the page number of the left sibling of this leaf, if any. */
+  Optional<Integer> getLeftSiblingPageNum() {
+    return leftSibling;
+  }
+
+  /**
+   * Makes the leaf on page `leaf`, if there is one, point to the leaf on page
+   * `pageNum` as its left sibling.
+   */
+  private void setLeftSiblingOf(Optional<Integer> leaf, int pageNum) {
+    if (!leaf.isPresent()) {
+      return;
+    }
+    LeafNode n = (LeafNode) BPlusNode.fromBytes(metadata, leaf.get());
+    n.leftSibling = Optional.of(pageNum);
+    n.writeHeader(n.page.getByteBuffer());
+    n.cacheWritten();
+  }
+
   /** Returns the right sibling of this leaf, if it has one. */
   public Optional<LeafNode> getRightSibling() {
     if (!rightSibling.isPresent()) {
@@ -258,12 +818,95 @@ class LeafNode extends BPlusNode {
     }
 
     int pageNum = rightSibling.get();
-    return Optional.of(LeafNode.fromBytes(metadata, pageNum));
+    return Optional.of((LeafNode) BPlusNode.fromBytes(metadata, pageNum));
   }
 
-  /** Serializes this leaf to its page. */
+  /**
+   * Serializes this leaf to its page and makes it the cached node of the page.
+   */
   private void sync() {
-    page.getByteBuffer().put(toBytes());
+    write(toBytes());
+  }
+
+  /**
+   * Writes bytes, our serialization, to our page and makes this leaf the
+   * cached node of the page.
+   */
+  private void write(byte[] bytes) {
+    page.getByteBuffer().duplicate().put(bytes);
+    compressedSize = bytes.length;
+    cacheWritten();
+  }
+
+  /**
+   * Makes this leaf, which was just written to its page, the cached node of
+   * the page, and gives the page a new leaf version (see
+   * BPlusTreeMetadata.getLeafVersion).
+   */
+  private void cacheWritten() {
+    metadata.getNodeCache().put(this);
+    metadata.leafWritten(page.getPageNum());
+  }
+
+  private int entrySize() {
+    return entrySize(metadata);
+  }
+
+  /** Returns the number of bytes of a single (key, rid, included) entry. */
+  private static int entrySize(BPlusTreeMetadata metadata) {
+    return metadata.getKeySchema().getSizeInBytes() + RecordId.getSizeInBytes() +
+           metadata.getIncludedSizeInBytes();
+  }
+
+  /** Returns rids encoded as longs (see RecordId.toLong). */
+  private static LongList toLongs(List<RecordId> rids) {
+    LongList longs = new LongList(rids.size());
+    for (RecordId rid : rids) {
+      longs.add(rid.toLong());
+    }
+    return longs;
+  }
+
+  /** Returns n empty lists of included values. */
+  private static List<List<DataBox>> noIncluded(int n) {
+    return new ArrayList<>(Collections.nCopies(n, Collections.emptyList()));
+  }
+
+  /** Returns the byte offset of the ith (key, rid) entry on our page. */
+  private int entryOffset(int i) {
+    return ENTRIES_OFFSET + i * entrySize();
+  }
+
+  /** Writes our siblings and number of entries to our page. */
+  private void writeHeader(ByteBuffer buf) {
+    buf.putInt(SIBLING_OFFSET, rightSibling.orElse(-1));
+    buf.putInt(LEFT_SIBLING_OFFSET, leftSibling.orElse(-1));
+    buf.putInt(NUM_ENTRIES_OFFSET, keys.size());
+  }
+
+  /** Writes entries [from, to) to their slots on our page. */
+  private void writeEntries(ByteBuffer buf, int from, int to) {
+    if (from >= to) {
+      return;
+    }
+    ByteBuffer dst = buf.duplicate();
+    dst.position(entryOffset(from));
+    for (int i = from; i < to; ++i) {
+      NormalizedKey.encode(keys.get(i), dst);
+      putRid(dst, rids.get(i));
+      for (DataBox d : included.get(i)) {
+        dst.put(d.toBytes());
+      }
+    }
+  }
+
+  /**
+   * Writes rid, encoded as a long, to buf the way RecordId.toBytes would,
+   * without creating a RecordId.
+   */
+  private static void putRid(ByteBuffer buf, long rid) {
+    buf.putInt(RecordId.getPageNum(rid));
+    buf.putShort(RecordId.getEntryNum(rid));
   }
 
   /**
@@ -271,31 +914,42 @@ class LeafNode extends BPlusNode {
    * with 2d entries will fit on a single page of size `pageSizeInBytes`.
    */
   public static int maxOrder(int pageSizeInBytes, Type keySchema) {
+    return maxOrder(pageSizeInBytes, keySchema, Collections.emptyList());
+  }
+
+  /**
+   * Same as maxOrder(pageSizeInBytes, keySchema), but for the leaves of a
+   * covering index whose entries include values of types includedSchema.
+   */
+  public static int maxOrder(int pageSizeInBytes, Type keySchema,
+                             List<Type> includedSchema) {
     // A leaf node with n entries takes up the following number of bytes:
     //
-    //   1 + 4 + 4 + n * (keySize + ridSize)
+    //   1 + 4 + 4 + 4 + n * (keySize + ridSize + includedSize)
     //
     // where
     //
     //   - 1 is the number of bytes used to store isLeaf,
-    //   - 4 is the number of bytes used to store a sibling pointer,
+    //   - 4 + 4 is the number of bytes used to store the sibling pointers,
     //   - 4 is the number of bytes used to store n,
     //   - keySize is the number of bytes used to store a DataBox of type
     //     keySchema, and
-    //   - ridSize is the number of bytes of a RecordId.
+    //   - ridSize is the number of bytes of a RecordId, and
+    //   - includedSize is the number of bytes of the included values.
     //
     // Solving the following equation
     //
-    //   n * (keySize + ridSize) + 9 <= pageSizeInBytes
+    //   n * (keySize + ridSize + includedSize) + 13 <= pageSizeInBytes
     //
     // we get
     //
-    //   n = (pageSizeInBytes - 9) / (keySize + ridSize)
+    //   n = (pageSizeInBytes - 13) / (keySize + ridSize + includedSize)
     //
     // The order d is half of n.
     int keySize = keySchema.getSizeInBytes();
     int ridSize = RecordId.getSizeInBytes();
-    int n = (pageSizeInBytes - 9) / (keySize + ridSize);
+    int includedSize = BPlusTreeMetadata.getIncludedSizeInBytes(includedSchema);
+    int n = (pageSizeInBytes - ENTRIES_OFFSET) / (keySize + ridSize + includedSize);
     return n / 2;
   }
 
@@ -306,14 +960,19 @@ class LeafNode extends BPlusNode {
 
   // For testing only.
   List<RecordId> getRids() {
-    return rids;
+    return copyRids(0, rids.size());
+  }
+
+  // For testing only.
+  List<List<DataBox>> getIncluded() {
+    return included;
   }
 
   // Pretty Printing ///////////////////////////////////////////////////////////
   @Override
   public String toString() {
     return String.format("LeafNode(pageNum=%s, keys=%s, rids=%s)",
-                         page.getPageNum(), keys, rids);
+                         page.getPageNum(), keys, copyRids(0, rids.size()));
   }
 
   @Override
@@ -321,7 +980,7 @@ class LeafNode extends BPlusNode {
     List<String> ss = new ArrayList<>();
     for (int i = 0; i < keys.size(); ++i) {
       String key = keys.get(i).toString();
-      String rid = rids.get(i).toSexp();
+      String rid = RecordId.fromLong(rids.get(i)).toSexp();
       ss.add(String.format("(%s %s)", key, rid));
     }
     return String.format("(%s)", String.join(" ", ss));
@@ -337,7 +996,7 @@ class LeafNode extends BPlusNode {
   public String toDot() {
     List<String> ss = new ArrayList<>();
     for (int i = 0; i < keys.size(); ++i) {
-      ss.add(String.format("%s: %s", keys.get(i), rids.get(i).toSexp()));
+      ss.add(String.format("%s: %s", keys.get(i), RecordId.fromLong(rids.get(i)).toSexp()));
     }
     int pageNum = getPage().getPageNum();
     String s = String.join("|", ss);
@@ -347,26 +1006,35 @@ class LeafNode extends BPlusNode {
   // Serialization /////////////////////////////////////////////////////////////
   @Override
   public byte[] toBytes() {
+    if (metadata.isCompressed()) {
+      return toCompressedBytes();
+    }
+
     // When we serialize a leaf node, we write:
     //
     //   a. the literal value 1 (1 byte) which indicates that this node is a
     //      leaf node,
     //   b. the page id (4 bytes) of our right sibling (or -1 if we don't have
     //      a right sibling),
-    //   c. the number (4 bytes) of (key, rid) pairs this leaf node contains,
+    //   c. the page id (4 bytes) of our left sibling (or -1 if we don't have
+    //      a left sibling),
+    //   d. the number (4 bytes) of (key, rid) pairs this leaf node contains,
     //      and
-    //   d. the (key, rid) pairs themselves.
+    //   e. the (key, rid) pairs themselves, each followed by its included
+    //      values (if the tree is a covering index). Keys are written in
+    //      their normalized encoding (see NormalizedKey), so getKey can
+    //      compare them in place as raw bytes.
     //
     // For example, the following bytes:
     //
-    //   +----+-------------+-------------+----+-------------------+
-    //   | 01 | 00 00 00 04 | 00 00 00 01 | 03 | 00 00 00 03 00 01 |
-    //   +----+-------------+-------------+----+-------------------+
-    //    \__/ \___________/ \___________/ \______________________/
-    //     a    b             c             d
+    //   +----+-------------+-------------+-------------+----+-------------------+
+    //   | 01 | 00 00 00 04 | ff ff ff ff | 00 00 00 01 | 03 | 00 00 00 03 00 01 |
+    //   +----+-------------+-------------+-------------+----+-------------------+
+    //    \__/ \___________/ \___________/ \___________/ \______________________/
+    //     a    b             c             d             e
     //
-    // represent a leaf node with sibling on page 4 and a single (key, rid)
-    // pair with key 3 and page id (3, 1).
+    // represent a leaf node with right sibling on page 4, no left sibling, and
+    // a single (key, rid) pair with key 3 and page id (3, 1).
 
     // All sizes are in bytes.
     int isLeafSize = 1;
@@ -374,42 +1042,121 @@ class LeafNode extends BPlusNode {
     int lenSize = Integer.BYTES;
     int keySize = metadata.getKeySchema().getSizeInBytes();
     int ridSize = RecordId.getSizeInBytes();
-    int entriesSize = (keySize + ridSize) * keys.size();
-    int size = isLeafSize + siblingSize + lenSize + entriesSize;
+    int includedSize = metadata.getIncludedSizeInBytes();
+    int entriesSize = (keySize + ridSize + includedSize) * keys.size();
+    int size = isLeafSize + 2 * siblingSize + lenSize + entriesSize;
 
     ByteBuffer buf = ByteBuffer.allocate(size);
     buf.put((byte) 1);
     buf.putInt(rightSibling.orElse(-1));
+    buf.putInt(leftSibling.orElse(-1));
     buf.putInt(keys.size());
     for (int i = 0; i < keys.size(); ++i) {
-      buf.put(keys.get(i).toBytes());
-      buf.put(rids.get(i).toBytes());
+      NormalizedKey.encode(keys.get(i), buf);
+      putRid(buf, rids.get(i));
+      for (DataBox d : included.get(i)) {
+        buf.put(d.toBytes());
+      }
     }
     return buf.array();
   }
 
+  /**
+   * Serializes a leaf of a compressed tree. The header (a, b, c, and d above)
+   * is the same as that of an uncompressed leaf, but the entries are followed
+   * by
+   *
+   *   e. the length (a varint, see KeyCompression) and bytes of the prefix
+   *      shared by the normalized encodings of our keys, and
+   *   f. for every entry:
+   *        - the length (a varint) and bytes of the rest of the key, without
+   *          its trailing padding (see KeyCompression),
+   *        - the zigzag encoded difference (a varint) between the page number
+   *          of the record id and that of the record id before it (or 0),
+   *        - the entry number (2 bytes) of the record id, and
+   *        - the included values, if any.
+   *
+   * Record ids that point to nearby pages thus take up 3 bytes rather than 6.
+   */
+  private byte[] toCompressedBytes() {
+    List<byte[]> encoded = KeyCompression.encode(keys);
+    Type keySchema = metadata.getKeySchema();
+    ByteBuffer buf = ByteBuffer.allocate(compressedSize(encoded, rids));
+    buf.put((byte) 1);
+    writeHeader(buf);
+    buf.position(ENTRIES_OFFSET);
+    int prefixLength = KeyCompression.putPrefix(buf, encoded, 0, keys.size());
+    int prevPageNum = 0;
+    for (int i = 0; i < keys.size(); ++i) {
+      long rid = rids.get(i);
+      KeyCompression.putSuffix(buf, encoded.get(i), prefixLength, keySchema);
+      KeyCompression.putVarInt(buf, KeyCompression.zigZag(RecordId.getPageNum(rid) - prevPageNum));
+      buf.putShort(RecordId.getEntryNum(rid));
+      for (DataBox d : included.get(i)) {
+        buf.put(d.toBytes());
+      }
+      prevPageNum = RecordId.getPageNum(rid);
+    }
+    assert(!buf.hasRemaining());
+    return buf.array();
+  }
+
   /**
    * LeafNode.fromBytes(m, p) loads a LeafNode from page p of
    * meta.getAllocator().
    */
   public static LeafNode fromBytes(BPlusTreeMetadata metadata, int pageNum) {
+    LeafNode leaf = read(metadata, pageNum);
+    metadata.getNodeCache().put(leaf);
+    return leaf;
+  }
+
+  /** Same as fromBytes, but does not cache the leaf. */
+  private static LeafNode read(BPlusTreeMetadata metadata, int pageNum) {
     Page page = metadata.getAllocator().fetchPage(pageNum);
-    ByteBuffer buf = page.getByteBuffer();
+    // We read from a duplicate of the page's buffer so that concurrent
+    // readers of the page don't move each other's positions.
+    ByteBuffer buf = page.getByteBuffer().duplicate();
 
     assert(buf.get() == (byte) 1);
 
     int s = buf.getInt();
     Optional<Integer> rightSibling = s == -1 ? Optional.empty() : Optional.of(s);
+    s = buf.getInt();
+    Optional<Integer> leftSibling = s == -1 ? Optional.empty() : Optional.of(s);
 
     List<DataBox> keys = new ArrayList<>();
-    List<RecordId> rids = new ArrayList<>();
+    List<List<DataBox>> included = new ArrayList<>();
+    List<Type> includedSchema = metadata.getIncludedSchema();
     int n = buf.getInt();
+    LongList rids = new LongList(n);
+    byte[] prefix = metadata.isCompressed() ? KeyCompression.getPrefix(buf) : null;
+    int prevPageNum = 0;
     for (int i = 0; i < n; ++i) {
-      keys.add(DataBox.fromBytes(buf, metadata.getKeySchema()));
-      rids.add(RecordId.fromBytes(buf));
+      if (metadata.isCompressed()) {
+        keys.add(KeyCompression.getKey(buf, prefix, metadata.getKeySchema()));
+        prevPageNum += KeyCompression.unZigZag(KeyCompression.getVarInt(buf));
+        rids.add(RecordId.toLong(prevPageNum, buf.getShort()));
+      } else {
+        keys.add(NormalizedKey.decode(buf, metadata.getKeySchema()));
+        int ridPageNum = buf.getInt();
+        rids.add(RecordId.toLong(ridPageNum, buf.getShort()));
+      }
+      if (includedSchema.isEmpty()) {
+        included.add(Collections.emptyList());
+        continue;
+      }
+      List<DataBox> values = new ArrayList<>(includedSchema.size());
+      for (Type t : includedSchema) {
+        values.add(DataBox.fromBytes(buf, t));
+      }
+      included.add(values);
     }
 
-    return new LeafNode(metadata, pageNum, keys, rids, rightSibling);
+    LeafNode leaf = new LeafNode(metadata, pageNum, keys, rids, included,
+                                 leftSibling, rightSibling);
+    leaf.compressedSize = buf.position();
+    return leaf;
   }
 
   // Builtins //////////////////////////////////////////////////////////////////
@@ -425,11 +1172,14 @@ class LeafNode extends BPlusNode {
     return page.getPageNum() == n.page.getPageNum() &&
            keys.equals(n.keys) &&
            rids.equals(n.rids) &&
-           rightSibling.equals(n.rightSibling);
+           included.equals(n.included) &&
+           rightSibling.equals(n.rightSibling) &&
+           leftSibling.equals(n.leftSibling);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(page.getPageNum(), keys, rids, rightSibling);
+    return Objects.hash(page.getPageNum(), keys, rids, included, rightSibling,
+                        leftSibling);
   }
 }
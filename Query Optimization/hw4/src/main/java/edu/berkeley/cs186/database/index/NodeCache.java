@@ -0,0 +1,72 @@
+package edu.berkeley.cs186.database.index;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of the decoded nodes of a single B+ tree, keyed by page number.
+ * Without it, every InnerNode.getChild and LeafNode.getRightSibling would
+ * deserialize a fresh node from its page, so a single BPlusTree.get would
+ * rebuild every node on the path from the root to a leaf.
+ *
+ * Every node puts itself into the cache whenever it syncs itself to its page,
+ * replacing any other object decoded from the same page. The cached node is
+ * therefore always the most recently written version of its page, and reading
+ * a node through the cache never returns a stale copy (see the discussion of
+ * stale in-memory nodes in LeafNode).
+ *
+ * Inner nodes are never evicted. A tree of order d has roughly 2d times fewer
+ * inner nodes than leaves, so this pins the upper levels of the tree at a
+ * small cost. Leaves are evicted in least recently used order once there are
+ * more than leafCapacity of them.
+ */
+class NodeCache {
+  // The default maximum number of cached leaves.
+  public static final int DEFAULT_LEAF_CAPACITY = 128;
+
+  private final Map<Integer, InnerNode> innerNodes;
+  private final LinkedHashMap<Integer, LeafNode> leaves;
+
+  NodeCache(int leafCapacity) {
+    this.innerNodes = new HashMap<>();
+    this.leaves = new LinkedHashMap<Integer, LeafNode>(16, 0.75f, true /* accessOrder */) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, LeafNode> eldest) {
+        return size() > leafCapacity;
+      }
+    };
+  }
+
+  /** Returns the cached node on page pageNum, or null if there is none. */
+  synchronized BPlusNode get(int pageNum) {
+    InnerNode inner = innerNodes.get(pageNum);
+    if (inner != null) {
+      return inner;
+    }
+    return leaves.get(pageNum);
+  }
+
+  /** Caches node, replacing whatever was cached for its page. */
+  synchronized void put(BPlusNode node) {
+    int pageNum = node.getPage().getPageNum();
+    if (node instanceof InnerNode) {
+      leaves.remove(pageNum);
+      innerNodes.put(pageNum, (InnerNode) node);
+    } else {
+      innerNodes.remove(pageNum);
+      leaves.put(pageNum, (LeafNode) node);
+    }
+  }
+
+  /** Drops the node cached for page pageNum, if any. */
+  synchronized void invalidate(int pageNum) {
+    innerNodes.remove(pageNum);
+    leaves.remove(pageNum);
+  }
+
+  /** Returns the number of cached nodes. */
+  synchronized int size() {
+    return innerNodes.size() + leaves.size();
+  }
+}
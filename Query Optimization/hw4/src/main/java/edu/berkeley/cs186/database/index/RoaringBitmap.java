@@ -0,0 +1,616 @@
+package edu.berkeley.cs186.database.index;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import edu.berkeley.cs186.database.common.LongIterator;
+import edu.berkeley.cs186.database.common.Pair;
+import edu.berkeley.cs186.database.table.RecordId;
+
+/**
+ * A compressed set of record ids (see RecordId.toLong), in the style of a
+ * Roaring bitmap:
+ *
+ *   RoaringBitmap a = RoaringBitmap.of(r1, r2, r3);
+ *   RoaringBitmap b = RoaringBitmap.of(r2, r3, r4);
+ *   a.and(b);    // {r2, r3}
+ *   a.or(b);     // {r1, r2, r3, r4}
+ *   a.andNot(b); // {r1}
+ *
+ * # Layout
+ * The record ids are split by page number. The entry numbers of the record
+ * ids on one page are held by a container, and the containers are kept in
+ * an array sorted by page number. A container holds its entry numbers in one
+ * of two ways, whichever is smaller:
+ *
+ *   - An array container holds up to MAX_ARRAY_SIZE entry numbers in a
+ *     sorted array of chars (2 bytes each).
+ *   - A bitmap container holds any number of entry numbers in a bitmap of
+ *     all 2^16 entry numbers (8KB).
+ *
+ * A container switches from one to the other as entry numbers are added and
+ * removed, so a sparse page costs a few bytes and a dense page costs no more
+ * than a plain bitmap. AND, OR, and AND NOT of two bitmaps merge their
+ * container arrays by page number, and combine two containers with the same
+ * page number with a merge of their arrays or word by word on their bitmaps.
+ *
+ * A RoaringBitmap is not thread safe.
+ */
+public class RoaringBitmap {
+  // The most entry numbers an array container holds. A bitmap container of
+  // 2^16 bits takes as many bytes as an array of 4096 chars.
+  static final int MAX_ARRAY_SIZE = 4096;
+
+  private int[] keys;
+  private Container[] containers;
+  private int numContainers;
+
+  /** Construct a new, empty bitmap. */
+  public RoaringBitmap() {
+    this(4);
+  }
+
+  private RoaringBitmap(int capacity) {
+    this.keys = new int[Math.max(1, capacity)];
+    this.containers = new Container[Math.max(1, capacity)];
+    this.numContainers = 0;
+  }
+
+  /** Returns a bitmap of the record ids rids, encoded by RecordId.toLong. */
+  public static RoaringBitmap of(long... rids) {
+    RoaringBitmap bitmap = new RoaringBitmap();
+    for (long rid : rids) {
+      bitmap.add(rid);
+    }
+    return bitmap;
+  }
+
+  // Core API ////////////////////////////////////////////////////////////////
+  /** Adds the record id rid, encoded by RecordId.toLong. */
+  public void add(long rid) {
+    int key = RecordId.getPageNum(rid);
+    int i = findContainer(key);
+    if (i < 0) {
+      i = -i - 1;
+      insertContainer(i, key, new ArrayContainer());
+    }
+    containers[i] = containers[i].add(low(rid));
+  }
+
+  public void add(RecordId rid) {
+    add(rid.toLong());
+  }
+
+  /** Removes the record id rid, encoded by RecordId.toLong, if present. */
+  public void remove(long rid) {
+    int i = findContainer(RecordId.getPageNum(rid));
+    if (i < 0) {
+      return;
+    }
+    containers[i] = containers[i].remove(low(rid));
+    if (containers[i].getCardinality() == 0) {
+      removeContainer(i);
+    }
+  }
+
+  public void remove(RecordId rid) {
+    remove(rid.toLong());
+  }
+
+  public boolean contains(long rid) {
+    int i = findContainer(RecordId.getPageNum(rid));
+    return i >= 0 && containers[i].contains(low(rid));
+  }
+
+  public boolean contains(RecordId rid) {
+    return contains(rid.toLong());
+  }
+
+  /** Returns the number of record ids in this bitmap. */
+  public long getCardinality() {
+    long cardinality = 0;
+    for (int i = 0; i < numContainers; i++) {
+      cardinality += containers[i].getCardinality();
+    }
+    return cardinality;
+  }
+
+  /** Returns the number of distinct pages of the record ids in this bitmap. */
+  public int getNumPages() {
+    return numContainers;
+  }
+
+  public boolean isEmpty() {
+    return numContainers == 0;
+  }
+
+  /** Returns a new bitmap of the record ids in both this bitmap and other. */
+  public RoaringBitmap and(RoaringBitmap other) {
+    RoaringBitmap result = new RoaringBitmap(Math.min(numContainers, other.numContainers));
+    int i = 0;
+    int j = 0;
+    while (i < numContainers && j < other.numContainers) {
+      if (keys[i] < other.keys[j]) {
+        i++;
+      } else if (keys[i] > other.keys[j]) {
+        j++;
+      } else {
+        Container c = containers[i].and(other.containers[j]);
+        if (c.getCardinality() > 0) {
+          result.appendContainer(keys[i], c);
+        }
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  /** Returns a new bitmap of the record ids in this bitmap, other, or both. */
+  public RoaringBitmap or(RoaringBitmap other) {
+    RoaringBitmap result = new RoaringBitmap(numContainers + other.numContainers);
+    int i = 0;
+    int j = 0;
+    while (i < numContainers || j < other.numContainers) {
+      if (j == other.numContainers || (i < numContainers && keys[i] < other.keys[j])) {
+        result.appendContainer(keys[i], containers[i].copy());
+        i++;
+      } else if (i == numContainers || keys[i] > other.keys[j]) {
+        result.appendContainer(other.keys[j], other.containers[j].copy());
+        j++;
+      } else {
+        result.appendContainer(keys[i], containers[i].or(other.containers[j]));
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  /** Returns a new bitmap of the record ids in this bitmap but not in other. */
+  public RoaringBitmap andNot(RoaringBitmap other) {
+    RoaringBitmap result = new RoaringBitmap(numContainers);
+    int j = 0;
+    for (int i = 0; i < numContainers; i++) {
+      while (j < other.numContainers && other.keys[j] < keys[i]) {
+        j++;
+      }
+      Container c = j < other.numContainers && other.keys[j] == keys[i]
+          ? containers[i].andNot(other.containers[j])
+          : containers[i].copy();
+      if (c.getCardinality() > 0) {
+        result.appendContainer(keys[i], c);
+      }
+    }
+    return result;
+  }
+
+  /** Returns a copy of this bitmap. */
+  public RoaringBitmap copy() {
+    RoaringBitmap result = new RoaringBitmap(numContainers);
+    for (int i = 0; i < numContainers; i++) {
+      result.appendContainer(keys[i], containers[i].copy());
+    }
+    return result;
+  }
+
+  /** Returns the record ids of this bitmap, encoded by RecordId.toLong, in order. */
+  public LongIterator iterator() {
+    return new LongIterator() {
+      private int i = 0;
+      private char[] entries = new char[0];
+      private int j = 0;
+
+      @Override
+      public boolean hasNext() {
+        while (j == entries.length && i < numContainers) {
+          entries = containers[i++].toArray();
+          j = 0;
+        }
+        return j < entries.length;
+      }
+
+      @Override
+      public long nextLong() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return RecordId.toLong(keys[i - 1], (short) entries[j++]);
+      }
+    };
+  }
+
+  /**
+   * Returns the page number of every page of the record ids of this bitmap,
+   * in order, paired with the set of the entry numbers of the record ids on
+   * it (see Table.readPage(pageNum, entryNums)).
+   */
+  public Iterator<Pair<Integer, BitSet>> pageIterator() {
+    return new Iterator<Pair<Integer, BitSet>>() {
+      private int i = 0;
+
+      @Override
+      public boolean hasNext() {
+        return i < numContainers;
+      }
+
+      @Override
+      public Pair<Integer, BitSet> next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        Pair<Integer, BitSet> page = new Pair<Integer, BitSet>(keys[i], containers[i].toBitSet());
+        i++;
+        return page;
+      }
+    };
+  }
+
+  /** Returns the record ids of this bitmap, encoded by RecordId.toLong, in order. */
+  public long[] toArray() {
+    long[] rids = new long[(int) getCardinality()];
+    LongIterator iter = iterator();
+    for (int i = 0; i < rids.length; i++) {
+      rids[i] = iter.nextLong();
+    }
+    return rids;
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(toArray());
+  }
+
+  // Helpers /////////////////////////////////////////////////////////////////
+  private static char low(long rid) {
+    return (char) RecordId.getEntryNum(rid);
+  }
+
+  /**
+   * Returns the index of the container of page key, or (-(insertion point) -
+   * 1) if there is none.
+   */
+  private int findContainer(int key) {
+    return Arrays.binarySearch(keys, 0, numContainers, key);
+  }
+
+  private void insertContainer(int i, int key, Container c) {
+    grow(numContainers + 1);
+    System.arraycopy(keys, i, keys, i + 1, numContainers - i);
+    System.arraycopy(containers, i, containers, i + 1, numContainers - i);
+    keys[i] = key;
+    containers[i] = c;
+    numContainers++;
+  }
+
+  private void appendContainer(int key, Container c) {
+    insertContainer(numContainers, key, c);
+  }
+
+  private void removeContainer(int i) {
+    System.arraycopy(keys, i + 1, keys, i, numContainers - i - 1);
+    System.arraycopy(containers, i + 1, containers, i, numContainers - i - 1);
+    containers[--numContainers] = null;
+  }
+
+  private void grow(int capacity) {
+    if (capacity > keys.length) {
+      int newCapacity = Math.max(capacity, 2 * keys.length);
+      keys = Arrays.copyOf(keys, newCapacity);
+      containers = Arrays.copyOf(containers, newCapacity);
+    }
+  }
+
+  // Containers //////////////////////////////////////////////////////////////
+  /**
+   * The entry numbers of the record ids on one page. The methods that change
+   * a container return the container that holds the result, which is either
+   * the container itself or a container of the other kind.
+   */
+  private abstract static class Container {
+    abstract Container add(char entry);
+    abstract Container remove(char entry);
+    abstract boolean contains(char entry);
+    abstract int getCardinality();
+    abstract Container and(Container other);
+    abstract Container or(Container other);
+    abstract Container andNot(Container other);
+    abstract Container copy();
+    abstract char[] toArray();
+    abstract BitSet toBitSet();
+  }
+
+  private static class ArrayContainer extends Container {
+    private char[] entries;
+    private int cardinality;
+
+    ArrayContainer() {
+      this(new char[4], 0);
+    }
+
+    ArrayContainer(char[] entries, int cardinality) {
+      this.entries = entries;
+      this.cardinality = cardinality;
+    }
+
+    @Override
+    Container add(char entry) {
+      int i = Arrays.binarySearch(entries, 0, cardinality, entry);
+      if (i >= 0) {
+        return this;
+      }
+      if (cardinality == MAX_ARRAY_SIZE) {
+        return toBitmapContainer().add(entry);
+      }
+      i = -i - 1;
+      if (cardinality == entries.length) {
+        entries = Arrays.copyOf(entries, Math.min(MAX_ARRAY_SIZE, Math.max(4, 2 * entries.length)));
+      }
+      System.arraycopy(entries, i, entries, i + 1, cardinality - i);
+      entries[i] = entry;
+      cardinality++;
+      return this;
+    }
+
+    @Override
+    Container remove(char entry) {
+      int i = Arrays.binarySearch(entries, 0, cardinality, entry);
+      if (i >= 0) {
+        System.arraycopy(entries, i + 1, entries, i, cardinality - i - 1);
+        cardinality--;
+      }
+      return this;
+    }
+
+    @Override
+    boolean contains(char entry) {
+      return Arrays.binarySearch(entries, 0, cardinality, entry) >= 0;
+    }
+
+    @Override
+    int getCardinality() {
+      return cardinality;
+    }
+
+    @Override
+    Container and(Container other) {
+      char[] result = new char[cardinality];
+      int n = 0;
+      if (other instanceof ArrayContainer) {
+        ArrayContainer o = (ArrayContainer) other;
+        int i = 0;
+        int j = 0;
+        while (i < cardinality && j < o.cardinality) {
+          if (entries[i] < o.entries[j]) {
+            i++;
+          } else if (entries[i] > o.entries[j]) {
+            j++;
+          } else {
+            result[n++] = entries[i];
+            i++;
+            j++;
+          }
+        }
+      } else {
+        for (int i = 0; i < cardinality; i++) {
+          if (other.contains(entries[i])) {
+            result[n++] = entries[i];
+          }
+        }
+      }
+      return new ArrayContainer(result, n);
+    }
+
+    @Override
+    Container or(Container other) {
+      if (other instanceof BitmapContainer) {
+        return other.or(this);
+      }
+      ArrayContainer o = (ArrayContainer) other;
+      if (cardinality + o.cardinality > MAX_ARRAY_SIZE) {
+        return toBitmapContainer().or(o);
+      }
+      char[] result = new char[cardinality + o.cardinality];
+      int n = 0;
+      int i = 0;
+      int j = 0;
+      while (i < cardinality || j < o.cardinality) {
+        if (j == o.cardinality || (i < cardinality && entries[i] < o.entries[j])) {
+          result[n++] = entries[i++];
+        } else if (i == cardinality || entries[i] > o.entries[j]) {
+          result[n++] = o.entries[j++];
+        } else {
+          result[n++] = entries[i];
+          i++;
+          j++;
+        }
+      }
+      return new ArrayContainer(result, n);
+    }
+
+    @Override
+    Container andNot(Container other) {
+      char[] result = new char[cardinality];
+      int n = 0;
+      for (int i = 0; i < cardinality; i++) {
+        if (!other.contains(entries[i])) {
+          result[n++] = entries[i];
+        }
+      }
+      return new ArrayContainer(result, n);
+    }
+
+    @Override
+    Container copy() {
+      return new ArrayContainer(Arrays.copyOf(entries, Math.max(1, cardinality)), cardinality);
+    }
+
+    @Override
+    char[] toArray() {
+      return Arrays.copyOf(entries, cardinality);
+    }
+
+    @Override
+    BitSet toBitSet() {
+      BitSet bits = new BitSet();
+      for (int i = 0; i < cardinality; i++) {
+        bits.set(entries[i]);
+      }
+      return bits;
+    }
+
+    private BitmapContainer toBitmapContainer() {
+      BitmapContainer bitmap = new BitmapContainer();
+      for (int i = 0; i < cardinality; i++) {
+        bitmap.set(entries[i]);
+      }
+      return bitmap;
+    }
+  }
+
+  private static class BitmapContainer extends Container {
+    private static final int NUM_WORDS = (1 << 16) / 64;
+
+    private final long[] words;
+    private int cardinality;
+
+    BitmapContainer() {
+      this(new long[NUM_WORDS], 0);
+    }
+
+    BitmapContainer(long[] words, int cardinality) {
+      this.words = words;
+      this.cardinality = cardinality;
+    }
+
+    /** Sets the bit of entry, like add, but never converts the container. */
+    void set(char entry) {
+      long bit = 1L << entry;
+      if ((words[entry >>> 6] & bit) == 0) {
+        words[entry >>> 6] |= bit;
+        cardinality++;
+      }
+    }
+
+    @Override
+    Container add(char entry) {
+      set(entry);
+      return this;
+    }
+
+    /** Clears the bit of entry, like remove, but never converts the container. */
+    void clear(char entry) {
+      long bit = 1L << entry;
+      if ((words[entry >>> 6] & bit) != 0) {
+        words[entry >>> 6] &= ~bit;
+        cardinality--;
+      }
+    }
+
+    @Override
+    Container remove(char entry) {
+      clear(entry);
+      return shrink();
+    }
+
+    @Override
+    boolean contains(char entry) {
+      return (words[entry >>> 6] & (1L << entry)) != 0;
+    }
+
+    @Override
+    int getCardinality() {
+      return cardinality;
+    }
+
+    @Override
+    Container and(Container other) {
+      if (other instanceof ArrayContainer) {
+        return other.and(this);
+      }
+      long[] o = ((BitmapContainer) other).words;
+      long[] result = new long[NUM_WORDS];
+      int n = 0;
+      for (int i = 0; i < NUM_WORDS; i++) {
+        result[i] = words[i] & o[i];
+        n += Long.bitCount(result[i]);
+      }
+      return new BitmapContainer(result, n).shrink();
+    }
+
+    @Override
+    Container or(Container other) {
+      BitmapContainer result = new BitmapContainer(words.clone(), cardinality);
+      if (other instanceof ArrayContainer) {
+        ArrayContainer o = (ArrayContainer) other;
+        for (int i = 0; i < o.cardinality; i++) {
+          result.set(o.entries[i]);
+        }
+        return result;
+      }
+      long[] o = ((BitmapContainer) other).words;
+      int n = 0;
+      for (int i = 0; i < NUM_WORDS; i++) {
+        result.words[i] |= o[i];
+        n += Long.bitCount(result.words[i]);
+      }
+      result.cardinality = n;
+      return result;
+    }
+
+    @Override
+    Container andNot(Container other) {
+      BitmapContainer result = new BitmapContainer(words.clone(), cardinality);
+      if (other instanceof ArrayContainer) {
+        ArrayContainer o = (ArrayContainer) other;
+        for (int i = 0; i < o.cardinality; i++) {
+          result.clear(o.entries[i]);
+        }
+        return result.shrink();
+      }
+      long[] o = ((BitmapContainer) other).words;
+      int n = 0;
+      for (int i = 0; i < NUM_WORDS; i++) {
+        result.words[i] &= ~o[i];
+        n += Long.bitCount(result.words[i]);
+      }
+      result.cardinality = n;
+      return result.shrink();
+    }
+
+    @Override
+    Container copy() {
+      return new BitmapContainer(words.clone(), cardinality);
+    }
+
+    @Override
+    char[] toArray() {
+      char[] entries = new char[cardinality];
+      int n = 0;
+      for (int i = 0; i < NUM_WORDS; i++) {
+        long word = words[i];
+        while (word != 0) {
+          entries[n++] = (char) (i * 64 + Long.numberOfTrailingZeros(word));
+          word &= word - 1;
+        }
+      }
+      return entries;
+    }
+
+    @Override
+    BitSet toBitSet() {
+      return BitSet.valueOf(words);
+    }
+
+    /** Returns an array container of this container's entries if it is small enough. */
+    private Container shrink() {
+      if (cardinality > MAX_ARRAY_SIZE) {
+        return this;
+      }
+      char[] entries = toArray();
+      return new ArrayContainer(entries, entries.length);
+    }
+  }
+}
@@ -318,6 +318,29 @@ public class PageAllocator implements Iterable<Page>, Closeable {
     return this.numPages;
   }
 
+  /**
+   * Returns the largest allocated virtual page number, or -1 if no page is allocated. Only the
+   * master page and a single header page are read.
+   *
+   * @return the largest allocated virtual page number
+   */
+  public synchronized int getMaxPageNum() {
+    byte[] masterBytes = this.masterPage.readBytes();
+    IntBuffer ib = ByteBuffer.wrap(masterBytes).asIntBuffer();
+
+    for (int i = numHeaderPages - 1; i >= 0; i--) {
+      if (ib.get(i) > 0) {
+        byte[] headerBytes = getHeadPage(i).readBytes();
+        for (int j = Page.pageSize - 1; j >= 0; j--) {
+          if (headerBytes[j] != 0) {
+            return i * Page.pageSize + j;
+          }
+        }
+      }
+    }
+    return -1;
+  }
+
   public synchronized static long getNumIOs() {
     return PageAllocator.numIOs.get();
   }
@@ -0,0 +1,113 @@
+package edu.berkeley.cs186.database.query;
+
+import edu.berkeley.cs186.database.Database;
+import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.stats.TableStats;
+
+import java.util.Iterator;
+
+/**
+ * An ART lookup answers an EQUALS predicate on a column with an in-memory
+ * ART index (see Database.createArtIndex) by looking the value up in the
+ * index. It reads no index pages at all, only the matching record, but it
+ * only answers equality predicates.
+ */
+public class ArtLookupOperator extends QueryOperator {
+  private Database.Transaction transaction;
+  private String tableName;
+  private String columnName;
+  private DataBox value;
+
+  private int columnIndex;
+
+  /**
+   * An ART lookup operator.
+   *
+   * @param transaction the transaction containing this operator
+   * @param tableName the table to look up
+   * @param columnName the name of the column the ART index is on
+   * @param value the value to look up
+   * @throws QueryPlanException if there is no ART index on the column
+   * @throws DatabaseException
+   */
+  public ArtLookupOperator(Database.Transaction transaction,
+                           String tableName,
+                           String columnName,
+                           DataBox value) throws QueryPlanException, DatabaseException {
+    super(OperatorType.ARTLOOKUP);
+    if (!transaction.artIndexExists(tableName, columnName)) {
+      throw new QueryPlanException("There is no ART index on " + columnName + ".");
+    }
+    this.transaction = transaction;
+    this.tableName = tableName;
+    this.columnName = columnName;
+    this.value = value;
+    this.setOutputSchema(this.computeSchema());
+    columnName = this.checkSchemaForColumn(this.getOutputSchema(), columnName);
+    this.columnIndex = this.getOutputSchema().getFieldNames().indexOf(columnName);
+
+    this.stats = this.estimateStats();
+    this.cost = this.estimateIOCost();
+  }
+
+  public String str() {
+    return "type: " + this.getType() +
+        "\ntable: " + this.tableName +
+        "\ncolumn: " + this.columnName +
+        "\nvalue: " + this.value;
+  }
+
+  /**
+   * Returns the column name that the ART index is on
+   *
+   * @return columnName
+   */
+  public String getColumnName() {
+    return this.columnName;
+  }
+
+  /**
+   * Estimates the table statistics for the result of executing this query operator.
+   *
+   * @return estimated TableStats
+   */
+  public TableStats estimateStats() throws QueryPlanException {
+    TableStats stats;
+
+    try {
+      stats = this.transaction.getStats(this.tableName);
+    } catch (DatabaseException de) {
+      throw new QueryPlanException(de);
+    }
+
+    return stats.copyWithPredicate(this.columnIndex,
+                                   QueryPlan.PredicateOperator.EQUALS,
+                                   this.value);
+  }
+
+  /**
+   * Estimates the IO cost of executing this query operator. An ART index is
+   * kept entirely in memory, so an ART lookup reads only the matching
+   * records.
+   *
+   * @return estimate IO cost
+   */
+  public int estimateIOCost() {
+    return this.stats.getNumRecords();
+  }
+
+  public Iterator<Record> iterator() throws QueryPlanException, DatabaseException {
+    return this.transaction.artLookup(this.tableName, this.columnName, this.value);
+  }
+
+  public Schema computeSchema() throws QueryPlanException {
+    try {
+      return this.transaction.getFullyQualifiedSchema(this.tableName);
+    } catch (DatabaseException de) {
+      throw new QueryPlanException(de);
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package edu.berkeley.cs186.database.query;
+
+import edu.berkeley.cs186.database.Database;
+import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.common.LongIterator;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordId;
+import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.stats.TableStats;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * A bitmap heap scan answers a range predicate on an indexed column in two
+ * phases. It first scans the index for the record ids of every matching
+ * record, and marks each one in a bitmap of the slots of its page. It then
+ * reads the marked pages in page order, fetching each page once and decoding
+ * only the marked slots.
+ *
+ * An index scan instead fetches records in key order, which for our
+ * unclustered indexes is essentially random page order, so it fetches a page
+ * once per matching record on it. A bitmap heap scan reads each page at most
+ * once, in file order, at the cost of returning records in page order rather
+ * than key order.
+ */
+public class BitmapHeapScanOperator extends QueryOperator {
+  private Database.Transaction transaction;
+  private String tableName;
+  private String columnName;
+  private QueryPlan.PredicateOperator predicate;
+  private DataBox value;
+
+  private int columnIndex;
+
+  /**
+   * A bitmap heap scan operator.
+   *
+   * @param transaction the transaction containing this operator
+   * @param tableName the table to iterate over
+   * @param columnName the name of the column the index is on
+   * @param predicate a range predicate (i.e. not EQUALS or NOT_EQUALS)
+   * @param value the value to compare against
+   * @throws QueryPlanException if predicate is not a range predicate
+   * @throws DatabaseException
+   */
+  public BitmapHeapScanOperator(Database.Transaction transaction,
+                                String tableName,
+                                String columnName,
+                                QueryPlan.PredicateOperator predicate,
+                                DataBox value) throws QueryPlanException, DatabaseException {
+    super(OperatorType.BITMAPHEAPSCAN);
+    if (predicate == QueryPlan.PredicateOperator.EQUALS ||
+        predicate == QueryPlan.PredicateOperator.NOT_EQUALS) {
+      throw new QueryPlanException("Bitmap heap scans do not support the predicate " +
+                                   predicate + ".");
+    }
+    this.tableName = tableName;
+    this.transaction = transaction;
+    this.columnName = columnName;
+    this.predicate = predicate;
+    this.value = value;
+    this.setOutputSchema(this.computeSchema());
+    columnName = this.checkSchemaForColumn(this.getOutputSchema(), columnName);
+    this.columnIndex = this.getOutputSchema().getFieldNames().indexOf(columnName);
+
+    this.stats = this.estimateStats();
+    this.cost = this.estimateIOCost();
+  }
+
+  public String str() {
+    return "type: " + this.getType() +
+        "\ntable: " + this.tableName +
+        "\ncolumn: " + this.columnName +
+        "\noperator: " + this.predicate +
+        "\nvalue: " + this.value;
+  }
+
+  /**
+   * Returns the column name that the index scan is on
+   *
+   * @return columnName
+   */
+  public String getColumnName() {
+    return this.columnName;
+  }
+
+  /**
+   * Estimates the table statistics for the result of executing this query operator.
+   *
+   * @return estimated TableStats
+   */
+  public TableStats estimateStats() throws QueryPlanException {
+    TableStats stats;
+
+    try {
+      stats = this.transaction.getStats(this.tableName);
+    } catch (DatabaseException de) {
+      throw new QueryPlanException(de);
+    }
+
+    return stats.copyWithPredicate(this.columnIndex,
+                                   this.predicate,
+                                   this.value);
+  }
+
+  /**
+   * Estimates the IO cost of executing this query operator: the leaves of
+   * the index that hold the matching entries, plus the number of distinct
+   * data pages that hold the matching records. If m matching records are
+   * spread uniformly over the p data pages of the table, the expected number
+   * of distinct pages they lie on is
+   *
+   *   p * (1 - (1 - 1/p)^m)
+   *
+   * which is about m when m is much smaller than p, and about p (i.e. a
+   * sequential scan) when m is much larger than p.
+   *
+   * @return estimate IO cost
+   * @throws QueryPlanException
+   */
+  public int estimateIOCost() throws QueryPlanException {
+    long numRecords;
+    int numDataPages;
+    int numIndexPages;
+    try {
+      numRecords = this.transaction.getNumRecords(this.tableName);
+      numDataPages = this.transaction.getNumDataPages(this.tableName);
+      numIndexPages = this.transaction.getNumIndexPages(this.tableName, this.columnName);
+    } catch (DatabaseException err) {
+      throw new QueryPlanException(err);
+    }
+
+    int numMatches = this.stats.getHistograms().get(this.columnIndex).getCount();
+    double selectivity = (double) numMatches / Math.max(1, numRecords);
+    double indexPages = Math.ceil(numIndexPages * selectivity);
+    double dataPages = numDataPages == 0
+      ? 0
+      : numDataPages * (1 - Math.pow(1 - 1.0 / numDataPages, numMatches));
+    return (int) Math.max(1, indexPages + Math.ceil(dataPages));
+  }
+
+  public Iterator<Record> iterator() throws QueryPlanException, DatabaseException {
+    return new BitmapHeapScanIterator();
+  }
+
+  public Schema computeSchema() throws QueryPlanException {
+    try {
+      return this.transaction.getFullyQualifiedSchema(this.tableName);
+    } catch (DatabaseException de) {
+      throw new QueryPlanException(de);
+    }
+  }
+
+  /**
+   * An implementation of Iterator that provides an iterator interface for this operator.
+   */
+  private class BitmapHeapScanIterator implements Iterator<Record> {
+    // The marked slots of every page with a matching record, in page order.
+    private Iterator<Map.Entry<Integer, BitSet>> pageIterator;
+    private Iterator<Record> recordIterator;
+    private Record nextRecord;
+
+    public BitmapHeapScanIterator() throws QueryPlanException, DatabaseException {
+      Optional<DataBox> value = Optional.of(BitmapHeapScanOperator.this.value);
+      Optional<DataBox> none = Optional.empty();
+      LongIterator rids;
+      switch (BitmapHeapScanOperator.this.predicate) {
+        case LESS_THAN:
+          rids = scanIndex(none, true, value, false);
+          break;
+        case LESS_THAN_EQUALS:
+          rids = scanIndex(none, true, value, true);
+          break;
+        case GREATER_THAN:
+          rids = scanIndex(value, false, none, true);
+          break;
+        case GREATER_THAN_EQUALS:
+          rids = scanIndex(value, true, none, true);
+          break;
+        default:
+          throw new QueryPlanException("Bitmap heap scans do not support the predicate " +
+                                       BitmapHeapScanOperator.this.predicate + ".");
+      }
+
+      TreeMap<Integer, BitSet> bitmaps = new TreeMap<Integer, BitSet>();
+      while (rids.hasNext()) {
+        long rid = rids.nextLong();
+        bitmaps.computeIfAbsent(RecordId.getPageNum(rid), p -> new BitSet())
+               .set(RecordId.getEntryNum(rid));
+      }
+      this.pageIterator = bitmaps.entrySet().iterator();
+      this.recordIterator = Collections.emptyIterator();
+      this.nextRecord = null;
+    }
+
+    private LongIterator scanIndex(Optional<DataBox> lo, boolean loInclusive,
+                                   Optional<DataBox> hi, boolean hiInclusive)
+        throws DatabaseException {
+      return BitmapHeapScanOperator.this.transaction.indexScanRange(
+          BitmapHeapScanOperator.this.tableName, BitmapHeapScanOperator.this.columnName,
+          lo, loInclusive, hi, hiInclusive);
+    }
+
+    /**
+     * Checks if there are more record(s) to yield
+     *
+     * @return true if this iterator has another record to yield, otherwise false
+     */
+    public boolean hasNext() {
+      if (this.nextRecord != null) {
+        return true;
+      }
+      while (!this.recordIterator.hasNext()) {
+        if (!this.pageIterator.hasNext()) {
+          return false;
+        }
+        Map.Entry<Integer, BitSet> page = this.pageIterator.next();
+        try {
+          this.recordIterator = BitmapHeapScanOperator.this.transaction.readPage(
+              BitmapHeapScanOperator.this.tableName, page.getKey(), page.getValue()).iterator();
+        } catch (DatabaseException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+      this.nextRecord = this.recordIterator.next();
+      return true;
+    }
+
+    /**
+     * Yields the next record of this iterator.
+     *
+     * @return the next Record
+     * @throws NoSuchElementException if there are no more Records to yield
+     */
+    public Record next() {
+      if (this.hasNext()) {
+        Record r = this.nextRecord;
+        this.nextRecord = null;
+        return r;
+      }
+      throw new NoSuchElementException();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
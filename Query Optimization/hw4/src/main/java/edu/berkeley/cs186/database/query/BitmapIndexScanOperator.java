@@ -0,0 +1,319 @@
+package edu.berkeley.cs186.database.query;
+
+import edu.berkeley.cs186.database.Database;
+import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.common.Pair;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.index.RoaringBitmap;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.stats.TableStats;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A bitmap index scan answers the predicates on any number of columns with
+ * bitmap indexes (see Database.createBitmapIndex) at once. It takes the
+ * bitmap of the record ids that satisfy each predicate from the index on its
+ * column:
+ *
+ *   - for EQUALS, the bitmap of the value;
+ *   - for IN, the OR of the bitmaps of the values;
+ *   - for NOT_EQUALS, the bitmap of every record AND NOT the bitmap of the
+ *     value; and
+ *   - for a range predicate, the OR of the bitmaps of every value of the
+ *     column in the range, which is cheap since a bitmap indexed column has
+ *     few distinct values.
+ *
+ * It then ANDs (or, for a disjunction, ORs) the bitmaps of the predicates
+ * together, all in memory, and only then reads the pages of the records left,
+ * in page order, fetching each page once and decoding only the matching slots
+ * (like a BitmapHeapScanOperator). The bitmap is built once, when the
+ * operator is constructed, and is used both to cost the scan and by every
+ * iterator, so a scan returns the records that matched when it was planned
+ * (less any that have since been deleted).
+ *
+ * A QueryPlan only ANDs its predicates, so the optimizer only plans
+ * conjunctions; a disjunction across columns is answered by constructing the
+ * operator with Connective.OR. The negation of either is the other connective
+ * over the negated predicates (NOT_EQUALS for EQUALS, GREATER_THAN_EQUALS
+ * for LESS_THAN, and so on).
+ */
+public class BitmapIndexScanOperator extends QueryOperator {
+  /** How the predicates of a bitmap index scan are combined. */
+  public enum Connective {
+    AND,
+    OR
+  }
+
+  private Database.Transaction transaction;
+  private String tableName;
+  private List<String> columnNames;
+  private List<QueryPlan.PredicateOperator> predicates;
+  // The value of each predicate, or null for an IN predicate.
+  private List<DataBox> values;
+  // The values of each IN predicate, or null for any other predicate.
+  private List<List<DataBox>> valueLists;
+  private Connective connective;
+
+  private List<Integer> columnIndices;
+  // The record ids of the matching records, as of construction. The cost
+  // estimate and every iterator use the same bitmap.
+  private RoaringBitmap bitmap;
+
+  /**
+   * A bitmap index scan operator for the conjunction of its predicates. The
+   * i-th predicate is that the column columnNames[i] compares to values[i]
+   * by predicates[i], or for an IN predicate that it is one of valueLists[i].
+   *
+   * @param transaction the transaction containing this operator
+   * @param tableName the table to iterate over
+   * @param columnNames the name of the column of each predicate, each of
+   * which must have a bitmap index
+   * @param predicates the comparison of each predicate
+   * @param values the value of each predicate, or null for an IN predicate
+   * @param valueLists the values of each IN predicate, or null for any other
+   * predicate
+   * @throws QueryPlanException if there are no predicates, or a column has
+   * no bitmap index
+   * @throws DatabaseException
+   */
+  public BitmapIndexScanOperator(Database.Transaction transaction,
+                                 String tableName,
+                                 List<String> columnNames,
+                                 List<QueryPlan.PredicateOperator> predicates,
+                                 List<DataBox> values,
+                                 List<List<DataBox>> valueLists)
+      throws QueryPlanException, DatabaseException {
+    this(transaction, tableName, Connective.AND, columnNames, predicates, values, valueLists);
+  }
+
+  /**
+   * Same as the other constructor, but the predicates are combined by
+   * `connective`, so that Connective.OR scans for the records that satisfy
+   * any of them.
+   *
+   * @throws QueryPlanException if there are no predicates, or a column has
+   * no bitmap index
+   * @throws DatabaseException
+   */
+  public BitmapIndexScanOperator(Database.Transaction transaction,
+                                 String tableName,
+                                 Connective connective,
+                                 List<String> columnNames,
+                                 List<QueryPlan.PredicateOperator> predicates,
+                                 List<DataBox> values,
+                                 List<List<DataBox>> valueLists)
+      throws QueryPlanException, DatabaseException {
+    super(OperatorType.BITMAPINDEXSCAN);
+    if (columnNames.isEmpty()) {
+      throw new QueryPlanException("A bitmap index scan needs at least one predicate.");
+    }
+    for (String columnName : columnNames) {
+      if (!transaction.bitmapIndexExists(tableName, columnName)) {
+        throw new QueryPlanException("There is no bitmap index on " + columnName + ".");
+      }
+    }
+    this.transaction = transaction;
+    this.tableName = tableName;
+    this.columnNames = new ArrayList<String>(columnNames);
+    this.predicates = new ArrayList<QueryPlan.PredicateOperator>(predicates);
+    this.values = new ArrayList<DataBox>(values);
+    this.valueLists = new ArrayList<List<DataBox>>(valueLists);
+    this.connective = connective;
+    this.setOutputSchema(this.computeSchema());
+    this.columnIndices = new ArrayList<Integer>();
+    List<String> fieldNames = this.getOutputSchema().getFieldNames();
+    for (String columnName : columnNames) {
+      this.columnIndices.add(
+          fieldNames.indexOf(this.checkSchemaForColumn(this.getOutputSchema(), columnName)));
+    }
+
+    this.bitmap = this.computeBitmap();
+    this.stats = this.estimateStats();
+    this.cost = this.estimateIOCost();
+  }
+
+  public String str() {
+    StringBuilder predicates = new StringBuilder();
+    for (int i = 0; i < this.columnNames.size(); i++) {
+      if (i > 0) {
+        predicates.append(" ").append(this.connective).append(" ");
+      }
+      predicates.append(this.columnNames.get(i)).append(" ").append(this.predicates.get(i))
+                .append(" ").append(this.predicates.get(i) == QueryPlan.PredicateOperator.IN
+                                    ? this.valueLists.get(i) : this.values.get(i));
+    }
+    return "type: " + this.getType() +
+        "\ntable: " + this.tableName +
+        "\npredicates: " + predicates;
+  }
+
+  /**
+   * Returns the names of the columns that the predicates of the scan are on
+   *
+   * @return columnNames
+   */
+  public List<String> getColumnNames() {
+    return this.columnNames;
+  }
+
+  /**
+   * Estimates the table statistics for the result of executing this query
+   * operator. The histograms can't estimate a disjunction, but its number
+   * of matching records is known exactly from its bitmap.
+   *
+   * @return estimated TableStats
+   */
+  public TableStats estimateStats() throws QueryPlanException {
+    TableStats stats;
+
+    try {
+      stats = this.transaction.getStats(this.tableName);
+    } catch (DatabaseException de) {
+      throw new QueryPlanException(de);
+    }
+
+    if (this.connective == Connective.OR) {
+      int numRecords = stats.getNumRecords();
+      return stats.copyWithReduction(
+          numRecords == 0 ? 0 : Math.min(1, (float) this.bitmap.getCardinality() / numRecords));
+    }
+    for (int i = 0; i < this.columnNames.size(); i++) {
+      if (this.predicates.get(i) == QueryPlan.PredicateOperator.IN) {
+        stats = stats.copyWithPredicate(this.columnIndices.get(i), this.valueLists.get(i));
+      } else {
+        stats = stats.copyWithPredicate(this.columnIndices.get(i), this.predicates.get(i),
+                                        this.values.get(i));
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * Estimates the IO cost of executing this query operator. Bitmap indexes
+   * are kept entirely in memory, and the bitmap of the matching records is
+   * built while planning, so the cost is exactly the number of distinct data
+   * pages that hold a matching record.
+   *
+   * @return estimate IO cost
+   */
+  public int estimateIOCost() {
+    return this.bitmap.getNumPages();
+  }
+
+  public Iterator<Record> iterator() throws QueryPlanException, DatabaseException {
+    return new BitmapIndexScanIterator();
+  }
+
+  public Schema computeSchema() throws QueryPlanException {
+    try {
+      return this.transaction.getFullyQualifiedSchema(this.tableName);
+    } catch (DatabaseException de) {
+      throw new QueryPlanException(de);
+    }
+  }
+
+  /**
+   * Returns the bitmap of the record ids of the records that satisfy every
+   * predicate, or for a disjunction any predicate.
+   */
+  private RoaringBitmap computeBitmap() throws DatabaseException {
+    boolean and = this.connective == Connective.AND;
+    RoaringBitmap result = null;
+    for (int i = 0; i < this.columnNames.size() && (result == null || !and || !result.isEmpty());
+         i++) {
+      RoaringBitmap bitmap = predicateBitmap(this.columnNames.get(i), this.predicates.get(i),
+                                             this.values.get(i), this.valueLists.get(i));
+      result = result == null ? bitmap : and ? result.and(bitmap) : result.or(bitmap);
+    }
+    return result;
+  }
+
+  /** Returns the bitmap of the record ids of the records that satisfy one predicate. */
+  private RoaringBitmap predicateBitmap(String columnName, QueryPlan.PredicateOperator predicate,
+                                        DataBox value, List<DataBox> valueList)
+      throws DatabaseException {
+    switch (predicate) {
+      case EQUALS:
+        return this.transaction.bitmapLookup(this.tableName, columnName, value);
+      case NOT_EQUALS:
+        return this.transaction.bitmapScan(this.tableName, columnName, v -> true)
+                   .andNot(this.transaction.bitmapLookup(this.tableName, columnName, value));
+      case IN:
+        RoaringBitmap bitmap = new RoaringBitmap();
+        for (DataBox v : valueList) {
+          bitmap = bitmap.or(this.transaction.bitmapLookup(this.tableName, columnName, v));
+        }
+        return bitmap;
+      default:
+        return this.transaction.bitmapScan(this.tableName, columnName,
+                                           v -> SelectOperator.evaluate(v, predicate, value));
+    }
+  }
+
+  /**
+   * An implementation of Iterator that provides an iterator interface for this operator.
+   */
+  private class BitmapIndexScanIterator implements Iterator<Record> {
+    // The matching slots of every page with a matching record, in page order.
+    private Iterator<Pair<Integer, BitSet>> pageIterator;
+    private Iterator<Record> recordIterator;
+    private Record nextRecord;
+
+    public BitmapIndexScanIterator() {
+      this.pageIterator = BitmapIndexScanOperator.this.bitmap.pageIterator();
+      this.recordIterator = Collections.emptyIterator();
+      this.nextRecord = null;
+    }
+
+    /**
+     * Checks if there are more record(s) to yield
+     *
+     * @return true if this iterator has another record to yield, otherwise false
+     */
+    public boolean hasNext() {
+      if (this.nextRecord != null) {
+        return true;
+      }
+      while (!this.recordIterator.hasNext()) {
+        if (!this.pageIterator.hasNext()) {
+          return false;
+        }
+        Pair<Integer, BitSet> page = this.pageIterator.next();
+        try {
+          this.recordIterator = BitmapIndexScanOperator.this.transaction.readPage(
+              BitmapIndexScanOperator.this.tableName, page.getFirst(), page.getSecond()).iterator();
+        } catch (DatabaseException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+      this.nextRecord = this.recordIterator.next();
+      return true;
+    }
+
+    /**
+     * Yields the next record of this iterator.
+     *
+     * @return the next Record
+     * @throws NoSuchElementException if there are no more Records to yield
+     */
+    public Record next() {
+      if (this.hasNext()) {
+        Record r = this.nextRecord;
+        this.nextRecord = null;
+        return r;
+      }
+      throw new NoSuchElementException();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
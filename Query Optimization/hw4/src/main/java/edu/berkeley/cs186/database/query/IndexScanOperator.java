@@ -3,24 +3,45 @@ package edu.berkeley.cs186.database.query;
 import edu.berkeley.cs186.database.Database;
 import edu.berkeley.cs186.database.DatabaseException;
 import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.index.IndexStats;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 import edu.berkeley.cs186.database.table.stats.Histogram;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Optional;
 
 public class IndexScanOperator extends QueryOperator {
   private Database.Transaction transaction;
   private String tableName;
+  // The columns of the index, in order. A scan of a composite index matches
+  // the values of prefix against its first prefix.size() columns, and
+  // applies predicate to the next one, columnName.
+  private List<String> columnNames;
+  private List<DataBox> prefix;
   private String columnName;
   private QueryPlan.PredicateOperator predicate;
   private DataBox value;
+  // The values of an IN predicate, or null.
+  private List<DataBox> values;
+  private boolean indexOnly;
 
   private int columnIndex;
+  // The positions in the table's schema of the columns this operator
+  // returns, in schema order. An index-only scan returns the indexed columns
+  // and the columns included in the index; any other scan returns every
+  // column.
+  private List<Integer> tableColumns;
+  // For an index-only scan, the position in an index entry, which holds the
+  // indexed columns followed by the included columns, of each column this
+  // operator returns; null for any other scan.
+  private int[] entryPositions;
 
   /**
    * An index scan operator.
@@ -36,14 +57,115 @@ public class IndexScanOperator extends QueryOperator {
                            String columnName,
                            QueryPlan.PredicateOperator predicate,
                            DataBox value) throws QueryPlanException, DatabaseException {
+    this(transaction, tableName, columnName, predicate, value, false);
+  }
+
+  /**
+   * An index scan operator. If indexOnly is true, the index must be a
+   * covering index, and the scan reads only the index and never the table:
+   * it returns records of the indexed column and the columns included in
+   * the index (see Database.Transaction.getIncludedColumns), in the order of
+   * the table's schema.
+   *
+   * @param transaction the transaction containing this operator
+   * @param tableName the table to iterate over
+   * @param columnName the name of the column the index is on
+   * @param indexOnly whether to return only the columns stored in the index
+   * @throws QueryPlanException
+   * @throws DatabaseException
+   */
+  public IndexScanOperator(Database.Transaction transaction,
+                           String tableName,
+                           String columnName,
+                           QueryPlan.PredicateOperator predicate,
+                           DataBox value,
+                           boolean indexOnly) throws QueryPlanException, DatabaseException {
+    this(transaction, tableName, Collections.singletonList(columnName),
+         Collections.<DataBox>emptyList(), predicate, value, indexOnly);
+  }
+
+  /**
+   * A scan of the composite index on columnNames (see
+   * Database.createIndex(tableName, columnNames, includedColumns)) that
+   * returns the records whose first prefix.size() indexed columns are equal
+   * to prefix and whose next indexed column satisfies predicate. For
+   * example, if the index is on (yearid, teamid, playerid), then a prefix of
+   * [2004] and the predicate teamid >= "BOS" scan the single range of the
+   * index that holds the records of 2004 with a teamid of at least "BOS".
+   * If columnNames is a single column, prefix must be empty and this is an
+   * ordinary index scan.
+   *
+   * @param transaction the transaction containing this operator
+   * @param tableName the table to iterate over
+   * @param columnNames the names of the columns the index is on, in order
+   * @param prefix the values of the first prefix.size() indexed columns
+   * @param predicate the predicate on the next indexed column
+   * @param value the value to compare the next indexed column against
+   * @param indexOnly whether to return only the columns stored in the index
+   * @throws QueryPlanException if there is no indexed column past the prefix
+   * @throws DatabaseException
+   */
+  public IndexScanOperator(Database.Transaction transaction,
+                           String tableName,
+                           List<String> columnNames,
+                           List<DataBox> prefix,
+                           QueryPlan.PredicateOperator predicate,
+                           DataBox value,
+                           boolean indexOnly) throws QueryPlanException, DatabaseException {
+    this(transaction, tableName, columnNames, prefix, predicate, value, null, indexOnly);
+  }
+
+  /**
+   * A probe of the B+ tree index on columnName for the records whose column
+   * columnName is one of values (an IN predicate). The values are looked up
+   * in a single batch, in sorted order, so each leaf of the index is read
+   * at most once (see BPlusTree.getAll).
+   *
+   * @param transaction the transaction containing this operator
+   * @param tableName the table to look up
+   * @param columnName the name of the column the index is on
+   * @param values the values to look up
+   * @return the new IndexScanOperator
+   * @throws QueryPlanException if values is empty
+   * @throws DatabaseException
+   */
+  public static IndexScanOperator multiKeyProbe(Database.Transaction transaction,
+                                                String tableName,
+                                                String columnName,
+                                                List<DataBox> values) throws QueryPlanException, DatabaseException {
+    if (values.isEmpty()) {
+      throw new QueryPlanException("An IN predicate needs at least one value.");
+    }
+    return new IndexScanOperator(transaction, tableName, Collections.singletonList(columnName),
+                                 Collections.<DataBox>emptyList(),
+                                 QueryPlan.PredicateOperator.IN, null, values, false);
+  }
+
+  private IndexScanOperator(Database.Transaction transaction,
+                            String tableName,
+                            List<String> columnNames,
+                            List<DataBox> prefix,
+                            QueryPlan.PredicateOperator predicate,
+                            DataBox value,
+                            List<DataBox> values,
+                            boolean indexOnly) throws QueryPlanException, DatabaseException {
     super(OperatorType.INDEXSCAN);
+    if (prefix.size() >= columnNames.size()) {
+      throw new QueryPlanException("An index scan needs a predicate on an indexed column " +
+                                   "past its prefix.");
+    }
     this.tableName = tableName;
     this.transaction = transaction;
-    this.columnName = columnName;
+    this.columnNames = columnNames;
+    this.prefix = prefix;
+    this.columnName = columnNames.get(prefix.size());
     this.predicate = predicate;
     this.value = value;
+    this.values = values;
+    this.indexOnly = indexOnly;
+    this.tableColumns = this.computeTableColumns();
     this.setOutputSchema(this.computeSchema());
-    columnName = this.checkSchemaForColumn(this.getOutputSchema(), columnName);
+    String columnName = this.checkSchemaForColumn(this.getOutputSchema(), this.columnName);
     this.columnIndex = this.getOutputSchema().getFieldNames().indexOf(columnName);
 
     this.stats = this.estimateStats();
@@ -51,15 +173,37 @@ public class IndexScanOperator extends QueryOperator {
   }
 
   public String str() {
+    String columns = this.isComposite()
+      ? "\nindex columns: " + this.columnNames + "\nprefix: " + this.prefix
+      : "";
     return "type: " + this.getType() +
-        "\ntable: " + this.tableName +
+        "\ntable: " + this.tableName + columns +
         "\ncolumn: " + this.columnName +
         "\noperator: " + this.predicate +
-        "\nvalue: " + this.value;
+        "\nvalue: " + (this.values != null ? this.values : this.value) +
+        "\nindex only: " + this.indexOnly;
+  }
+
+  /**
+   * Returns whether this is a multi-key probe of a B+ tree for an IN predicate.
+   *
+   * @return whether values is set
+   */
+  public boolean isMultiKeyProbe() {
+    return this.values != null;
+  }
+
+  /**
+   * Returns whether this scan reads only the index.
+   *
+   * @return indexOnly
+   */
+  public boolean isIndexOnly() {
+    return this.indexOnly;
   }
 
   /**
-   * Returns the column name that the index scan is on
+   * Returns the column name that the predicate of the index scan is on
    *
    * @return columnName
    */
@@ -67,6 +211,21 @@ public class IndexScanOperator extends QueryOperator {
     return this.columnName;
   }
 
+  /**
+   * Returns the names of the columns of the index, which has more than one
+   * column if it is a composite index
+   *
+   * @return columnNames
+   */
+  public List<String> getColumnNames() {
+    return this.columnNames;
+  }
+
+  /** Returns whether this is a scan of a composite index. */
+  public boolean isComposite() {
+    return this.columnNames.size() > 1;
+  }
+
   /**
    * Estimates the table statistics for the result of executing this query operator.
    *
@@ -81,9 +240,20 @@ public class IndexScanOperator extends QueryOperator {
       throw new QueryPlanException(de);
     }
 
-    return stats.copyWithPredicate(this.columnIndex,
-                                   this.predicate,
-                                   this.value);
+    List<String> names = this.getOutputSchema().getFieldNames();
+    for (int i = 0; i < this.prefix.size(); i++) {
+      int index = names.indexOf(this.checkSchemaForColumn(this.getOutputSchema(),
+                                                          this.columnNames.get(i)));
+      stats = stats.copyWithPredicate(this.tableColumns.get(index),
+                                      QueryPlan.PredicateOperator.EQUALS, this.prefix.get(i));
+    }
+    int tableColumnIndex = this.tableColumns.get(this.columnIndex);
+    if (this.values != null) {
+      return stats.copyWithPredicate(tableColumnIndex, this.values)
+                  .copyWithProjection(this.tableColumns);
+    }
+    return stats.copyWithPredicate(tableColumnIndex, this.predicate, this.value)
+                .copyWithProjection(this.tableColumns);
   }
 
   /**
@@ -107,11 +277,13 @@ public class IndexScanOperator extends QueryOperator {
         long numRecords;
         long numIndexPages;
         TableStats tableStats;
+        IndexStats indexStats;
         try {
 
             numRecords = this.transaction.getNumRecords(this.tableName);
-            numIndexPages = this.transaction.getNumIndexPages(this.tableName, this.columnName);
+            numIndexPages = this.transaction.getNumIndexPages(this.tableName, this.columnNames);
             tableStats = this.transaction.getStats(this.tableName);
+            indexStats = this.transaction.getIndexStats(this.tableName, this.columnNames);
 
         } catch (DatabaseException err) {
 
@@ -119,6 +291,41 @@ public class IndexScanOperator extends QueryOperator {
 
         }
 
+        // A multi-key probe reads at most one leaf per value, and one page
+        // per matching record.
+        if (this.values != null) {
+          return (int) (this.stats.getNumRecords() + Math.min(this.values.size(), numIndexPages));
+        }
+
+        // An index-only scan reads only the leaves that hold the matching
+        // entries, and no records at all.
+        double selectivity = (double) this.stats.getNumRecords() / Math.max(1, numRecords);
+
+        // Once the index has been analyzed, a scan is costed as a descent to
+        // its first leaf, the leaves that hold the matching entries, and the
+        // data pages that the clustering factor says their records are on:
+        // few if the records are stored in key order, and about one per
+        // record otherwise.
+        if (indexStats.hasClusteringFactor()) {
+          long cost = (indexStats.getHeight() - 1) +
+                      (long) Math.max(1, Math.ceil(indexStats.getNumLeaves() * selectivity));
+          if (!this.indexOnly) {
+            cost += (long) Math.ceil(indexStats.getClusteringFactor() * selectivity);
+          }
+          return (int) cost;
+        }
+
+        if (this.indexOnly) {
+          return (int) Math.max(1, Math.ceil(numIndexPages * selectivity));
+        }
+
+        // A scan of a composite index reads the leaves that hold the entries
+        // matching all of its predicates, and one page per matching record.
+        if (this.isComposite()) {
+          return (int) Math.max(1, this.stats.getNumRecords() +
+                                   Math.ceil(numIndexPages * selectivity));
+        }
+
         return (int)(tableStats.getHistograms().get(columnIndex).getCount() + numIndexPages); //round up and cast to an int
   }
 
@@ -127,11 +334,85 @@ public class IndexScanOperator extends QueryOperator {
   }
 
   public Schema computeSchema() throws QueryPlanException {
+    Schema schema;
     try {
-      return this.transaction.getFullyQualifiedSchema(this.tableName);
+      schema = this.transaction.getFullyQualifiedSchema(this.tableName);
     } catch (DatabaseException de) {
       throw new QueryPlanException(de);
     }
+    if (!this.indexOnly) {
+      return schema;
+    }
+
+    List<String> names = new ArrayList<String>();
+    List<Type> types = new ArrayList<Type>();
+    for (int i : this.tableColumns) {
+      names.add(schema.getFieldNames().get(i));
+      types.add(schema.getFieldTypes().get(i));
+    }
+    return new Schema(names, types);
+  }
+
+  private List<Integer> computeTableColumns() throws QueryPlanException {
+    Schema schema;
+    List<String> included;
+    try {
+      schema = this.transaction.getFullyQualifiedSchema(this.tableName);
+      included = this.indexOnly
+        ? this.transaction.getIncludedColumns(this.tableName, this.columnNames)
+        : null;
+    } catch (DatabaseException de) {
+      throw new QueryPlanException(de);
+    }
+
+    List<String> names = schema.getFieldNames();
+    List<Integer> columns = new ArrayList<Integer>();
+    if (!this.indexOnly) {
+      for (int i = 0; i < names.size(); i++) {
+        columns.add(i);
+      }
+      return columns;
+    }
+
+    List<Integer> entryColumns = new ArrayList<Integer>();
+    for (String column : this.columnNames) {
+      entryColumns.add(names.indexOf(this.checkSchemaForColumn(schema, column)));
+    }
+    for (String column : included) {
+      entryColumns.add(names.indexOf(this.checkSchemaForColumn(schema, column)));
+    }
+    columns.addAll(entryColumns);
+    Collections.sort(columns);
+    this.entryPositions = new int[columns.size()];
+    for (int i = 0; i < columns.size(); i++) {
+      this.entryPositions[i] = entryColumns.indexOf(columns.get(i));
+    }
+    return columns;
+  }
+
+  /**
+   * Reorders the values of each index entry of entries, which holds the
+   * indexed columns followed by the included columns, into the schema order
+   * of the columns this operator returns.
+   */
+  private Iterator<Record> toSchemaOrder(Iterator<Record> entries) {
+    int[] positions = this.entryPositions;
+    return new Iterator<Record>() {
+      @Override
+      public boolean hasNext() {
+        return entries.hasNext();
+      }
+
+      @Override
+      public Record next() {
+        List<DataBox> entry = entries.next().getValues();
+        List<DataBox> values = new ArrayList<DataBox>(positions.length);
+        for (int position : positions) {
+          values.add(entry.get(position));
+        }
+        return new Record(values);
+      }
+    };
   }
 
   /**
@@ -139,40 +420,75 @@ public class IndexScanOperator extends QueryOperator {
    */
   private class IndexScanIterator implements Iterator<Record> {
     private Iterator<Record> sourceIterator;
-    private Record nextRecord;
 
     public IndexScanIterator() throws QueryPlanException, DatabaseException {
-      this.nextRecord = null;
-      if (IndexScanOperator.this.predicate == QueryPlan.PredicateOperator.EQUALS) {
-        this.sourceIterator = IndexScanOperator.this.transaction.lookupKey(
-                IndexScanOperator.this.tableName,
-                IndexScanOperator.this.columnName,
-                IndexScanOperator.this.value);
-      } else if (IndexScanOperator.this.predicate == QueryPlan.PredicateOperator.LESS_THAN ||
-              IndexScanOperator.this.predicate == QueryPlan.PredicateOperator.LESS_THAN_EQUALS) {
-        this.sourceIterator = IndexScanOperator.this.transaction.sortedScan(
-                IndexScanOperator.this.tableName,
-                IndexScanOperator.this.columnName);
-      } else if (IndexScanOperator.this.predicate == QueryPlan.PredicateOperator.GREATER_THAN) {
-        this.sourceIterator = IndexScanOperator.this.transaction.sortedScanFrom(
-                IndexScanOperator.this.tableName,
-                IndexScanOperator.this.columnName,
-                IndexScanOperator.this.value);
-        while (this.sourceIterator.hasNext()) {
-          Record r = this.sourceIterator.next();
-
-          if (r.getValues().get(IndexScanOperator.this.columnIndex)
-                  .compareTo(IndexScanOperator.this.value) > 0) {
-            this.nextRecord = r;
+      Database.Transaction transaction = IndexScanOperator.this.transaction;
+      String tableName = IndexScanOperator.this.tableName;
+      String columnName = IndexScanOperator.this.columnName;
+      if (IndexScanOperator.this.values != null) {
+        this.sourceIterator = transaction.lookupKeys(tableName, columnName,
+                                                     IndexScanOperator.this.values);
+        return;
+      }
+      Optional<DataBox> value = Optional.of(IndexScanOperator.this.value);
+      Optional<DataBox> none = Optional.empty();
+
+      // Range predicates are pushed into the index, so the scan only reads
+      // the leaves and records that satisfy them.
+      switch (IndexScanOperator.this.predicate) {
+        case EQUALS:
+          if (!IndexScanOperator.this.indexOnly && !IndexScanOperator.this.isComposite()) {
+            this.sourceIterator = transaction.lookupKey(tableName, columnName, value.get());
             break;
           }
+          this.sourceIterator = scanRange(value, true, value, true);
+          break;
+        case LESS_THAN:
+          this.sourceIterator = scanRange(none, true, value, false);
+          break;
+        case LESS_THAN_EQUALS:
+          this.sourceIterator = scanRange(none, true, value, true);
+          break;
+        case GREATER_THAN:
+          this.sourceIterator = scanRange(value, false, none, true);
+          break;
+        case GREATER_THAN_EQUALS:
+          this.sourceIterator = scanRange(value, true, none, true);
+          break;
+        default:
+          throw new QueryPlanException("Index scans do not support the predicate " +
+                                       IndexScanOperator.this.predicate + ".");
+      }
+    }
+
+    /**
+     * Scans the index for the range of keys between lo and hi (of a
+     * composite index, for the keys that start with the prefix and whose
+     * next column lies between lo and hi), reading the table too unless the
+     * scan is index-only.
+     */
+    private Iterator<Record> scanRange(Optional<DataBox> lo, boolean loInclusive,
+                                       Optional<DataBox> hi, boolean hiInclusive)
+        throws DatabaseException {
+      Database.Transaction transaction = IndexScanOperator.this.transaction;
+      String tableName = IndexScanOperator.this.tableName;
+      String columnName = IndexScanOperator.this.columnName;
+      if (IndexScanOperator.this.isComposite()) {
+        List<String> columnNames = IndexScanOperator.this.columnNames;
+        List<DataBox> prefix = IndexScanOperator.this.prefix;
+        if (IndexScanOperator.this.indexOnly) {
+          return toSchemaOrder(transaction.coveringScanPrefix(tableName, columnNames, prefix,
+                                                              lo, loInclusive, hi, hiInclusive));
         }
-      } else if (IndexScanOperator.this.predicate == QueryPlan.PredicateOperator.GREATER_THAN_EQUALS) {
-        this.sourceIterator = IndexScanOperator.this.transaction.sortedScanFrom(
-                IndexScanOperator.this.tableName,
-                IndexScanOperator.this.columnName,
-                IndexScanOperator.this.value);
+        return transaction.sortedScanPrefix(tableName, columnNames, prefix,
+                                            lo, loInclusive, hi, hiInclusive);
+      }
+      if (IndexScanOperator.this.indexOnly) {
+        return toSchemaOrder(transaction.coveringScanRange(tableName, columnName, lo, loInclusive,
+                                                           hi, hiInclusive, false));
       }
+      return transaction.sortedScanRange(tableName, columnName, lo, loInclusive,
+                                         hi, hiInclusive, false);
     }
 
     /**
@@ -181,37 +497,7 @@ public class IndexScanOperator extends QueryOperator {
      * @return true if this iterator has another record to yield, otherwise false
      */
     public boolean hasNext() {
-      if (this.nextRecord != null) {
-        return true;
-      }
-      if (IndexScanOperator.this.predicate == QueryPlan.PredicateOperator.LESS_THAN) {
-        if (this.sourceIterator.hasNext()) {
-          Record r = this.sourceIterator.next();
-          if (r.getValues().get(IndexScanOperator.this.columnIndex)
-                  .compareTo(IndexScanOperator.this.value) >= 0) {
-            return false;
-          }
-          this.nextRecord = r;
-          return true;
-        }
-        return false;
-      } else if (IndexScanOperator.this.predicate == QueryPlan.PredicateOperator.LESS_THAN_EQUALS) {
-        if (this.sourceIterator.hasNext()) {
-          Record r = this.sourceIterator.next();
-          if (r.getValues().get(IndexScanOperator.this.columnIndex)
-                  .compareTo(IndexScanOperator.this.value) > 0) {
-            return false;
-          }
-          this.nextRecord = r;
-          return true;
-        }
-        return false;
-      }
-      if (this.sourceIterator.hasNext()) {
-        this.nextRecord = this.sourceIterator.next();
-        return true;
-      }
-      return false;
+      return this.sourceIterator.hasNext();
     }
 
     /**
@@ -222,9 +508,7 @@ public class IndexScanOperator extends QueryOperator {
      */
     public Record next() {
       if (this.hasNext()) {
-        Record r = this.nextRecord;
-        this.nextRecord = null;
-        return r;
+        return this.sourceIterator.next();
       }
       throw new NoSuchElementException();
     }
@@ -209,6 +209,15 @@ public abstract class JoinOperator extends QueryOperator {
     return this.joinType;
   }
 
+  /**
+   * A sequential scan without pushed-down selects returns exactly the records of its table, so
+   * join iterators can read that table directly instead of materializing the scan.
+   */
+  private boolean isUnfilteredScan(QueryOperator source) {
+    return source.isSequentialScan() &&
+            !((SequentialScanOperator) source).hasPushedDownSelects();
+  }
+
   /**
    * All iterators for subclasses of JoinOperator should subclass from
    * JoinIterator; JoinIterator handles temp table creation as needed.
@@ -218,7 +227,7 @@ public abstract class JoinOperator extends QueryOperator {
     private String rightTableName;
 
     public JoinIterator() throws QueryPlanException, DatabaseException {
-      if (JoinOperator.this.getLeftSource().isSequentialScan()) {
+      if (JoinOperator.this.isUnfilteredScan(JoinOperator.this.getLeftSource())) {
         this.leftTableName = ((SequentialScanOperator) JoinOperator.this.getLeftSource()).getTableName();
       } else {
         this.leftTableName = JoinOperator.this.createTempTable(JoinOperator.this.getLeftSource().getOutputSchema());
@@ -227,7 +236,7 @@ public abstract class JoinOperator extends QueryOperator {
           JoinOperator.this.addRecord(this.leftTableName, leftIter.next().getValues());
         }
       }
-      if (JoinOperator.this.getRightSource().isSequentialScan()) {
+      if (JoinOperator.this.isUnfilteredScan(JoinOperator.this.getRightSource())) {
         this.rightTableName = ((SequentialScanOperator) JoinOperator.this.getRightSource()).getTableName();
       } else {
         this.rightTableName = JoinOperator.this.createTempTable(JoinOperator.this.getRightSource().getOutputSchema());
@@ -21,7 +21,11 @@ public abstract class QueryOperator {
     SELECT,
     GROUPBY,
     SEQSCAN,
-    INDEXSCAN
+    INDEXSCAN,
+    BITMAPHEAPSCAN,
+    BITMAPINDEXSCAN,
+    HASHLOOKUP,
+    ARTLOOKUP
   }
 
   private OperatorType type;
@@ -68,6 +72,22 @@ public abstract class QueryOperator {
     return this.type.equals(OperatorType.INDEXSCAN);
   }
 
+  public boolean isBitmapHeapScan() {
+    return this.type.equals(OperatorType.BITMAPHEAPSCAN);
+  }
+
+  public boolean isBitmapIndexScan() {
+    return this.type.equals(OperatorType.BITMAPINDEXSCAN);
+  }
+
+  public boolean isHashLookup() {
+    return this.type.equals(OperatorType.HASHLOOKUP);
+  }
+
+  public boolean isArtLookup() {
+    return this.type.equals(OperatorType.ARTLOOKUP);
+  }
+
   public QueryOperator getSource() throws QueryPlanException {
     return this.source;
   }
@@ -1,6 +1,8 @@
 package edu.berkeley.cs186.database.query;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -28,7 +30,9 @@ public class QueryPlan {
     LESS_THAN,
     LESS_THAN_EQUALS,
     GREATER_THAN,
-    GREATER_THAN_EQUALS
+    GREATER_THAN_EQUALS,
+    // The value is one of a list of values (see select(column, values)).
+    IN
   }
 
   private Database.Transaction transaction;
@@ -41,11 +45,14 @@ public class QueryPlan {
   private List<String> selectColumnNames;
   private List<PredicateOperator> selectOperators;
   private List<DataBox> selectDataBoxes;
+  // The values of each IN predicate, and null for every other predicate.
+  private List<List<DataBox>> selectValueLists;
   private List<String> projectColumns;
   private String groupByColumn;
   private boolean hasCount;
   private String averageColumnName;
   private String sumColumnName;
+  private int parallelism;
 
   /**
    * Creates a new QueryPlan within transaction. The base table is startTableName.
@@ -65,6 +72,7 @@ public class QueryPlan {
     this.selectColumnNames = new ArrayList<String>();
     this.selectOperators = new ArrayList<PredicateOperator>();
     this.selectDataBoxes = new ArrayList<DataBox>();
+    this.selectValueLists = new ArrayList<List<DataBox>>();
 
     this.hasCount = false;
     this.averageColumnName = null;
@@ -72,6 +80,8 @@ public class QueryPlan {
 
     this.groupByColumn = null;
 
+    this.parallelism = transaction.getParallelism();
+
     this.finalOperator = null;
   }
 
@@ -79,6 +89,21 @@ public class QueryPlan {
     return this.finalOperator;
   }
 
+  /**
+   * Set the degree of parallelism of the sequential scans in this query, overriding the database
+   * default. With a parallelism greater than 1, scans return records in no particular order and
+   * apply the selects on their table themselves.
+   *
+   * @param parallelism the maximum number of morsels each scan reads at once
+   * @throws QueryPlanException if parallelism is not positive
+   */
+  public void setParallelism(int parallelism) throws QueryPlanException {
+    if (parallelism < 1) {
+      throw new QueryPlanException("Parallelism must be at least 1");
+    }
+    this.parallelism = parallelism;
+  }
+
   /**
    * Add a project operator to the QueryPlan with a list of column names. Can only specify one set
    * of projections.
@@ -108,9 +133,33 @@ public class QueryPlan {
    * @throws QueryPlanException
    */
   public void select(String column, PredicateOperator comparison, DataBox value) throws QueryPlanException {
+    if (comparison == PredicateOperator.IN) {
+      throw new QueryPlanException("An IN predicate takes a list of values.");
+    }
     this.selectColumnNames.add(column);
     this.selectOperators.add(comparison);
     this.selectDataBoxes.add(value);
+    this.selectValueLists.add(null);
+  }
+
+  /**
+   * Add an IN select operator. Only returns columns in which the column is equal to one of values.
+   * If the column has a B+ tree index, the query can look the values up in a single sorted probe
+   * of the index (see IndexScanOperator.multiKeyProbe), and otherwise checks each record against a
+   * hash set of the values.
+   *
+   * @param column the column to specify the predicate on
+   * @param values the values to compare against
+   * @throws QueryPlanException if values is empty
+   */
+  public void select(String column, List<DataBox> values) throws QueryPlanException {
+    if (values.isEmpty()) {
+      throw new QueryPlanException("An IN predicate needs at least one value.");
+    }
+    this.selectColumnNames.add(column);
+    this.selectOperators.add(PredicateOperator.IN);
+    this.selectDataBoxes.add(null);
+    this.selectValueLists.add(new ArrayList<DataBox>(values));
   }
 
   /**
@@ -192,10 +241,18 @@ public class QueryPlan {
       this.generateIndexPlan(indexColumn);
     } else {
       // start off with the start table scan as the source
-      this.finalOperator = new SequentialScanOperator(this.transaction, this.startTableName);
+      this.finalOperator = new SequentialScanOperator(this.transaction, this.startTableName,
+              this.parallelism);
 
-      this.addJoins();
-      this.addSelects();
+      if (this.parallelism > 1 && this.joinTableNames.isEmpty()) {
+        SequentialScanOperator scan = (SequentialScanOperator) this.finalOperator;
+        for (int i = 0; i < this.selectColumnNames.size(); i++) {
+          this.pushDownSelect(scan, i);
+        }
+      } else {
+        this.addJoins();
+        this.addSelects();
+      }
       this.addGroupBy();
       this.addProjects();
     }
@@ -252,7 +309,8 @@ public class QueryPlan {
 
   /**
    * Gets all SELECT predicates for which there exists an index on the column
-   * referenced in that predicate for the given table.
+   * referenced in that predicate for the given table. A hash index or an ART
+   * index makes only EQUALS predicates eligible.
    *
    * @return an ArrayList of SELECT predicates
    */
@@ -262,8 +320,31 @@ public class QueryPlan {
     for (int i = 0; i < this.selectColumnNames.size(); i++) {
       String column = this.selectColumnNames.get(i);
 
-      if (this.transaction.indexExists(table, column) &&
-              this.selectOperators.get(i) != PredicateOperator.NOT_EQUALS) {
+      PredicateOperator op = this.selectOperators.get(i);
+      if (op == PredicateOperator.NOT_EQUALS) {
+        continue;
+      }
+      if (this.transaction.indexExists(table, column) ||
+          (op == PredicateOperator.EQUALS && (this.transaction.hashIndexExists(table, column) ||
+                                              this.transaction.artIndexExists(table, column)))) {
+        selectIndices.add(i);
+      }
+    }
+
+    return selectIndices;
+  }
+
+  /**
+   * Gets all SELECT predicates on a column of the given table with a bitmap
+   * index. A bitmap index makes predicates of every kind eligible.
+   *
+   * @return an ArrayList of SELECT predicates
+   */
+  private List<Integer> getBitmapIndexColumns(String table) {
+    List<Integer> selectIndices = new ArrayList<Integer>();
+
+    for (int i = 0; i < this.selectColumnNames.size(); i++) {
+      if (this.transaction.bitmapIndexExists(table, this.selectColumnNames.get(i))) {
         selectIndices.add(i);
       }
     }
@@ -271,6 +352,126 @@ public class QueryPlan {
     return selectIndices;
   }
 
+  /**
+   * Returns whether the index on (table, indexColumn) stores every column of
+   * table that this query reads, in which case an index-only scan of the
+   * index can stand in for the table.
+   */
+  private boolean indexCoversQuery(String table, String indexColumn) throws DatabaseException {
+    return indexCoversQuery(table, Collections.singletonList(indexColumn));
+  }
+
+  /**
+   * Returns whether the index on (table, indexColumns) stores every column
+   * of table that this query reads.
+   */
+  private boolean indexCoversQuery(String table, List<String> indexColumns)
+      throws DatabaseException {
+    List<String> included = this.transaction.getIncludedColumns(table, indexColumns);
+    if (included.isEmpty()) {
+      return false;
+    }
+
+    Set<String> covered = new HashSet<String>(included);
+    for (String indexColumn : indexColumns) {
+      String[] parts = indexColumn.split("\\.");
+      covered.add(parts[parts.length - 1]);
+    }
+    return covered.containsAll(getReferencedColumns(table));
+  }
+
+  /**
+   * Matches the SELECT predicates on table against the columns of a
+   * composite index, in order: an EQUALS predicate on each of the first few
+   * columns, followed by at most one range predicate on the next. Only such
+   * predicates select a single range of the index.
+   *
+   * @return the indices of the matched SELECT predicates in column order,
+   * which is empty if the first column of the index has no predicate
+   */
+  private List<Integer> matchCompositeIndex(String table, List<String> indexColumns) {
+    List<Integer> matched = new ArrayList<Integer>();
+    for (String column : indexColumns) {
+      int equals = findSelectPredicate(table, column, true);
+      if (equals != -1) {
+        matched.add(equals);
+        continue;
+      }
+      int range = findSelectPredicate(table, column, false);
+      if (range != -1) {
+        matched.add(range);
+      }
+      break;
+    }
+    return matched;
+  }
+
+  /**
+   * Returns the index of a SELECT predicate on column of table that is an
+   * EQUALS predicate if equals is true and a range predicate otherwise, or -1
+   * if there is none. A column name that is not qualified by a table name is
+   * assumed to refer to table.
+   */
+  private int findSelectPredicate(String table, String column, boolean equals) {
+    for (int i = 0; i < this.selectColumnNames.size(); i++) {
+      String[] parts = this.selectColumnNames.get(i).split("\\.");
+      if (parts.length > 1 && !parts[0].equals(table)) {
+        continue;
+      }
+      PredicateOperator operator = this.selectOperators.get(i);
+      if (parts[parts.length - 1].equals(column) && operator != PredicateOperator.NOT_EQUALS
+          && operator != PredicateOperator.IN
+          && (operator == PredicateOperator.EQUALS) == equals) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the names of the columns of table that this query reads. A
+   * column name that is not qualified by a table name is assumed to refer to
+   * every table that has a column of that name.
+   */
+  private Set<String> getReferencedColumns(String table) throws DatabaseException {
+    List<String> tableColumns = this.transaction.getSchema(table).getFieldNames();
+
+    // Without a projection or aggregate, the query returns every column.
+    if (this.projectColumns.isEmpty() && !this.hasCount && this.sumColumnName == null
+            && this.averageColumnName == null) {
+      return new HashSet<String>(tableColumns);
+    }
+
+    List<String> references = new ArrayList<String>(this.projectColumns);
+    references.addAll(this.selectColumnNames);
+    references.addAll(this.joinLeftColumnNames);
+    references.addAll(this.joinRightColumnNames);
+    for (String column : Arrays.asList(this.groupByColumn, this.sumColumnName,
+                                       this.averageColumnName)) {
+      if (column != null) {
+        references.add(column);
+      }
+    }
+
+    Set<String> referenced = new HashSet<String>();
+    for (String reference : references) {
+      String[] parts = reference.split("\\.");
+      String column = parts[parts.length - 1];
+      if (parts.length > 1 && !parts[0].equals(table) && isQueryTable(parts[0])) {
+        continue;
+      }
+      if (tableColumns.contains(column)) {
+        referenced.add(column);
+      }
+    }
+    return referenced;
+  }
+
+  /** Returns whether tableName is one of the tables this query reads. */
+  private boolean isQueryTable(String tableName) {
+    return tableName.equals(this.startTableName) || this.joinTableNames.contains(tableName);
+  }
+
   /**
    * Gets all columns for which there exists an index for that table
    *
@@ -295,9 +496,9 @@ public class QueryPlan {
 
   /**
    * Applies all eligible SELECT predicates to a given source, except for the
-   * predicate at index except. The purpose of except is because there might
-   * be one SELECT predicate that was already used for an index scan, so no
-   * point applying it again. A SELECT predicate is represented as elements of
+   * predicates at the indices in except. The purpose of except is because
+   * there might be SELECT predicates that were already used for an index
+   * scan, so no point applying them again. A SELECT predicate is represented as elements of
    * this.selectColumnNames, this.selectOperators, and this.selectDataBoxes that
    * correspond to the same index of these lists.
    *
@@ -305,18 +506,16 @@ public class QueryPlan {
    * @throws DatabaseException
    * @throws QueryPlanException
    */
-  private QueryOperator addEligibleSelections(QueryOperator source, int except) throws QueryPlanException, DatabaseException {
+  private QueryOperator addEligibleSelections(QueryOperator source, Set<Integer> except) throws QueryPlanException, DatabaseException {
 
     for (int i = 0; i < this.selectColumnNames.size(); i++) {
-      if (i == except) {
+      if (except.contains(i)) {
         continue;
       }
 
-      PredicateOperator curPred = this.selectOperators.get(i);
-      DataBox curValue = this.selectDataBoxes.get(i);
       try {
         String colName = source.checkSchemaForColumn(source.getOutputSchema(), selectColumnNames.get(i));
-        source = new SelectOperator(source, colName, curPred, curValue);
+        source = this.createSelect(source, colName, i);
       } catch (QueryPlanException err) {
         continue;
       }
@@ -325,17 +524,41 @@ public class QueryPlan {
     return source;
   }
 
+  /**
+   * Pushes every SELECT predicate that applies to the scanned table into the scan itself, so a
+   * parallel scan filters each morsel on the worker that reads it, and equality predicates on
+   * dictionary-encoded columns are evaluated on codes.
+   *
+   * @return the same scan operator
+   * @throws QueryPlanException
+   */
+  private QueryOperator pushDownSelects(SequentialScanOperator scan) throws QueryPlanException {
+    for (int i = 0; i < this.selectColumnNames.size(); i++) {
+      try {
+        this.pushDownSelect(scan, i);
+      } catch (QueryPlanException err) {
+        continue;
+      }
+    }
+    return scan;
+  }
+
   /**
    * Finds the lowest cost QueryOperator that scans the given table. First
    * determine the cost of a sequential scan for the given table. Then for every index that can be
-   * used on that table, determine the cost of an index scan. Keep track of
+   * used on that table, determine the cost of an index scan and, for a range predicate, of a
+   * bitmap heap scan, and for an EQUALS predicate on a column with a hash or ART index, of a
+   * hash or ART lookup. A composite index is used for the predicates on as many of its leading
+   * columns as select a single range of it (see matchCompositeIndex), and a bitmap index scan
+   * for the predicates on every column with a bitmap index. Keep track of
    * the minimum cost operation. Then push down eligible projects (SELECT
-   * predicates). If an index scan was chosen, exclude that SELECT predicate when
+   * predicates). If an index scan was chosen, exclude the SELECT predicates it answers when
    * pushing down selects. This method will be called during the first pass of the search
    * algorithm to determine the most efficient way to access each single table.
    *
    * @return a QueryOperator that has the lowest cost of scanning the given table which is
-   * either a SequentialScanOperator or an IndexScanOperator nested within any possible
+   * a SequentialScanOperator, an IndexScanOperator, a HashLookupOperator, an ArtLookupOperator,
+   * a BitmapHeapScanOperator, or a BitmapIndexScanOperator nested within any possible
    * pushed down select operators
    * @throws DatabaseException
    * @throws QueryPlanException
@@ -348,7 +571,7 @@ public class QueryPlan {
         throw new DatabaseException("Invalid table name");
     }
 
-    minOp = new SequentialScanOperator(this.transaction, table);
+    minOp = new SequentialScanOperator(this.transaction, table, this.parallelism);
 
     // 1. Find the cost of a sequential scan of the table
     int sequentialCost = minOp.getIOCost();
@@ -357,7 +580,7 @@ public class QueryPlan {
     // 2. For each eligible index column, find the cost of an index scan of the
     // table and retain the lowest cost operator
     List<Integer> colomuns = getEligibleIndexColumns(table);
-    int minCol = 0;
+    Set<Integer> minCols = new HashSet<Integer>();
     int indScanCost = Integer.MAX_VALUE;
     QueryOperator minIndScanOp = null;
 
@@ -365,21 +588,93 @@ public class QueryPlan {
         String colName = this.selectColumnNames.get(col);
         PredicateOperator pred = this.selectOperators.get(col);
         DataBox val = selectDataBoxes.get(col);
-        QueryOperator indexScan = new IndexScanOperator(this.transaction, table, colName, pred, val);
-        int cost = indexScan.estimateIOCost();
-        if (cost < indScanCost) {
-          indScanCost = cost;
-          minIndScanOp = indexScan;
-          minCol = col;
+        List<QueryOperator> indexScans = new ArrayList<QueryOperator>();
+        if (this.transaction.indexExists(table, colName) && pred == PredicateOperator.IN) {
+          indexScans.add(IndexScanOperator.multiKeyProbe(this.transaction, table, colName,
+                                                         this.selectValueLists.get(col)));
+        } else if (this.transaction.indexExists(table, colName)) {
+          indexScans.add(new IndexScanOperator(this.transaction, table, colName, pred, val,
+                                               indexCoversQuery(table, colName)));
+          // A range predicate can also be answered by fetching the matching
+          // records page by page.
+          if (pred != PredicateOperator.EQUALS) {
+            indexScans.add(new BitmapHeapScanOperator(this.transaction, table, colName, pred, val));
+          }
+        }
+        // An EQUALS predicate can also be answered by a hash lookup.
+        if (pred == PredicateOperator.EQUALS && this.transaction.hashIndexExists(table, colName)) {
+          indexScans.add(new HashLookupOperator(this.transaction, table, colName, val));
+        }
+        // And by a lookup in an in-memory ART index.
+        if (pred == PredicateOperator.EQUALS && this.transaction.artIndexExists(table, colName)) {
+          indexScans.add(new ArtLookupOperator(this.transaction, table, colName, val));
+        }
+        for (QueryOperator indexScan : indexScans) {
+          int cost = indexScan.estimateIOCost();
+          if (cost < indScanCost) {
+            indScanCost = cost;
+            minIndScanOp = indexScan;
+            minCols = Collections.singleton(col);
+          }
         }
     }
 
+    // A composite index can answer the predicates on several of its columns
+    // with a single scan.
+    for (List<String> indexColumns : this.transaction.getCompositeIndexes(table)) {
+      List<Integer> matched = matchCompositeIndex(table, indexColumns);
+      if (matched.isEmpty()) {
+        continue;
+      }
+      List<DataBox> prefix = new ArrayList<DataBox>();
+      for (int col : matched.subList(0, matched.size() - 1)) {
+        prefix.add(this.selectDataBoxes.get(col));
+      }
+      int last = matched.get(matched.size() - 1);
+      QueryOperator indexScan = new IndexScanOperator(this.transaction, table, indexColumns,
+                                                      prefix, this.selectOperators.get(last),
+                                                      this.selectDataBoxes.get(last),
+                                                      indexCoversQuery(table, indexColumns));
+      int cost = indexScan.estimateIOCost();
+      if (cost < indScanCost) {
+        indScanCost = cost;
+        minIndScanOp = indexScan;
+        minCols = new HashSet<Integer>(matched);
+      }
+    }
+
+    // A bitmap index scan answers the predicates on every column with a
+    // bitmap index with a single scan.
+    List<Integer> bitmapCols = getBitmapIndexColumns(table);
+    if (!bitmapCols.isEmpty()) {
+      List<String> columnNames = new ArrayList<String>();
+      List<PredicateOperator> predicates = new ArrayList<PredicateOperator>();
+      List<DataBox> values = new ArrayList<DataBox>();
+      List<List<DataBox>> valueLists = new ArrayList<List<DataBox>>();
+      for (int col : bitmapCols) {
+        columnNames.add(this.selectColumnNames.get(col));
+        predicates.add(this.selectOperators.get(col));
+        values.add(this.selectDataBoxes.get(col));
+        valueLists.add(this.selectValueLists.get(col));
+      }
+      QueryOperator bitmapScan = new BitmapIndexScanOperator(this.transaction, table, columnNames,
+                                                             predicates, values, valueLists);
+      int cost = bitmapScan.estimateIOCost();
+      if (cost < indScanCost) {
+        indScanCost = cost;
+        minIndScanOp = bitmapScan;
+        minCols = new HashSet<Integer>(bitmapCols);
+      }
+    }
+
     // 3. Push down SELECT predicates that apply to this table and that were not
     // used for an index scan and choose optimal operator and return
     if (indScanCost < sequentialCost) {
-      minOp = addEligibleSelections(minIndScanOp, minCol);;
+      minOp = addEligibleSelections(minIndScanOp, minCols);
+    } else if (this.parallelism > 1 || this.transaction.hasDictionary(table)) {
+      minOp = pushDownSelects((SequentialScanOperator) minOp);
     } else {
-      minOp = addEligibleSelections(minOp, -1);
+      minOp = addEligibleSelections(minOp, Collections.<Integer>emptySet());
     }
 
     return minOp;
@@ -552,12 +847,18 @@ public class QueryPlan {
     PredicateOperator operator = this.selectOperators.get(selectIndex);
     DataBox value = this.selectDataBoxes.get(selectIndex);
 
-    this.finalOperator = new IndexScanOperator(this.transaction, this.startTableName, indexColumn, operator,
-            value);
+    if (operator == PredicateOperator.IN) {
+      this.finalOperator = IndexScanOperator.multiKeyProbe(this.transaction, this.startTableName,
+              indexColumn, this.selectValueLists.get(selectIndex));
+    } else {
+      this.finalOperator = new IndexScanOperator(this.transaction, this.startTableName, indexColumn,
+              operator, value, indexCoversQuery(this.startTableName, indexColumn));
+    }
 
     this.selectColumnNames.remove(selectIndex);
     this.selectOperators.remove(selectIndex);
     this.selectDataBoxes.remove(selectIndex);
+    this.selectValueLists.remove(selectIndex);
 
     this.addSelects();
     this.addProjects();
@@ -567,7 +868,8 @@ public class QueryPlan {
     int index = 0;
 
     for (String joinTable : this.joinTableNames) {
-      SequentialScanOperator scanOperator = new SequentialScanOperator(this.transaction, joinTable);
+      SequentialScanOperator scanOperator = new SequentialScanOperator(this.transaction, joinTable,
+              this.parallelism);
 
       SNLJOperator joinOperator = new SNLJOperator(finalOperator, scanOperator,
               this.joinLeftColumnNames.get(index), this.joinRightColumnNames.get(index), this.transaction); //changed from new JoinOperator
@@ -581,14 +883,28 @@ public class QueryPlan {
     int index = 0;
 
     for (String selectColumn : this.selectColumnNames) {
-      PredicateOperator operator = this.selectOperators.get(index);
-      DataBox value = this.selectDataBoxes.get(index);
+      this.finalOperator = this.createSelect(this.finalOperator, selectColumn, index);
+      index++;
+    }
+  }
 
-      SelectOperator selectOperator = new SelectOperator(this.finalOperator, selectColumn,
-              operator, value);
+  /** Returns a SelectOperator that applies the SELECT predicate at index i to source. */
+  private SelectOperator createSelect(QueryOperator source, String column, int i)
+      throws QueryPlanException {
+    if (this.selectOperators.get(i) == PredicateOperator.IN) {
+      return new SelectOperator(source, column, this.selectValueLists.get(i));
+    }
+    return new SelectOperator(source, column, this.selectOperators.get(i),
+                              this.selectDataBoxes.get(i));
+  }
 
-      this.finalOperator = selectOperator;
-      index++;
+  /** Pushes the SELECT predicate at index i down into scan. */
+  private void pushDownSelect(SequentialScanOperator scan, int i) throws QueryPlanException {
+    if (this.selectOperators.get(i) == PredicateOperator.IN) {
+      scan.pushDownSelect(this.selectColumnNames.get(i), this.selectValueLists.get(i));
+    } else {
+      scan.pushDownSelect(this.selectColumnNames.get(i), this.selectOperators.get(i),
+                          this.selectDataBoxes.get(i));
     }
   }
 
@@ -1,7 +1,12 @@
 package edu.berkeley.cs186.database.query;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 import edu.berkeley.cs186.database.DatabaseException;
 import edu.berkeley.cs186.database.databox.DataBox;
@@ -15,6 +20,8 @@ public class SelectOperator extends QueryOperator {
   private String columnName;
   private QueryPlan.PredicateOperator operator;
   private DataBox value;
+  // The values of an IN predicate, or null.
+  private Set<DataBox> values;
 
   /**
    * Creates a new SelectOperator that pulls from source and only returns tuples for which the
@@ -41,6 +48,30 @@ public class SelectOperator extends QueryOperator {
     this.cost = this.estimateIOCost();
   }
 
+  /**
+   * Creates a new SelectOperator that pulls from source and only returns tuples whose column
+   * columnName is one of values (an IN predicate). Each tuple is checked against a hash set of
+   * the values.
+   *
+   * @param source the source of this operator
+   * @param columnName the name of the column to evaluate the predicate on
+   * @param values the values to compare against
+   * @throws QueryPlanException
+   */
+  public SelectOperator(QueryOperator source,
+                        String columnName,
+                        List<DataBox> values) throws QueryPlanException {
+    super(OperatorType.SELECT, source);
+    this.operator = QueryPlan.PredicateOperator.IN;
+    this.values = new HashSet<DataBox>(values);
+
+    this.columnName = this.checkSchemaForColumn(source.getOutputSchema(), columnName);
+    this.columnIndex = this.getOutputSchema().getFieldNames().indexOf(this.columnName);
+
+    this.stats = this.estimateStats();
+    this.cost = this.estimateIOCost();
+  }
+
   public Schema computeSchema() throws QueryPlanException {
     return this.getSource().getOutputSchema();
   }
@@ -49,7 +80,7 @@ public class SelectOperator extends QueryOperator {
     return "type: " + this.getType() +
         "\ncolumn: " + this.columnName +
         "\noperator: " + this.operator +
-        "\nvalue: " + this.value;
+        "\nvalue: " + (this.values != null ? this.values : this.value);
   }
 
   /**
@@ -59,6 +90,9 @@ public class SelectOperator extends QueryOperator {
    */
   public TableStats estimateStats() throws QueryPlanException {
     TableStats stats = this.getSource().getStats();
+    if (this.values != null) {
+      return stats.copyWithPredicate(this.columnIndex, new ArrayList<DataBox>(this.values));
+    }
     return stats.copyWithPredicate(this.columnIndex,
                                    this.operator,
                                    this.value);
@@ -69,7 +103,44 @@ public class SelectOperator extends QueryOperator {
   }
 
 
-  public Iterator<Record> iterator() throws QueryPlanException, DatabaseException { return new SelectIterator(); }
+  public Iterator<Record> iterator() throws QueryPlanException, DatabaseException {
+    // An equality select over a scan of a table matches nothing if a Bloom filter on the column
+    // rules the value out, so we don't scan the table at all.
+    if (this.operator == QueryPlan.PredicateOperator.EQUALS &&
+        this.getSource() instanceof SequentialScanOperator &&
+        ((SequentialScanOperator) this.getSource()).bloomFilterExcludes(this.columnName, this.value)) {
+      return Collections.<Record>emptyIterator();
+    }
+    return new SelectIterator();
+  }
+
+  /**
+   * Evaluates a single predicate `v operator value`. Shared by SelectOperator
+   * and by scans that apply pushed-down selects themselves.
+   *
+   * @param v the value read from the record
+   * @param operator the comparator
+   * @param value the value to compare against
+   * @return true if the predicate is satisfied
+   */
+  static boolean evaluate(DataBox v, QueryPlan.PredicateOperator operator, DataBox value) {
+    switch (operator) {
+      case EQUALS:
+        return v.equals(value);
+      case NOT_EQUALS:
+        return !v.equals(value);
+      case LESS_THAN:
+        return v.compareTo(value) < 0;
+      case LESS_THAN_EQUALS:
+        return v.compareTo(value) <= 0;
+      case GREATER_THAN:
+        return v.compareTo(value) > 0;
+      case GREATER_THAN_EQUALS:
+        return v.compareTo(value) >= 0;
+      default:
+        return false;
+    }
+  }
 
   /**
    * An implementation of Iterator that provides an iterator interface for this operator.
@@ -100,51 +171,13 @@ public class SelectOperator extends QueryOperator {
           this.nextRecord = r;
           return true;
         }
-        switch (SelectOperator.this.operator) {
-          case EQUALS:
-            if (r.getValues().get(SelectOperator.this.columnIndex).equals(value)) {
-              this.nextRecord = r;
-              return true;
-            }
-            break;
-          case NOT_EQUALS:
-            if (!r.getValues().get(SelectOperator.this.columnIndex).equals(value)) {
-              this.nextRecord = r;
-              return true;
-            }
-            break;
-          case LESS_THAN:
-            if (r.getValues().get(SelectOperator.this.columnIndex).compareTo(value) == -1) {
-              this.nextRecord = r;
-              return true;
-            }
-            break;
-          case LESS_THAN_EQUALS:
-            if (r.getValues().get(SelectOperator.this.columnIndex).compareTo(value) == -1) {
-              this.nextRecord = r;
-              return true;
-            } else if (r.getValues().get(SelectOperator.this.columnIndex).compareTo(value) == 0) {
-              this.nextRecord = r;
-              return true;
-            }
-            break;
-          case GREATER_THAN:
-            if (r.getValues().get(SelectOperator.this.columnIndex).compareTo(value) == 1) {
-              this.nextRecord = r;
-              return true;
-            }
-            break;
-          case GREATER_THAN_EQUALS:
-            if (r.getValues().get(SelectOperator.this.columnIndex).compareTo(value) == 1) {
-              this.nextRecord = r;
-              return true;
-            } else if (r.getValues().get(SelectOperator.this.columnIndex).compareTo(value) == 0) {
-              this.nextRecord = r;
-              return true;
-            }
-            break;
-          default:
-            break;
+        DataBox v = r.getValues().get(SelectOperator.this.columnIndex);
+        boolean matches = SelectOperator.this.values != null
+          ? SelectOperator.this.values.contains(v)
+          : SelectOperator.evaluate(v, SelectOperator.this.operator, SelectOperator.this.value);
+        if (matches) {
+          this.nextRecord = r;
+          return true;
         }
       }
       return false;
@@ -1,16 +1,38 @@
 package edu.berkeley.cs186.database.query;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 
 import edu.berkeley.cs186.database.Database;
 import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 
 public class SequentialScanOperator extends QueryOperator {
+  // The number of data pages handed to a worker at a time in a parallel scan.
+  public static final int MORSEL_SIZE = 8;
+
   private Database.Transaction transaction;
   private String tableName;
+  private int parallelism;
+
+  // Selects pushed down into this scan. The i-th entries of each list form
+  // one predicate. The values of an IN predicate are in predicateValueSets,
+  // and those of any other predicate in predicateValues.
+  private List<Integer> predicateColumns;
+  private List<QueryPlan.PredicateOperator> predicateOperators;
+  private List<DataBox> predicateValues;
+  private List<Set<DataBox>> predicateValueSets;
 
   /**
    * Creates a new SequentialScanOperator that provides an iterator on all tuples in a table.
@@ -25,9 +47,34 @@ public class SequentialScanOperator extends QueryOperator {
    */
   public SequentialScanOperator(Database.Transaction transaction,
                                 String tableName) throws QueryPlanException, DatabaseException {
+    this(transaction, tableName, transaction.getParallelism());
+  }
+
+  /**
+   * Creates a new SequentialScanOperator that splits the table's data pages into morsels of
+   * MORSEL_SIZE pages and scans up to parallelism morsels at once on the database's scan pool.
+   * Records are returned in no particular order when parallelism is greater than 1.
+   *
+   * @param transaction
+   * @param tableName
+   * @param parallelism the maximum number of morsels scanned at once
+   * @throws QueryPlanException
+   * @throws DatabaseException
+   */
+  public SequentialScanOperator(Database.Transaction transaction,
+                                String tableName,
+                                int parallelism) throws QueryPlanException, DatabaseException {
     super(OperatorType.SEQSCAN);
+    if (parallelism < 1) {
+      throw new QueryPlanException("Parallelism must be at least 1");
+    }
     this.transaction = transaction;
     this.tableName = tableName;
+    this.parallelism = parallelism;
+    this.predicateColumns = new ArrayList<Integer>();
+    this.predicateOperators = new ArrayList<QueryPlan.PredicateOperator>();
+    this.predicateValues = new ArrayList<DataBox>();
+    this.predicateValueSets = new ArrayList<Set<DataBox>>();
     this.setOutputSchema(this.computeSchema());
     this.stats = this.estimateStats();
     this.cost = this.estimateIOCost();
@@ -37,8 +84,70 @@ public class SequentialScanOperator extends QueryOperator {
     return this.tableName;
   }
 
+  public int getParallelism() {
+    return this.parallelism;
+  }
+
+  public boolean hasPushedDownSelects() {
+    return !this.predicateColumns.isEmpty();
+  }
+
+  /**
+   * Pushes a select down into this scan. The predicate is evaluated by whichever thread decodes
+   * the page, so in a parallel scan filtering happens per morsel instead of after the merge.
+   *
+   * @param columnName the name of the column to evaluate the predicate on
+   * @param operator the actual comparator
+   * @param value the value to compare against
+   * @throws QueryPlanException if the column is not in this table
+   */
+  public void pushDownSelect(String columnName,
+                             QueryPlan.PredicateOperator operator,
+                             DataBox value) throws QueryPlanException {
+    String name = this.checkSchemaForColumn(this.getOutputSchema(), columnName);
+    int columnIndex = this.getOutputSchema().getFieldNames().indexOf(name);
+    this.predicateColumns.add(columnIndex);
+    this.predicateOperators.add(operator);
+    this.predicateValues.add(value);
+    this.predicateValueSets.add(null);
+    this.stats = this.stats.copyWithPredicate(columnIndex, operator, value);
+  }
+
+  /**
+   * Pushes an IN predicate down into this scan (see pushDownSelect(columnName, operator, value)).
+   *
+   * @param columnName the name of the column to evaluate the predicate on
+   * @param values the values to compare against
+   * @throws QueryPlanException if the column is not in this table
+   */
+  public void pushDownSelect(String columnName, List<DataBox> values) throws QueryPlanException {
+    String name = this.checkSchemaForColumn(this.getOutputSchema(), columnName);
+    int columnIndex = this.getOutputSchema().getFieldNames().indexOf(name);
+    this.predicateColumns.add(columnIndex);
+    this.predicateOperators.add(QueryPlan.PredicateOperator.IN);
+    this.predicateValues.add(null);
+    this.predicateValueSets.add(new HashSet<DataBox>(values));
+    this.stats = this.stats.copyWithPredicate(columnIndex, values);
+  }
+
   public Iterator<Record> iterator() throws DatabaseException {
-    return this.transaction.getRecordIterator(tableName);
+    for (int i = 0; i < this.predicateColumns.size(); i++) {
+      if (this.predicateOperators.get(i) == QueryPlan.PredicateOperator.EQUALS &&
+          this.bloomFilterExcludes(this.getOutputSchema().getFieldNames().get(this.predicateColumns.get(i)),
+                                   this.predicateValues.get(i))) {
+        return Collections.<Record>emptyIterator();
+      }
+    }
+    if (this.parallelism > 1) {
+      return new ParallelScanIterator();
+    }
+    if (this.predicateColumns.isEmpty()) {
+      return this.transaction.getRecordIterator(tableName);
+    }
+    if (this.predicateOperators.contains(QueryPlan.PredicateOperator.EQUALS)) {
+      return new PageScanIterator();
+    }
+    return new FilterIterator(this.transaction.getRecordIterator(tableName));
   }
 
   public Schema computeSchema() throws QueryPlanException {
@@ -50,8 +159,19 @@ public class SequentialScanOperator extends QueryOperator {
   }
 
   public String str() {
-    return "type: " + this.getType() +
+    String s = "type: " + this.getType() +
             "\ntable: " + this.tableName;
+    if (this.parallelism > 1) {
+      s += "\nparallelism: " + this.parallelism;
+    }
+    for (int i = 0; i < this.predicateColumns.size(); i++) {
+      Object value = this.predicateValueSets.get(i) != null
+        ? this.predicateValueSets.get(i)
+        : this.predicateValues.get(i);
+      s += "\nfilter: " + this.getOutputSchema().getFieldNames().get(this.predicateColumns.get(i)) +
+              " " + this.predicateOperators.get(i) + " " + value;
+    }
+    return s;
   }
 
 
@@ -70,11 +190,197 @@ public class SequentialScanOperator extends QueryOperator {
 
   public int estimateIOCost() throws QueryPlanException {
     try {
-      
+
       return this.transaction.getNumDataPages(this.tableName);
 
     } catch (DatabaseException de) {
       throw new QueryPlanException(de);
     }
   }
+
+  /**
+   * Returns true if a Bloom filter on the column columnName of this scan's table rules out that
+   * any record has the value value in it, in which case an equality select on the column matches
+   * nothing and the scan can be skipped.
+   *
+   * @throws DatabaseException if the column has a Bloom filter and value is not of its type
+   */
+  boolean bloomFilterExcludes(String columnName, DataBox value) throws DatabaseException {
+    return !this.transaction.mightContain(this.tableName, columnName, value);
+  }
+
+  private boolean matches(Record record) {
+    List<DataBox> values = record.getValues();
+    for (int i = 0; i < this.predicateColumns.size(); i++) {
+      DataBox v = values.get(this.predicateColumns.get(i));
+      Set<DataBox> valueSet = this.predicateValueSets.get(i);
+      if (valueSet != null ? !valueSet.contains(v)
+          : !SelectOperator.evaluate(v, this.predicateOperators.get(i), this.predicateValues.get(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Reads and filters every record on the given pages. Runs on a scan pool worker. The first
+   * equality predicate is handed to the table, which evaluates it on dictionary codes when the
+   * column is dictionary encoded.
+   */
+  private List<Record> scanMorsel(List<Integer> pageNums) throws DatabaseException {
+    int i = this.predicateOperators.indexOf(QueryPlan.PredicateOperator.EQUALS);
+    int column = i == -1 ? -1 : this.predicateColumns.get(i);
+    DataBox value = i == -1 ? null : this.predicateValues.get(i);
+
+    List<Record> records = new ArrayList<Record>();
+    for (int pageNum : pageNums) {
+      for (Record r : this.transaction.readPage(this.tableName, pageNum, column, value)) {
+        if (this.matches(r)) {
+          records.add(r);
+        }
+      }
+    }
+    return records;
+  }
+
+  /**
+   * Applies the pushed-down selects to a serial scan.
+   */
+  private class FilterIterator implements Iterator<Record> {
+    private Iterator<Record> sourceIterator;
+    private Record nextRecord;
+
+    public FilterIterator(Iterator<Record> sourceIterator) {
+      this.sourceIterator = sourceIterator;
+      this.nextRecord = null;
+    }
+
+    public boolean hasNext() {
+      while (this.nextRecord == null && this.sourceIterator.hasNext()) {
+        Record r = this.sourceIterator.next();
+        if (SequentialScanOperator.this.matches(r)) {
+          this.nextRecord = r;
+        }
+      }
+      return this.nextRecord != null;
+    }
+
+    public Record next() {
+      if (this.hasNext()) {
+        Record r = this.nextRecord;
+        this.nextRecord = null;
+        return r;
+      }
+      throw new NoSuchElementException();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Scans a table serially one page at a time so that an equality predicate can be evaluated by
+   * the table before records are decoded.
+   */
+  private class PageScanIterator implements Iterator<Record> {
+    private Iterator<Integer> pageNums;
+    private Iterator<Record> batch;
+
+    public PageScanIterator() throws DatabaseException {
+      Database.Transaction transaction = SequentialScanOperator.this.transaction;
+      this.pageNums = transaction.getDataPageNums(SequentialScanOperator.this.tableName).iterator();
+      this.batch = Collections.<Record>emptyList().iterator();
+    }
+
+    public boolean hasNext() {
+      while (!this.batch.hasNext() && this.pageNums.hasNext()) {
+        try {
+          List<Integer> pageNum = Collections.singletonList(this.pageNums.next());
+          this.batch = SequentialScanOperator.this.scanMorsel(pageNum).iterator();
+        } catch (DatabaseException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+      return this.batch.hasNext();
+    }
+
+    public Record next() {
+      if (this.hasNext()) {
+        return this.batch.next();
+      }
+      throw new NoSuchElementException();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Scans morsels on the database's scan pool and merges their output in completion order. At
+   * most parallelism morsels are outstanding at once, so no more than that many morsels worth of
+   * records are buffered no matter how slowly the consumer pulls.
+   */
+  private class ParallelScanIterator implements Iterator<Record> {
+    private List<Integer> pageNums;
+    private int nextPageIndex;
+    private int numInFlight;
+    private CompletionService<List<Record>> completionService;
+    private Iterator<Record> batch;
+
+    public ParallelScanIterator() throws DatabaseException {
+      Database.Transaction transaction = SequentialScanOperator.this.transaction;
+      this.pageNums = transaction.getDataPageNums(SequentialScanOperator.this.tableName);
+      this.nextPageIndex = 0;
+      this.numInFlight = 0;
+      this.completionService = new ExecutorCompletionService<List<Record>>(transaction.getScanPool());
+      this.batch = Collections.<Record>emptyList().iterator();
+
+      while (this.numInFlight < SequentialScanOperator.this.parallelism && this.submitMorsel()) { }
+    }
+
+    private boolean submitMorsel() {
+      if (this.nextPageIndex >= this.pageNums.size()) {
+        return false;
+      }
+      int end = Math.min(this.nextPageIndex + MORSEL_SIZE, this.pageNums.size());
+      final List<Integer> morsel = this.pageNums.subList(this.nextPageIndex, end);
+      this.nextPageIndex = end;
+      this.completionService.submit(() -> SequentialScanOperator.this.scanMorsel(morsel));
+      this.numInFlight++;
+      return true;
+    }
+
+    public boolean hasNext() {
+      while (!this.batch.hasNext()) {
+        if (this.numInFlight == 0) {
+          return false;
+        }
+        try {
+          List<Record> records = this.completionService.take().get();
+          this.numInFlight--;
+          this.submitMorsel();
+          this.batch = records.iterator();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+          throw new IllegalStateException(e.getCause());
+        }
+      }
+      return true;
+    }
+
+    public Record next() {
+      if (this.hasNext()) {
+        return this.batch.next();
+      }
+      throw new NoSuchElementException();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
 }
@@ -8,6 +8,12 @@ import java.util.Objects;
  * (the number of the page on which it resides) and its entry number (the
  * record's index in the page). A RecordId is a pair of the page number and
  * entry number.
+ *
+ * A record id can also be encoded as a primitive long (see toLong), which
+ * scans and the leaves of B+ trees pass around instead of RecordId objects
+ * so that they don't allocate one per record. Page and entry numbers are
+ * never negative, so encoded record ids compare like the record ids they
+ * encode.
  */
 public class RecordId implements Comparable<RecordId> {
   private int pageNum;
@@ -26,6 +32,33 @@ public class RecordId implements Comparable<RecordId> {
     return this.entryNum;
   }
 
+  /**
+   * Encodes this record id as a long: the page number in the high 48 bits
+   * and the entry number in the low 16.
+   */
+  public long toLong() {
+    return toLong(pageNum, entryNum);
+  }
+
+  public static long toLong(int pageNum, short entryNum) {
+    return ((long) pageNum << Short.SIZE) | (entryNum & 0xFFFF);
+  }
+
+  /** Decodes a record id encoded by toLong. */
+  public static RecordId fromLong(long rid) {
+    return new RecordId(getPageNum(rid), getEntryNum(rid));
+  }
+
+  /** Returns the page number of a record id encoded by toLong. */
+  public static int getPageNum(long rid) {
+    return (int) (rid >> Short.SIZE);
+  }
+
+  /** Returns the entry number of a record id encoded by toLong. */
+  public static short getEntryNum(long rid) {
+    return (short) rid;
+  }
+
   public static int getSizeInBytes() {
     // See toBytes.
     return Integer.BYTES + Short.BYTES;
@@ -3,6 +3,7 @@ package edu.berkeley.cs186.database.table;
 import java.util.Iterator;
 
 import edu.berkeley.cs186.database.common.BacktrackingIterator;
+import edu.berkeley.cs186.database.common.LongIterator;
 import edu.berkeley.cs186.database.DatabaseException;
 
 /**
@@ -14,9 +15,14 @@ import edu.berkeley.cs186.database.DatabaseException;
  *   recordIterator.next(); // equivalent to t.getRecord(ridIterator.next())
  *   recordIterator.next(); // equivalent to t.getRecord(ridIterator.next())
  *   recordIterator.next(); // equivalent to t.getRecord(ridIterator.next())
+ *
+ * It can also wrap a LongIterator over record ids encoded as longs (see
+ * RecordId.toLong), in which case no RecordId is created per record.
  */
 public class RecordIterator implements BacktrackingIterator<Record> {
+  // Exactly one of ridIter and longRidIter is set.
   private Iterator<RecordId> ridIter;
+  private LongIterator longRidIter;
   private Table table;
 
   public RecordIterator(Table table, Iterator<RecordId> ridIter) {
@@ -24,14 +30,20 @@ public class RecordIterator implements BacktrackingIterator<Record> {
     this.table = table;
   }
 
+  public RecordIterator(Table table, LongIterator longRidIter) {
+    this.longRidIter = longRidIter;
+    this.table = table;
+  }
 
   public boolean hasNext() {
-    return ridIter.hasNext();
+    return ridIter != null ? ridIter.hasNext() : longRidIter.hasNext();
   }
 
   public Record next() {
     try {
-      return table.getRecord(ridIter.next());
+      return ridIter != null
+        ? table.getRecord(ridIter.next())
+        : table.getRecord(longRidIter.nextLong());
     } catch (DatabaseException e) {
       throw new IllegalStateException(e);
     }
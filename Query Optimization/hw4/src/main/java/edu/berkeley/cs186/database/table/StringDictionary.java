@@ -0,0 +1,152 @@
+package edu.berkeley.cs186.database.table;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.StringDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.io.PageAllocator;
+
+/**
+ * A StringDictionary maps the distinct values of a table's dictionary-encoded
+ * STRING columns to dense integer codes. Column i's first distinct value gets
+ * code 0, its second gets code 1, and so on. Codes are never reused or
+ * reassigned, so a code stored in a record stays valid for the lifetime of
+ * the table.
+ *
+ *   StringDictionary dict =
+ *     new StringDictionary("t.table.dict", schema, Arrays.asList(2), true);
+ *   int code = dict.encode(2, new StringDataBox("NYA", 3)); // 0
+ *   dict.encode(2, new StringDataBox("BOS", 3));            // 1
+ *   dict.encode(2, new StringDataBox("NYA", 3));            // 0
+ *   dict.lookup(2, new StringDataBox("SEA", 3));            // -1
+ *   dict.decode(2, 1);                                      // "BOS"
+ *
+ * # Storage Format
+ * The dictionary is an append-only log persisted next to the table in a file
+ * with extension FILENAME_EXTENSION. Every page begins with the number n (4
+ * bytes) of entries on the page followed by n entries. An entry is a column
+ * index (4 bytes) followed by the serialized value, whose width is given by
+ * the column's type. Entries are read back in page order, which reproduces
+ * the codes.
+ *
+ * Decoding returns the same StringDataBox instance for every occurrence of a
+ * code, so reading an encoded column never allocates or validates strings.
+ */
+public class StringDictionary implements Closeable {
+  public static final String FILENAME_EXTENSION = ".dict";
+
+  // The allocator used to persist the dictionary.
+  private PageAllocator allocator;
+
+  // values.get(i).get(c) is the value of column i with code c, and
+  // codes.get(i) is the inverse mapping. Only encoded columns have entries.
+  private Map<Integer, List<StringDataBox>> values;
+  private Map<Integer, Map<DataBox, Integer>> codes;
+
+  // The page to which new entries are appended and the offset of the first
+  // free byte on it.
+  private Page lastPage;
+  private int lastPageOffset;
+
+  /**
+   * Opens the dictionary persisted in filename for a table with schema
+   * `schema` whose columns encodedColumns are dictionary encoded. If wipe is
+   * true, the dictionary starts out empty.
+   */
+  public StringDictionary(String filename, Schema schema, List<Integer> encodedColumns,
+                          boolean wipe) {
+    this.allocator = new PageAllocator(filename, wipe);
+    this.values = new ConcurrentHashMap<>();
+    this.codes = new ConcurrentHashMap<>();
+    for (int column : encodedColumns) {
+      this.values.put(column, new CopyOnWriteArrayList<StringDataBox>());
+      this.codes.put(column, new ConcurrentHashMap<DataBox, Integer>());
+    }
+
+    this.lastPage = null;
+    this.lastPageOffset = 0;
+    Iterator<Page> iter = this.allocator.iterator();
+    while (iter.hasNext()) {
+      this.lastPage = iter.next();
+      ByteBuffer buf = this.lastPage.getByteBuffer();
+      int n = buf.getInt();
+      for (int i = 0; i < n; ++i) {
+        int column = buf.getInt();
+        Type t = schema.getFieldTypes().get(column);
+        addToMemory(column, (StringDataBox) DataBox.fromBytes(buf, t));
+      }
+      this.lastPageOffset = buf.position();
+    }
+  }
+
+  /** Returns true if column is dictionary encoded. */
+  public boolean isEncoded(int column) {
+    return this.codes.containsKey(column);
+  }
+
+  /**
+   * Returns the code of value in column, assigning (and persisting) a new
+   * code if value has not been seen before.
+   */
+  public synchronized int encode(int column, StringDataBox value) {
+    Integer code = this.codes.get(column).get(value);
+    if (code != null) {
+      return code;
+    }
+
+    byte[] bytes = value.toBytes();
+    int entrySize = Integer.BYTES + bytes.length;
+    if (this.lastPage == null || this.lastPageOffset + entrySize > Page.pageSize) {
+      this.lastPage = this.allocator.fetchPage(this.allocator.allocPage());
+      this.lastPageOffset = Integer.BYTES;
+    }
+
+    ByteBuffer buf = this.lastPage.getByteBuffer();
+    buf.position(this.lastPageOffset);
+    buf.putInt(column);
+    buf.put(bytes);
+    buf.putInt(0, buf.getInt(0) + 1);
+    this.lastPageOffset += entrySize;
+
+    return addToMemory(column, value);
+  }
+
+  /**
+   * Returns the code of value in column, or -1 if value has never been
+   * encoded. Unlike encode, lookup never modifies the dictionary.
+   */
+  public int lookup(int column, DataBox value) {
+    Integer code = this.codes.get(column).get(value);
+    return code == null ? -1 : code;
+  }
+
+  /** Returns the value of column with code `code`. */
+  public StringDataBox decode(int column, int code) {
+    return this.values.get(column).get(code);
+  }
+
+  /** Returns the number of distinct values of column. */
+  public int size(int column) {
+    return this.values.get(column).size();
+  }
+
+  public void close() {
+    this.allocator.close();
+  }
+
+  private int addToMemory(int column, StringDataBox value) {
+    List<StringDataBox> columnValues = this.values.get(column);
+    int code = columnValues.size();
+    columnValues.add(value);
+    this.codes.get(column).put(value, code);
+    return code;
+  }
+}
@@ -3,16 +3,26 @@ package edu.berkeley.cs186.database.table;
 import java.util.Arrays;
 import java.io.Closeable;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.TreeSet;
 
 import edu.berkeley.cs186.database.DatabaseException;
 import edu.berkeley.cs186.database.common.ArrayBacktrackingIterator;
 import edu.berkeley.cs186.database.common.BacktrackingIterator;
 import edu.berkeley.cs186.database.common.Bits;
+import edu.berkeley.cs186.database.common.LongIterator;
+import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.databox.StringDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.databox.TypeId;
 import edu.berkeley.cs186.database.io.Page;
 import edu.berkeley.cs186.database.io.PageAllocator;
 import edu.berkeley.cs186.database.io.PageAllocator.PageIterator;
@@ -94,6 +104,19 @@ import edu.berkeley.cs186.database.table.stats.TableStats;
  *
  *  When we add a record to a table, we add it to the very first free slot in
  *  the table. See addRecord for more information.
+ *
+ * # Dictionary Encoding
+ * STRING columns with few distinct values can be dictionary encoded:
+ *
+ *   Table t = new Table("t", schema, "t.table", Arrays.asList("team"));
+ *
+ * An encoded column is stored on data pages as a 4-byte integer code instead
+ * of the full fixed-width string, and the code-to-string mapping is persisted
+ * in a StringDictionary next to the table (e.g. "t.table.dict"). The on-page
+ * layout is described by getStorageSchema(), in which every encoded column
+ * has type int. getSchema() and every method that returns records still use
+ * the logical schema, so encoding is invisible to callers. The header page
+ * stores the number of encoded columns and their indices after the schema.
  */
 public class Table implements Iterable<Record>, Closeable {
   public static final String FILENAME_PREFIX = "db";
@@ -108,6 +131,13 @@ public class Table implements Iterable<Record>, Closeable {
   // The schema of the database.
   private Schema schema;
 
+  // The schema of records as they are laid out on data pages. It is schema
+  // with every dictionary-encoded column replaced by an int column.
+  private Schema storageSchema;
+
+  // The dictionary of the encoded columns, or null if no column is encoded.
+  private StringDictionary dictionary;
+
   // The allocator used to persist the database.
   private PageAllocator allocator;
 
@@ -135,6 +165,8 @@ public class Table implements Iterable<Record>, Closeable {
     this.name = name;
     this.filename = filename;
     this.schema = schema;
+    this.storageSchema = schema;
+    this.dictionary = null;
     this.allocator = new PageAllocator(filename, true);
     this.bitmapSizeInBytes = computeBitmapSizeInBytes(Page.pageSize, schema);
     numRecordsPerPage = computeNumRecordsPerPage(Page.pageSize, schema);
@@ -142,7 +174,48 @@ public class Table implements Iterable<Record>, Closeable {
     this.freePageNums = new TreeSet<Integer>();
     this.numRecords = 0;
 
-    writeSchemaToHeaderPage(allocator, schema);
+    writeSchemaToHeaderPage(allocator, schema, new ArrayList<Integer>());
+  }
+
+  /**
+   * Construct a brand new table named `name` with schema `schema` persisted in
+   * file `filename` whose STRING columns dictionaryColumns are dictionary
+   * encoded. An exception is thrown if a column does not exist, is not a
+   * STRING column, or is listed twice.
+   */
+  public Table(String name, Schema schema, String filename,
+               List<String> dictionaryColumns) throws DatabaseException {
+    List<Integer> encodedColumns = new ArrayList<Integer>();
+    for (String column : dictionaryColumns) {
+      int index = schema.getFieldNames().indexOf(column);
+      if (index == -1) {
+        throw new DatabaseException("Column desired for dictionary does not exist");
+      }
+      if (schema.getFieldTypes().get(index).getTypeId() != TypeId.STRING) {
+        String msg = String.format("Column %s is not a STRING column.", column);
+        throw new DatabaseException(msg);
+      }
+      if (encodedColumns.contains(index)) {
+        throw new DatabaseException("Column desired for dictionary has been duplicated");
+      }
+      encodedColumns.add(index);
+    }
+
+    this.name = name;
+    this.filename = filename;
+    this.schema = schema;
+    this.storageSchema = computeStorageSchema(schema, encodedColumns);
+    this.dictionary = encodedColumns.isEmpty() ? null :
+      new StringDictionary(filename + StringDictionary.FILENAME_EXTENSION,
+                           schema, encodedColumns, true);
+    this.allocator = new PageAllocator(filename, true);
+    this.bitmapSizeInBytes = computeBitmapSizeInBytes(Page.pageSize, storageSchema);
+    this.numRecordsPerPage = computeNumRecordsPerPage(Page.pageSize, storageSchema);
+    this.stats = new TableStats(this.schema);
+    this.freePageNums = new TreeSet<Integer>();
+    this.numRecords = 0;
+
+    writeSchemaToHeaderPage(allocator, schema, encodedColumns);
   }
 
   /**
@@ -153,9 +226,15 @@ public class Table implements Iterable<Record>, Closeable {
     this.name = name;
     this.filename = filename;
     this.allocator = new PageAllocator(filename, false);
-    this.schema = readSchemaFromHeaderPage(this.allocator);
-    this.bitmapSizeInBytes = computeBitmapSizeInBytes(Page.pageSize, this.schema);
-    this.numRecordsPerPage = computeNumRecordsPerPage(Page.pageSize, this.schema);
+    ByteBuffer header = this.allocator.fetchPage(0).getByteBuffer();
+    this.schema = Schema.fromBytes(header);
+    List<Integer> encodedColumns = readEncodedColumns(header);
+    this.storageSchema = computeStorageSchema(this.schema, encodedColumns);
+    this.dictionary = encodedColumns.isEmpty() ? null :
+      new StringDictionary(filename + StringDictionary.FILENAME_EXTENSION,
+                           this.schema, encodedColumns, false);
+    this.bitmapSizeInBytes = computeBitmapSizeInBytes(Page.pageSize, this.storageSchema);
+    this.numRecordsPerPage = computeNumRecordsPerPage(Page.pageSize, this.storageSchema);
 
     // We compute the stats, free pages, and number of records naively. We
     // iterate through every single data page of the file, and for each data
@@ -197,6 +276,15 @@ public class Table implements Iterable<Record>, Closeable {
     return schema;
   }
 
+  public Schema getStorageSchema() {
+    return storageSchema;
+  }
+
+  /** Returns the dictionary of this table, or null if no column is encoded. */
+  public StringDictionary getDictionary() {
+    return dictionary;
+  }
+
   public PageAllocator getAllocator() {
     return allocator;
   }
@@ -253,8 +341,8 @@ public class Table implements Iterable<Record>, Closeable {
   }
 
   private synchronized void insertRecord(Page page, int entryNum, Record record) {
-    int offset = bitmapSizeInBytes + (entryNum * schema.getSizeInBytes());
-    byte[] bytes = record.toBytes(schema);
+    int offset = bitmapSizeInBytes + (entryNum * storageSchema.getSizeInBytes());
+    byte[] bytes = encode(record).toBytes(storageSchema);
     ByteBuffer buf = page.getByteBuffer();
     buf.position(offset);
     buf.put(bytes);
@@ -275,11 +363,23 @@ public class Table implements Iterable<Record>, Closeable {
     if (freePageNums.isEmpty()) {
       freePageNums.add(allocator.allocPage());
     }
+    RecordId rid = insertIntoFirstFreePage(record);
+
+    // Update the metadata.
+    stats.addRecord(record);
+    numRecords++;
+
+    return rid;
+  }
+
+  /**
+   * Writes record into the first free slot of the first free page and removes
+   * the page from freePageNums if that fills it. There must be a free page.
+   */
+  private RecordId insertIntoFirstFreePage(Record record) {
     Page page = allocator.fetchPage(freePageNums.first());
 
     // Find the first empty slot in the bitmap.
-    // entry number of the first free slot and store it in entryNum; and (2) we
-    // count the total number of entries on this page.
     byte[] bitmap = getBitMap(page);
     int entryNum = 0;
     for (; entryNum < numRecordsPerPage; ++entryNum) {
@@ -293,12 +393,9 @@ public class Table implements Iterable<Record>, Closeable {
     insertRecord(page, entryNum, record);
     Bits.setBit(page.getByteBuffer(), entryNum, Bits.Bit.ONE);
 
-    // Update the metadata.
-    stats.addRecord(record);
     if (numRecordsOnPage(page) == numRecordsPerPage) {
       freePageNums.pollFirst();
     }
-    numRecords++;
 
     return new RecordId(page.getPageNum(), (short) entryNum);
   }
@@ -308,18 +405,30 @@ public class Table implements Iterable<Record>, Closeable {
    * exists.
    */
   public synchronized Record getRecord(RecordId rid) throws DatabaseException {
-    validateRecordId(rid);
-    Page page = allocator.fetchPage(rid.getPageNum());
+    return getRecord(rid.getPageNum(), rid.getEntryNum());
+  }
+
+  /**
+   * Same as getRecord(RecordId), but for a record id encoded as a long (see
+   * RecordId.toLong), which scans use to avoid creating a RecordId per record.
+   */
+  public synchronized Record getRecord(long rid) throws DatabaseException {
+    return getRecord(RecordId.getPageNum(rid), RecordId.getEntryNum(rid));
+  }
+
+  private Record getRecord(int pageNum, short entryNum) throws DatabaseException {
+    validateRecordId(pageNum, entryNum);
+    Page page = allocator.fetchPage(pageNum);
     byte[] bitmap = getBitMap(page);
-    if (Bits.getBit(bitmap, rid.getEntryNum()) == Bits.Bit.ZERO) {
-      String msg = String.format("Record %s does not exist.", rid);
+    if (Bits.getBit(bitmap, entryNum) == Bits.Bit.ZERO) {
+      String msg = String.format("Record %s does not exist.", new RecordId(pageNum, entryNum));
       throw new DatabaseException(msg);
     }
 
-    int offset = bitmapSizeInBytes + (rid.getEntryNum() * schema.getSizeInBytes());
+    int offset = bitmapSizeInBytes + (entryNum * storageSchema.getSizeInBytes());
     ByteBuffer buf = page.getByteBuffer();
     buf.position(offset);
-    return Record.fromBytes(buf, schema);
+    return decode(Record.fromBytes(buf, storageSchema));
   }
 
   /**
@@ -359,22 +468,277 @@ public class Table implements Iterable<Record>, Closeable {
     return record;
   }
 
+  /**
+   * Returns the page numbers of all data pages of this table in file order.
+   * Used to split a table into independently scannable morsels.
+   */
+  public synchronized List<Integer> getDataPageNums() {
+    List<Integer> pageNums = new ArrayList<Integer>();
+    Iterator<Page> iter = allocator.iterator();
+    iter.next(); // Skip the header page.
+    while (iter.hasNext()) {
+      pageNums.add(iter.next().getPageNum());
+    }
+    return pageNums;
+  }
+
+  /**
+   * Returns every valid record on data page pageNum. The page is copied while
+   * holding the table lock and decoded after it is released, so many threads
+   * can read different pages of the same table at once.
+   */
+  public List<Record> readPage(int pageNum) throws DatabaseException {
+    return readPage(pageNum, -1, null);
+  }
+
+  /**
+   * Like readPage(pageNum), but only returns the records whose column
+   * `column` equals value. For a dictionary-encoded column the comparison is
+   * done on the stored integer codes, so records that don't match are never
+   * decoded, and a value absent from the dictionary matches nothing without
+   * reading the page at all. A negative column matches every record.
+   */
+  public List<Record> readPage(int pageNum, int column, DataBox value) throws DatabaseException {
+    validateRecordId(new RecordId(pageNum, (short) 0));
+    List<Record> records = new ArrayList<Record>();
+    boolean encoded = column >= 0 && dictionary != null && dictionary.isEncoded(column);
+    int code = encoded ? dictionary.lookup(column, value) : -1;
+    if (encoded && code == -1) {
+      return records;
+    }
+
+    byte[] bytes = new byte[Page.pageSize];
+    synchronized (this) {
+      allocator.fetchPage(pageNum).getByteBuffer().get(bytes);
+    }
+
+    // The byte offset of column within a stored record.
+    int columnOffset = 0;
+    for (int i = 0; encoded && i < column; ++i) {
+      columnOffset += storageSchema.getFieldTypes().get(i).getSizeInBytes();
+    }
+
+    int recordSize = storageSchema.getSizeInBytes();
+    ByteBuffer buf = ByteBuffer.wrap(bytes);
+    for (int i = 0; i < numRecordsPerPage; ++i) {
+      if (Bits.getBit(bytes, i) == Bits.Bit.ONE) {
+        int offset = bitmapSizeInBytes + (i * recordSize);
+        if (encoded && buf.getInt(offset + columnOffset) != code) {
+          continue;
+        }
+        buf.position(offset);
+        Record record = decode(Record.fromBytes(buf, storageSchema));
+        if (encoded || column < 0 || record.getValues().get(column).equals(value)) {
+          records.add(record);
+        }
+      }
+    }
+    return records;
+  }
+
+  /**
+   * Like readPage(pageNum), but only returns the records in the slots set in
+   * entryNums, in slot order; slots that hold no record are skipped. A bitmap
+   * heap scan uses this to read all the records it needs from a page with a
+   * single fetch of the page.
+   */
+  public List<Record> readPage(int pageNum, BitSet entryNums) throws DatabaseException {
+    validateRecordId(new RecordId(pageNum, (short) 0));
+    byte[] bytes = new byte[Page.pageSize];
+    synchronized (this) {
+      allocator.fetchPage(pageNum).getByteBuffer().get(bytes);
+    }
+
+    List<Record> records = new ArrayList<Record>();
+    int recordSize = storageSchema.getSizeInBytes();
+    ByteBuffer buf = ByteBuffer.wrap(bytes);
+    for (int i = entryNums.nextSetBit(0); i >= 0 && i < numRecordsPerPage;
+         i = entryNums.nextSetBit(i + 1)) {
+      if (Bits.getBit(bytes, i) == Bits.Bit.ONE) {
+        buf.position(bitmapSizeInBytes + (i * recordSize));
+        records.add(decode(Record.fromBytes(buf, storageSchema)));
+      }
+    }
+    return records;
+  }
+
+  /**
+   * A MoveHandler is told by compact of every record it moved, before the
+   * pages the records were moved off of are freed.
+   */
+  public interface MoveHandler {
+    /**
+     * Handles the (old, new) record id of every moved record. If it throws,
+     * compact moves the records back and frees no pages.
+     */
+    void moved(List<Pair<RecordId, RecordId>> moves) throws DatabaseException;
+  }
+
+  /**
+   * compact moves records off the last data pages of the table and into the
+   * free slots of earlier pages, freeing every data page it empties. At most
+   * maxPages pages are emptied per call, so a large table can be compacted
+   * incrementally. Compaction stops early once the last page no longer fits
+   * in the free slots below it, or once it reaches a page that it moved
+   * records onto, so that no record moves twice in one call.
+   *
+   * Moved records keep their values, so stats and numRecords are unchanged,
+   * but their record ids change. The (old, new) record id of every moved
+   * record is passed to handler, in the order the records were moved, so
+   * that callers can fix up any indexes on the table, and then returned. The
+   * emptied pages are only freed once handler returns; if it throws instead,
+   * every record is moved back and the exception is rethrown, so a call
+   * either compacts the table and its indexes or changes nothing.
+   */
+  public synchronized List<Pair<RecordId, RecordId>> compact(int maxPages, MoveHandler handler)
+      throws DatabaseException {
+    List<Pair<RecordId, RecordId>> moves = new ArrayList<Pair<RecordId, RecordId>>();
+    List<Integer> emptiedPageNums = new ArrayList<Integer>();
+    Set<Integer> filledPageNums = new HashSet<Integer>();
+    List<Integer> pageNums = getDataPageNums();
+
+    for (int i = 0; i < maxPages && !pageNums.isEmpty(); ++i) {
+      int lastPageNum = pageNums.remove(pageNums.size() - 1);
+      if (filledPageNums.contains(lastPageNum)) {
+        break;
+      }
+
+      // Make sure every record on the last page fits on an earlier page.
+      Page lastPage = allocator.fetchPage(lastPageNum);
+      int numToMove = numRecordsOnPage(lastPage);
+      int numFreeSlots = 0;
+      for (int pageNum : freePageNums.headSet(lastPageNum)) {
+        if (numFreeSlots >= numToMove) {
+          break;
+        }
+        numFreeSlots += numRecordsPerPage - numRecordsOnPage(allocator.fetchPage(pageNum));
+      }
+      if (numFreeSlots < numToMove) {
+        break;
+      }
+
+      // Move the records. freePageNums.first() is always below lastPageNum
+      // here, so records never move onto the page being emptied. The old
+      // slots keep their bytes until the page is freed, so that the records
+      // can be moved back.
+      byte[] bitmap = getBitMap(lastPage);
+      for (short entryNum = 0; entryNum < numRecordsPerPage; ++entryNum) {
+        if (Bits.getBit(bitmap, entryNum) == Bits.Bit.ONE) {
+          RecordId oldRid = new RecordId(lastPageNum, entryNum);
+          RecordId newRid = insertIntoFirstFreePage(getRecord(oldRid));
+          Bits.setBit(lastPage.getByteBuffer(), entryNum, Bits.Bit.ZERO);
+          moves.add(new Pair<RecordId, RecordId>(oldRid, newRid));
+          filledPageNums.add(newRid.getPageNum());
+        }
+      }
+
+      freePageNums.remove(lastPageNum);
+      emptiedPageNums.add(lastPageNum);
+    }
+
+    try {
+      handler.moved(moves);
+    } catch (DatabaseException | RuntimeException e) {
+      undoMoves(moves, emptiedPageNums);
+      throw e;
+    }
+    for (int pageNum : emptiedPageNums) {
+      allocator.freePage(pageNum);
+    }
+    return moves;
+  }
+
+  /**
+   * Moves the records of moves back to their old slots on the pages that
+   * compact emptied (but has not freed yet), and updates freePageNums.
+   */
+  private void undoMoves(List<Pair<RecordId, RecordId>> moves, List<Integer> emptiedPageNums) {
+    Set<Integer> pageNums = new HashSet<Integer>(emptiedPageNums);
+    for (Pair<RecordId, RecordId> move : moves) {
+      RecordId oldRid = move.getFirst();
+      RecordId newRid = move.getSecond();
+      Bits.setBit(allocator.fetchPage(oldRid.getPageNum()).getByteBuffer(),
+                  oldRid.getEntryNum(), Bits.Bit.ONE);
+      Bits.setBit(allocator.fetchPage(newRid.getPageNum()).getByteBuffer(),
+                  newRid.getEntryNum(), Bits.Bit.ZERO);
+      pageNums.add(newRid.getPageNum());
+    }
+    for (int pageNum : pageNums) {
+      if (numRecordsOnPage(allocator.fetchPage(pageNum)) < numRecordsPerPage) {
+        freePageNums.add(pageNum);
+      }
+    }
+  }
+
   public void close() {
     allocator.close();
+    if (dictionary != null) {
+      dictionary.close();
+    }
   }
 
   // Helpers ///////////////////////////////////////////////////////////////////
-  private static Schema readSchemaFromHeaderPage(PageAllocator allocator) {
-    Page headerPage = allocator.fetchPage(0);
-    ByteBuffer buf = headerPage.getByteBuffer();
-    return Schema.fromBytes(buf);
-  }
-
-  private static void writeSchemaToHeaderPage(PageAllocator allocator, Schema schema) {
+  private static void writeSchemaToHeaderPage(PageAllocator allocator, Schema schema,
+                                              List<Integer> encodedColumns) {
     Page headerPage = allocator.fetchPage(allocator.allocPage());
     assert(0 == headerPage.getPageNum());
     ByteBuffer buf = headerPage.getByteBuffer();
     buf.put(schema.toBytes());
+    buf.putInt(encodedColumns.size());
+    for (int column : encodedColumns) {
+      buf.putInt(column);
+    }
+  }
+
+  /**
+   * Reads the indices of the dictionary-encoded columns that follow the
+   * schema on the header page. Tables written before dictionary encoding
+   * existed have zeros there, i.e. no encoded columns.
+   */
+  private static List<Integer> readEncodedColumns(ByteBuffer buf) {
+    int n = buf.getInt();
+    List<Integer> encodedColumns = new ArrayList<Integer>();
+    for (int i = 0; i < n; ++i) {
+      encodedColumns.add(buf.getInt());
+    }
+    return encodedColumns;
+  }
+
+  private static Schema computeStorageSchema(Schema schema, List<Integer> encodedColumns) {
+    List<Type> types = new ArrayList<Type>(schema.getFieldTypes());
+    for (int column : encodedColumns) {
+      types.set(column, Type.intType());
+    }
+    return new Schema(schema.getFieldNames(), types);
+  }
+
+  /** Replaces the value of every encoded column of record with its code. */
+  private Record encode(Record record) {
+    if (dictionary == null) {
+      return record;
+    }
+    List<DataBox> values = new ArrayList<DataBox>(record.getValues());
+    for (int i = 0; i < values.size(); ++i) {
+      if (dictionary.isEncoded(i)) {
+        int code = dictionary.encode(i, (StringDataBox) values.get(i));
+        values.set(i, new IntDataBox(code));
+      }
+    }
+    return new Record(values);
+  }
+
+  /** The inverse of encode. */
+  private Record decode(Record record) {
+    if (dictionary == null) {
+      return record;
+    }
+    List<DataBox> values = new ArrayList<DataBox>(record.getValues());
+    for (int i = 0; i < values.size(); ++i) {
+      if (dictionary.isEncoded(i)) {
+        values.set(i, dictionary.decode(i, values.get(i).getInt()));
+      }
+    }
+    return new Record(values);
   }
 
   /**
@@ -397,7 +761,8 @@ public class Table implements Iterable<Record>, Closeable {
    */
   private static int computeUnroundedNumRecordsPerPage(int pageSize, Schema schema) {
     // Storing each record requires 1 bit for the bitmap and 8 *
-    // schema.getSizeInBytes() bits for the record.
+    // schema.getSizeInBytes() bits for the record. For tables with encoded
+    // columns, schema is the storage schema.
     int recordOverheadInBits = 1 + 8 * schema.getSizeInBytes();
     int pageSizeInBits = pageSize * 8;
     return pageSizeInBits / recordOverheadInBits;
@@ -415,9 +780,10 @@ public class Table implements Iterable<Record>, Closeable {
   }
 
   private void validateRecordId(RecordId rid) throws DatabaseException {
-    int p = rid.getPageNum();
-    int e = rid.getEntryNum();
+    validateRecordId(rid.getPageNum(), rid.getEntryNum());
+  }
 
+  private void validateRecordId(int p, int e) throws DatabaseException {
     if (p == 0) {
       throw new DatabaseException("Page 0 is a header page, not a data page.");
     }
@@ -441,7 +807,7 @@ public class Table implements Iterable<Record>, Closeable {
   }
 
   public RecordIterator iterator() {
-      return new RecordIterator(this, ridIterator());
+      return new RecordIterator(this, (LongIterator) ridIterator());
   }
 
 
@@ -476,7 +842,11 @@ public class Table implements Iterable<Record>, Closeable {
   }
 
     /** An iterator over the record ids of a table. */
-  private class TableIterator implements Iterator<RecordId> {
+  /**
+   * Iterates over the record ids of the table, either as RecordIds or, with
+   * nextLong, encoded as longs (see RecordId.toLong).
+   */
+  private class TableIterator implements Iterator<RecordId>, LongIterator {
     private Iterator<Page> iter;
     private Page page = null;
     private byte[] bitmap = null;
@@ -494,6 +864,10 @@ public class Table implements Iterable<Record>, Closeable {
     }
 
     public RecordId next() {
+      return RecordId.fromLong(nextLong());
+    }
+
+    public long nextLong() {
       if (!hasNext()) {
         throw new NoSuchElementException();
       }
@@ -508,7 +882,7 @@ public class Table implements Iterable<Record>, Closeable {
 
         if (Bits.getBit(bitmap, entryNum) == Bits.Bit.ONE) {
           numRecordsReturned++;
-          return new RecordId(page.getPageNum(), (short) entryNum);
+          return RecordId.toLong(page.getPageNum(), (short) entryNum);
         }
       }
     }
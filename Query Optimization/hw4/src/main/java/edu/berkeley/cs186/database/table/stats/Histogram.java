@@ -3,6 +3,7 @@ package edu.berkeley.cs186.database.table.stats;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.query.QueryPlan.PredicateOperator;
@@ -271,6 +272,22 @@ public class Histogram {
   }
 
 
+  /**
+   * Same as filter(predicate, value), but for the predicate that the value
+   * is one of values. The equality filters of the distinct values are
+   * summed, capped at 1 per bucket.
+   */
+  public float[] filter(List<DataBox> values){
+    float [] result = new float[this.numBuckets];
+    for (DataBox value : new HashSet<DataBox>(values)) {
+      float [] equality = allEquality(quantization(value));
+      for (int i=0; i<this.numBuckets; i++)
+        result[i] = Math.min(1.0f, result[i] + equality[i]);
+    }
+    return result;
+  }
+
+
   /** Given, we don't handle non equality comparisons of strings. Return 1*/
   private float [] stringNonEquality(float qvalue){
     float [] result = new float[this.numBuckets];
@@ -419,8 +436,15 @@ public class Histogram {
    * of the values are greater than or equal to 25.
    */
   public float computeReductionFactor(PredicateOperator predicate, DataBox value){
+    return computeReductionFactor(filter(predicate, value));
+  }
+
+  /** Same as computeReductionFactor(predicate, value), but for an IN predicate (see filter(values)). */
+  public float computeReductionFactor(List<DataBox> values){
+    return computeReductionFactor(filter(values));
+  }
 
-    float [] reduction = filter(predicate, value);
+  private float computeReductionFactor(float [] reduction){
 
     float sum = 0.0f;
     int total = 0;
@@ -454,8 +478,16 @@ public class Histogram {
    *               0    0    0    0    0
    */
   public Histogram copyWithPredicate(PredicateOperator predicate, DataBox value){
+    return copyWithFilter(filter(predicate, value));
+  }
+
+  /** Same as copyWithPredicate(predicate, value), but for an IN predicate (see filter(values)). */
+  public Histogram copyWithPredicate(List<DataBox> values){
+    return copyWithFilter(filter(values));
+  }
+
+  private Histogram copyWithFilter(float [] reduction){
 
-    float [] reduction = filter(predicate, value);
     Bucket<Float> [] newBuckets = this.buckets.clone();
 
     for (int i=0; i< this.numBuckets; i++){
@@ -162,11 +162,45 @@ public class TableStats {
                                       PredicateOperator predicate,
                                       DataBox d) {
     float reductionFactor = histograms.get(column).computeReductionFactor(predicate, d);
+    return copyWithReduction(column, histograms.get(column).copyWithPredicate(predicate, d),
+                             reductionFactor);
+  }
+
+  /**
+   * Same as copyWithPredicate(column, predicate, d), but for the predicate
+   * that column `column` is one of values.
+   */
+  public TableStats copyWithPredicate(int column, List<DataBox> values) {
+    float reductionFactor = histograms.get(column).computeReductionFactor(values);
+    return copyWithReduction(column, histograms.get(column).copyWithPredicate(values),
+                             reductionFactor);
+  }
+
+  /**
+   * Estimates the table statistics for the table that would be produced by a
+   * filter that keeps a fraction `reductionFactor` of the records, regardless
+   * of the values of any one column, e.g. a disjunction of predicates on
+   * several columns whose number of matching records is known.
+   */
+  public TableStats copyWithReduction(float reductionFactor) {
+    List<Histogram> copyHistograms = new ArrayList<>();
+    for (Histogram histogram : histograms) {
+      copyHistograms.add(histogram.copyWithReduction(reductionFactor));
+    }
+    int numRecords = Math.round(reductionFactor * this.numRecords);
+    return new TableStats(this.tableSchema, numRecords, copyHistograms);
+  }
+
+  /**
+   * Returns these statistics with the histogram of column `column` replaced
+   * by filtered, and every other histogram reduced by reductionFactor.
+   */
+  private TableStats copyWithReduction(int column, Histogram filtered, float reductionFactor) {
     List<Histogram> copyHistograms = new ArrayList<>();
     for (int j = 0; j < histograms.size(); ++j) {
       Histogram histogram = histograms.get(j);
       if (column == j) {
-        copyHistograms.add(histogram.copyWithPredicate(predicate, d));
+        copyHistograms.add(filtered);
       } else {
         copyHistograms.add(histogram.copyWithReduction(reductionFactor));
       }
@@ -177,6 +211,25 @@ public class TableStats {
     return new TableStats(this.tableSchema, numRecords, copyHistograms);
   }
 
+  /**
+   * Estimates the table statistics for the table that would be produced by
+   * keeping only the columns at positions `columns`, in that order. The
+   * number of records is unchanged, but fewer records fit on a page.
+   */
+  public TableStats copyWithProjection(List<Integer> columns) {
+    List<String> fieldNames = new ArrayList<>();
+    List<Type> fieldTypes = new ArrayList<>();
+    List<Histogram> copyHistograms = new ArrayList<>();
+    for (int i : columns) {
+      fieldNames.add(tableSchema.getFieldNames().get(i));
+      fieldTypes.add(tableSchema.getFieldTypes().get(i));
+      if (i < histograms.size()) {
+        copyHistograms.add(histograms.get(i));
+      }
+    }
+    return new TableStats(new Schema(fieldNames, fieldTypes), numRecords, copyHistograms);
+  }
+
   /**
    * Creates a new TableStats which is the statistics for the table
    * that results from this TableStats joined with the given TableStats.
@@ -4,6 +4,17 @@ import edu.berkeley.cs186.database.Database;
 import edu.berkeley.cs186.database.TestUtils;
 import edu.berkeley.cs186.database.table.*;
 import edu.berkeley.cs186.database.databox.*;
+import edu.berkeley.cs186.database.common.LongIterator;
+import edu.berkeley.cs186.database.index.BPlusTree;
+import edu.berkeley.cs186.database.index.HashIndex;
+import edu.berkeley.cs186.database.index.IndexStats;
+import edu.berkeley.cs186.database.index.RoaringBitmap;
+import edu.berkeley.cs186.database.query.BitmapIndexScanOperator;
+import edu.berkeley.cs186.database.query.IndexScanOperator;
+import edu.berkeley.cs186.database.query.QueryOperator;
+import edu.berkeley.cs186.database.query.QueryPlan;
+import edu.berkeley.cs186.database.query.QueryPlan.PredicateOperator;
+import edu.berkeley.cs186.database.query.QueryPlanException;
 
 import org.junit.After;
 import org.junit.Before;
@@ -19,7 +30,11 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.Optional;
+import java.util.Random;
 
 public class TestDatabase {
   public static final String TestDir = "testDatabase";
@@ -181,4 +196,785 @@ public class TestDatabase {
 
     assertEquals(table.getNumRecords(),200);
   }
+
+  @Test
+  public void testVacuum() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    String tableName = "testTable1";
+    db.createTableWithIndices(s, tableName, Arrays.asList("int"));
+
+    Database.Transaction t1 = db.beginTransaction();
+    List<RecordId> rids = new ArrayList<RecordId>();
+    for (int i = 0; i < 2000; i++) {
+      rids.add(t1.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(i).getValues()));
+    }
+    int numPagesBefore = t1.getNumDataPages(tableName);
+
+    // Delete three of every four records, leaving every page sparse.
+    for (int i = 0; i < 2000; i++) {
+      if (i % 4 != 0) {
+        t1.deleteRecord(tableName, rids.get(i));
+      }
+    }
+    assertEquals(numPagesBefore, t1.getNumDataPages(tableName));
+
+    // A step whose indexes can't be updated moves its records back.
+    try {
+      db.getTable(tableName).compact(3, moves -> {
+        throw new DatabaseException("Can't update the indexes.");
+      });
+      fail();
+    } catch (DatabaseException e) {
+      // The step is undone.
+    }
+    assertEquals(numPagesBefore, t1.getNumDataPages(tableName));
+    for (int i = 0; i < 2000; i += 4) {
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(i),
+                   t1.getRecord(tableName, rids.get(i)));
+    }
+    assertEquals(500, t1.getNumRecords(tableName));
+
+    // A bounded step frees at most one page.
+    assertEquals(1, db.vacuum(tableName, 1));
+    assertEquals(numPagesBefore - 1, t1.getNumDataPages(tableName));
+
+    Database.VacuumWorker worker = db.createVacuumWorker(tableName, 1, 0);
+    worker.run();
+    assertNull(worker.getError());
+    assertEquals(0, db.vacuum(tableName, 1));
+
+    int perPage = t1.getNumEntriesPerPage(tableName);
+    assertEquals((500 + perPage - 1) / perPage, t1.getNumDataPages(tableName));
+    assertEquals(numPagesBefore - 1 - worker.getNumPagesFreed(), t1.getNumDataPages(tableName));
+    assertEquals(500, t1.getNumRecords(tableName));
+
+    // Every surviving record is still reachable through the heap and the index.
+    int count = 0;
+    Iterator<Record> iter = t1.getRecordIterator(tableName);
+    while (iter.hasNext()) {
+      assertEquals(0, iter.next().getValues().get(1).getInt() % 4);
+      count++;
+    }
+    assertEquals(500, count);
+    for (int i = 0; i < 2000; i += 4) {
+      Iterator<Record> matches = t1.lookupKey(tableName, "int", new IntDataBox(i));
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(i), matches.next());
+      assertFalse(matches.hasNext());
+    }
+    t1.end();
+  }
+
+  @Test
+  public void testVacuumDuringWrites() throws DatabaseException, InterruptedException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    String tableName = "testTable1";
+    db.createTableWithIndices(s, tableName, Arrays.asList("int"));
+    db.createHashIndex(tableName, "float");
+
+    Database.Transaction t1 = db.beginTransaction();
+    List<RecordId> rids = new ArrayList<RecordId>();
+    for (int i = 0; i < 2000; i++) {
+      rids.add(t1.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(i).getValues()));
+    }
+    for (int i = 0; i < 2000; i++) {
+      if (i % 4 != 0) {
+        t1.deleteRecord(tableName, rids.get(i));
+      }
+    }
+
+    // Records are added while the table is vacuumed. Each one and its index
+    // entries are written under the table lock, so no step moves a record
+    // whose entries are not in the indexes yet.
+    Database.VacuumWorker worker = db.createVacuumWorker(tableName, 1, 0);
+    Thread vacuum = new Thread(worker);
+    vacuum.start();
+    for (int i = 2000; i < 3000; i++) {
+      t1.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+    }
+    vacuum.join();
+    assertNull(worker.getError());
+    db.vacuum(tableName, Integer.MAX_VALUE);
+
+    for (int i = 0; i < 3000; i++) {
+      if (i < 2000 && i % 4 != 0) {
+        continue;
+      }
+      Record expected = TestUtils.createRecordWithAllTypesWithValue(i);
+      Iterator<Record> matches = t1.lookupKey(tableName, "int", new IntDataBox(i));
+      assertEquals(expected, matches.next());
+      assertFalse(matches.hasNext());
+      matches = t1.hashLookup(tableName, "float", new FloatDataBox(i));
+      assertEquals(expected, matches.next());
+      assertFalse(matches.hasNext());
+    }
+    t1.end();
+  }
+
+  @Test
+  public void testCreateIndex() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    String tableName = "testTable1";
+    db.createTable(s, tableName);
+
+    // Insert keys out of order, enough of them that the sort spills runs.
+    Database.Transaction t1 = db.beginTransaction();
+    for (int i = 0; i < 5000; i++) {
+      int key = (i * 7919) % 5000;
+      t1.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(key).getValues());
+    }
+    assertFalse(t1.indexExists(tableName, "int"));
+    t1.end();
+
+    db.createIndex(tableName, "int", 0.5f);
+
+    Database.Transaction t2 = db.beginTransaction();
+    assertTrue(t2.indexExists(tableName, "int"));
+    Iterator<Record> iter = t2.sortedScan(tableName, "int");
+    for (int i = 0; i < 5000; i++) {
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(i), iter.next());
+    }
+    assertFalse(iter.hasNext());
+
+    // The index is maintained like any other.
+    t2.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(5000).getValues());
+    Iterator<Record> matches = t2.lookupKey(tableName, "int", new IntDataBox(5000));
+    assertEquals(TestUtils.createRecordWithAllTypesWithValue(5000), matches.next());
+    t2.end();
+
+    try {
+      db.createIndex(tableName, "int");
+      fail();
+    } catch (DatabaseException e) {
+      // The index already exists.
+    }
+    try {
+      // Every record has the same bool, so the keys are not unique.
+      db.createIndex(tableName, "bool");
+      fail();
+    } catch (DatabaseException e) {
+      Database.Transaction t3 = db.beginTransaction();
+      assertFalse(t3.indexExists(tableName, "bool"));
+      t3.end();
+      // The half-built index is closed and its file deleted.
+      assertFalse(new File(filename, tableName + ",bool" + BPlusTree.FILENAME_EXTENSION).exists());
+    }
+  }
+
+  @Test
+  public void testCoveringIndex() throws DatabaseException, QueryPlanException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    String tableName = "testTable1";
+    db.createTable(s, tableName);
+
+    Database.Transaction t1 = db.beginTransaction();
+    for (int i = 0; i < 100; i++) {
+      t1.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+    }
+    t1.end();
+
+    db.createIndex(tableName, "int", Arrays.asList("string"));
+
+    Database.Transaction t2 = db.beginTransaction();
+    assertEquals(Arrays.asList("string"), t2.getIncludedColumns(tableName, "int"));
+
+    // Records added and updated after the index is built are covered too.
+    t2.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(100).getValues());
+    RecordId rid = t2.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(101).getValues());
+    List<DataBox> updated = TestUtils.createRecordWithAllTypesWithValue(101).getValues();
+    updated.set(2, new StringDataBox("upd", 5));
+    t2.updateRecord(tableName, updated, rid);
+
+    Iterator<Record> iter = t2.coveringScanRange(tableName, "int",
+        Optional.of(new IntDataBox(90)), true, Optional.empty(), true, false);
+    for (int i = 90; i <= 100; i++) {
+      Record r = TestUtils.createRecordWithAllTypesWithValue(i);
+      List<DataBox> values = r.getValues();
+      assertEquals(new Record(Arrays.asList(values.get(1), values.get(2))), iter.next());
+    }
+    assertEquals(new Record(Arrays.asList(new IntDataBox(101), new StringDataBox("upd", 5))),
+                 iter.next());
+    assertFalse(iter.hasNext());
+
+    // A query that reads only covered columns is answered by an index-only
+    // scan.
+    db.getTable(tableName).buildStatistics(10);
+    QueryPlan query = t2.query(tableName);
+    query.select("int", PredicateOperator.GREATER_THAN_EQUALS, new IntDataBox(95));
+    query.project(Arrays.asList("string", "int"));
+    iter = query.execute();
+    for (int i = 95; i <= 100; i++) {
+      List<DataBox> values = TestUtils.createRecordWithAllTypesWithValue(i).getValues();
+      assertEquals(new Record(Arrays.asList(values.get(2), values.get(1))), iter.next());
+    }
+    assertEquals(new Record(Arrays.asList(new StringDataBox("upd", 5), new IntDataBox(101))),
+                 iter.next());
+    assertFalse(iter.hasNext());
+    QueryOperator scan = query.getFinalOperator().getSource();
+    assertTrue(scan.isIndexScan());
+    assertTrue(((IndexScanOperator) scan).isIndexOnly());
+
+    // A query that reads an uncovered column has to read the table.
+    query = t2.query(tableName);
+    query.select("int", PredicateOperator.EQUALS, new IntDataBox(7));
+    query.project(Arrays.asList("string", "float"));
+    iter = query.execute();
+    List<DataBox> values = TestUtils.createRecordWithAllTypesWithValue(7).getValues();
+    assertEquals(new Record(Arrays.asList(values.get(2), values.get(3))), iter.next());
+    assertFalse(iter.hasNext());
+    scan = query.getFinalOperator().getSource();
+    assertFalse(((IndexScanOperator) scan).isIndexOnly());
+    t2.end();
+
+    // An index that covers every column answers SELECT * with an index-only
+    // scan, which returns the columns in the order of the table's schema.
+    String coveredTableName = "testTable2";
+    db.createTable(s, coveredTableName);
+    Database.Transaction t3 = db.beginTransaction();
+    for (int i = 0; i < 100; i++) {
+      t3.addRecord(coveredTableName, TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+    }
+    t3.end();
+    db.createIndex(coveredTableName, "int", Arrays.asList("bool", "string", "float"));
+    db.getTable(coveredTableName).buildStatistics(10);
+
+    Database.Transaction t4 = db.beginTransaction();
+    query = t4.query(coveredTableName);
+    query.select("int", PredicateOperator.GREATER_THAN_EQUALS, new IntDataBox(98));
+    iter = query.execute();
+    assertEquals(TestUtils.createRecordWithAllTypesWithValue(98), iter.next());
+    assertEquals(TestUtils.createRecordWithAllTypesWithValue(99), iter.next());
+    assertFalse(iter.hasNext());
+    scan = query.getFinalOperator();
+    while (!scan.isIndexScan()) {
+      scan = scan.getSource();
+    }
+    assertTrue(((IndexScanOperator) scan).isIndexOnly());
+    t4.end();
+  }
+
+  @Test
+  public void testCompositeIndex() throws DatabaseException, QueryPlanException {
+    Schema s = new Schema(Arrays.asList("year", "team", "wins"),
+                          Arrays.asList(Type.intType(), Type.stringType(3), Type.intType()));
+    String tableName = "testTable1";
+    db.createTable(s, tableName);
+
+    Database.Transaction t1 = db.beginTransaction();
+    for (int year = 1950; year < 2050; year++) {
+      for (int team = 0; team < 20; team++) {
+        t1.addRecord(tableName, Arrays.asList(new IntDataBox(year), teamName(team),
+                                              new IntDataBox(year + team)));
+      }
+    }
+    t1.end();
+
+    List<String> columns = Arrays.asList("year", "team");
+    db.createIndex(tableName, columns, Arrays.asList("wins"));
+
+    Database.Transaction t2 = db.beginTransaction();
+    assertTrue(t2.indexExists(tableName, columns));
+    assertFalse(t2.indexExists(tableName, "year"));
+    assertEquals(Arrays.asList(columns), t2.getCompositeIndexes(tableName));
+
+    // The records of 2004 whose team is at least T15.
+    Iterator<Record> iter = t2.sortedScanPrefix(tableName, columns,
+        Arrays.asList(new IntDataBox(2004)), Optional.of(teamName(15)), true,
+        Optional.empty(), true);
+    for (int team = 15; team < 20; team++) {
+      assertEquals(new Record(Arrays.asList(new IntDataBox(2004), teamName(team),
+                                            new IntDataBox(2004 + team))), iter.next());
+    }
+    assertFalse(iter.hasNext());
+
+    // The index is maintained like any other.
+    RecordId rid = t2.addRecord(tableName, Arrays.asList(new IntDataBox(2004), teamName(20),
+                                                         new IntDataBox(0)));
+    t2.updateRecord(tableName, Arrays.asList(new IntDataBox(2004), teamName(21),
+                                             new IntDataBox(1)), rid);
+    iter = t2.coveringScanPrefix(tableName, columns, Arrays.asList(new IntDataBox(2004)),
+                                 Optional.of(teamName(19)), false, Optional.empty(), true);
+    assertEquals(new Record(Arrays.asList(new IntDataBox(2004), teamName(21),
+                                          new IntDataBox(1))), iter.next());
+    assertFalse(iter.hasNext());
+    t2.deleteRecord(tableName, rid);
+    iter = t2.sortedScanPrefix(tableName, columns, Arrays.asList(new IntDataBox(2004)),
+                               Optional.of(teamName(19)), false, Optional.empty(), true);
+    assertFalse(iter.hasNext());
+
+    // Equality predicates on both columns are answered by a single lookup.
+    db.getTable(tableName).buildStatistics(10);
+    QueryPlan query = t2.query(tableName);
+    query.select("year", PredicateOperator.EQUALS, new IntDataBox(2004));
+    query.select("team", PredicateOperator.EQUALS, teamName(7));
+    iter = query.executeOptimal();
+    assertEquals(new Record(Arrays.asList(new IntDataBox(2004), teamName(7),
+                                          new IntDataBox(2011))), iter.next());
+    assertFalse(iter.hasNext());
+    QueryOperator scan = accessOperator(query.getFinalOperator());
+    assertTrue(scan.isIndexScan());
+    assertTrue(((IndexScanOperator) scan).isComposite());
+
+    // An equality predicate on the first column and a range predicate on the
+    // second are answered by a single range scan, from the index alone if
+    // it covers the query.
+    query = t2.query(tableName);
+    query.select("team", PredicateOperator.LESS_THAN, teamName(3));
+    query.select("year", PredicateOperator.EQUALS, new IntDataBox(1999));
+    query.project(Arrays.asList("wins"));
+    iter = query.executeOptimal();
+    for (int team = 0; team < 3; team++) {
+      assertEquals(new Record(Arrays.asList(new IntDataBox(1999 + team))), iter.next());
+    }
+    assertFalse(iter.hasNext());
+    scan = accessOperator(query.getFinalOperator());
+    assertTrue(scan.isIndexScan());
+    assertTrue(((IndexScanOperator) scan).isComposite());
+    assertTrue(((IndexScanOperator) scan).isIndexOnly());
+    t2.end();
+
+    // The key and included columns of the index survive a reopen, so it is
+    // still maintained and still covers its included column.
+    db.close();
+    db = new Database(this.filename);
+    Database.Transaction t3 = db.beginTransaction();
+    assertTrue(t3.indexExists(tableName, columns));
+    assertEquals(Arrays.asList("wins"), t3.getIncludedColumns(tableName, columns));
+    rid = t3.addRecord(tableName, Arrays.asList(new IntDataBox(2004), teamName(20),
+                                                new IntDataBox(2)));
+    iter = t3.coveringScanPrefix(tableName, columns, Arrays.asList(new IntDataBox(2004)),
+                                 Optional.of(teamName(19)), false, Optional.empty(), true);
+    assertEquals(new Record(Arrays.asList(new IntDataBox(2004), teamName(20),
+                                          new IntDataBox(2))), iter.next());
+    assertFalse(iter.hasNext());
+    t3.deleteRecord(tableName, rid);
+    iter = t3.sortedScanPrefix(tableName, columns, Arrays.asList(new IntDataBox(2004)),
+                               Optional.of(teamName(19)), false, Optional.empty(), true);
+    assertFalse(iter.hasNext());
+    t3.end();
+  }
+
+  @Test
+  public void testHashIndex() throws DatabaseException, QueryPlanException {
+    Schema s = new Schema(Arrays.asList("id", "team"),
+                          Arrays.asList(Type.intType(), Type.stringType(3)));
+    String tableName = "testTable1";
+    db.createTable(s, tableName);
+
+    Database.Transaction t1 = db.beginTransaction();
+    for (int i = 0; i < 2000; i++) {
+      t1.addRecord(tableName, Arrays.asList(new IntDataBox(i), teamName(i % 20)));
+    }
+    t1.end();
+
+    db.createIndex(tableName, "id");
+    db.createHashIndex(tableName, "id");
+
+    Database.Transaction t2 = db.beginTransaction();
+    assertTrue(t2.hashIndexExists(tableName, "id"));
+    assertFalse(t2.hashIndexExists(tableName, "team"));
+    assertTrue(t2.contains(tableName, "id", new IntDataBox(1999)));
+    assertFalse(t2.contains(tableName, "id", new IntDataBox(2000)));
+    Iterator<Record> iter = t2.lookupKey(tableName, "id", new IntDataBox(42));
+    assertEquals(new Record(Arrays.asList(new IntDataBox(42), teamName(2))), iter.next());
+    assertFalse(iter.hasNext());
+
+    // The hash index is maintained like any other.
+    RecordId rid = t2.addRecord(tableName, Arrays.asList(new IntDataBox(2000), teamName(0)));
+    assertTrue(t2.contains(tableName, "id", new IntDataBox(2000)));
+    t2.updateRecord(tableName, Arrays.asList(new IntDataBox(2001), teamName(0)), rid);
+    assertFalse(t2.contains(tableName, "id", new IntDataBox(2000)));
+    assertTrue(t2.contains(tableName, "id", new IntDataBox(2001)));
+    t2.deleteRecord(tableName, rid);
+    assertFalse(t2.contains(tableName, "id", new IntDataBox(2001)));
+
+    // The optimizer prefers a hash lookup to a B+ tree scan for an equality
+    // predicate...
+    db.getTable(tableName).buildStatistics(10);
+    QueryPlan query = t2.query(tableName);
+    query.select("id", PredicateOperator.EQUALS, new IntDataBox(1234));
+    iter = query.executeOptimal();
+    assertEquals(new Record(Arrays.asList(new IntDataBox(1234), teamName(14))), iter.next());
+    assertFalse(iter.hasNext());
+    QueryOperator scan = accessOperator(query.getFinalOperator());
+    assertTrue(scan.isHashLookup());
+
+    // ...but cannot use the hash index for a range predicate.
+    query = t2.query(tableName);
+    query.select("id", PredicateOperator.LESS_THAN, new IntDataBox(3));
+    iter = query.executeOptimal();
+    for (int i = 0; i < 3; i++) {
+      assertEquals(new Record(Arrays.asList(new IntDataBox(i), teamName(i))), iter.next());
+    }
+    assertFalse(iter.hasNext());
+    scan = accessOperator(query.getFinalOperator());
+    assertFalse(scan.isHashLookup());
+    t2.end();
+
+    try {
+      db.createHashIndex(tableName, "team");
+      fail();
+    } catch (DatabaseException e) {
+      // The column contains duplicates, so the half-built index is closed and
+      // its file deleted.
+      assertFalse(new File(filename, tableName + ",team" + HashIndex.FILENAME_EXTENSION).exists());
+    }
+  }
+
+  @Test
+  public void testArtIndex() throws DatabaseException, QueryPlanException {
+    Schema s = new Schema(Arrays.asList("id", "team"),
+                          Arrays.asList(Type.intType(), Type.stringType(3)));
+    String tableName = "testTable1";
+    db.createTable(s, tableName);
+
+    Database.Transaction t1 = db.beginTransaction();
+    List<RecordId> rids = new ArrayList<RecordId>();
+    for (int i = 0; i < 2000; i++) {
+      rids.add(t1.addRecord(tableName, Arrays.asList(new IntDataBox(i), teamName(i % 20))));
+    }
+    t1.end();
+
+    db.createHashIndex(tableName, "id");
+    db.createArtIndex(tableName, "id");
+
+    Database.Transaction t2 = db.beginTransaction();
+    assertTrue(t2.artIndexExists(tableName, "id"));
+    assertFalse(t2.artIndexExists(tableName, "team"));
+    assertTrue(t2.contains(tableName, "id", new IntDataBox(1999)));
+    assertFalse(t2.contains(tableName, "id", new IntDataBox(2000)));
+    Iterator<Record> iter = t2.lookupKey(tableName, "id", new IntDataBox(42));
+    assertEquals(new Record(Arrays.asList(new IntDataBox(42), teamName(2))), iter.next());
+    assertFalse(iter.hasNext());
+
+    // The ART index is maintained like any other.
+    RecordId rid = t2.addRecord(tableName, Arrays.asList(new IntDataBox(2000), teamName(0)));
+    assertTrue(t2.contains(tableName, "id", new IntDataBox(2000)));
+    t2.updateRecord(tableName, Arrays.asList(new IntDataBox(2001), teamName(0)), rid);
+    assertFalse(t2.contains(tableName, "id", new IntDataBox(2000)));
+    assertTrue(t2.contains(tableName, "id", new IntDataBox(2001)));
+    t2.deleteRecord(tableName, rid);
+    assertFalse(t2.contains(tableName, "id", new IntDataBox(2001)));
+
+    // The optimizer prefers an ART lookup, which reads no index pages, to a
+    // hash lookup.
+    db.getTable(tableName).buildStatistics(10);
+    QueryPlan query = t2.query(tableName);
+    query.select("id", PredicateOperator.EQUALS, new IntDataBox(1734));
+    iter = query.executeOptimal();
+    assertEquals(new Record(Arrays.asList(new IntDataBox(1734), teamName(14))), iter.next());
+    assertFalse(iter.hasNext());
+    QueryOperator scan = accessOperator(query.getFinalOperator());
+    assertTrue(scan.isArtLookup());
+
+    // The index follows the records that vacuum moves.
+    for (int i = 0; i < 1500; i++) {
+      t2.deleteRecord(tableName, rids.get(i));
+    }
+    db.vacuum(tableName, Integer.MAX_VALUE);
+    iter = t2.lookupKey(tableName, "id", new IntDataBox(1999));
+    assertEquals(new Record(Arrays.asList(new IntDataBox(1999), teamName(19))), iter.next());
+    assertFalse(t2.contains(tableName, "id", new IntDataBox(0)));
+    t2.end();
+
+    // The index is rebuilt from the table when the database is reopened.
+    db.close();
+    db = new Database(this.filename);
+    Database.Transaction t3 = db.beginTransaction();
+    assertTrue(t3.artIndexExists(tableName, "id"));
+    iter = t3.lookupKey(tableName, "id", new IntDataBox(1500));
+    assertEquals(new Record(Arrays.asList(new IntDataBox(1500), teamName(0))), iter.next());
+    assertFalse(t3.contains(tableName, "id", new IntDataBox(1499)));
+    t3.end();
+
+    try {
+      db.createArtIndex(tableName, "team");
+      fail();
+    } catch (DatabaseException e) {
+      // The column contains duplicates.
+    }
+  }
+
+  @Test
+  public void testAnalyze() throws DatabaseException, QueryPlanException {
+    Schema s = new Schema(Arrays.asList("id", "rank"),
+                          Arrays.asList(Type.intType(), Type.intType()));
+    String tableName = "testTable1";
+    db.createTable(s, tableName);
+
+    // The records are stored in order of id, but in no particular order of
+    // rank.
+    List<Integer> ranks = new ArrayList<Integer>();
+    for (int i = 0; i < 2000; i++) {
+      ranks.add(i);
+    }
+    Collections.shuffle(ranks, new Random(50));
+    Database.Transaction t1 = db.beginTransaction();
+    for (int i = 0; i < 2000; i++) {
+      t1.addRecord(tableName, Arrays.asList(new IntDataBox(i), new IntDataBox(ranks.get(i))));
+    }
+    t1.end();
+    db.createIndex(tableName, "id");
+    db.createIndex(tableName, "rank");
+
+    db.analyze(tableName, 10);
+    Database.Transaction t2 = db.beginTransaction();
+    IndexStats idStats = t2.getIndexStats(tableName, "id");
+    IndexStats rankStats = t2.getIndexStats(tableName, "rank");
+    assertEquals(2000, idStats.getNumKeys());
+    assertEquals(t2.getNumDataPages(tableName), idStats.getClusteringFactor());
+    assertTrue(rankStats.getClusteringFactor() > 1000);
+
+    // A range of ids is read through the index, which reads only the pages
+    // that hold the range, but a range of ranks is read by a sequential scan,
+    // since the index would read about one page per record.
+    QueryPlan query = t2.query(tableName);
+    query.select("id", PredicateOperator.GREATER_THAN_EQUALS, new IntDataBox(1800));
+    Iterator<Record> iter = query.executeOptimal();
+    int count = 0;
+    while (iter.hasNext()) {
+      assertTrue(iter.next().getValues().get(0).getInt() >= 1800);
+      count++;
+    }
+    assertEquals(200, count);
+    assertTrue(accessOperator(query.getFinalOperator()).isIndexScan());
+
+    query = t2.query(tableName);
+    query.select("rank", PredicateOperator.GREATER_THAN_EQUALS, new IntDataBox(1800));
+    query.executeOptimal();
+    assertFalse(accessOperator(query.getFinalOperator()).isIndexScan());
+    t2.end();
+  }
+
+  @Test
+  public void testBloomFilter() throws DatabaseException, QueryPlanException {
+    Schema s = new Schema(Arrays.asList("id", "team"),
+                          Arrays.asList(Type.intType(), Type.stringType(3)));
+    String tableName = "testTable1";
+    db.createTable(s, tableName);
+
+    Database.Transaction t1 = db.beginTransaction();
+    List<RecordId> rids = new ArrayList<RecordId>();
+    for (int i = 0; i < 2000; i++) {
+      rids.add(t1.addRecord(tableName, Arrays.asList(new IntDataBox(i), teamName(i % 20))));
+    }
+    t1.end();
+
+    db.createHashIndex(tableName, "id");
+    db.createBloomFilter(tableName, "id");
+    db.createBloomFilter(tableName, "team");
+
+    Database.Transaction t2 = db.beginTransaction();
+    assertTrue(t2.bloomFilterExists(tableName, "team"));
+    assertTrue(t2.bloomFilterExists(tableName, tableName + ".id"));
+    assertTrue(t2.mightContain(tableName, "team", teamName(19)));
+    assertFalse(t2.mightContain(tableName, "team", teamName(20)));
+    assertFalse(t2.contains(tableName, "id", new IntDataBox(-1)));
+    assertFalse(t2.lookupKey(tableName, "id", new IntDataBox(-1)).hasNext());
+    Iterator<Record> iter = t2.lookupKey(tableName, "id", new IntDataBox(42));
+    assertEquals(new Record(Arrays.asList(new IntDataBox(42), teamName(2))), iter.next());
+    assertFalse(iter.hasNext());
+
+    // Equality selects over a scan skip the scan for values the filter
+    // rules out, and still find the values it doesn't.
+    db.getTable(tableName).buildStatistics(10);
+    QueryPlan query = t2.query(tableName);
+    query.select("team", PredicateOperator.EQUALS, teamName(20));
+    assertFalse(query.execute().hasNext());
+    query = t2.query(tableName);
+    query.select("team", PredicateOperator.EQUALS, teamName(7));
+    iter = query.execute();
+    int count = 0;
+    while (iter.hasNext()) {
+      assertEquals(teamName(7), iter.next().getValues().get(1));
+      count++;
+    }
+    assertEquals(100, count);
+
+    // Added and updated values are added to the filter...
+    RecordId rid = t2.addRecord(tableName, Arrays.asList(new IntDataBox(2000), teamName(20)));
+    assertTrue(t2.mightContain(tableName, "team", teamName(20)));
+    t2.updateRecord(tableName, Arrays.asList(new IntDataBox(2000), teamName(21)), rid);
+    assertTrue(t2.mightContain(tableName, "team", teamName(21)));
+
+    // ...but removed ones stay in it until vacuum rebuilds it.
+    t2.deleteRecord(tableName, rid);
+    for (int i = 5; i < 2000; i += 20) {
+      t2.deleteRecord(tableName, rids.get(i));
+    }
+    assertTrue(t2.mightContain(tableName, "team", teamName(5)));
+    assertTrue(t2.mightContain(tableName, "team", teamName(21)));
+    db.vacuum(tableName, Integer.MAX_VALUE);
+    assertFalse(t2.mightContain(tableName, "team", teamName(5)));
+    assertFalse(t2.mightContain(tableName, "team", teamName(20)));
+    assertFalse(t2.mightContain(tableName, "team", teamName(21)));
+    assertTrue(t2.mightContain(tableName, "team", teamName(6)));
+    t2.end();
+
+    // The filters are persisted next to the table.
+    db.close();
+    db = new Database(this.filename);
+    Database.Transaction t3 = db.beginTransaction();
+    assertTrue(t3.bloomFilterExists(tableName, "team"));
+    assertFalse(t3.mightContain(tableName, "team", teamName(5)));
+    assertTrue(t3.mightContain(tableName, "id", new IntDataBox(1999)));
+    try {
+      t3.mightContain(tableName, "team", new IntDataBox(5));
+      fail();
+    } catch (DatabaseException e) {
+      // The key is not of the column's type.
+    }
+    // A column without a filter rules nothing out, whatever the key.
+    assertTrue(t3.mightContain(tableName, "nonexistent", new IntDataBox(5)));
+    t3.end();
+
+    try {
+      db.createBloomFilter(tableName, "team");
+      fail();
+    } catch (DatabaseException e) {
+      // The filter already exists.
+    }
+    try {
+      db.createBloomFilter(tableName, "id2");
+      fail();
+    } catch (DatabaseException e) {
+      // The column does not exist.
+    }
+  }
+
+  @Test
+  public void testBitmapIndex() throws DatabaseException, QueryPlanException {
+    Schema s = new Schema(Arrays.asList("id", "team", "rookie"),
+                          Arrays.asList(Type.intType(), Type.stringType(3), Type.boolType()));
+    String tableName = "testTable1";
+    db.createTable(s, tableName);
+
+    Database.Transaction t1 = db.beginTransaction();
+    List<RecordId> rids = new ArrayList<RecordId>();
+    for (int i = 0; i < 2000; i++) {
+      rids.add(t1.addRecord(tableName, Arrays.asList(new IntDataBox(i), teamName(i % 20),
+                                                     new BoolDataBox(i < 200))));
+    }
+    t1.end();
+
+    // Unlike the other indexes, a bitmap index holds duplicates.
+    db.createBitmapIndex(tableName, "team");
+    db.createBitmapIndex(tableName, "rookie");
+
+    Database.Transaction t2 = db.beginTransaction();
+    assertTrue(t2.bitmapIndexExists(tableName, "team"));
+    assertFalse(t2.bitmapIndexExists(tableName, "id"));
+    assertEquals(100, t2.bitmapLookup(tableName, "team", teamName(3)).getCardinality());
+    assertEquals(200, t2.bitmapLookup(tableName, "rookie", new BoolDataBox(true)).getCardinality());
+
+    // The optimizer answers the predicates on both columns with one bitmap
+    // index scan, which reads only the pages of the rookies.
+    db.getTable(tableName).buildStatistics(10);
+    QueryPlan query = t2.query(tableName);
+    query.select("team", Arrays.<DataBox>asList(teamName(1), teamName(3)));
+    query.select("rookie", PredicateOperator.EQUALS, new BoolDataBox(true));
+    Iterator<Record> iter = query.executeOptimal();
+    List<Record> expected = new ArrayList<Record>();
+    for (int i = 0; i < 200; i++) {
+      if (i % 20 == 1 || i % 20 == 3) {
+        expected.add(new Record(Arrays.asList(new IntDataBox(i), teamName(i % 20),
+                                              new BoolDataBox(true))));
+      }
+    }
+    List<Record> actual = new ArrayList<Record>();
+    while (iter.hasNext()) {
+      actual.add(iter.next());
+    }
+    assertEquals(expected, actual);
+    QueryOperator scan = accessOperator(query.getFinalOperator());
+    assertTrue(scan.isBitmapIndexScan());
+    // The scan answers both predicates, so no SELECT is pushed down onto it.
+    assertTrue(query.minCostSingleAccess(tableName).isBitmapIndexScan());
+
+    // NOT_EQUALS and range predicates combine with the rest.
+    QueryOperator op = new BitmapIndexScanOperator(
+        t2, tableName, Arrays.asList("team", "team", "rookie"),
+        Arrays.asList(PredicateOperator.NOT_EQUALS, PredicateOperator.LESS_THAN,
+                      PredicateOperator.EQUALS),
+        Arrays.asList(teamName(0), teamName(2), new BoolDataBox(false)),
+        Arrays.<List<DataBox>>asList(null, null, null));
+    iter = op.iterator();
+    for (int i = 200; i < 2000; i++) {
+      if (i % 20 == 1) {
+        assertEquals(new Record(Arrays.asList(new IntDataBox(i), teamName(1),
+                                              new BoolDataBox(false))), iter.next());
+      }
+    }
+    assertFalse(iter.hasNext());
+
+    // So do disjunctions, which the optimizer doesn't plan.
+    op = new BitmapIndexScanOperator(
+        t2, tableName, BitmapIndexScanOperator.Connective.OR, Arrays.asList("team", "rookie"),
+        Arrays.asList(PredicateOperator.EQUALS, PredicateOperator.EQUALS),
+        Arrays.asList(teamName(5), new BoolDataBox(true)),
+        Arrays.<List<DataBox>>asList(null, null));
+    assertEquals(290, op.getStats().getNumRecords());
+    iter = op.iterator();
+    for (int i = 0; i < 2000; i++) {
+      if (i < 200 || i % 20 == 5) {
+        assertEquals(new Record(Arrays.asList(new IntDataBox(i), teamName(i % 20),
+                                              new BoolDataBox(i < 200))), iter.next());
+      }
+    }
+    assertFalse(iter.hasNext());
+
+    // The bitmap index is maintained like any other.
+    RecordId rid = t2.addRecord(tableName, Arrays.asList(new IntDataBox(2000), teamName(3),
+                                                         new BoolDataBox(true)));
+    assertTrue(t2.bitmapLookup(tableName, "team", teamName(3)).contains(rid));
+    t2.updateRecord(tableName, Arrays.asList(new IntDataBox(2000), teamName(4),
+                                             new BoolDataBox(true)), rid);
+    assertFalse(t2.bitmapLookup(tableName, "team", teamName(3)).contains(rid));
+    assertTrue(t2.bitmapLookup(tableName, "team", teamName(4)).contains(rid));
+    t2.deleteRecord(tableName, rid);
+    assertFalse(t2.bitmapLookup(tableName, "team", teamName(4)).contains(rid));
+    assertEquals(2000, t2.bitmapScan(tableName, "team", v -> true).getCardinality());
+
+    // The index follows the records that vacuum moves.
+    for (int i = 0; i < 1500; i++) {
+      t2.deleteRecord(tableName, rids.get(i));
+    }
+    db.vacuum(tableName, Integer.MAX_VALUE);
+    RoaringBitmap team19 = t2.bitmapLookup(tableName, "team", teamName(19));
+    assertEquals(25, team19.getCardinality());
+    LongIterator team19Rids = team19.iterator();
+    while (team19Rids.hasNext()) {
+      assertEquals(teamName(19), t2.getRecord(tableName, RecordId.fromLong(team19Rids.nextLong()))
+                                   .getValues().get(1));
+    }
+    assertTrue(t2.bitmapLookup(tableName, "rookie", new BoolDataBox(true)).isEmpty());
+    t2.end();
+
+    // The index is rebuilt from the table when the database is reopened.
+    db.close();
+    db = new Database(this.filename);
+    Database.Transaction t3 = db.beginTransaction();
+    assertTrue(t3.bitmapIndexExists(tableName, "team"));
+    assertEquals(25, t3.bitmapLookup(tableName, "team", teamName(0)).getCardinality());
+    assertEquals(500, t3.bitmapLookup(tableName, "rookie", new BoolDataBox(false)).getCardinality());
+    t3.end();
+
+    try {
+      db.createBitmapIndex(tableName, "team");
+      fail();
+    } catch (DatabaseException e) {
+      // The index already exists.
+    }
+  }
+
+  /** Returns the operator that reads the table at the bottom of a plan. */
+  private static QueryOperator accessOperator(QueryOperator op) throws QueryPlanException {
+    while (op.isSelect() || op.isProject()) {
+      op = op.getSource();
+    }
+    return op;
+  }
+
+  private static DataBox teamName(int team) {
+    return new StringDataBox(String.format("T%02d", team), 3);
+  }
 }
@@ -0,0 +1,72 @@
+package edu.berkeley.cs186.database.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestLongList {
+  @Test
+  public void testAddAndRemove() {
+    // A LongList behaves like an ArrayList<Long> through many inserts and
+    // removes, well past its initial capacity.
+    LongList list = new LongList(1);
+    List<Long> expected = new ArrayList<>();
+    Random random = new Random(51);
+    for (int i = 0; i < 1000; ++i) {
+      if (expected.isEmpty() || random.nextInt(3) > 0) {
+        int index = random.nextInt(expected.size() + 1);
+        list.add(index, i);
+        expected.add(index, (long) i);
+      } else {
+        int index = random.nextInt(expected.size());
+        assertEquals((long) expected.remove(index), list.remove(index));
+      }
+    }
+    assertEquals(expected.size(), list.size());
+    for (int i = 0; i < expected.size(); ++i) {
+      assertEquals((long) expected.get(i), list.get(i));
+    }
+  }
+
+  @Test
+  public void testCopies() {
+    LongList list = new LongList();
+    for (long i = 0; i < 10; ++i) {
+      list.add(i * i);
+    }
+    assertArrayEquals(new long[] {4, 9, 16}, list.toArray(2, 5));
+    LongList copy = list.copyOfRange(0, 10);
+    assertEquals(list, copy);
+    assertEquals(list.hashCode(), copy.hashCode());
+
+    // A copy is independent of the list it was copied from.
+    copy.set(0, -1);
+    assertEquals(0, list.get(0));
+    assertNotEquals(list, copy);
+
+    copy.addAll(list);
+    assertEquals(20, copy.size());
+    assertEquals(81, copy.get(19));
+
+    LongIterator iter = list.copyOfRange(8, 10).iterator();
+    assertTrue(iter.hasNext());
+    assertEquals(64, iter.nextLong());
+    assertEquals(81, iter.nextLong());
+    assertFalse(iter.hasNext());
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testGetOutOfBounds() {
+    LongList list = new LongList();
+    list.add(1);
+    list.get(1);
+  }
+}
@@ -0,0 +1,71 @@
+package edu.berkeley.cs186.database.databox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class TestBytesDataBox {
+  @Test(expected = DataBoxException.class)
+  public void testEmptyBytes() {
+    new BytesDataBox(new byte[0]);
+  }
+
+  @Test
+  public void testType() {
+    assertEquals(Type.bytesType(3), new BytesDataBox(new byte[] {1, 2, 3}).type());
+  }
+
+  @Test(expected = DataBoxException.class)
+  public void testGetInt() {
+    new BytesDataBox(new byte[] {1}).getInt();
+  }
+
+  @Test(expected = DataBoxException.class)
+  public void testGetString() {
+    new BytesDataBox(new byte[] {1}).getString();
+  }
+
+  @Test
+  public void testGetBytes() {
+    byte[] bytes = {1, 2, 3};
+    BytesDataBox d = new BytesDataBox(bytes);
+    bytes[0] = 42;
+    assertArrayEquals(new byte[] {1, 2, 3}, d.getBytes());
+  }
+
+  @Test
+  public void testToAndFromBytes() {
+    BytesDataBox d = new BytesDataBox(new byte[] {0, (byte) 0xFF, 7});
+    byte[] bytes = d.toBytes();
+    assertEquals(d, DataBox.fromBytes(ByteBuffer.wrap(bytes), Type.bytesType(3)));
+    assertEquals(d, NormalizedKey.decode(ByteBuffer.wrap(NormalizedKey.encode(d)),
+                                         Type.bytesType(3)));
+  }
+
+  @Test
+  public void testEquals() {
+    BytesDataBox a = new BytesDataBox(new byte[] {1, 2});
+    BytesDataBox b = new BytesDataBox(new byte[] {1, 3});
+    assertEquals(a, a);
+    assertEquals(a, new BytesDataBox(new byte[] {1, 2}));
+    assertEquals(a.hashCode(), new BytesDataBox(new byte[] {1, 2}).hashCode());
+    assertNotEquals(a, b);
+    assertNotEquals(b, a);
+  }
+
+  @Test
+  public void testCompareTo() {
+    // Bytes are compared as unsigned bytes, so 0xFF is the largest byte.
+    BytesDataBox a = new BytesDataBox(new byte[] {1, 2});
+    BytesDataBox b = new BytesDataBox(new byte[] {1, (byte) 0xFF});
+    assertTrue(a.compareTo(a) == 0);
+    assertTrue(a.compareTo(b) < 0);
+    assertTrue(b.compareTo(b) == 0);
+    assertTrue(b.compareTo(a) > 0);
+  }
+}
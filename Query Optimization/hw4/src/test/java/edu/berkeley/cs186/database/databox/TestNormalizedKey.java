@@ -0,0 +1,111 @@
+package edu.berkeley.cs186.database.databox;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestNormalizedKey {
+  private static int signum(int x) {
+    return Integer.signum(x);
+  }
+
+  private static void checkOrder(List<DataBox> boxes) {
+    for (DataBox a : boxes) {
+      byte[] aKey = NormalizedKey.encode(a);
+      assertEquals(a.type().getSizeInBytes(), aKey.length);
+      // compareTo rather than equals, since NaN != NaN.
+      assertEquals(0, a.compareTo(NormalizedKey.decode(ByteBuffer.wrap(aKey), a.type())));
+      for (DataBox b : boxes) {
+        byte[] bKey = NormalizedKey.encode(b);
+        assertEquals(signum(a.compareTo(b)), signum(NormalizedKey.compare(aKey, bKey)));
+      }
+    }
+  }
+
+  @Test
+  public void testBool() {
+    checkOrder(Arrays.asList(new BoolDataBox(false), new BoolDataBox(true)));
+  }
+
+  @Test
+  public void testInt() {
+    List<DataBox> boxes = new ArrayList<DataBox>();
+    int[] ints = {Integer.MIN_VALUE, -1000, -1, 0, 1, 255, 256, 1000, Integer.MAX_VALUE};
+    for (int i : ints) {
+      boxes.add(new IntDataBox(i));
+    }
+    checkOrder(boxes);
+  }
+
+  @Test
+  public void testFloat() {
+    List<DataBox> boxes = new ArrayList<DataBox>();
+    float[] floats = {Float.NEGATIVE_INFINITY, -Float.MAX_VALUE, -1.5f, -Float.MIN_VALUE,
+                      -0.0f, 0.0f, Float.MIN_VALUE, 1.5f, Float.MAX_VALUE,
+                      Float.POSITIVE_INFINITY, Float.NaN};
+    for (float f : floats) {
+      boxes.add(new FloatDataBox(f));
+    }
+    checkOrder(boxes);
+  }
+
+  @Test
+  public void testString() {
+    List<DataBox> boxes = new ArrayList<DataBox>();
+    String[] strings = {"", "a", "a b", "aa", "ab", "abcdefghij", "b", "Z", "0"};
+    for (String s : strings) {
+      boxes.add(new StringDataBox(s, 10));
+    }
+    checkOrder(boxes);
+  }
+
+  @Test
+  public void testComposite() {
+    List<List<DataBox>> keys = new ArrayList<List<DataBox>>();
+    for (int i = -2; i <= 2; ++i) {
+      for (String s : new String[] {"a", "ab", "b"}) {
+        keys.add(Arrays.asList(new IntDataBox(i), new StringDataBox(s, 3)));
+      }
+    }
+
+    for (int i = 0; i < keys.size(); ++i) {
+      for (int j = 0; j < keys.size(); ++j) {
+        byte[] a = NormalizedKey.encode(keys.get(i));
+        byte[] b = NormalizedKey.encode(keys.get(j));
+        assertEquals(7, a.length);
+        assertEquals(signum(Integer.compare(i, j)), signum(NormalizedKey.compare(a, b)));
+      }
+    }
+  }
+
+  @Test
+  public void testCompareRanges() {
+    byte[] a = {9, 9, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+    byte[] b = {1, 2, 3, 4, 5, 6, 7, 8, 9, 11};
+    assertEquals(0, NormalizedKey.compare(a, 2, b, 0, 9));
+    assertEquals(-1, signum(NormalizedKey.compare(a, 2, b, 0, 10)));
+    assertEquals(1, signum(NormalizedKey.compare(new byte[] {(byte) 0x80}, new byte[] {0x7F})));
+    assertEquals(-1, signum(NormalizedKey.compare(new byte[] {1}, new byte[] {1, 0})));
+  }
+
+  @Test
+  public void testCompareInBuffer() {
+    // A direct buffer has no backing array, like the buffer of a page.
+    ByteBuffer buf = ByteBuffer.allocateDirect(12);
+    buf.put(new byte[] {9, 9, 1, 2, 3, 4, 5, 6, 7, 8, 9, (byte) 0x80});
+    assertEquals(0, NormalizedKey.compare(buf, 2, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, (byte) 0x80}));
+    assertEquals(-1, signum(NormalizedKey.compare(buf, 2, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, (byte) 0x81})));
+    assertEquals(1, signum(NormalizedKey.compare(buf, 2, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 0x7F})));
+    assertEquals(1, signum(NormalizedKey.compare(buf, 0, new byte[] {9, 9, 1, 2, 3, 4, 5, 6, 7, 7})));
+
+    byte[] a = NormalizedKey.encode(new FloatDataBox(-2.5f));
+    byte[] b = NormalizedKey.encode(new FloatDataBox(1.5f));
+    assertEquals(-1, signum(NormalizedKey.compare(ByteBuffer.wrap(a), 0, b)));
+    assertEquals(1, signum(NormalizedKey.compare(ByteBuffer.wrap(b), 0, a)));
+  }
+}
@@ -92,4 +92,24 @@ public class TestStringDataBox {
     assertTrue(zoo.compareTo(zoo) == 0);
     assertTrue(zoo.compareTo(foo) > 0);
   }
+
+  @Test
+  public void testDecodedStringsMatchConstructedStrings() {
+    for (String s : new String[]{"a", "foo", "foo b", "Zz9"}) {
+      StringDataBox d = new StringDataBox(s, 5);
+      DataBox decoded = DataBox.fromBytes(ByteBuffer.wrap(d.toBytes()), Type.stringType(5));
+      assertEquals(d, decoded);
+      assertEquals(decoded, d);
+      assertEquals(d.hashCode(), decoded.hashCode());
+      assertEquals(d.getString(), decoded.getString());
+      assertEquals(Type.stringType(5), decoded.type());
+      assertTrue(d.compareTo(decoded) == 0);
+    }
+
+    DataBox foo = DataBox.fromBytes(ByteBuffer.wrap("foo".getBytes()), Type.stringType(3));
+    DataBox zoo = DataBox.fromBytes(ByteBuffer.wrap("zoo".getBytes()), Type.stringType(3));
+    assertTrue(foo.compareTo(zoo) < 0);
+    assertTrue(zoo.compareTo(new StringDataBox("foo", 3)) > 0);
+    assertNotEquals(foo, zoo);
+  }
 }
@@ -0,0 +1,153 @@
+package edu.berkeley.cs186.database.index;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.DisableOnDebug;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+
+import edu.berkeley.cs186.database.common.Pair;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.FloatDataBox;
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.databox.StringDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.table.RecordId;
+
+public class TestArtIndex {
+    // 10 seconds max per method tested.
+    @Rule
+    public TestRule globalTimeout = new DisableOnDebug(Timeout.seconds(10));
+
+    private static RecordId rid(int i) {
+      return new RecordId(i, (short) (i % 100));
+    }
+
+    @Test
+    public void testEmpty() {
+      ArtIndex index = new ArtIndex(Type.intType());
+      assertEquals(Optional.empty(), index.get(new IntDataBox(0)));
+      assertFalse(index.scanEqual(new IntDataBox(0)).hasNext());
+      index.remove(new IntDataBox(0));
+      assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testPutAndGet() throws ArtIndexException {
+      ArtIndex index = new ArtIndex(Type.intType());
+      for (int i = -5000; i < 5000; ++i) {
+        index.put(new IntDataBox(i), rid(i + 5000));
+      }
+      assertEquals(10000, index.size());
+      for (int i = -5000; i < 5000; ++i) {
+        assertEquals(Optional.of(rid(i + 5000)), index.get(new IntDataBox(i)));
+      }
+      assertEquals(Optional.empty(), index.get(new IntDataBox(5000)));
+      assertEquals(Optional.empty(), index.get(new IntDataBox(-5001)));
+      assertEquals(Optional.empty(), index.get(new IntDataBox(Integer.MAX_VALUE)));
+
+      // Dense keys fill up the nodes that branch on their low bytes.
+      int[] counts = index.countInnerNodes();
+      assertTrue(counts[3] > 0);
+    }
+
+    @Test(expected = ArtIndexException.class)
+    public void testDuplicateKey() throws ArtIndexException {
+      ArtIndex index = new ArtIndex(Type.intType());
+      index.put(new IntDataBox(42), rid(0));
+      index.put(new IntDataBox(42), rid(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongType() {
+      ArtIndex index = new ArtIndex(Type.intType());
+      index.get(new StringDataBox("a", 1));
+    }
+
+    @Test
+    public void testStringKeys() throws ArtIndexException {
+      // Keys that share long prefixes, and keys that are prefixes of others
+      // but for their padding.
+      ArtIndex index = new ArtIndex(Type.stringType(20));
+      List<String> keys = new ArrayList<>();
+      for (int i = 0; i < 500; ++i) {
+        keys.add("customer" + i);
+        keys.add("c" + i);
+      }
+      keys.add("");
+      for (int i = 0; i < keys.size(); ++i) {
+        index.put(new StringDataBox(keys.get(i), 20), rid(i));
+      }
+      for (int i = 0; i < keys.size(); ++i) {
+        assertEquals(Optional.of(rid(i)), index.get(new StringDataBox(keys.get(i), 20)));
+      }
+      assertEquals(Optional.empty(), index.get(new StringDataBox("customer", 20)));
+      assertEquals(Optional.empty(), index.get(new StringDataBox("customer5000", 20)));
+      assertEquals(Optional.empty(), index.get(new StringDataBox("d", 20)));
+    }
+
+    @Test
+    public void testRandomPutsAndRemoves() throws ArtIndexException {
+      // Random operations agree with a HashMap, and removes shrink the nodes
+      // back down.
+      ArtIndex index = new ArtIndex(Type.floatType());
+      Map<DataBox, RecordId> expected = new HashMap<>();
+      Random random = new Random(42);
+      for (int i = 0; i < 50000; ++i) {
+        DataBox key = new FloatDataBox(random.nextInt(2000) / 8.0f - 100);
+        if (random.nextInt(3) == 0) {
+          index.remove(key);
+          expected.remove(key);
+        } else if (!expected.containsKey(key)) {
+          index.put(key, rid(i));
+          expected.put(key, rid(i));
+        }
+      }
+      assertEquals(expected.size(), index.size());
+      for (int i = 0; i < 2000; ++i) {
+        DataBox key = new FloatDataBox(i / 8.0f - 100);
+        assertEquals(Optional.ofNullable(expected.get(key)), index.get(key));
+      }
+
+      for (DataBox key : expected.keySet()) {
+        index.remove(key);
+      }
+      assertEquals(0, index.size());
+      int[] counts = index.countInnerNodes();
+      assertEquals(0, counts[0] + counts[1] + counts[2] + counts[3]);
+    }
+
+    @Test
+    public void testUpdateRids() throws ArtIndexException {
+      ArtIndex index = new ArtIndex(Type.intType());
+      for (int i = 0; i < 1000; ++i) {
+        index.put(new IntDataBox(i), rid(i));
+      }
+      List<Pair<DataBox, RecordId>> entries = new ArrayList<>();
+      for (int i = 0; i < 1000; i += 3) {
+        entries.add(new Pair<>(new IntDataBox(i), rid(i + 7)));
+      }
+      entries.add(new Pair<>(new IntDataBox(1000), rid(0)));
+      index.updateRids(entries);
+
+      for (int i = 0; i < 1000; ++i) {
+        RecordId expected = i % 3 == 0 ? rid(i + 7) : rid(i);
+        assertEquals(Optional.of(expected), index.get(new IntDataBox(i)));
+      }
+      assertEquals(Optional.empty(), index.get(new IntDataBox(1000)));
+      Iterator<RecordId> iter = index.scanEqual(new IntDataBox(1));
+      assertEquals(rid(1), iter.next());
+      assertFalse(iter.hasNext());
+    }
+}
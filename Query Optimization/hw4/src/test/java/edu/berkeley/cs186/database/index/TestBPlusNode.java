@@ -1,6 +1,7 @@
 package edu.berkeley.cs186.database.index;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 import java.io.File;
 import java.io.IOException;
@@ -67,4 +68,31 @@ public class TestBPlusNode {
       assertEquals(leaf, BPlusNode.fromBytes(meta, leafPageNum));
       assertEquals(inner, BPlusNode.fromBytes(meta, innerPageNum));
     }
+
+    @Test
+    public void testNodeCache() throws IOException, BPlusTreeException {
+      BPlusTreeMetadata meta = getBPlusTreeMetadata(Type.intType(), 2);
+      List<DataBox> keys = new ArrayList<>();
+      List<RecordId> rids = new ArrayList<>();
+      keys.add(new IntDataBox(0));
+      rids.add(new RecordId(0, (short) 0));
+      LeafNode leaf = new LeafNode(meta, keys, rids, Optional.empty());
+      int pageNum = leaf.getPage().getPageNum();
+
+      // Reading the page returns the node itself rather than a copy.
+      assertSame(leaf, BPlusNode.fromBytes(meta, pageNum));
+
+      // A node that syncs becomes the cached node of its page.
+      LeafNode copy = LeafNode.fromBytes(meta, pageNum);
+      copy.put(new IntDataBox(1), new RecordId(1, (short) 1));
+      assertSame(copy, BPlusNode.fromBytes(meta, pageNum));
+      assertEquals(2, ((LeafNode) BPlusNode.fromBytes(meta, pageNum)).getKeys().size());
+
+      // Leaves are evicted once there are too many of them.
+      for (int i = 0; i < 2 * NodeCache.DEFAULT_LEAF_CAPACITY; ++i) {
+        new LeafNode(meta, new ArrayList<>(), new ArrayList<>(), Optional.empty());
+      }
+      assertEquals(NodeCache.DEFAULT_LEAF_CAPACITY, meta.getNodeCache().size());
+      assertEquals(copy, BPlusNode.fromBytes(meta, pageNum));
+    }
 }
@@ -1,16 +1,25 @@
 package edu.berkeley.cs186.database.index;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.DisableOnDebug;
@@ -18,8 +27,12 @@ import org.junit.rules.TemporaryFolder;
 import org.junit.rules.TestRule;
 import org.junit.rules.Timeout;
 
+import edu.berkeley.cs186.database.common.LongIterator;
+import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.FloatDataBox;
 import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.databox.StringDataBox;
 import edu.berkeley.cs186.database.databox.Type;
 import edu.berkeley.cs186.database.io.Page;
 import edu.berkeley.cs186.database.table.RecordId;
@@ -334,124 +347,69 @@ public class TestBPlusTree {
       r = String.format("(%s 8 %s)", rl, rr);
       assertEquals(String.format("(%s 4 %s 7 %s)", l, m, r), tree.toSexp());
 
-      //            (4 7)
-      //           /  |  \
-      //    (3)      (6)       (8)
-      //   /   \    /   \    /   \
-      // (  2) (3) (4 5) ( ) (7) (8  )
+      // Leaf (6) empties, so it merges into (4 5). Its parent is left with no
+      // keys, so it merges into its left sibling, pulling key 4 down.
+      //
+      //                (7)
+      //              /     \
+      //        (3 4)         (8)
+      //       /  |  \       /   \
+      // (  2) (3) (4 5)   (7) (8  )
       tree.remove(new IntDataBox(6));
       ll = "((2 (2 2)))";
-      lr = "((3 (3 3)))";
-      ml = "((4 (4 4)) (5 (5 5)))";
-      mr = "()";
+      lm = "((3 (3 3)))";
+      lr = "((4 (4 4)) (5 (5 5)))";
       rl = "((7 (7 7)))";
       rr = "((8 (8 8)))";
-      l = String.format("(%s 3 %s)", ll, lr);
-      m = String.format("(%s 6 %s)", ml, mr);
+      l = String.format("(%s 3 %s 4 %s)", ll, lm, lr);
       r = String.format("(%s 8 %s)", rl, rr);
-      assertEquals(String.format("(%s 4 %s 7 %s)", l, m, r), tree.toSexp());
+      assertEquals(String.format("(%s 7 %s)", l, r), tree.toSexp());
 
-      //            (4 7)
-      //           /  |  \
-      //    (3)      (6)       (8)
-      //   /   \    /   \    /   \
-      // (  2) (3) (  5) ( ) (7) (8  )
+      //                (7)
+      //              /     \
+      //        (3 4)         (8)
+      //       /  |  \       /   \
+      // (  2) (3) (  5)   (7) (8  )
       tree.remove(new IntDataBox(4));
-      ll = "((2 (2 2)))";
-      lr = "((3 (3 3)))";
-      ml = "((5 (5 5)))";
-      mr = "()";
-      rl = "((7 (7 7)))";
-      rr = "((8 (8 8)))";
-      l = String.format("(%s 3 %s)", ll, lr);
-      m = String.format("(%s 6 %s)", ml, mr);
-      r = String.format("(%s 8 %s)", rl, rr);
-      assertEquals(String.format("(%s 4 %s 7 %s)", l, m, r), tree.toSexp());
+      lr = "((5 (5 5)))";
+      l = String.format("(%s 3 %s 4 %s)", ll, lm, lr);
+      assertEquals(String.format("(%s 7 %s)", l, r), tree.toSexp());
 
-      //            (4 7)
-      //           /  |  \
-      //    (3)      (6)       (8)
-      //   /   \    /   \    /   \
-      // (   ) (3) (  5) ( ) (7) (8  )
+      // Leaf (2) empties, so it merges with (3).
+      //
+      //             (7)
+      //           /     \
+      //        (4)       (8)
+      //       /   \     /   \
+      //     (3) (  5) (7) (8  )
       tree.remove(new IntDataBox(2));
-      ll = "()";
-      lr = "((3 (3 3)))";
-      ml = "((5 (5 5)))";
-      mr = "()";
-      rl = "((7 (7 7)))";
-      rr = "((8 (8 8)))";
-      l = String.format("(%s 3 %s)", ll, lr);
-      m = String.format("(%s 6 %s)", ml, mr);
-      r = String.format("(%s 8 %s)", rl, rr);
-      assertEquals(String.format("(%s 4 %s 7 %s)", l, m, r), tree.toSexp());
+      ll = "((3 (3 3)))";
+      l = String.format("(%s 4 %s)", ll, lr);
+      assertEquals(String.format("(%s 7 %s)", l, r), tree.toSexp());
 
-      //            (4 7)
-      //           /  |  \
-      //    (3)      (6)       (8)
-      //   /   \    /   \    /   \
-      // (   ) (3) (   ) ( ) (7) (8  )
+      // Leaf (5) empties and merges into (3), which leaves its parent with no
+      // keys. The parent merges with (8), pulling key 7 down, which leaves
+      // the root with a single child. That child becomes the root.
+      //
+      //       (7 8)
+      //      /  |  \
+      //    (3) (7) (8  )
       tree.remove(new IntDataBox(5));
-      ll = "()";
-      lr = "((3 (3 3)))";
-      ml = "()";
-      mr = "()";
-      rl = "((7 (7 7)))";
-      rr = "((8 (8 8)))";
-      l = String.format("(%s 3 %s)", ll, lr);
-      m = String.format("(%s 6 %s)", ml, mr);
-      r = String.format("(%s 8 %s)", rl, rr);
-      assertEquals(String.format("(%s 4 %s 7 %s)", l, m, r), tree.toSexp());
+      assertEquals("(((3 (3 3))) 7 ((7 (7 7))) 8 ((8 (8 8))))", tree.toSexp());
 
-      //            (4 7)
-      //           /  |  \
-      //    (3)      (6)       (8)
-      //   /   \    /   \    /   \
-      // (   ) (3) (   ) ( ) ( ) (8  )
+      //       (8)
+      //      /   \
+      //    (3)   (8)
       tree.remove(new IntDataBox(7));
-      ll = "()";
-      lr = "((3 (3 3)))";
-      ml = "()";
-      mr = "()";
-      rl = "()";
-      rr = "((8 (8 8)))";
-      l = String.format("(%s 3 %s)", ll, lr);
-      m = String.format("(%s 6 %s)", ml, mr);
-      r = String.format("(%s 8 %s)", rl, rr);
-      assertEquals(String.format("(%s 4 %s 7 %s)", l, m, r), tree.toSexp());
+      assertEquals("(((3 (3 3))) 8 ((8 (8 8))))", tree.toSexp());
 
-      //            (4 7)
-      //           /  |  \
-      //    (3)      (6)       (8)
-      //   /   \    /   \    /   \
-      // (   ) ( ) (   ) ( ) ( ) (8  )
+      // (8)
       tree.remove(new IntDataBox(3));
-      ll = "()";
-      lr = "()";
-      ml = "()";
-      mr = "()";
-      rl = "()";
-      rr = "((8 (8 8)))";
-      l = String.format("(%s 3 %s)", ll, lr);
-      m = String.format("(%s 6 %s)", ml, mr);
-      r = String.format("(%s 8 %s)", rl, rr);
-      assertEquals(String.format("(%s 4 %s 7 %s)", l, m, r), tree.toSexp());
+      assertEquals("((8 (8 8)))", tree.toSexp());
 
-      //            (4 7)
-      //           /  |  \
-      //    (3)      (6)       (8)
-      //   /   \    /   \    /   \
-      // (   ) ( ) (   ) ( ) ( ) (   )
+      // ()
       tree.remove(new IntDataBox(8));
-      ll = "()";
-      lr = "()";
-      ml = "()";
-      mr = "()";
-      rl = "()";
-      rr = "()";
-      l = String.format("(%s 3 %s)", ll, lr);
-      m = String.format("(%s 6 %s)", ml, mr);
-      r = String.format("(%s 8 %s)", rl, rr);
-      assertEquals(String.format("(%s 4 %s 7 %s)", l, m, r), tree.toSexp());
+      assertEquals("()", tree.toSexp());
     }
 
     @Test
@@ -552,6 +510,1111 @@ public class TestBPlusTree {
       assertEquals(rids, iteratorToList(tree.scanAll()));
     }
 
+    @Test
+    public void testScanRange() throws BPlusTreeException, IOException {
+      // Keys 0, 2, 4, ..., 198, inserted in random order.
+      List<Integer> keys = new ArrayList<>();
+      for (int i = 0; i < 200; i += 2) {
+        keys.add(i);
+      }
+      Collections.shuffle(keys, new Random(42));
+      BPlusTree tree = getBPlusTree(Type.intType(), 2);
+      for (int i : keys) {
+        tree.put(new IntDataBox(i), new RecordId(i, (short) i));
+      }
+      // Empty some leaves out entirely.
+      for (int i = 100; i < 140; i += 2) {
+        tree.remove(new IntDataBox(i));
+      }
+
+      Random r = new Random(0);
+      for (int t = 0; t < 200; ++t) {
+        int lo = r.nextInt(220) - 10;
+        int hi = r.nextInt(220) - 10;
+        boolean loInclusive = r.nextBoolean();
+        boolean hiInclusive = r.nextBoolean();
+        Optional<DataBox> loKey = t % 10 == 0 ? Optional.empty() : Optional.of(new IntDataBox(lo));
+        Optional<DataBox> hiKey = t % 10 == 1 ? Optional.empty() : Optional.of(new IntDataBox(hi));
+
+        List<RecordId> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i += 2) {
+          boolean aboveLo = !loKey.isPresent() || i > lo || (loInclusive && i == lo);
+          boolean belowHi = !hiKey.isPresent() || i < hi || (hiInclusive && i == hi);
+          boolean removed = 100 <= i && i < 140;
+          if (aboveLo && belowHi && !removed) {
+            expected.add(new RecordId(i, (short) i));
+          }
+        }
+        assertEquals(expected,
+                     iteratorToList(tree.scanRange(loKey, loInclusive, hiKey, hiInclusive)));
+        Collections.reverse(expected);
+        assertEquals(expected,
+                     iteratorToList(tree.scanRangeDescending(loKey, loInclusive, hiKey, hiInclusive)));
+      }
+
+      List<RecordId> all = iteratorToList(tree.scanAll());
+      Collections.reverse(all);
+      assertEquals(all, iteratorToList(tree.scanAllDescending()));
+
+      // The sibling pointers survive a round trip through disk.
+      BPlusTree fromDisk = new BPlusTree(file.getAbsolutePath());
+      assertEquals(all, iteratorToList(fromDisk.scanAllDescending()));
+    }
+
+    @Test
+    public void testBulkLoadedScanDescending() throws BPlusTreeException, IOException {
+      BPlusTree tree = getBPlusTree(Type.intType(), 2);
+      List<Pair<DataBox, RecordId>> data = new ArrayList<>();
+      List<RecordId> expected = new ArrayList<>();
+      for (int i = 0; i < 100; ++i) {
+        data.add(new Pair<>(new IntDataBox(i), new RecordId(i, (short) i)));
+        expected.add(0, new RecordId(i, (short) i));
+      }
+      tree.bulkLoad(data.iterator(), 0.75f);
+      assertEquals(expected, iteratorToList(tree.scanAllDescending()));
+    }
+
+    @Test
+    public void testCoveringIndex() throws BPlusTreeException, IOException {
+      List<Type> includedSchema = Arrays.asList(Type.stringType(3), Type.intType());
+      BPlusTree tree = new BPlusTree(file.getAbsolutePath(), Type.intType(), 2, includedSchema);
+      assertEquals(includedSchema, tree.getIncludedSchema());
+
+      // Insert enough entries out of order to split leaves and inner nodes.
+      List<List<DataBox>> expected = new ArrayList<>();
+      for (int i = 0; i < 50; ++i) {
+        expected.add(Arrays.asList(new IntDataBox(i), new StringDataBox("k" + i, 3),
+                                   new IntDataBox(-i)));
+      }
+      for (int i = 0; i < 50; ++i) {
+        int key = (i * 7) % 50;
+        List<DataBox> entry = expected.get(key);
+        tree.put(entry.get(0), new RecordId(key, (short) key), entry.subList(1, 3));
+      }
+
+      assertEquals(expected, iteratorToList(tree.scanRangeCovering(
+          Optional.empty(), true, Optional.empty(), true)));
+      assertEquals(expected.subList(10, 20), iteratorToList(tree.scanRangeCovering(
+          Optional.of(new IntDataBox(10)), true, Optional.of(new IntDataBox(20)), false)));
+      List<List<DataBox>> reversed = new ArrayList<>(expected.subList(40, 50));
+      Collections.reverse(reversed);
+      assertEquals(reversed, iteratorToList(tree.scanRangeCoveringDescending(
+          Optional.of(new IntDataBox(39)), false, Optional.empty(), true)));
+      assertEquals(Optional.of(new RecordId(7, (short) 7)), tree.get(new IntDataBox(7)));
+
+      // Updating rids and removing keys keeps the included values in step.
+      tree.updateRids(Arrays.asList(new Pair<>(new IntDataBox(3), new RecordId(0, (short) 9))));
+      for (int i = 0; i < 50; i += 2) {
+        tree.remove(new IntDataBox(i));
+      }
+      List<List<DataBox>> odd = new ArrayList<>();
+      for (int i = 1; i < 50; i += 2) {
+        odd.add(expected.get(i));
+      }
+      assertEquals(odd, iteratorToList(tree.scanRangeCovering(
+          Optional.empty(), true, Optional.empty(), true)));
+
+      // The included schema and values survive a round trip through disk.
+      BPlusTree fromDisk = new BPlusTree(file.getAbsolutePath());
+      assertEquals(includedSchema, fromDisk.getIncludedSchema());
+      assertEquals(odd, iteratorToList(fromDisk.scanRangeCovering(
+          Optional.empty(), true, Optional.empty(), true)));
+      assertEquals(Optional.of(new RecordId(0, (short) 9)), fromDisk.get(new IntDataBox(3)));
+    }
+
+    @Test
+    public void testBulkLoadCovering() throws BPlusTreeException, IOException {
+      List<Type> includedSchema = Arrays.asList(Type.floatType());
+      BPlusTree tree = new BPlusTree(file.getAbsolutePath(), Type.intType(), 2, includedSchema);
+      List<Pair<List<DataBox>, RecordId>> data = new ArrayList<>();
+      List<List<DataBox>> expected = new ArrayList<>();
+      for (int i = 0; i < 100; ++i) {
+        List<DataBox> entry = Arrays.asList(new IntDataBox(i), new FloatDataBox(i / 2.0f));
+        data.add(new Pair<>(entry, new RecordId(i, (short) i)));
+        expected.add(entry);
+      }
+      tree.bulkLoadCovering(data.iterator(), 0.75f);
+      assertEquals(expected, iteratorToList(tree.scanRangeCovering(
+          Optional.empty(), true, Optional.empty(), true)));
+      for (int i = 0; i < 100; ++i) {
+        assertEquals(Optional.of(new RecordId(i, (short) i)), tree.get(new IntDataBox(i)));
+      }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCoveringIndexMissingIncludedValues() throws BPlusTreeException, IOException {
+      BPlusTree tree = new BPlusTree(file.getAbsolutePath(), Type.intType(), 2,
+                                     Arrays.asList(Type.intType()));
+      tree.put(new IntDataBox(0), new RecordId(0, (short) 0));
+    }
+
+    @Test
+    public void testConcurrentPutsGetsAndRemoves() throws Exception {
+      // Writers put (and later remove) disjoint sets of keys while readers
+      // check that every key they find maps to its own record id and that
+      // scans stay sorted.
+      final int numWriters = 4;
+      final int numKeys = 4000;
+      BPlusTree tree = getBPlusTree(Type.intType(), 3);
+      Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+      AtomicBoolean done = new AtomicBoolean(false);
+
+      List<Thread> writers = new ArrayList<>();
+      for (int w = 0; w < numWriters; ++w) {
+        final int writer = w;
+        writers.add(new Thread(() -> {
+          try {
+            List<Integer> keys = new ArrayList<>();
+            for (int i = writer; i < numKeys; i += numWriters) {
+              keys.add(i);
+            }
+            Collections.shuffle(keys, new Random(writer));
+            for (int i : keys) {
+              tree.put(new IntDataBox(i), new RecordId(i, (short) 0));
+            }
+            for (int i : keys) {
+              if (i % 2 == 0) {
+                tree.remove(new IntDataBox(i));
+              }
+            }
+          } catch (Throwable t) {
+            errors.add(t);
+          }
+        }));
+      }
+
+      List<Thread> readers = new ArrayList<>();
+      for (int r = 0; r < 2; ++r) {
+        final int reader = r;
+        readers.add(new Thread(() -> {
+          try {
+            Random random = new Random(reader);
+            while (!done.get()) {
+              int i = random.nextInt(numKeys);
+              Optional<RecordId> rid = tree.get(new IntDataBox(i));
+              if (rid.isPresent()) {
+                assertEquals(new RecordId(i, (short) 0), rid.get());
+              }
+              int prev = -1;
+              Iterator<RecordId> iter = tree.scanGreaterEqual(new IntDataBox(i));
+              for (int j = 0; j < 50 && iter.hasNext(); ++j) {
+                int pageNum = iter.next().getPageNum();
+                assertTrue(pageNum > prev && pageNum >= i);
+                prev = pageNum;
+              }
+            }
+          } catch (Throwable t) {
+            errors.add(t);
+          }
+        }));
+      }
+
+      for (Thread t : readers) {
+        t.start();
+      }
+      for (Thread t : writers) {
+        t.start();
+      }
+      for (Thread t : writers) {
+        t.join();
+      }
+      done.set(true);
+      for (Thread t : readers) {
+        t.join();
+      }
+      assertEquals(new ArrayList<Throwable>(), new ArrayList<>(errors));
+
+      List<RecordId> expected = new ArrayList<>();
+      for (int i = 1; i < numKeys; i += 2) {
+        expected.add(new RecordId(i, (short) 0));
+      }
+      assertEquals(expected, iteratorToList(tree.scanAll()));
+      for (int i = 0; i < numKeys; ++i) {
+        Optional<RecordId> rid = tree.get(new IntDataBox(i));
+        assertEquals(i % 2 == 1, rid.isPresent());
+      }
+    }
+
+    // A benchmark rather than a test, so it is ignored by default; remove the
+    // @Ignore to see how put and get throughput scales with threads.
+    @Ignore
+    @Test
+    public void testConcurrentThroughput() throws Exception {
+      // Each thread puts its own keys, and looks up a random key after every
+      // put, so half of all operations are puts and half are gets.
+      final int opsPerThread = 20000;
+      for (int numThreads : new int[] {1, 2, 4}) {
+        File f = tempFolder.newFile(filename + numThreads);
+        BPlusTree tree = new BPlusTree(f.getAbsolutePath(), Type.intType(), 32);
+        Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < numThreads; ++t) {
+          final int thread = t;
+          threads.add(new Thread(() -> {
+            try {
+              Random random = new Random(thread);
+              for (int i = thread; i < opsPerThread / 2 * numThreads; i += numThreads) {
+                tree.put(new IntDataBox(i), new RecordId(i, (short) 0));
+                tree.get(new IntDataBox(random.nextInt(i + 1)));
+              }
+            } catch (Throwable e) {
+              errors.add(e);
+            }
+          }));
+        }
+
+        long start = System.nanoTime();
+        for (Thread t : threads) {
+          t.start();
+        }
+        for (Thread t : threads) {
+          t.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        assertEquals(new ArrayList<Throwable>(), new ArrayList<>(errors));
+
+        int numKeys = opsPerThread / 2 * numThreads;
+        for (int i = 0; i < numKeys; ++i) {
+          assertEquals(Optional.of(new RecordId(i, (short) 0)), tree.get(new IntDataBox(i)));
+        }
+        double opsPerSecond = (double) opsPerThread * numThreads / (elapsed / 1e9);
+        System.out.println(String.format("testConcurrentThroughput: %d thread(s), %.0f ops/s",
+                                         numThreads, opsPerSecond));
+      }
+    }
+
+    @Test
+    public void testSimpleBulkLoad() throws BPlusTreeException, IOException {
+      BPlusTree tree = getBPlusTree(Type.intType(), 2);
+      List<Pair<DataBox, RecordId>> data = new ArrayList<>();
+      for (int i = 1; i <= 11; ++i) {
+        data.add(new Pair<>(new IntDataBox(i), new RecordId(i, (short) i)));
+      }
+      tree.bulkLoad(data.iterator(), 0.75f);
+
+      //      (    4        7         10        _   )
+      //       /       |         |         \
+      // (1 2 3 _) (4 5 6 _) (7 8 9 _) (10 11 _ _)
+      String leaf0 = "((1 (1 1)) (2 (2 2)) (3 (3 3)))";
+      String leaf1 = "((4 (4 4)) (5 (5 5)) (6 (6 6)))";
+      String leaf2 = "((7 (7 7)) (8 (8 8)) (9 (9 9)))";
+      String leaf3 = "((10 (10 10)) (11 (11 11)))";
+      String sexp = String.format("(%s 4 %s 7 %s 10 %s)", leaf0, leaf1, leaf2, leaf3);
+      assertEquals(sexp, tree.toSexp());
+    }
+
+    @Test
+    public void testLargeBulkLoad() throws BPlusTreeException, IOException {
+      BPlusTree tree = getBPlusTree(Type.intType(), 2);
+      List<Pair<DataBox, RecordId>> data = new ArrayList<>();
+      List<RecordId> rids = new ArrayList<>();
+      for (int i = 0; i < 1000; i += 2) {
+        RecordId rid = new RecordId(i, (short) 0);
+        data.add(new Pair<>(new IntDataBox(i), rid));
+        rids.add(rid);
+      }
+      tree.bulkLoad(data.iterator(), 0.5f);
+      assertEquals(rids, iteratorToList(tree.scanAll()));
+      for (int i = 0; i < 1000; i += 2) {
+        assertEquals(Optional.of(new RecordId(i, (short) 0)), tree.get(new IntDataBox(i)));
+        assertEquals(Optional.empty(), tree.get(new IntDataBox(i + 1)));
+      }
+
+      // A bulk loaded tree is an ordinary B+ tree.
+      for (int i = 1; i < 1000; i += 2) {
+        tree.put(new IntDataBox(i), new RecordId(i, (short) 0));
+      }
+      for (int i = 0; i < 1000; ++i) {
+        assertEquals(Optional.of(new RecordId(i, (short) 0)), tree.get(new IntDataBox(i)));
+      }
+
+      tree = new BPlusTree(file.getAbsolutePath());
+      assertEquals(1000, iteratorToList(tree.scanAll()).size());
+    }
+
+    @Test(expected = BPlusTreeException.class)
+    public void testNonEmptyBulkLoad() throws BPlusTreeException, IOException {
+      BPlusTree tree = getBPlusTree(Type.intType(), 2);
+      tree.put(new IntDataBox(0), new RecordId(0, (short) 0));
+      List<Pair<DataBox, RecordId>> data = new ArrayList<>();
+      data.add(new Pair<>(new IntDataBox(1), new RecordId(1, (short) 1)));
+      tree.bulkLoad(data.iterator(), 1.0f);
+    }
+
+    @Test(expected = BPlusTreeException.class)
+    public void testUnsortedBulkLoad() throws BPlusTreeException, IOException {
+      BPlusTree tree = getBPlusTree(Type.intType(), 2);
+      List<Pair<DataBox, RecordId>> data = new ArrayList<>();
+      data.add(new Pair<>(new IntDataBox(2), new RecordId(2, (short) 2)));
+      data.add(new Pair<>(new IntDataBox(1), new RecordId(1, (short) 1)));
+      tree.bulkLoad(data.iterator(), 1.0f);
+    }
+
+    private static DataBox customer(int i) {
+      return new StringDataBox(String.format("customer%06d", i), 100);
+    }
+
+    @Test
+    public void testCompressedTree() throws BPlusTreeException, IOException {
+      List<DataBox> keys = new ArrayList<>();
+      List<RecordId> sortedRids = new ArrayList<>();
+      for (int i = 0; i < 2000; ++i) {
+        keys.add(customer(i));
+        sortedRids.add(new RecordId(i / 10, (short) (i % 10)));
+      }
+      List<Integer> order = new ArrayList<>();
+      for (int i = 0; i < keys.size(); ++i) {
+        order.add(i);
+      }
+      Collections.shuffle(order, new Random(42));
+
+      Type keySchema = Type.stringType(100);
+      BPlusTree tree = new BPlusTree(file.getAbsolutePath(), keySchema,
+                                     Collections.emptyList(), true);
+      BPlusTree uncompressed = new BPlusTree(tempFolder.newFile().getAbsolutePath(),
+                                             keySchema, Collections.emptyList(), false);
+      assertTrue(tree.isCompressed());
+      for (int i : order) {
+        tree.put(keys.get(i), sortedRids.get(i));
+        uncompressed.put(keys.get(i), sortedRids.get(i));
+      }
+
+      for (int i = 0; i < keys.size(); ++i) {
+        assertEquals(Optional.of(sortedRids.get(i)), tree.get(keys.get(i)));
+      }
+      assertEquals(sortedRids, iteratorToList(tree.scanAll()));
+      assertEquals(sortedRids.subList(500, 1500),
+                   iteratorToList(tree.scanRange(Optional.of(customer(500)), true,
+                                                 Optional.of(customer(1500)), false)));
+
+      // Every key is 100 bytes wide, but the keys of a compressed node share
+      // most of their bytes and hardly any padding.
+      assertTrue(tree.getNumPages() * 5 < uncompressed.getNumPages());
+
+      BPlusTree fromDisk = new BPlusTree(file.getAbsolutePath());
+      assertTrue(fromDisk.isCompressed());
+      assertEquals(sortedRids, iteratorToList(fromDisk.scanAll()));
+      for (int i : order.subList(0, 1000)) {
+        fromDisk.remove(keys.get(i));
+        assertEquals(Optional.empty(), fromDisk.get(keys.get(i)));
+      }
+      for (int i : order.subList(1000, 2000)) {
+        assertEquals(Optional.of(sortedRids.get(i)), fromDisk.get(keys.get(i)));
+      }
+    }
+
+    @Test
+    public void testCompressedRandomPuts() throws BPlusTreeException, IOException {
+      BPlusTree tree = new BPlusTree(file.getAbsolutePath(), Type.intType(),
+                                     Collections.emptyList(), true);
+      Random r = new Random(42);
+      TreeMap<Integer, RecordId> expected = new TreeMap<>();
+      for (int i = 0; i < 5000; ++i) {
+        int key = r.nextInt(2000) - 1000;
+        if (expected.containsKey(key)) {
+          tree.remove(new IntDataBox(key));
+          expected.remove(key);
+        } else {
+          RecordId rid = new RecordId(r.nextInt(1 << 20), (short) r.nextInt(100));
+          tree.put(new IntDataBox(key), rid);
+          expected.put(key, rid);
+        }
+      }
+
+      assertEquals(new ArrayList<>(expected.values()), iteratorToList(tree.scanAll()));
+      for (int key = -1000; key < 1000; ++key) {
+        assertEquals(Optional.ofNullable(expected.get(key)), tree.get(new IntDataBox(key)));
+      }
+    }
+
+    @Test
+    public void testNormalizedKeysOnPages() throws BPlusTreeException, IOException {
+      // Keys are stored on pages in their normalized encoding and compared as
+      // raw bytes, so negative floats (whose IEEE 754 bits sort backwards)
+      // must still be found, both in the tree that wrote them and in a tree
+      // reopened from disk.
+      BPlusTree tree = getBPlusTree(Type.floatType(), 2);
+      Random r = new Random(42);
+      TreeMap<Float, RecordId> expected = new TreeMap<>();
+      for (int i = 0; i < 1000; ++i) {
+        float key = (r.nextInt(2000) - 1000) / 4.0f;
+        RecordId rid = new RecordId(i, (short) 0);
+        if (!expected.containsKey(key)) {
+          tree.put(new FloatDataBox(key), rid);
+          expected.put(key, rid);
+        }
+      }
+      tree.flush();
+
+      for (BPlusTree t : Arrays.asList(tree, new BPlusTree(file.getAbsolutePath()))) {
+        assertEquals(new ArrayList<>(expected.values()), iteratorToList(t.scanAll()));
+        for (int i = -1000; i < 1000; ++i) {
+          float key = i / 4.0f;
+          assertEquals(Optional.ofNullable(expected.get(key)), t.get(new FloatDataBox(key)));
+        }
+        assertEquals(Optional.empty(), t.get(new FloatDataBox(-1000.5f)));
+        assertEquals(Optional.empty(), t.get(new FloatDataBox(Float.NaN)));
+      }
+    }
+
+    @Test
+    public void testCompressedBulkLoadAndUpdateRids() throws BPlusTreeException, IOException {
+      BPlusTree tree = new BPlusTree(file.getAbsolutePath(), Type.stringType(100),
+                                     Collections.emptyList(), true);
+      List<Pair<DataBox, RecordId>> data = new ArrayList<>();
+      for (int i = 0; i < 2000; ++i) {
+        data.add(new Pair<>(customer(i), new RecordId(i / 10, (short) (i % 10))));
+      }
+      tree.bulkLoad(data.iterator(), 1.0f);
+      for (Pair<DataBox, RecordId> p : data) {
+        assertEquals(Optional.of(p.getSecond()), tree.get(p.getFirst()));
+      }
+
+      // Record ids on far apart pages take up more room than record ids on
+      // neighboring pages, so the full leaves overflow and split.
+      int numPages = tree.getNumPages();
+      List<Pair<DataBox, RecordId>> moved = new ArrayList<>();
+      List<RecordId> rids = new ArrayList<>();
+      for (int i = 0; i < data.size(); ++i) {
+        RecordId rid = new RecordId(i % 2 == 0 ? 0 : Integer.MAX_VALUE, (short) i);
+        moved.add(new Pair<>(data.get(i).getFirst(), rid));
+        rids.add(rid);
+      }
+      tree.updateRids(moved);
+      assertTrue(tree.getNumPages() > numPages);
+      assertEquals(rids, iteratorToList(tree.scanAll()));
+      for (Pair<DataBox, RecordId> p : moved) {
+        assertEquals(Optional.of(p.getSecond()), tree.get(p.getFirst()));
+      }
+    }
+
+    @Test
+    public void testScanPrefix() throws BPlusTreeException, IOException {
+      int[] as = {Integer.MIN_VALUE, -1, 0, 1, Integer.MAX_VALUE};
+      int[] bs = {Integer.MIN_VALUE, -2, -1, 0, 1, 2, Integer.MAX_VALUE};
+      List<Type> columns = Arrays.asList(Type.intType(), Type.intType());
+      for (boolean compressed : new boolean[] {false, true}) {
+        BPlusTree tree = compressed
+          ? new BPlusTree(tempFolder.newFile().getAbsolutePath(), CompositeKey.type(columns),
+                          Collections.emptyList(), true)
+          : getBPlusTree(CompositeKey.type(columns), 2);
+        List<int[]> keys = new ArrayList<>();
+        for (int a : as) {
+          for (int b : bs) {
+            keys.add(new int[] {a, b});
+            tree.put(CompositeKey.of(Arrays.asList(new IntDataBox(a), new IntDataBox(b))),
+                     new RecordId(keys.size() - 1, (short) 0));
+          }
+        }
+
+        for (int a : as) {
+          List<DataBox> prefix = Arrays.asList(new IntDataBox(a));
+          for (int lo : bs) {
+            for (int hi : bs) {
+              for (int bounds = 0; bounds < 4; ++bounds) {
+                boolean loInclusive = (bounds & 1) != 0;
+                boolean hiInclusive = (bounds & 2) != 0;
+                List<RecordId> expected = new ArrayList<>();
+                for (int i = 0; i < keys.size(); ++i) {
+                  int[] k = keys.get(i);
+                  if (k[0] == a && (loInclusive ? k[1] >= lo : k[1] > lo) &&
+                      (hiInclusive ? k[1] <= hi : k[1] < hi)) {
+                    expected.add(new RecordId(i, (short) 0));
+                  }
+                }
+                assertEquals(expected, iteratorToList(tree.scanPrefix(
+                    prefix, Optional.of(new IntDataBox(lo)), loInclusive,
+                    Optional.of(new IntDataBox(hi)), hiInclusive)));
+              }
+            }
+          }
+
+          // A prefix alone matches every key that starts with it.
+          List<RecordId> expected = new ArrayList<>();
+          for (int i = 0; i < keys.size(); ++i) {
+            if (keys.get(i)[0] == a) {
+              expected.add(new RecordId(i, (short) 0));
+            }
+          }
+          assertEquals(expected, iteratorToList(tree.scanPrefix(
+              prefix, Optional.empty(), true, Optional.empty(), true)));
+        }
+
+        // A full key matches itself, and an empty prefix ranges over the
+        // first column.
+        List<DataBox> key = Arrays.asList(new IntDataBox(0), new IntDataBox(Integer.MAX_VALUE));
+        assertEquals(Arrays.asList(new RecordId(2 * bs.length + bs.length - 1, (short) 0)),
+                     iteratorToList(tree.scanPrefix(key.subList(0, 1),
+                                                    Optional.of(key.get(1)), true,
+                                                    Optional.of(key.get(1)), true)));
+        assertEquals(3 * bs.length, iteratorToList(tree.scanPrefix(
+            Collections.emptyList(), Optional.of(new IntDataBox(-1)), true,
+            Optional.of(new IntDataBox(1)), true)).size());
+        assertEquals(0, iteratorToList(tree.scanPrefix(
+            Collections.emptyList(), Optional.of(new IntDataBox(Integer.MAX_VALUE)), false,
+            Optional.empty(), true)).size());
+      }
+    }
+
+    @Test
+    public void testInsertBuffer() throws BPlusTreeException, IOException {
+      BPlusTree tree = getBPlusTree(Type.intType(), 2);
+      tree.setInsertBufferCapacity(50);
+
+      // Random puts and removes, checked against a TreeMap.
+      TreeMap<Integer, RecordId> expected = new TreeMap<>();
+      Random random = new Random(42);
+      for (int i = 0; i < 2000; ++i) {
+        int k = random.nextInt(500);
+        if (expected.containsKey(k)) {
+          tree.remove(new IntDataBox(k));
+          expected.remove(k);
+        } else {
+          RecordId rid = new RecordId(k, (short) i);
+          tree.put(new IntDataBox(k), rid);
+          expected.put(k, rid);
+        }
+        assertTrue(tree.getNumBuffered() < 50);
+
+        if (i % 97 == 0) {
+          for (int j = 0; j < 500; ++j) {
+            assertEquals(Optional.ofNullable(expected.get(j)), tree.get(new IntDataBox(j)));
+          }
+          assertEquals(new ArrayList<>(expected.values()), iteratorToList(tree.scanAll()));
+          List<RecordId> descending = new ArrayList<>(expected.headMap(250, true)
+                                                              .descendingMap().values());
+          assertEquals(descending, iteratorToList(tree.scanRangeDescending(
+              Optional.of(new IntDataBox(0)), true, Optional.of(new IntDataBox(250)), true)));
+          List<RecordId> range = new ArrayList<>(expected.subMap(100, false, 300, false).values());
+          assertEquals(range, iteratorToList(tree.scanRange(
+              Optional.of(new IntDataBox(100)), false, Optional.of(new IntDataBox(300)), false)));
+        }
+      }
+
+      // A put of a buffered key is a duplicate.
+      int k = expected.firstKey();
+      try {
+        tree.put(new IntDataBox(k), new RecordId(0, (short) 0));
+        assertTrue(false);
+      } catch (BPlusTreeException e) {
+        // Expected.
+      }
+
+      // Once flushed, the writes are on disk.
+      tree.flush();
+      assertEquals(0, tree.getNumBuffered());
+      BPlusTree fromDisk = new BPlusTree(file.getAbsolutePath());
+      assertEquals(new ArrayList<>(expected.values()), iteratorToList(fromDisk.scanAll()));
+
+      // Turning the buffer off flushes it too.
+      tree.remove(new IntDataBox(k));
+      expected.remove(k);
+      assertEquals(1, tree.getNumBuffered());
+      tree.setInsertBufferCapacity(0);
+      assertEquals(0, tree.getNumBuffered());
+      fromDisk = new BPlusTree(file.getAbsolutePath());
+      assertEquals(new ArrayList<>(expected.values()), iteratorToList(fromDisk.scanAll()));
+    }
+
+    @Test
+    public void testInsertBufferCovering() throws BPlusTreeException, IOException {
+      BPlusTree tree = new BPlusTree(file.getAbsolutePath(), Type.intType(), 2,
+                                     Arrays.asList(Type.intType()));
+      tree.setInsertBufferCapacity(1000);
+      for (int i = 0; i < 10; ++i) {
+        tree.put(new IntDataBox(i), new RecordId(i, (short) 0),
+                 Arrays.asList(new IntDataBox(10 * i)));
+      }
+      tree.flush();
+      tree.remove(new IntDataBox(3));
+      tree.remove(new IntDataBox(4));
+      tree.put(new IntDataBox(4), new RecordId(4, (short) 1),
+               Arrays.asList(new IntDataBox(-4)));
+      tree.put(new IntDataBox(20), new RecordId(20, (short) 0),
+               Arrays.asList(new IntDataBox(200)));
+      assertEquals(3, tree.getNumBuffered());
+
+      List<List<DataBox>> entries = iteratorToList(tree.scanRangeCovering(
+          Optional.of(new IntDataBox(2)), true, Optional.empty(), true));
+      List<List<DataBox>> expected = new ArrayList<>();
+      expected.add(Arrays.asList(new IntDataBox(2), new IntDataBox(20)));
+      expected.add(Arrays.asList(new IntDataBox(4), new IntDataBox(-4)));
+      for (int i = 5; i < 10; ++i) {
+        expected.add(Arrays.asList(new IntDataBox(i), new IntDataBox(10 * i)));
+      }
+      expected.add(Arrays.asList(new IntDataBox(20), new IntDataBox(200)));
+      assertEquals(expected, entries);
+
+      // updateRids sees buffered puts.
+      tree.updateRids(Arrays.asList(new Pair<>(new IntDataBox(20), new RecordId(1, (short) 1))));
+      assertEquals(Optional.of(new RecordId(1, (short) 1)), tree.get(new IntDataBox(20)));
+      assertEquals(Optional.empty(), tree.get(new IntDataBox(3)));
+    }
+
+    @Test
+    public void testGetAll() throws BPlusTreeException, IOException {
+      BPlusTree tree = getBPlusTree(Type.intType(), 2);
+      for (int i = 0; i < 1000; i += 2) {
+        tree.put(new IntDataBox(i), new RecordId(i, (short) i));
+      }
+
+      // Random sorted probes, with duplicates and keys on either side of the
+      // tree, agree with get.
+      Random random = new Random(42);
+      for (int n : Arrays.asList(0, 1, 5, 100, 3000)) {
+        List<DataBox> keys = new ArrayList<>();
+        for (int i = 0; i < n; ++i) {
+          keys.add(new IntDataBox(random.nextInt(1100) - 50));
+        }
+        Collections.sort(keys);
+        List<Optional<RecordId>> expected = new ArrayList<>();
+        for (DataBox key : keys) {
+          expected.add(tree.get(key));
+        }
+        assertEquals(expected, tree.getAll(keys));
+      }
+
+      // Buffered puts and removes are seen too.
+      tree.setInsertBufferCapacity(100);
+      tree.remove(new IntDataBox(10));
+      tree.put(new IntDataBox(11), new RecordId(11, (short) 11));
+      assertEquals(Arrays.asList(Optional.empty(), Optional.of(new RecordId(11, (short) 11)),
+                                 Optional.of(new RecordId(12, (short) 12))),
+                   tree.getAll(Arrays.asList(new IntDataBox(10), new IntDataBox(11),
+                                             new IntDataBox(12))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetAllUnsorted() throws BPlusTreeException, IOException {
+      BPlusTree tree = getBPlusTree(Type.intType(), 2);
+      tree.getAll(Arrays.asList(new IntDataBox(2), new IntDataBox(1)));
+    }
+
+    /** Pages through tree from cursor, limit entries at a time. */
+    private static List<RecordId> scanPages(BPlusTree tree, BPlusTreeCursor cursor, int limit) {
+      List<RecordId> rids = new ArrayList<>();
+      Optional<BPlusTreeCursor> next = Optional.of(cursor);
+      while (next.isPresent()) {
+        Pair<List<RecordId>, Optional<BPlusTreeCursor>> page = tree.scanPage(next.get(), limit);
+        assertTrue(page.getFirst().size() <= limit);
+        rids.addAll(page.getFirst());
+        next = page.getSecond();
+        if (next.isPresent()) {
+          assertEquals(limit, page.getFirst().size());
+          next = Optional.of(BPlusTreeCursor.fromBytes(ByteBuffer.wrap(next.get().toBytes())));
+        }
+      }
+      return rids;
+    }
+
+    @Test
+    public void testScanPage() throws BPlusTreeException, IOException {
+      BPlusTree tree = getBPlusTree(Type.intType(), 2);
+      assertEquals(new Pair<>(Collections.emptyList(), Optional.empty()),
+                   tree.scanPage(BPlusTreeCursor.first(), 10));
+      for (int i = 0; i < 1000; i += 2) {
+        tree.put(new IntDataBox(i), new RecordId(i, (short) i));
+      }
+
+      for (int limit : Arrays.asList(1, 3, 37, 500, 1000)) {
+        assertEquals(iteratorToList(tree.scanAll()),
+                     scanPages(tree, BPlusTreeCursor.first(), limit));
+      }
+      assertEquals(iteratorToList(tree.scanGreaterEqual(new IntDataBox(501))),
+                   scanPages(tree, BPlusTreeCursor.from(new IntDataBox(501)), 37));
+      assertEquals(iteratorToList(tree.scanGreaterEqual(new IntDataBox(501))),
+                   scanPages(tree, BPlusTreeCursor.after(new IntDataBox(500)), 37));
+      assertEquals(iteratorToList(tree.scanGreaterEqual(new IntDataBox(500))),
+                   scanPages(tree, BPlusTreeCursor.from(new IntDataBox(500)), 37));
+    }
+
+    @Test
+    public void testScanPageAfterChanges() throws BPlusTreeException, IOException {
+      BPlusTree tree = getBPlusTree(Type.intType(), 2);
+      for (int i = 0; i < 1000; i += 2) {
+        tree.put(new IntDataBox(i), new RecordId(i, (short) i));
+      }
+      Pair<List<RecordId>, Optional<BPlusTreeCursor>> page =
+        tree.scanPage(BPlusTreeCursor.first(), 100);
+      assertEquals(iteratorToList(tree.scanAll()).subList(0, 100), page.getFirst());
+      BPlusTreeCursor cursor = page.getSecond().get();
+      assertEquals(Optional.of(new IntDataBox(198)), cursor.getKey());
+
+      // Entries put and removed on either side of the cursor, which split
+      // and merge its leaf, are seen only past it.
+      for (int i = 1; i < 1000; i += 4) {
+        tree.put(new IntDataBox(i), new RecordId(i, (short) i));
+      }
+      for (int i = 200; i < 400; i += 2) {
+        tree.remove(new IntDataBox(i));
+      }
+      assertEquals(iteratorToList(tree.scanGreaterEqual(new IntDataBox(199))),
+                   scanPages(tree, cursor, 37));
+
+      // So are buffered ones, which are flushed first.
+      tree.setInsertBufferCapacity(100);
+      tree.put(new IntDataBox(203), new RecordId(203, (short) 203));
+      tree.remove(new IntDataBox(401));
+      assertEquals(iteratorToList(tree.scanGreaterEqual(new IntDataBox(199))),
+                   scanPages(tree, cursor, 37));
+      assertEquals(0, tree.getNumBuffered());
+
+      // A cursor of a tree that was since reopened still works.
+      BPlusTree fromDisk = new BPlusTree(file.getAbsolutePath());
+      assertEquals(iteratorToList(tree.scanGreaterEqual(new IntDataBox(199))),
+                   scanPages(fromDisk, cursor, 37));
+    }
+
+    @Test
+    public void testScanPageTamperedCursor() throws BPlusTreeException, IOException {
+      BPlusTree tree = getBPlusTree(Type.intType(), 2);
+      for (int i = 0; i < 100; ++i) {
+        tree.put(new IntDataBox(i), new RecordId(i, (short) i));
+      }
+      BPlusTreeCursor cursor = tree.scanPage(BPlusTreeCursor.first(), 3).getSecond().get();
+      assertEquals(Optional.of(new IntDataBox(2)), cursor.getKey());
+      List<RecordId> expected = iteratorToList(tree.scanGreaterEqual(new IntDataBox(3)));
+
+      // A cursor whose slot or page doesn't match its key falls back to
+      // descending the tree to the key.
+      int pageNum = cursor.getLeafPageNum();
+      long epoch = cursor.getEpoch();
+      long version = cursor.getLeafVersion();
+      int slot = cursor.getSlot();
+      for (int s : new int[] {0, slot - 1, slot + 1, 99, -1}) {
+        BPlusTreeCursor tampered =
+          new BPlusTreeCursor(cursor.getKey(), false, pageNum, s, epoch, version);
+        assertEquals(expected, scanPages(tree, tampered, 10));
+      }
+      for (int page : new int[] {0, pageNum + 1, 100000}) {
+        BPlusTreeCursor tampered =
+          new BPlusTreeCursor(cursor.getKey(), false, page, slot, epoch, version);
+        assertEquals(expected, scanPages(tree, tampered, 10));
+      }
+      BPlusTreeCursor inclusive =
+        new BPlusTreeCursor(cursor.getKey(), true, pageNum, slot, epoch, version);
+      assertEquals(iteratorToList(tree.scanGreaterEqual(new IntDataBox(2))),
+                   scanPages(tree, inclusive, 10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testScanPageLimit() throws BPlusTreeException, IOException {
+      BPlusTree tree = getBPlusTree(Type.intType(), 2);
+      tree.scanPage(BPlusTreeCursor.first(), 0);
+    }
+
+    @Test
+    public void testRemoveRebalances() throws BPlusTreeException, IOException {
+      BPlusTree tree = getBPlusTree(Type.intType(), 2);
+      List<Integer> keys = new ArrayList<>();
+      for (int i = 0; i < 1000; ++i) {
+        keys.add(i);
+      }
+      Collections.shuffle(keys, new Random(43));
+      TreeMap<Integer, RecordId> expected = new TreeMap<>();
+      for (int k : keys) {
+        tree.put(new IntDataBox(k), new RecordId(k, (short) 0));
+        expected.put(k, new RecordId(k, (short) 0));
+      }
+      int numPages = tree.getNumPages();
+
+      // Removing all but 10 keys merges away almost every node.
+      Collections.shuffle(keys, new Random(44));
+      for (int k : keys.subList(10, keys.size())) {
+        tree.remove(new IntDataBox(k));
+        expected.remove(k);
+      }
+      assertTrue(numPages > 300);
+      assertTrue(tree.getNumPages() <= 10);
+      assertEquals(new ArrayList<>(expected.values()), iteratorToList(tree.scanAll()));
+      List<RecordId> descending = new ArrayList<>(expected.values());
+      Collections.reverse(descending);
+      assertEquals(descending, iteratorToList(tree.scanAllDescending()));
+
+      BPlusTree fromDisk = new BPlusTree(file.getAbsolutePath());
+      assertEquals(new ArrayList<>(expected.values()), iteratorToList(fromDisk.scanAll()));
+
+      // The freed pages are reused.
+      for (int k : keys.subList(10, keys.size())) {
+        fromDisk.put(new IntDataBox(k), new RecordId(k, (short) 1));
+      }
+      assertTrue(fromDisk.getNumPages() <= numPages);
+      for (int i = 0; i < 1000; ++i) {
+        short pageNum = (short) (expected.containsKey(i) ? 0 : 1);
+        assertEquals(Optional.of(new RecordId(i, pageNum)), fromDisk.get(new IntDataBox(i)));
+      }
+    }
+
+    @Test
+    public void testCompressedRemoveRebalances() throws BPlusTreeException, IOException {
+      BPlusTree tree = new BPlusTree(file.getAbsolutePath(), Type.stringType(100),
+                                     Collections.emptyList(), true);
+      List<Integer> keys = new ArrayList<>();
+      for (int i = 0; i < 2000; ++i) {
+        keys.add(i);
+      }
+      Collections.shuffle(keys, new Random(45));
+      TreeMap<String, RecordId> expected = new TreeMap<>();
+      for (int k : keys) {
+        String s = String.format("key%05d", k);
+        tree.put(new StringDataBox(s, 100), new RecordId(k, (short) 0));
+        expected.put(s, new RecordId(k, (short) 0));
+      }
+      int numPages = tree.getNumPages();
+
+      for (int k : keys.subList(20, keys.size())) {
+        String s = String.format("key%05d", k);
+        tree.remove(new StringDataBox(s, 100));
+        expected.remove(s);
+      }
+      // The 20 keys left fit in a single leaf, which becomes the root. The
+      // only other page is the header page.
+      assertTrue(numPages > 2);
+      assertEquals(2, tree.getNumPages());
+      assertEquals(new ArrayList<>(expected.values()), iteratorToList(tree.scanAll()));
+      for (String s : expected.keySet()) {
+        assertEquals(Optional.of(expected.get(s)), tree.get(new StringDataBox(s, 100)));
+      }
+    }
+
+    @Test
+    public void testScanDuringRebalance() throws BPlusTreeException, IOException {
+      for (boolean descending : new boolean[] {false, true}) {
+        BPlusTree tree = new BPlusTree(tempFolder.newFile().getAbsolutePath(),
+                                       Type.intType(), 2);
+        for (int i = 0; i < 100; ++i) {
+          tree.put(new IntDataBox(i), new RecordId(i, (short) 0));
+        }
+        Iterator<RecordId> iter = descending ? tree.scanAllDescending() : tree.scanAll();
+        List<RecordId> rids = new ArrayList<>();
+        for (int i = 0; i < 5; ++i) {
+          rids.add(iter.next());
+        }
+
+        // The leaves are [0 1] [2 3] ... [94 95] [96 97 98 99], so we're on
+        // leaf [4 5] ([94 95] if descending). Remove every key in [lo, hi)
+        // but the multiples of 10, starting with the leaves next to ours.
+        // The first of them is merged into ours, and its page is freed.
+        int lo = descending ? 10 : 6;
+        int hi = descending ? 94 : 90;
+        for (int j = 0; j < hi - lo; ++j) {
+          int i = descending ? hi - 1 - j : lo + j;
+          if (i % 10 != 0) {
+            tree.remove(new IntDataBox(i));
+          }
+        }
+        rids.addAll(iteratorToList(iter));
+
+        List<RecordId> expected = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+          if (i < lo || i >= hi || i % 10 == 0) {
+            expected.add(new RecordId(i, (short) 0));
+          }
+        }
+        if (descending) {
+          Collections.reverse(expected);
+        }
+        assertEquals(expected, rids);
+      }
+    }
+
+    @Test
+    public void testRebuild() throws BPlusTreeException, IOException {
+      BPlusTree tree = getBPlusTree(Type.intType(), 2);
+      List<Integer> keys = new ArrayList<>();
+      for (int i = 0; i < 1000; ++i) {
+        keys.add(i);
+      }
+      Collections.shuffle(keys, new Random(46));
+      List<RecordId> rids = new ArrayList<>();
+      for (int i = 0; i < 1000; ++i) {
+        tree.put(new IntDataBox(keys.get(i)), new RecordId(keys.get(i), (short) 0));
+        rids.add(new RecordId(i, (short) 0));
+      }
+      int numPages = tree.getNumPages();
+
+      // Random puts leave leaves about 70% full. Full leaves hold 4 keys, so
+      // 1000 keys take up 250 leaves (and some 125 inner nodes above them).
+      tree.rebuild(1.0f);
+      assertTrue(numPages > 450);
+      assertTrue(tree.getNumPages() < 400);
+      assertEquals(rids, iteratorToList(tree.scanAll()));
+      assertEquals(rids, iteratorToList(new BPlusTree(file.getAbsolutePath()).scanAll()));
+
+      // The rebuilt tree is a regular tree.
+      tree.remove(new IntDataBox(500));
+      tree.put(new IntDataBox(1000), new RecordId(1000, (short) 0));
+      rids.remove(500);
+      rids.add(new RecordId(1000, (short) 0));
+      assertEquals(rids, iteratorToList(tree.scanAll()));
+    }
+
+    @Test(expected = BPlusTreeException.class)
+    public void testRebuildInvalidFillFactor() throws BPlusTreeException, IOException {
+      getBPlusTree(Type.intType(), 2).rebuild(0.0f);
+    }
+
+    // Decodes the record ids of iter (see RecordId.toLong).
+    private static List<RecordId> decode(LongIterator iter) {
+      List<RecordId> rids = new ArrayList<>();
+      while (iter.hasNext()) {
+        rids.add(RecordId.fromLong(iter.nextLong()));
+      }
+      return rids;
+    }
+
+    @Test
+    public void testScanRangeRids() throws BPlusTreeException, IOException {
+      BPlusTree tree = getBPlusTree(Type.intType(), 2);
+      List<Integer> keys = new ArrayList<>();
+      for (int i = 0; i < 500; ++i) {
+        keys.add(i);
+      }
+      Collections.shuffle(keys, new Random(52));
+      for (int k : keys) {
+        tree.put(new IntDataBox(k), new RecordId(k / 10, (short) (k % 10)));
+      }
+      for (int k = 0; k < 500; k += 3) {
+        tree.remove(new IntDataBox(k));
+      }
+
+      // Scans of record ids encoded as longs return the same record ids as
+      // scans of RecordIds, in either direction.
+      assertEquals(iteratorToList(tree.scanAll()), decode(tree.scanAllRids()));
+      for (int lo = -1; lo < 510; lo += 37) {
+        for (int hi = lo; hi < 510; hi += 53) {
+          Optional<DataBox> l = Optional.of(new IntDataBox(lo));
+          Optional<DataBox> h = Optional.of(new IntDataBox(hi));
+          assertEquals(iteratorToList(tree.scanRange(l, true, h, false)),
+                       decode(tree.scanRangeRids(l, true, h, false)));
+          assertEquals(iteratorToList(tree.scanRangeDescending(l, false, h, true)),
+                       decode(tree.scanRangeRidsDescending(l, false, h, true)));
+        }
+      }
+
+      // So do scans that see buffered puts and removes.
+      tree.setInsertBufferCapacity(100);
+      tree.put(new IntDataBox(0), new RecordId(0, (short) 0));
+      tree.remove(new IntDataBox(1));
+      assertEquals(iteratorToList(tree.scanAll()), decode(tree.scanAllRids()));
+    }
+
+    // Checks that the statistics the tree kept up to date match those that
+    // analyze measures.
+    private void checkStats(BPlusTree tree) throws BPlusTreeException {
+      IndexStats kept = tree.getStats();
+      IndexStats measured = tree.analyze();
+      assertEquals(measured.getHeight(), kept.getHeight());
+      assertEquals(measured.getNumLeaves(), kept.getNumLeaves());
+      assertEquals(measured.getNumKeys(), kept.getNumKeys());
+    }
+
+    @Test
+    public void testStats() throws BPlusTreeException, IOException {
+      BPlusTree tree = getBPlusTree(Type.intType(), 2);
+      assertEquals(new IndexStats(1, 1, 0, -1), tree.getStats());
+
+      List<Integer> keys = new ArrayList<>();
+      for (int i = 0; i < 1000; ++i) {
+        keys.add(i);
+      }
+      Collections.shuffle(keys, new Random(47));
+      for (int k : keys) {
+        tree.put(new IntDataBox(k), new RecordId(k, (short) 0));
+      }
+      assertEquals(1000, tree.getStats().getNumKeys());
+      assertTrue(tree.getStats().getHeight() > 4);
+      checkStats(tree);
+
+      // Removes merge leaves and shorten the tree.
+      Collections.shuffle(keys, new Random(48));
+      for (int k : keys.subList(10, keys.size())) {
+        tree.remove(new IntDataBox(k));
+      }
+      assertEquals(10, tree.getStats().getNumKeys());
+      checkStats(tree);
+
+      for (int k : keys.subList(10, keys.size())) {
+        tree.put(new IntDataBox(k), new RecordId(k, (short) 0));
+      }
+      tree.rebuild(1.0f);
+      assertEquals(250, tree.getStats().getNumLeaves());
+      checkStats(tree);
+
+      // Buffered writes are counted before they are flushed: removes of keys
+      // that aren't in the tree and puts of keys whose removes are still
+      // buffered don't change the number of keys.
+      tree.setInsertBufferCapacity(100);
+      tree.put(new IntDataBox(1000), new RecordId(1000, (short) 0));
+      tree.remove(new IntDataBox(0));
+      tree.remove(new IntDataBox(1));
+      tree.remove(new IntDataBox(2000));
+      tree.remove(new IntDataBox(2));
+      tree.put(new IntDataBox(2), new RecordId(2, (short) 1));
+      assertEquals(5, tree.getNumBuffered());
+      assertEquals(999, tree.getStats().getNumKeys());
+      tree.flush();
+      assertEquals(999, tree.getStats().getNumKeys());
+      checkStats(tree);
+    }
+
+    @Test
+    public void testStatsFromDisk() throws BPlusTreeException, IOException {
+      BPlusTree tree = getBPlusTree(Type.intType(), 2);
+      for (int i = 0; i < 100; ++i) {
+        tree.put(new IntDataBox(i), new RecordId(i / 10, (short) i));
+      }
+      tree.remove(new IntDataBox(0));
+      assertEquals(tree.getStats(), new BPlusTree(file.getAbsolutePath()).getStats());
+
+      tree.analyze();
+      IndexStats fromDisk = new BPlusTree(file.getAbsolutePath()).getStats();
+      assertEquals(tree.getStats(), fromDisk);
+      assertEquals(10, fromDisk.getClusteringFactor());
+    }
+
+    @Test
+    public void testColumnsFromDisk() throws BPlusTreeException, IOException {
+      BPlusTree tree = getBPlusTree(Type.intType(), 2);
+      assertEquals(Collections.emptyList(), new BPlusTree(file.getAbsolutePath()).getKeyColumns());
+      tree.setColumns(Arrays.asList(2, 0), Arrays.asList(1));
+      for (int i = 0; i < 100; ++i) {
+        tree.put(new IntDataBox(i), new RecordId(i, (short) 0));
+      }
+      BPlusTree fromDisk = new BPlusTree(file.getAbsolutePath());
+      assertEquals(Arrays.asList(2, 0), fromDisk.getKeyColumns());
+      assertEquals(Arrays.asList(1), fromDisk.getIncludedColumns());
+    }
+
+    @Test
+    public void testClusteringFactor() throws BPlusTreeException, IOException {
+      // The records of 1000 keys are on 100 pages, 10 to a page. If they are
+      // stored in key order, a scan of the index reads each page once.
+      BPlusTree clustered = getBPlusTree(Type.intType(), 2);
+      for (int i = 0; i < 1000; ++i) {
+        clustered.put(new IntDataBox(i), new RecordId(i / 10, (short) (i % 10)));
+      }
+      assertFalse(clustered.getStats().hasClusteringFactor());
+      assertEquals(100, clustered.analyze().getClusteringFactor());
+      assertTrue(clustered.getStats().hasClusteringFactor());
+
+      // If they are stored in no particular order, it reads about one page
+      // per key.
+      List<Integer> slots = new ArrayList<>();
+      for (int i = 0; i < 1000; ++i) {
+        slots.add(i);
+      }
+      Collections.shuffle(slots, new Random(49));
+      BPlusTree unclustered = new BPlusTree(tempFolder.newFile().getAbsolutePath(),
+                                            Type.intType(), 2);
+      for (int i = 0; i < 1000; ++i) {
+        int slot = slots.get(i);
+        unclustered.put(new IntDataBox(i), new RecordId(slot / 10, (short) (slot % 10)));
+      }
+      assertTrue(unclustered.analyze().getClusteringFactor() > 900);
+    }
+
     @Test
     public void testMaxOrder() {
       // Note that this white box test depend critically on the implementation
@@ -564,5 +1627,10 @@ public class TestBPlusTree {
       assertEquals(4, LeafNode.maxOrder(pageSizeInBytes, keySchema));
       assertEquals(5, InnerNode.maxOrder(pageSizeInBytes, keySchema));
       assertEquals(4, BPlusTree.maxOrder(pageSizeInBytes, keySchema));
+
+      // Including an int in every entry makes leaf entries 14 bytes long.
+      List<Type> includedSchema = Arrays.asList(Type.intType());
+      assertEquals(3, LeafNode.maxOrder(pageSizeInBytes, keySchema, includedSchema));
+      assertEquals(3, BPlusTree.maxOrder(pageSizeInBytes, keySchema, includedSchema));
     }
 }
@@ -0,0 +1,106 @@
+package edu.berkeley.cs186.database.index;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.DisableOnDebug;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+
+import edu.berkeley.cs186.database.common.Pair;
+import edu.berkeley.cs186.database.databox.BoolDataBox;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.databox.StringDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.table.RecordId;
+
+public class TestBitmapIndex {
+    // 10 seconds max per method tested.
+    @Rule
+    public TestRule globalTimeout = new DisableOnDebug(Timeout.seconds(10));
+
+    private static RecordId rid(int i) {
+      return new RecordId(i / 50, (short) (i % 50));
+    }
+
+    private static long[] rids(int from, int to, int step) {
+      List<Long> rids = new ArrayList<Long>();
+      for (int i = from; i < to; i += step) {
+        rids.add(rid(i).toLong());
+      }
+      long[] values = new long[rids.size()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = rids.get(i);
+      }
+      return values;
+    }
+
+    @Test
+    public void testPutAndGet() throws BitmapIndexException {
+      BitmapIndex index = new BitmapIndex(Type.intType());
+      for (int i = 0; i < 1000; ++i) {
+        index.put(new IntDataBox(i % 3), rid(i));
+      }
+      assertEquals(3, index.getNumKeys());
+      assertEquals(1000, index.size());
+      assertArrayEquals(rids(0, 1000, 3), index.get(new IntDataBox(0)).toArray());
+      assertArrayEquals(rids(2, 1000, 3), index.get(new IntDataBox(2)).toArray());
+      assertTrue(index.get(new IntDataBox(3)).isEmpty());
+      assertArrayEquals(rids(0, 1000, 1), index.getAll().toArray());
+      assertArrayEquals(index.get(new IntDataBox(1)).or(index.get(new IntDataBox(2))).toArray(),
+                        index.getMatching(k -> k.getInt() > 0).toArray());
+
+      try {
+        index.put(new IntDataBox(0), rid(0));
+        fail();
+      } catch (BitmapIndexException e) {
+        // Duplicate entry.
+      }
+
+      // Lookups return copies.
+      index.get(new IntDataBox(0)).add(rid(1000));
+      assertArrayEquals(rids(0, 1000, 3), index.get(new IntDataBox(0)).toArray());
+    }
+
+    @Test
+    public void testRemove() throws BitmapIndexException {
+      BitmapIndex index = new BitmapIndex(Type.boolType());
+      for (int i = 0; i < 100; ++i) {
+        index.put(new BoolDataBox(i < 10), rid(i));
+      }
+      for (int i = 0; i < 10; ++i) {
+        index.remove(new BoolDataBox(true), rid(i));
+      }
+      index.remove(new BoolDataBox(true), rid(50));
+      assertEquals(1, index.getNumKeys());
+      assertEquals(90, index.size());
+      assertTrue(index.get(new BoolDataBox(true)).isEmpty());
+      assertArrayEquals(rids(10, 100, 1), index.get(new BoolDataBox(false)).toArray());
+    }
+
+    @Test
+    public void testUpdateRids() throws BitmapIndexException {
+      BitmapIndex index = new BitmapIndex(Type.stringType(2));
+      DataBox al = new StringDataBox("AL", 2);
+      DataBox nl = new StringDataBox("NL", 2);
+      index.put(al, rid(0));
+      index.put(nl, rid(1));
+      index.put(al, rid(100));
+
+      // rid(100) moves to rid(1), which rid(1) moves out of.
+      index.updateRids(Arrays.asList(al, nl),
+                       Arrays.asList(new Pair<RecordId, RecordId>(rid(100), rid(1)),
+                                     new Pair<RecordId, RecordId>(rid(1), rid(2))));
+      assertArrayEquals(new long[] {rid(0).toLong(), rid(1).toLong()}, index.get(al).toArray());
+      assertArrayEquals(new long[] {rid(2).toLong()}, index.get(nl).toArray());
+      assertEquals(3, index.size());
+    }
+}
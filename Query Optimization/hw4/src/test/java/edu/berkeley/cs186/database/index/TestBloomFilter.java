@@ -0,0 +1,153 @@
+package edu.berkeley.cs186.database.index;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.DisableOnDebug;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.databox.StringDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+
+public class TestBloomFilter {
+    public static final String filename = "TestBloomFilter";
+    private File file;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    // 10 seconds max per method tested.
+    @Rule
+    public TestRule globalTimeout = new DisableOnDebug(Timeout.seconds(10));
+
+    @Before
+    public void initFile() throws IOException {
+      this.file = tempFolder.newFile(filename);
+    }
+
+    @Test
+    public void testEmpty() {
+      BloomFilter filter = new BloomFilter(file.getAbsolutePath(), Type.intType(), 100, 0.01);
+      for (int i = 0; i < 100; ++i) {
+        assertFalse(filter.mightContain(new IntDataBox(i)));
+      }
+      assertFalse(filter.needsRebuild());
+    }
+
+    @Test
+    public void testNoFalseNegatives() {
+      BloomFilter filter = new BloomFilter(file.getAbsolutePath(), Type.intType(), 10000, 0.01);
+      for (int i = 0; i < 10000; ++i) {
+        filter.add(new IntDataBox(i));
+      }
+      for (int i = 0; i < 10000; ++i) {
+        assertTrue(filter.mightContain(new IntDataBox(i)));
+      }
+      assertEquals(10000, filter.getNumKeys());
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+      int n = 10000;
+      BloomFilter filter = new BloomFilter(file.getAbsolutePath(), Type.intType(), n, 0.01);
+      assertEquals(BloomFilter.optimalNumBits(n, 0.01), filter.getNumBits());
+      assertEquals(7, filter.getNumHashes());
+      for (int i = 0; i < n; ++i) {
+        filter.add(new IntDataBox(i));
+      }
+
+      // Keys that were never added are let through about 1% of the time.
+      int falsePositives = 0;
+      for (int i = n; i < 11 * n; ++i) {
+        if (filter.mightContain(new IntDataBox(i))) {
+          ++falsePositives;
+        }
+      }
+      assertTrue(falsePositives < 2 * (10 * n) / 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongType() {
+      BloomFilter filter = new BloomFilter(file.getAbsolutePath(), Type.intType(), 100, 0.01);
+      filter.mightContain(new StringDataBox("a", 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFalsePositiveRate() {
+      new BloomFilter(file.getAbsolutePath(), Type.intType(), 100, 1.0);
+    }
+
+    @Test
+    public void testRebuild() {
+      BloomFilter filter = new BloomFilter(file.getAbsolutePath(), Type.intType(), 100, 0.01);
+      for (int i = 0; i < 100; ++i) {
+        filter.add(new IntDataBox(i));
+      }
+      assertFalse(filter.needsRebuild());
+
+      // A removed key stays in the filter until it is rebuilt.
+      filter.markStale();
+      assertTrue(filter.needsRebuild());
+      assertTrue(filter.mightContain(new IntDataBox(0)));
+
+      List<DataBox> keys = new ArrayList<>();
+      for (int i = 1; i < 100; ++i) {
+        keys.add(new IntDataBox(i));
+      }
+      filter.rebuild(keys.iterator(), 1000);
+      assertFalse(filter.needsRebuild());
+      assertFalse(filter.mightContain(new IntDataBox(0)));
+      assertEquals(99, filter.getNumKeys());
+      assertEquals(1000, filter.getExpectedKeys());
+      assertEquals(BloomFilter.optimalNumBits(1000, 0.01), filter.getNumBits());
+
+      // So does a filter that holds more keys than it was sized for.
+      for (int i = 100; i <= 1001; ++i) {
+        filter.add(new IntDataBox(i));
+      }
+      assertTrue(filter.needsRebuild());
+    }
+
+    @Test
+    public void testReadFromDisk() {
+      Type keySchema = Type.stringType(10);
+      BloomFilter filter = new BloomFilter(file.getAbsolutePath(), keySchema, 50000, 0.01);
+      for (int i = 0; i < 50000; ++i) {
+        filter.add(new StringDataBox("key" + i, 10));
+      }
+      filter.markStale();
+
+      BloomFilter fromDisk = new BloomFilter(file.getAbsolutePath());
+      assertEquals(keySchema, fromDisk.getKeySchema());
+      assertEquals(0.01, fromDisk.getFalsePositiveRate(), 0);
+      assertEquals(filter.getNumBits(), fromDisk.getNumBits());
+      assertEquals(filter.getNumHashes(), fromDisk.getNumHashes());
+      assertEquals(50000, fromDisk.getNumKeys());
+      assertEquals(1, fromDisk.getNumStale());
+      for (int i = 0; i < 50000; ++i) {
+        assertTrue(fromDisk.mightContain(new StringDataBox("key" + i, 10)));
+      }
+      for (int i = 50000; i < 50100; ++i) {
+        assertEquals(filter.mightContain(new StringDataBox("key" + i, 10)),
+                     fromDisk.mightContain(new StringDataBox("key" + i, 10)));
+      }
+
+      // A rebuilt filter is read back at its new size.
+      filter.rebuild(new ArrayList<DataBox>().iterator(), 10);
+      fromDisk = new BloomFilter(file.getAbsolutePath());
+      assertEquals(filter.getNumBits(), fromDisk.getNumBits());
+      assertFalse(fromDisk.mightContain(new StringDataBox("key0", 10)));
+    }
+}
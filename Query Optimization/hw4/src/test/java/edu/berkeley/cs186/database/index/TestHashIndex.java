@@ -0,0 +1,177 @@
+package edu.berkeley.cs186.database.index;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.DisableOnDebug;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+
+import edu.berkeley.cs186.database.common.Pair;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.databox.StringDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.table.RecordId;
+
+public class TestHashIndex {
+    public static final String filename = "TestHashIndex";
+    private File file;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    // 10 seconds max per method tested.
+    @Rule
+    public TestRule globalTimeout = new DisableOnDebug(Timeout.seconds(10));
+
+    @Before
+    public void initFile() throws IOException {
+      this.file = tempFolder.newFile(filename);
+    }
+
+    private static RecordId rid(int i) {
+      return new RecordId(i, (short) (i % 100));
+    }
+
+    @Test
+    public void testEmpty() {
+      HashIndex index = new HashIndex(file.getAbsolutePath(), Type.intType());
+      assertEquals(Optional.empty(), index.get(new IntDataBox(0)));
+      assertFalse(index.scanEqual(new IntDataBox(0)).hasNext());
+      assertEquals(0, index.getGlobalDepth());
+    }
+
+    @Test
+    public void testPutAndGet() throws HashIndexException {
+      HashIndex index = new HashIndex(file.getAbsolutePath(), Type.intType());
+      int n = 10 * HashIndex.bucketCapacity(Page.pageSize, Type.intType());
+      for (int i = 0; i < n; ++i) {
+        index.put(new IntDataBox(i), rid(i));
+      }
+
+      // The index had to split its buckets to hold every key.
+      assertTrue(index.getGlobalDepth() >= 4);
+      for (int i = 0; i < n; ++i) {
+        assertEquals(Optional.of(rid(i)), index.get(new IntDataBox(i)));
+      }
+      assertEquals(Optional.empty(), index.get(new IntDataBox(n)));
+      assertEquals(Optional.empty(), index.get(new IntDataBox(-1)));
+    }
+
+    @Test(expected = HashIndexException.class)
+    public void testDuplicateKey() throws HashIndexException {
+      HashIndex index = new HashIndex(file.getAbsolutePath(), Type.intType());
+      index.put(new IntDataBox(42), rid(0));
+      index.put(new IntDataBox(42), rid(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongType() {
+      HashIndex index = new HashIndex(file.getAbsolutePath(), Type.intType());
+      index.get(new StringDataBox("a", 1));
+    }
+
+    @Test
+    public void testRemove() throws HashIndexException {
+      HashIndex index = new HashIndex(file.getAbsolutePath(), Type.intType());
+      int n = 3 * HashIndex.bucketCapacity(Page.pageSize, Type.intType());
+      for (int i = 0; i < n; ++i) {
+        index.put(new IntDataBox(i), rid(i));
+      }
+      for (int i = 0; i < n; i += 2) {
+        index.remove(new IntDataBox(i));
+      }
+      index.remove(new IntDataBox(n));
+
+      for (int i = 0; i < n; ++i) {
+        Optional<RecordId> expected = i % 2 == 0 ? Optional.empty() : Optional.of(rid(i));
+        assertEquals(expected, index.get(new IntDataBox(i)));
+      }
+
+      // Removed keys can be put again.
+      for (int i = 0; i < n; i += 2) {
+        index.put(new IntDataBox(i), rid(i + 1));
+      }
+      for (int i = 0; i < n; i += 2) {
+        assertEquals(Optional.of(rid(i + 1)), index.get(new IntDataBox(i)));
+      }
+    }
+
+    @Test
+    public void testUpdateRids() throws HashIndexException {
+      HashIndex index = new HashIndex(file.getAbsolutePath(), Type.intType());
+      for (int i = 0; i < 1000; ++i) {
+        index.put(new IntDataBox(i), rid(i));
+      }
+      List<Pair<DataBox, RecordId>> entries = new ArrayList<>();
+      for (int i = 0; i < 1000; i += 3) {
+        entries.add(new Pair<>(new IntDataBox(i), rid(i + 7)));
+      }
+      entries.add(new Pair<>(new IntDataBox(1000), rid(0)));
+      index.updateRids(entries);
+
+      for (int i = 0; i < 1000; ++i) {
+        RecordId expected = i % 3 == 0 ? rid(i + 7) : rid(i);
+        assertEquals(Optional.of(expected), index.get(new IntDataBox(i)));
+      }
+      assertEquals(Optional.empty(), index.get(new IntDataBox(1000)));
+    }
+
+    @Test
+    public void testReadFromDisk() throws HashIndexException {
+      Type keySchema = Type.stringType(10);
+      HashIndex index = new HashIndex(file.getAbsolutePath(), keySchema);
+      int n = 5 * HashIndex.bucketCapacity(Page.pageSize, keySchema);
+      for (int i = 0; i < n; ++i) {
+        index.put(new StringDataBox("key" + i, 10), rid(i));
+      }
+      int globalDepth = index.getGlobalDepth();
+      int numPages = index.getNumPages();
+
+      HashIndex fromDisk = new HashIndex(file.getAbsolutePath());
+      assertEquals(keySchema, fromDisk.getKeySchema());
+      assertEquals(globalDepth, fromDisk.getGlobalDepth());
+      assertEquals(numPages, fromDisk.getNumPages());
+      for (int i = 0; i < n; ++i) {
+        assertEquals(Optional.of(rid(i)), fromDisk.get(new StringDataBox("key" + i, 10)));
+      }
+
+      // The index keeps growing after it is read back.
+      for (int i = n; i < 2 * n; ++i) {
+        fromDisk.put(new StringDataBox("key" + i, 10), rid(i));
+      }
+      for (int i = 0; i < 2 * n; ++i) {
+        assertEquals(Optional.of(rid(i)), fromDisk.get(new StringDataBox("key" + i, 10)));
+      }
+    }
+
+    @Test
+    public void testLargeDirectory() throws HashIndexException {
+      // Wide keys leave room for few entries per bucket, so a modest number
+      // of keys splits the directory over several pages.
+      Type keySchema = Type.stringType(400);
+      HashIndex index = new HashIndex(file.getAbsolutePath(), keySchema);
+      int n = 2000 * HashIndex.bucketCapacity(Page.pageSize, keySchema);
+      for (int i = 0; i < n; ++i) {
+        index.put(new StringDataBox("key" + i, 400), rid(i));
+      }
+      assertTrue((1 << index.getGlobalDepth()) > Page.pageSize / Integer.BYTES);
+
+      HashIndex fromDisk = new HashIndex(file.getAbsolutePath());
+      for (int i = 0; i < n; ++i) {
+        assertEquals(Optional.of(rid(i)), fromDisk.get(new StringDataBox("key" + i, 400)));
+      }
+    }
+}
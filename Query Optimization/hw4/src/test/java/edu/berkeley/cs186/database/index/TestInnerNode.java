@@ -214,6 +214,17 @@ public class TestInnerNode {
       }
     }
 
+    @Test
+    public void testGetChildPageNumInPage() throws IOException {
+      BPlusTreeMetadata meta = getBPlusTreeMetadata(Type.intType(), 2);
+      for (int i = 0; i < 30; ++i) {
+        DataBox key = new IntDataBox(i);
+        int expected = innerChildren.get(i / 10);
+        assertEquals(expected, inner.getChildPageNum(key));
+        assertEquals(expected, InnerNode.getChildPageNum(meta, inner.getPage(), key));
+      }
+    }
+
     @Test
     public void testGetLeftmostLeaf() throws IOException {
       assertEquals(getLeaf(leaf0), inner.getLeftmostLeaf());
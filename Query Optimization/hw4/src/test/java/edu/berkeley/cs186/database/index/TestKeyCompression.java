@@ -0,0 +1,100 @@
+package edu.berkeley.cs186.database.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.databox.NormalizedKey;
+import edu.berkeley.cs186.database.databox.StringDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+
+public class TestKeyCompression {
+    @Test
+    public void testSeparator() {
+        assertEquals(new StringDataBox("b", 10),
+                     KeyCompression.separator(new StringDataBox("apple", 10),
+                                              new StringDataBox("banana", 10)));
+        assertEquals(new StringDataBox("applet", 10),
+                     KeyCompression.separator(new StringDataBox("apple", 10),
+                                              new StringDataBox("applet", 10)));
+        assertEquals(new IntDataBox(256),
+                     KeyCompression.separator(new IntDataBox(5), new IntDataBox(300)));
+        assertEquals(new IntDataBox(0),
+                     KeyCompression.separator(new IntDataBox(-1), new IntDataBox(7)));
+        assertEquals(new IntDataBox(2),
+                     KeyCompression.separator(new IntDataBox(1), new IntDataBox(2)));
+    }
+
+    @Test
+    public void testKeys() {
+        Type type = Type.stringType(10);
+        List<DataBox> keys = Arrays.asList(new StringDataBox("apple", 10),
+                                           new StringDataBox("applet", 10),
+                                           new StringDataBox("apply", 10));
+        List<byte[]> encoded = KeyCompression.encode(keys);
+        assertEquals(4, KeyCompression.prefixLength(encoded, 0, 3));
+        assertEquals(5, KeyCompression.prefixLength(encoded, 0, 2));
+
+        // The prefix "appl" and the suffixes "e", "et", and "y", each with a
+        // one byte length.
+        int size = KeyCompression.keysSize(encoded, 0, 3, type);
+        assertEquals(1 + 4 + 2 + 3 + 2, size);
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        int prefixLength = KeyCompression.putPrefix(buf, encoded, 0, 3);
+        for (byte[] key : encoded) {
+          KeyCompression.putSuffix(buf, key, prefixLength, type);
+        }
+        assertEquals(size, buf.position());
+
+        buf.flip();
+        byte[] prefix = KeyCompression.getPrefix(buf);
+        for (DataBox key : keys) {
+          assertEquals(key, KeyCompression.getKey(buf, prefix, type));
+        }
+    }
+
+    @Test
+    public void testRunningSize() {
+        Type type = Type.stringType(20);
+        List<byte[]> encoded = new ArrayList<>();
+        KeyCompression.RunningSize size = new KeyCompression.RunningSize(type);
+        String[] strings = {"abcd", "abcdef", "abcx", "abd", "b", "b b", "c"};
+        for (String s : strings) {
+          byte[] key = NormalizedKey.encode(new StringDataBox(s, 20));
+          encoded.add(key);
+          assertEquals(KeyCompression.keysSize(encoded, 0, encoded.size(), type),
+                       size.sizeWith(key));
+          size.add(key);
+        }
+    }
+
+    @Test
+    public void testVarInt() {
+        int[] xs = {0, 1, 127, 128, 300, 1 << 21, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+        ByteBuffer buf = ByteBuffer.allocate(100);
+        for (int x : xs) {
+          int position = buf.position();
+          KeyCompression.putVarInt(buf, x);
+          assertEquals(KeyCompression.varIntSize(x), buf.position() - position);
+        }
+        assertEquals(1, KeyCompression.varIntSize(127));
+        assertEquals(2, KeyCompression.varIntSize(128));
+        assertEquals(5, KeyCompression.varIntSize(-1));
+
+        buf.flip();
+        for (int x : xs) {
+          assertEquals(x, KeyCompression.getVarInt(buf));
+          assertEquals(x, KeyCompression.unZigZag(KeyCompression.zigZag(x)));
+        }
+        assertTrue(KeyCompression.zigZag(-1) < KeyCompression.zigZag(2));
+    }
+}
@@ -1,5 +1,6 @@
 package edu.berkeley.cs186.database.index;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -333,7 +334,7 @@ public class TestLeafNode {
       assertEquals(6, RecordId.getSizeInBytes());
       for (int d = 0; d < 10; ++d) {
         int dd = d + 1;
-        for (int i = 9 + (2*d) * (4+6); i < 9 + (2*dd) * (4+6); ++i) {
+        for (int i = 13 + (2*d) * (4+6); i < 13 + (2*dd) * (4+6); ++i) {
           assertEquals(d, LeafNode.maxOrder(i, Type.intType()));
         }
       }
@@ -373,4 +374,48 @@ public class TestLeafNode {
         assertEquals(leaf, LeafNode.fromBytes(meta, pageNum));
       }
     }
+
+    @Test
+    public void testGetKeyInPage() throws BPlusTreeException, IOException {
+      int d = 5;
+      BPlusTreeMetadata meta = getBPlusTreeMetadata(Type.intType(), d);
+      LeafNode leaf = getEmptyLeaf(meta, Optional.empty());
+      for (int i = 0; i < 2 * d; ++i) {
+        DataBox key = new IntDataBox(2 * i);
+        leaf.put(key, new RecordId(i, (short) i));
+      }
+
+      for (int i = -1; i < 4 * d + 1; ++i) {
+        DataBox key = new IntDataBox(i);
+        assertEquals(leaf.getKey(key), LeafNode.getKey(meta, leaf.getPage(), key));
+      }
+      leaf.remove(new IntDataBox(4));
+      assertEquals(Optional.empty(), LeafNode.getKey(meta, leaf.getPage(), new IntDataBox(4)));
+      assertEquals(Optional.of(new RecordId(3, (short) 3)),
+                   LeafNode.getKey(meta, leaf.getPage(), new IntDataBox(6)));
+    }
+
+    @Test
+    public void testInPlaceUpdates() throws BPlusTreeException, IOException {
+      // Puts, removes, and splits update the leaf's page in place. After each
+      // of them, the page must hold exactly what toBytes would write.
+      int d = 5;
+      BPlusTreeMetadata meta = getBPlusTreeMetadata(Type.intType(), d);
+      LeafNode leaf = getEmptyLeaf(meta, Optional.empty());
+      Random r = new Random(42);
+      for (int i = 0; i < 100; ++i) {
+        DataBox key = new IntDataBox(r.nextInt(20));
+        if (r.nextBoolean()) {
+          leaf.remove(key);
+        } else if (!leaf.getKey(key).isPresent()) {
+          leaf.put(key, new RecordId(i, (short) i));
+        } else {
+          leaf.updateRid(key, new RecordId(i, (short) i));
+        }
+
+        byte[] bytes = leaf.toBytes();
+        assertArrayEquals(bytes, leaf.getPage().readBytes(0, bytes.length));
+        leaf = (LeafNode) BPlusNode.fromBytes(meta, leaf.getPage().getPageNum());
+      }
+    }
 }
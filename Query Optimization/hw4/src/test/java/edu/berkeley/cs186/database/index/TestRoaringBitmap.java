@@ -0,0 +1,173 @@
+package edu.berkeley.cs186.database.index;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.DisableOnDebug;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+
+import edu.berkeley.cs186.database.common.LongIterator;
+import edu.berkeley.cs186.database.common.Pair;
+import edu.berkeley.cs186.database.table.RecordId;
+
+public class TestRoaringBitmap {
+    // 10 seconds max per method tested.
+    @Rule
+    public TestRule globalTimeout = new DisableOnDebug(Timeout.seconds(10));
+
+    private static long rid(int pageNum, int entryNum) {
+      return RecordId.toLong(pageNum, (short) entryNum);
+    }
+
+    private static long[] toArray(TreeSet<Long> set) {
+      long[] values = new long[set.size()];
+      int i = 0;
+      for (long value : set) {
+        values[i++] = value;
+      }
+      return values;
+    }
+
+    /**
+     * Returns a bitmap of n random record ids on pages [0, numPages), and adds
+     * them to expected too. Entry numbers are drawn from [0, maxEntry).
+     */
+    private static RoaringBitmap randomBitmap(Random r, int n, int numPages, int maxEntry,
+                                              TreeSet<Long> expected) {
+      RoaringBitmap bitmap = new RoaringBitmap();
+      for (int i = 0; i < n; ++i) {
+        long rid = rid(r.nextInt(numPages), r.nextInt(maxEntry));
+        bitmap.add(rid);
+        expected.add(rid);
+      }
+      return bitmap;
+    }
+
+    @Test
+    public void testEmpty() {
+      RoaringBitmap bitmap = new RoaringBitmap();
+      assertTrue(bitmap.isEmpty());
+      assertEquals(0, bitmap.getCardinality());
+      assertEquals(0, bitmap.getNumPages());
+      assertFalse(bitmap.contains(rid(0, 0)));
+      assertFalse(bitmap.iterator().hasNext());
+      assertFalse(bitmap.pageIterator().hasNext());
+      bitmap.remove(rid(0, 0));
+      assertTrue(bitmap.and(RoaringBitmap.of(rid(0, 0))).isEmpty());
+    }
+
+    @Test
+    public void testAddAndRemove() {
+      RoaringBitmap bitmap = RoaringBitmap.of(rid(7, 3), rid(0, 65535), rid(7, 1), rid(0, 0));
+      bitmap.add(rid(7, 3));
+      assertEquals(4, bitmap.getCardinality());
+      assertEquals(2, bitmap.getNumPages());
+      assertTrue(bitmap.contains(new RecordId(0, (short) -1)));
+      assertArrayEquals(new long[] {rid(0, 0), rid(0, 65535), rid(7, 1), rid(7, 3)},
+                        bitmap.toArray());
+
+      bitmap.remove(rid(0, 0));
+      bitmap.remove(rid(0, 65535));
+      bitmap.remove(rid(8, 0));
+      assertEquals(1, bitmap.getNumPages());
+      assertArrayEquals(new long[] {rid(7, 1), rid(7, 3)}, bitmap.toArray());
+    }
+
+    @Test
+    public void testDenseContainers() {
+      // A page with more than MAX_ARRAY_SIZE entries is held by a bitmap
+      // container, and goes back to an array container as entries are removed.
+      RoaringBitmap bitmap = new RoaringBitmap();
+      for (int i = 0; i < 3 * RoaringBitmap.MAX_ARRAY_SIZE; ++i) {
+        bitmap.add(rid(1, 2 * i));
+      }
+      assertEquals(3 * RoaringBitmap.MAX_ARRAY_SIZE, bitmap.getCardinality());
+      for (int i = 0; i < 3 * RoaringBitmap.MAX_ARRAY_SIZE; ++i) {
+        assertTrue(bitmap.contains(rid(1, 2 * i)));
+        assertFalse(bitmap.contains(rid(1, 2 * i + 1)));
+      }
+      for (int i = 0; i < 3 * RoaringBitmap.MAX_ARRAY_SIZE - 10; ++i) {
+        bitmap.remove(rid(1, 2 * i));
+      }
+      assertEquals(10, bitmap.getCardinality());
+      LongIterator iter = bitmap.iterator();
+      for (int i = 3 * RoaringBitmap.MAX_ARRAY_SIZE - 10; i < 3 * RoaringBitmap.MAX_ARRAY_SIZE; ++i) {
+        assertEquals(rid(1, 2 * i), iter.nextLong());
+      }
+      assertFalse(iter.hasNext());
+    }
+
+    @Test
+    public void testSetOperations() {
+      Random r = new Random(186);
+      // Sparse and dense pages, so that every pair of container kinds meets.
+      int[][] shapes = {{500, 8, 65536}, {40000, 8, 10000}, {20000, 4, 65536}};
+      for (int[] a : shapes) {
+        for (int[] b : shapes) {
+          TreeSet<Long> expectedA = new TreeSet<Long>();
+          TreeSet<Long> expectedB = new TreeSet<Long>();
+          RoaringBitmap bitmapA = randomBitmap(r, a[0], a[1], a[2], expectedA);
+          RoaringBitmap bitmapB = randomBitmap(r, b[0], b[1], b[2], expectedB);
+
+          TreeSet<Long> and = new TreeSet<Long>(expectedA);
+          and.retainAll(expectedB);
+          TreeSet<Long> or = new TreeSet<Long>(expectedA);
+          or.addAll(expectedB);
+          TreeSet<Long> andNot = new TreeSet<Long>(expectedA);
+          andNot.removeAll(expectedB);
+
+          assertArrayEquals(toArray(and), bitmapA.and(bitmapB).toArray());
+          assertArrayEquals(toArray(or), bitmapA.or(bitmapB).toArray());
+          assertArrayEquals(toArray(andNot), bitmapA.andNot(bitmapB).toArray());
+          assertEquals(and.size(), bitmapA.and(bitmapB).getCardinality());
+
+          // The operands are left as they were.
+          assertArrayEquals(toArray(expectedA), bitmapA.toArray());
+          assertArrayEquals(toArray(expectedB), bitmapB.toArray());
+        }
+      }
+    }
+
+    @Test
+    public void testCopy() {
+      RoaringBitmap bitmap = RoaringBitmap.of(rid(0, 0), rid(1, 1));
+      RoaringBitmap copy = bitmap.copy();
+      copy.add(rid(2, 2));
+      copy.remove(rid(0, 0));
+      assertArrayEquals(new long[] {rid(0, 0), rid(1, 1)}, bitmap.toArray());
+      assertArrayEquals(new long[] {rid(1, 1), rid(2, 2)}, copy.toArray());
+    }
+
+    @Test
+    public void testPageIterator() {
+      RoaringBitmap bitmap = new RoaringBitmap();
+      for (int i = 0; i < 10000; ++i) {
+        bitmap.add(rid(3, i));
+      }
+      bitmap.add(rid(9, 4));
+      bitmap.add(rid(9, 1));
+
+      Iterator<Pair<Integer, BitSet>> pages = bitmap.pageIterator();
+      Pair<Integer, BitSet> page = pages.next();
+      assertEquals(3, (int) page.getFirst());
+      BitSet expected = new BitSet();
+      expected.set(0, 10000);
+      assertEquals(expected, page.getSecond());
+      page = pages.next();
+      assertEquals(9, (int) page.getFirst());
+      expected = new BitSet();
+      expected.set(1);
+      expected.set(4);
+      assertEquals(expected, page.getSecond());
+      assertFalse(pages.hasNext());
+    }
+}
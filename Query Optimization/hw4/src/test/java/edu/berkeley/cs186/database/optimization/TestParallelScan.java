@@ -0,0 +1,128 @@
+package edu.berkeley.cs186.database.optimization;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import edu.berkeley.cs186.database.Database;
+import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.TestUtils;
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.query.QueryOperator;
+import edu.berkeley.cs186.database.query.QueryPlan;
+import edu.berkeley.cs186.database.query.QueryPlan.PredicateOperator;
+import edu.berkeley.cs186.database.query.QueryPlanException;
+import edu.berkeley.cs186.database.query.SequentialScanOperator;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.Table;
+
+import static org.junit.Assert.*;
+
+public class TestParallelScan {
+  public static final String TABLENAME = "T";
+  public static final String TestDir = "testDatabase";
+  private static final int NUM_RECORDS = 5000;
+
+  private Database db;
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Before
+  public void beforeEach() throws Exception {
+    File testDir = tempFolder.newFolder(TestDir);
+    this.db = new Database(testDir.getAbsolutePath());
+    this.db.createTable(TestUtils.createSchemaWithAllTypes(), TABLENAME);
+
+    Table table = this.db.getTable(TABLENAME);
+    for (int i = 0; i < NUM_RECORDS; ++i) {
+      table.addRecord(TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+    }
+    table.buildStatistics(10);
+  }
+
+  @After
+  public void afterEach() {
+    this.db.deleteAllTables();
+    this.db.close();
+  }
+
+  private static Set<Record> toSet(Iterator<Record> iter) {
+    Set<Record> records = new HashSet<Record>();
+    while (iter.hasNext()) {
+      assertTrue(records.add(iter.next()));
+    }
+    return records;
+  }
+
+  @Test
+  public void testParallelScanReturnsEveryRecord() throws DatabaseException, QueryPlanException {
+    Database.Transaction transaction = this.db.beginTransaction();
+    assertTrue(transaction.getNumDataPages(TABLENAME) > 2 * SequentialScanOperator.MORSEL_SIZE);
+
+    SequentialScanOperator serial = new SequentialScanOperator(transaction, TABLENAME, 1);
+    SequentialScanOperator parallel = new SequentialScanOperator(transaction, TABLENAME, 4);
+
+    Set<Record> expected = toSet(serial.iterator());
+    assertEquals(NUM_RECORDS, expected.size());
+    assertEquals(expected, toSet(parallel.iterator()));
+    transaction.end();
+  }
+
+  @Test
+  public void testPushedDownSelects() throws DatabaseException, QueryPlanException {
+    Database.Transaction transaction = this.db.beginTransaction();
+
+    for (int parallelism = 1; parallelism <= 3; ++parallelism) {
+      SequentialScanOperator scan =
+        new SequentialScanOperator(transaction, TABLENAME, parallelism);
+      scan.pushDownSelect("int", PredicateOperator.GREATER_THAN_EQUALS, new IntDataBox(1000));
+      scan.pushDownSelect("int", PredicateOperator.LESS_THAN, new IntDataBox(3000));
+
+      Set<Record> expected = new HashSet<Record>();
+      for (int i = 1000; i < 3000; ++i) {
+        expected.add(TestUtils.createRecordWithAllTypesWithValue(i));
+      }
+      assertEquals(expected, toSet(scan.iterator()));
+    }
+    transaction.end();
+  }
+
+  @Test
+  public void testQueryParallelism() throws DatabaseException, QueryPlanException {
+    this.db.setParallelism(4);
+    Database.Transaction transaction = this.db.beginTransaction();
+
+    QueryPlan query = transaction.query(TABLENAME);
+    query.select("int", PredicateOperator.LESS_THAN, new IntDataBox(100));
+    Set<Record> records = toSet(query.executeOptimal());
+    assertEquals(100, records.size());
+
+    // The select is evaluated by the scan, not by a SelectOperator above it.
+    QueryOperator finalOperator = query.getFinalOperator();
+    while (!finalOperator.isSequentialScan()) {
+      finalOperator = finalOperator.getSource();
+    }
+    SequentialScanOperator scan = (SequentialScanOperator) finalOperator;
+    assertEquals(4, scan.getParallelism());
+    assertTrue(scan.hasPushedDownSelects());
+
+    // A single query can opt back into a serial scan.
+    query = transaction.query(TABLENAME);
+    query.setParallelism(1);
+    query.select("int", PredicateOperator.LESS_THAN, new IntDataBox(100));
+    Iterator<Record> output = query.execute();
+    for (int i = 0; i < 100; ++i) {
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(i), output.next());
+    }
+    assertFalse(output.hasNext());
+    transaction.end();
+  }
+}
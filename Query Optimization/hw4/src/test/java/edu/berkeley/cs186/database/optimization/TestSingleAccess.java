@@ -20,6 +20,7 @@ import edu.berkeley.cs186.database.table.stats.Histogram;
 import edu.berkeley.cs186.database.TestUtils;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.query.IndexScanOperator;
 import edu.berkeley.cs186.database.query.QueryPlan.PredicateOperator;
 import edu.berkeley.cs186.database.query.QueryPlan;
 import edu.berkeley.cs186.database.query.QueryOperator;
@@ -28,6 +29,7 @@ import edu.berkeley.cs186.database.Database;
 
 import edu.berkeley.cs186.database.table.Table;
 import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.databox.IntDataBox;
 import edu.berkeley.cs186.database.databox.StringDataBox;
 import edu.berkeley.cs186.database.databox.FloatDataBox;
@@ -244,4 +246,103 @@ public class TestSingleAccess {
     assert(op.isSelect());
     assert(op.getSource().isIndexScan());
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testBitmapHeapScanSelection() throws DatabaseException, QueryPlanException{
+    Database.Transaction transaction = this.db.beginTransaction();
+    for (int i = 0; i < 10000; ++i) {
+      Record r = createRecordWithAllTypes(false, i, "test", 0.0f);
+      transaction.addRecord(TABLENAME + "I", r.getValues());
+    }
+
+    db.getTable(TABLENAME + "I").buildStatistics(10);
+
+    transaction.queryAs(TABLENAME + "I", "t1");
+
+    QueryPlan query = transaction.query("t1");
+    query.select("int", PredicateOperator.LESS_THAN, new IntDataBox(100));
+
+    QueryOperator op = query.minCostSingleAccess("t1");
+
+    assert(op.isBitmapHeapScan());
+
+    Set<Record> expected = new HashSet<Record>();
+    for (int i = 0; i < 100; ++i) {
+      expected.add(createRecordWithAllTypes(false, i, "test", 0.0f));
+    }
+    Set<Record> actual = new HashSet<Record>();
+    Iterator<Record> iter = op.iterator();
+    while (iter.hasNext()) {
+      assertTrue(actual.add(iter.next()));
+    }
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  public void testInPredicate() throws DatabaseException, QueryPlanException{
+    Database.Transaction transaction = this.db.beginTransaction();
+    for (int i = 0; i < 10000; ++i) {
+      Record r = createRecordWithAllTypes(false, i, "test", 0.0f);
+      transaction.addRecord(TABLENAME + "I", r.getValues());
+      transaction.addRecord(TABLENAME, r.getValues());
+    }
+
+    db.getTable(TABLENAME + "I").buildStatistics(10);
+    db.getTable(TABLENAME).buildStatistics(10);
+
+    List<DataBox> values = Arrays.<DataBox>asList(new IntDataBox(9000), new IntDataBox(7),
+                                                  new IntDataBox(12345), new IntDataBox(42),
+                                                  new IntDataBox(7));
+    Set<Record> expected = new HashSet<Record>();
+    for (int i : Arrays.asList(7, 42, 9000)) {
+      expected.add(createRecordWithAllTypes(false, i, "test", 0.0f));
+    }
+
+    // An indexed column is probed once for all the values...
+    transaction.queryAs(TABLENAME + "I", "t1");
+    QueryPlan query = transaction.query("t1");
+    query.select("int", values);
+    QueryOperator op = query.minCostSingleAccess("t1");
+    assertTrue(op.isIndexScan());
+    assertTrue(((IndexScanOperator) op).isMultiKeyProbe());
+
+    Set<Record> actual = new HashSet<Record>();
+    Iterator<Record> iter = op.iterator();
+    while (iter.hasNext()) {
+      assertTrue(actual.add(iter.next()));
+    }
+    assertEquals(expected, actual);
+
+    // ...and any other column is filtered against the values.
+    transaction.queryAs(TABLENAME, "t2");
+    query = transaction.query("t2");
+    query.select("int", values);
+    op = query.minCostSingleAccess("t2");
+    assertTrue(op.isSelect());
+    assertTrue(op.getSource().isSequentialScan());
+
+    actual = new HashSet<Record>();
+    iter = op.iterator();
+    while (iter.hasNext()) {
+      assertTrue(actual.add(iter.next()));
+    }
+    assertEquals(expected, actual);
+
+    // The naive plan answers IN predicates too.
+    query = transaction.query("t1");
+    query.select("int", values);
+    query.select("bool", PredicateOperator.EQUALS, new BoolDataBox(false));
+    actual = new HashSet<Record>();
+    iter = query.execute();
+    while (iter.hasNext()) {
+      assertTrue(actual.add(iter.next()));
+    }
+    assertEquals(expected, actual);
+  }
+
+  @Test(expected = QueryPlanException.class)
+  public void testEmptyInPredicate() throws DatabaseException, QueryPlanException{
+    Database.Transaction transaction = this.db.beginTransaction();
+    transaction.query(TABLENAME).select("int", new ArrayList<DataBox>());
+  }
+}
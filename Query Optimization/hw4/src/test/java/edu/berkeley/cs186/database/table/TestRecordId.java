@@ -24,6 +24,29 @@ public class TestRecordId {
     }
   }
 
+  @Test
+  public void testToAndFromLong() {
+    int[] pageNums = {0, 1, 42, Integer.MAX_VALUE};
+    short[] entryNums = {0, 1, 42, Short.MAX_VALUE};
+    RecordId prev = null;
+    for (int i : pageNums) {
+      for (short j : entryNums) {
+        RecordId rid = new RecordId(i, j);
+        long encoded = rid.toLong();
+        assertEquals(rid, RecordId.fromLong(encoded));
+        assertEquals(i, RecordId.getPageNum(encoded));
+        assertEquals(j, RecordId.getEntryNum(encoded));
+
+        // Encoded record ids sort like record ids.
+        if (prev != null) {
+          assertTrue(prev.compareTo(rid) < 0);
+          assertTrue(prev.toLong() < encoded);
+        }
+        prev = rid;
+      }
+    }
+  }
+
   @Test
   public void testEquals() {
     RecordId a = new RecordId(0, (short) 0);
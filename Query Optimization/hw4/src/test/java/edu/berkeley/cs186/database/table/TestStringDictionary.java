@@ -0,0 +1,118 @@
+package edu.berkeley.cs186.database.table;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.databox.StringDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+
+public class TestStringDictionary {
+  private static final String[] TEAMS = {"BOS", "NYA", "SEA", "TEX"};
+
+  private Schema schema;
+  private String filename;
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Before
+  public void beforeEach() throws Exception {
+    this.schema = new Schema(Arrays.asList("id", "team"),
+                             Arrays.asList(Type.intType(), Type.stringType(20)));
+    File dir = tempFolder.newFolder("dictionary");
+    this.filename = new File(dir, "t" + Table.FILENAME_EXTENSION).getPath();
+  }
+
+  private static List<DataBox> row(int i) {
+    return Arrays.asList(new IntDataBox(i), new StringDataBox(TEAMS[i % TEAMS.length], 20));
+  }
+
+  @Test
+  public void testEncodeDecode() {
+    String dictFilename = this.filename + StringDictionary.FILENAME_EXTENSION;
+    StringDictionary dict =
+      new StringDictionary(dictFilename, this.schema, Arrays.asList(1), true);
+    assertTrue(dict.isEncoded(1));
+    assertEquals(0, dict.encode(1, new StringDataBox("NYA", 20)));
+    assertEquals(1, dict.encode(1, new StringDataBox("BOS", 20)));
+    assertEquals(0, dict.encode(1, new StringDataBox("NYA", 20)));
+    assertEquals(-1, dict.lookup(1, new StringDataBox("SEA", 20)));
+    assertEquals(new StringDataBox("BOS", 20), dict.decode(1, 1));
+    assertSame(dict.decode(1, 1), dict.decode(1, 1));
+    dict.close();
+
+    dict = new StringDictionary(dictFilename, this.schema, Arrays.asList(1), false);
+    assertEquals(2, dict.size(1));
+    assertEquals(1, dict.lookup(1, new StringDataBox("BOS", 20)));
+    assertEquals(2, dict.encode(1, new StringDataBox("SEA", 20)));
+    dict.close();
+  }
+
+  @Test
+  public void testEncodedTable() throws DatabaseException {
+    Table table = new Table("t", this.schema, this.filename, Arrays.asList("team"));
+    assertEquals(this.schema, table.getSchema());
+    assertEquals(8, table.getStorageSchema().getSizeInBytes());
+
+    Table plain = new Table("p", this.schema, this.filename + ".plain");
+    assertTrue(table.getNumRecordsPerPage() > 2 * plain.getNumRecordsPerPage());
+    plain.close();
+
+    List<RecordId> rids = new ArrayList<RecordId>();
+    for (int i = 0; i < 1000; ++i) {
+      rids.add(table.addRecord(row(i)));
+    }
+    table.updateRecord(row(2), rids.get(1));
+    assertEquals(new Record(row(2)), table.getRecord(rids.get(1)));
+    table.close();
+
+    // The dictionary is reloaded along with the table.
+    table = new Table("t", this.filename);
+    assertEquals(this.schema, table.getSchema());
+    assertEquals(TEAMS.length, table.getDictionary().size(1));
+    assertEquals(1000, table.getNumRecords());
+    assertEquals(new Record(row(2)), table.getRecord(rids.get(1)));
+    for (int i = 2; i < 1000; ++i) {
+      assertEquals(new Record(row(i)), table.getRecord(rids.get(i)));
+    }
+    table.close();
+  }
+
+  @Test
+  public void testReadPageEquality() throws DatabaseException {
+    Table table = new Table("t", this.schema, this.filename, Arrays.asList("team"));
+    for (int i = 0; i < 1000; ++i) {
+      table.addRecord(row(i));
+    }
+
+    int numSea = 0;
+    for (int pageNum : table.getDataPageNums()) {
+      for (Record r : table.readPage(pageNum, 1, new StringDataBox("SEA", 20))) {
+        assertEquals(2, r.getValues().get(0).getInt() % TEAMS.length);
+        numSea++;
+      }
+      assertEquals(0, table.readPage(pageNum, 1, new StringDataBox("LAA", 20)).size());
+    }
+    assertEquals(250, numSea);
+    table.close();
+  }
+
+  @Test(expected = DatabaseException.class)
+  public void testEncodeNonStringColumn() throws DatabaseException {
+    new Table("t", this.schema, this.filename, Arrays.asList("id"));
+  }
+}